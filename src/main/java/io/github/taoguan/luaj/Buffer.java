@@ -87,6 +87,7 @@ public final class Buffer {
 	 * @return the value as a {@link LuaString}
 	 */
 	public final LuaString tostring() {
+		Globals.Budget.allocated( Globals.Budget.STRING + length );
 		realloc( length, 0 );
 		return LuaString.valueOf( bytes, offset, length );
 	}
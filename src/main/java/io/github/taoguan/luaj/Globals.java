@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * Global environment used by luaj.  Contains global variables referenced by executing lua.
@@ -113,6 +114,25 @@ public class Globals extends LuaTable {
 	/** The DebugLib instance loaded into this Globals, or null if debugging is not enabled */
 	public DebugLib debuglib;
 
+	/** The IoLib instance loaded into this Globals, or null if the io library is not loaded */
+	public IoLib iolib;
+
+	/** Whether errors raised by lua {@code error()} and {@code assert()} capture a Java stack trace.
+	 * Scripts only see the lua position and traceback, so those that use error and pcall for
+	 * control flow run faster with this false.  Errors raised in functions compiled by 
+	 * {@link io.github.taoguan.luaj.luajc.LuaJC} then report no line number. */
+	public boolean errorstacktraces = true;
+
+	/** Limits on the lua code run with these globals, or null to run without limits.
+	 * Functions check the budget that is set when they are called. 
+	 * @see Budget */
+	public Budget budget;
+
+	/** Profiler sampling the lua code run with these globals, or null to run without profiling.
+	 * Functions push their frames for the profiler that is set when they are called.
+	 * @see Profiler */
+	public Profiler profiler;
+
 	/** Interface for module that converts a Prototype into a LuaFunction with an environment. */
 	public interface Loader {
 		/** Convert the prototype into a LuaFunction with the supplied environment. */
@@ -131,6 +151,14 @@ public class Globals extends LuaTable {
 		Prototype undump(InputStream stream, String chunkname) throws IOException;
 	}
 	
+	/** Interface for module that replaces hot interpreted functions with compiled ones. */
+	public interface Tiering {
+		/** Called on each call of a {@link LuaClosure} that has no compiled form yet.
+		 * @return the function to run instead of interpreting this and later calls of the closure, 
+		 * or null to keep interpreting it. */
+		LuaFunction onCall(LuaClosure closure);
+	}
+	
 	/** Check that this object is a Globals object, and return it, otherwise throw an error. */
 	public Globals checkglobals() {
 		return this;
@@ -148,6 +176,10 @@ public class Globals extends LuaTable {
 	 * @see Undumper */
 	public Undumper undumper;
 
+	/** The installed tiering, or null to always interpret {@link LuaClosure}s.
+	 * @see Tiering */
+	public Tiering tiering;
+
 	/** Convenience function for loading a file that is either binary lua or lua source.
 	 * @param filename Name of the file to load.
 	 * @return LuaValue that can be call()'ed or invoke()'ed.
@@ -290,6 +322,254 @@ public class Globals extends LuaTable {
 		return s.lua_yield(args);
 	}
 
+	/**
+	 * Execution budget of the lua code run with a {@link Globals}: a number of instructions,
+	 * a wall-clock deadline, a number of bytes allocated, and a flag another thread may set 
+	 * to stop the script.
+	 * <p>
+	 * The budget is only checked at function calls and at loop back-edges, 
+	 * both by the interpreter and by functions compiled with {@link io.github.taoguan.luaj.luajc.LuaJC},
+	 * so that lua code runs at full speed otherwise.  Each call is charged one instruction,
+	 * and each iteration of a loop the number of instructions of its body, 
+	 * so the count is an upper bound of what a script may run between checks.  
+	 * The clock and the interrupt flag are read every {@link #CLOCK_INTERVAL} checks.
+	 * <p>
+	 * Allocations are charged approximately, before they are made, where lua code creates 
+	 * most of its memory: tables and the growth of their array and hash parts, 
+	 * strings made by concatenation, {@link Buffer#tostring()} and {@code string.rep}, 
+	 * and the values packed for calls and returns by the interpreter.  
+	 * The count is of bytes allocated since the budget was created, not of bytes in use.
+	 * Since tables and strings do not know their globals, allocations are charged to the budget 
+	 * bound to the current thread by the last call of a function with a budget; 
+	 * interpreted and compiled calls both restore the previous binding when they return or throw,
+	 * and a tail call keeps the binding while the called function runs.
+	 * <p>
+	 * Once exceeded, a {@link BudgetExceeded} error is raised at every following check,
+	 * so a script that catches it with {@code pcall} cannot run any further loop or call.
+	 * <pre> {@code
+	 * globals.budget = new Globals.Budget(10000000, 500, 64 << 20);
+	 * try {
+	 *     globals.load(script, "tenant.lua").call();
+	 * } catch (Globals.BudgetExceeded e) {
+	 *     ... e.reason is Budget.INSTRUCTIONS, Budget.TIME, Budget.MEMORY or Budget.INTERRUPTED
+	 * }
+	 * } </pre>
+	 * Except for {@link #interrupt()} and the getters, a budget is used by one thread at a time.
+	 */
+	public static final class Budget {
+		/** Reason of a {@link BudgetExceeded} error for too many instructions. */
+		public static final int INSTRUCTIONS = 1;
+
+		/** Reason of a {@link BudgetExceeded} error for a passed deadline. */
+		public static final int TIME = 2;
+
+		/** Reason of a {@link BudgetExceeded} error for a call to {@link #interrupt()}. */
+		public static final int INTERRUPTED = 3;
+
+		/** Reason of a {@link BudgetExceeded} error for too many bytes allocated. */
+		public static final int MEMORY = 4;
+
+		/** Checks between reads of the clock and the interrupt flag. */
+		public static final int CLOCK_INTERVAL = 1024;
+
+		/** Approximate bytes of a string apart from its characters. */
+		public static final int STRING = 40;
+
+		/** Approximate bytes of a table without its array and hash parts. */
+		static final int TABLE = 48;
+
+		/** Approximate bytes of a hash entry, charged per bucket when the hash part grows. */
+		static final int ENTRY = 24;
+
+		/** Approximate bytes of the {@link Varargs} holding values for a call or return. */
+		static final int VARARGS = 24;
+
+		private static final ThreadLocal<Budget> bound = new ThreadLocal<Budget>();
+
+		// returned by enter() when there is no binding to restore
+		private static final Budget UNCHANGED = new Budget();
+
+		// whether any budget was made, so that allocations need not look for one otherwise,
+		// volatile so that a budget made on one thread is charged on the others
+		private static volatile boolean used;
+
+		private final long initial;
+		private final long deadline;
+		private final boolean timed;
+		private final long maxbytes;
+		private long instructions;
+		/** Written only by the thread running the script, with an ordered store, so other threads read it whole. */
+		private volatile long bytes;
+		private static final AtomicLongFieldUpdater<Budget> BYTES = AtomicLongFieldUpdater.newUpdater(Budget.class, "bytes");
+		private int ticks = CLOCK_INTERVAL;
+		private int exceeded;
+		private volatile boolean interrupted;
+
+		/**
+		 * Construct a budget starting now, without a limit on allocations.
+		 * @param maxinstructions instructions that may be run, or 0 for no limit.
+		 * @param maxmillis milliseconds from now that lua code may run, or 0 for no limit.
+		 */
+		public Budget(long maxinstructions, long maxmillis) {
+			this(maxinstructions, maxmillis, 0);
+		}
+
+		/**
+		 * Construct a budget starting now.
+		 * @param maxinstructions instructions that may be run, or 0 for no limit.
+		 * @param maxmillis milliseconds from now that lua code may run, or 0 for no limit.
+		 * @param maxbytes bytes that may be allocated, or 0 for no limit.
+		 */
+		public Budget(long maxinstructions, long maxmillis, long maxbytes) {
+			if (maxinstructions < 0 || maxmillis < 0 || maxbytes < 0)
+				throw new IllegalArgumentException("negative budget");
+			initial = instructions = maxinstructions > 0? maxinstructions: Long.MAX_VALUE;
+			timed = maxmillis > 0;
+			deadline = System.nanoTime() + maxmillis * 1000000L;
+			this.maxbytes = maxbytes > 0? maxbytes: Long.MAX_VALUE;
+			used = true;
+		}
+
+		private Budget() {
+			initial = 0;
+			deadline = 0;
+			timed = false;
+			maxbytes = Long.MAX_VALUE;
+		}
+
+		/** Charge instructions to the budget of globals, if any; called by compiled functions. */
+		public static void charge(Globals globals, int n) {
+			Budget b;
+			if (globals != null && (b = globals.budget) != null)
+				b.charge(n);
+		}
+
+		/** Charge a call to the budget of globals, if any, and bind it to the current thread; 
+		 * called by compiled functions on entry.
+		 * @return the binding to pass to {@link #exit(Budget)} on return */
+		public static Budget enter(Globals globals) {
+			Budget b, previous;
+			if (globals == null || (b = globals.budget) == null)
+				return UNCHANGED;
+			b.charge(1);
+			return (previous = b.bind()) != b? previous: UNCHANGED;
+		}
+
+		/** Restore the binding returned by {@link #enter(Globals)}; called by compiled functions on return. */
+		public static void exit(Budget previous) {
+			if (previous != UNCHANGED)
+				bound.set(previous);
+		}
+
+		/** Tail call that binds the budget of globals, if any, while the call is evaluated; 
+		 * called by compiled functions. */
+		public static Varargs tailcallOf(LuaValue func, Varargs args, Globals globals) {
+			return new TailcallVarargs(func, args, globals != null? globals.budget: null);
+		}
+
+		/** Charge bytes to the budget bound to the current thread, if any. */
+		public static void allocated(long n) {
+			Budget b;
+			if (used && (b = bound.get()) != null)
+				b.allocate(n);
+		}
+
+		/** Charge the array part of n values or the hash part of n buckets to the current budget, if any. */
+		static void allocatedArray(int n, boolean hash) {
+			if (used)
+				allocated(16 + (hash? 4L + ENTRY: 4L) * n);
+		}
+
+		/** The budget bound to the current thread, or null. */
+		public static Budget current() {
+			return used? bound.get(): null;
+		}
+
+		/** Bind this budget to the current thread.
+		 * @return the budget bound before, to pass to {@link #restore(Budget)} */
+		public Budget bind() {
+			Budget b = bound.get();
+			if (b != this)
+				bound.set(this);
+			return b;
+		}
+
+		/** Restore the binding returned by {@link #bind()}. */
+		public static void restore(Budget previous) {
+			bound.set(previous);
+		}
+
+		/** Charge bytes about to be allocated, throwing {@link BudgetExceeded} when there are too many. */
+		public void allocate(long n) {
+			long b = bytes + n;
+			BYTES.lazySet(this, b);
+			if (b > maxbytes) {
+				if (exceeded == 0)
+					exceeded = MEMORY;
+				ticks = 0;
+				throw new BudgetExceeded(exceeded);
+			}
+		}
+
+		/** Charge instructions, throwing {@link BudgetExceeded} when the budget is exceeded. */
+		public void charge(int n) {
+			if ((instructions -= n) < 0 | --ticks < 0)
+				check();
+		}
+
+		private void check() {
+			if (exceeded == 0) {
+				if (instructions < 0)
+					exceeded = INSTRUCTIONS;
+				else if (interrupted)
+					exceeded = INTERRUPTED;
+				else if (timed && System.nanoTime() - deadline >= 0)
+					exceeded = TIME;
+				else {
+					ticks = CLOCK_INTERVAL;
+					return;
+				}
+			}
+			ticks = 0;
+			throw new BudgetExceeded(exceeded);
+		}
+
+		/** Ask the script to stop at its next check of the clock; may be called from any thread. */
+		public void interrupt() {
+			interrupted = true;
+		}
+
+		/** Instructions charged so far. */
+		public long getInstructions() {
+			return initial - instructions;
+		}
+
+		/** Bytes charged so far.  May be read from any thread, for example to export to metrics. */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/** The reason the budget was exceeded, or 0 while it is not. */
+		public int getExceeded() {
+			return exceeded;
+		}
+	}
+
+	/** Error raised by lua code that exceeds the {@link Budget} of its globals. */
+	public static final class BudgetExceeded extends LuaError {
+		private static final long serialVersionUID = 1L;
+
+		/** {@link Budget#INSTRUCTIONS}, {@link Budget#TIME}, {@link Budget#MEMORY} or {@link Budget#INTERRUPTED}. */
+		public final int reason;
+
+		BudgetExceeded(int reason) {
+			super(reason == Budget.INSTRUCTIONS? "instruction budget exceeded": 
+				reason == Budget.TIME? "time budget exceeded": 
+				reason == Budget.MEMORY? "memory budget exceeded": "interrupted");
+			this.reason = reason;
+		}
+	}
+
 	/** Reader implementation to read chars from a String in JME or JSE. */
 	static class StrReader extends Reader {
 		final String s;
@@ -77,6 +77,7 @@ public class LoadState {
 	public static final int NUMBER_FORMAT_NUM_PATCH_INT32      = 4;
 	
 	// type constants	
+	public static final int LUA_TINT64          = (-3);
 	public static final int LUA_TINT            = (-2);
 	public static final int LUA_TNONE			= (-1);
 	public static final int LUA_TNIL			= 0;
@@ -260,6 +261,9 @@ public class LoadState {
 			case LUA_TINT:
 				values[i] = LuaInteger.valueOf( loadInt() );
 				break;
+			case LUA_TINT64:
+				values[i] = LuaInteger.valueOf( loadInt64() );
+				break;
 			case LUA_TNUMBER:
 				values[i] = loadNumber();
 				break;
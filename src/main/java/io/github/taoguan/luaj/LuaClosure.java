@@ -1,8 +1,12 @@
 package io.github.taoguan.luaj;
 
+import io.github.taoguan.luaj.lib.BaseLib;
+import io.github.taoguan.luaj.vm.DecodedCode;
 import io.github.taoguan.luaj.vm.LuaInstruction;
 import io.github.taoguan.luaj.vm.OpCode;
 
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 import static io.github.taoguan.luaj.vm.LuaInstruction.*;
 
 /**
@@ -67,11 +71,19 @@ import static io.github.taoguan.luaj.vm.LuaInstruction.*;
 public class LuaClosure extends LuaFunction {
 	private static final UpValue[] NOUPVALUES = new UpValue[0];
 	
+	/** Whether interpreted calls reuse the registers of earlier calls, see {@link Registers}. */
+	public static boolean reuse_registers = true;
+	
 	public final Prototype p;
 
 	public UpValue[] upValues;
 	
-	final Globals globals;
+	/** Compiled function run instead of the interpreter, bound to these upvalues 
+	 * by {@link Globals#tiering}, or null. */
+	public LuaFunction compiled;
+	
+	/** The globals this closure was created with as environment, or null. */
+	public final Globals globals;
 	
 	/** Create a closure around a Prototype with a specific environment.
 	 * If the prototype has upvalues, the environment will be written into the first upvalue.
@@ -117,35 +129,67 @@ public class LuaClosure extends LuaFunction {
 		return stack;
 	}
 	
+	/** The register stack of the running coroutine if this call may use it, or null. */
+	private Registers registers() {
+		Registers r;
+		if ( !reuse_registers || globals == null || (r = globals.running.state.registers) == null )
+			return null;
+		return r.acquire()? r: null;
+	}
+	
+	/** The compiled function to run for this call, or null to interpret it. */
+	private LuaFunction tier() {
+		LuaFunction f = compiled;
+		if ( f == null ) {
+			Globals.Tiering t;
+			if ( globals == null || (t = globals.tiering) == null || (f = compiled = t.onCall(this)) == null )
+				return null;
+		}
+		// compiled frames cannot be suspended by a stackless coroutine
+		return globals.running.state.stackless == null? f: null;
+	}
+	
 	public final LuaValue call() {
-		LuaValue[] stack = getNewStack();
-		return execute(stack,NONE).arg1();
+		LuaFunction f = tier();
+		if ( f != null ) try { return f.call(); } catch ( Exception e ) { throw compiledError(e); }
+		Registers r = registers();
+		LuaValue[] stack = r != null? r.push(p.maxstacksize): getNewStack();
+		return execute(stack,NONE,r).arg1();
 	}
 
 	public final LuaValue call(LuaValue arg) {
-		LuaValue[] stack = getNewStack();
+		LuaFunction f = tier();
+		if ( f != null ) try { return f.call(arg); } catch ( Exception e ) { throw compiledError(e); }
+		Registers r = registers();
+		LuaValue[] stack = r != null? r.push(p.maxstacksize): getNewStack();
 		switch ( p.numparams ) {
-		default: stack[0]=arg; return execute(stack,NONE).arg1();
-		case 0: return execute(stack,arg).arg1();
+		default: stack[0]=arg; return execute(stack,NONE,r).arg1();
+		case 0: return execute(stack,arg,r).arg1();
 		}
 	}
 	
 	public final LuaValue call(LuaValue arg1, LuaValue arg2) {
-		LuaValue[] stack = getNewStack();
+		LuaFunction f = tier();
+		if ( f != null ) try { return f.call(arg1, arg2); } catch ( Exception e ) { throw compiledError(e); }
+		Registers r = registers();
+		LuaValue[] stack = r != null? r.push(p.maxstacksize): getNewStack();
 		switch ( p.numparams ) {
-		default: stack[0]=arg1; stack[1]=arg2; return execute(stack,NONE).arg1();
-		case 1: stack[0]=arg1; return execute(stack,arg2).arg1();
-		case 0: return execute(stack,p.is_vararg!=0? varargsOf(arg1,arg2): NONE).arg1();
+		default: stack[0]=arg1; stack[1]=arg2; return execute(stack,NONE,r).arg1();
+		case 1: stack[0]=arg1; return execute(stack,arg2,r).arg1();
+		case 0: return execute(stack,p.is_vararg!=0? varargsOf(arg1,arg2): NONE,r).arg1();
 		}
 	}
 
 	public final LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
-		LuaValue[] stack = getNewStack();
+		LuaFunction f = tier();
+		if ( f != null ) try { return f.call(arg1, arg2, arg3); } catch ( Exception e ) { throw compiledError(e); }
+		Registers r = registers();
+		LuaValue[] stack = r != null? r.push(p.maxstacksize): getNewStack();
 		switch ( p.numparams ) {
-		default: stack[0]=arg1; stack[1]=arg2; stack[2]=arg3; return execute(stack,NONE).arg1();
-		case 2: stack[0]=arg1; stack[1]=arg2; return execute(stack,arg3).arg1();
-		case 1: stack[0]=arg1; return execute(stack,p.is_vararg!=0? varargsOf(arg2,arg3): NONE).arg1();
-		case 0: return execute(stack,p.is_vararg!=0? varargsOf(arg1,arg2,arg3): NONE).arg1();
+		default: stack[0]=arg1; stack[1]=arg2; stack[2]=arg3; return execute(stack,NONE,r).arg1();
+		case 2: stack[0]=arg1; stack[1]=arg2; return execute(stack,arg3,r).arg1();
+		case 1: stack[0]=arg1; return execute(stack,p.is_vararg!=0? varargsOf(arg2,arg3): NONE,r).arg1();
+		case 0: return execute(stack,p.is_vararg!=0? varargsOf(arg1,arg2,arg3): NONE,r).arg1();
 		}
 	}
 
@@ -154,165 +198,237 @@ public class LuaClosure extends LuaFunction {
 	}
 	
 	public final Varargs onInvoke(Varargs varargs) {
-		LuaValue[] stack = getNewStack();
+		LuaFunction f = tier();
+		if ( f != null ) try { return f.onInvoke(varargs); } catch ( Exception e ) { throw compiledError(e); }
+		// a tail call is evaluated before pushing registers that it could not pop if it throws
+		varargs = varargs.eval();
+		Registers r = registers();
+		LuaValue[] stack = r != null? r.push(p.maxstacksize): getNewStack();
 		for ( int i=0; i<p.numparams; i++ )
 			stack[i] = varargs.arg(i+1);
-		return execute(stack,p.is_vararg!=0? varargs.subargs(p.numparams+1): NONE);
+		return execute(stack,p.is_vararg!=0? varargs.subargs(p.numparams+1): NONE,r);
 	}
 	
 	protected Varargs execute(LuaValue[] stack, Varargs varargs ) {
+		return execute(stack, varargs, null, null, null);
+	}
+
+	private Varargs execute(LuaValue[] stack, Varargs varargs, Registers registers) {
+		return execute(stack, varargs, null, null, registers);
+	}
+
+	/** Execute from the start, or continue a frame suspended by a stackless coroutine.
+	 * @param resume the suspended frame to continue, or null to start at the first instruction
+	 * @param resumeArgs the values passed to {@code coroutine.resume} when continuing
+	 * @param registers the register stack that stack was pushed on, popped on return, or null
+	 */
+	private Varargs execute(LuaValue[] stack, Varargs varargs, SuspendedFrame resume, Varargs resumeArgs, Registers registers) {
 		// loop through instructions
-		int i,a,b,c,pc=0,top=0;
+		int a,b,c,pc=0,top=0;
 		LuaValue o;
 		Varargs v = NONE;
-		int[] code = p.code;
+		DecodedCode d = p.decoded();
+		int[] ops = d.op, as = d.a, bs = d.b, cs = d.c;
 		LuaValue[] k = p.k;
 		
-		// upvalues are only possible when closures create closures
-		// TODO: use linked list.
-		UpValue[] openups = p.p.length>0? new UpValue[stack.length]: null;
-		
-		// allow for debug hooks
-		if (globals != null && globals.debuglib != null)
-			globals.debuglib.onCall( this, varargs, stack ); 
+		// upvalues are only possible when closures create closures,
+		// the array is allocated when the first one is opened
+		UpValue[] openups = null;
+
+		// cursors of generic for loops over next, by register, allocated by the first one
+		LuaTable.Cursor[] cursors = null;
+
+		// frames of a stackless coroutine record their callees so a yield can be captured
+		final LuaThread.Stackless co = globals != null? globals.running.state.stackless: null;
+		// whether the frame was entered as the callee a stackless coroutine expected
+		boolean clean = co != null;
+		boolean suspended = false;
+
+		// loop back-edges make a function hot for tiered execution
+		final boolean counting = globals != null && globals.tiering != null;
 
-		// process instructions
+		// calls and loop back-edges are charged to the execution budget,
+		// which is bound to the thread meanwhile to be charged for allocations
+		final Globals.Budget budget = globals != null? globals.budget: null;
+		Globals.Budget outer = budget;
+
+		// frames are pushed for the profiler, which samples at calls and loop back-edges
+		final Profiler profiler = globals != null? globals.profiler: null;
+		Profiler.Frame frame = null;
+
+		if ( resume != null ) {
+			pc = resume.pc;
+			top = resume.top;
+			v = resume.v;
+			openups = resume.openups;
+		}
+
+		// process instructions, entering within the try so that the finally undoes
+		// whatever was done when a hook throws
 		try {
+			if ( co != null && resume == null )
+				clean = co.enter(this);
+			if ( budget != null )
+				outer = budget.bind();
+			if ( profiler != null )
+				frame = profiler.enter(globals, this);
+			if ( resume != null ) {
+				// complete the call that was pending when the coroutine yielded
+				Varargs r = resume.resumeInner(resumeArgs);
+				a = as[pc];
+				c = cs[pc];
+				if ( ops[pc] == OP_TFORCALL ) {
+					while (--c >= 0)
+						stack[a+3+c] = r.arg(c+1);
+					v = NONE;
+				} else if ( c > 0 ) {
+					r.copyto(stack, a, c-1);
+					v = NONE;
+				} else {
+					top = a + r.narg();
+					v = r.dealias();
+				}
+				++pc;
+			} else {
+				// allow for debug hooks
+				if (globals != null && globals.debuglib != null)
+					globals.debuglib.onCall( this, varargs, stack ); 
+				if ( budget != null )
+					budget.charge(1);
+			}
 			for (; true; ++pc) {
 				if (globals != null && globals.debuglib != null)
 					globals.debuglib.onInstruction( pc, v, top ); 
 				
 				// pull out instruction
-				i = code[pc];
-				OpCode opCode = getOpCode(i);
-				a = getA(i);
+				a = as[pc];
 				
 				// process the op code
-				switch ( opCode ) {
+				switch ( ops[pc] ) {
 				
-				case MOVE:/*	A B	R(A):= R(B)					*/
-					stack[a] = stack[getB(i)];
+				case OP_MOVE:/*	A B	R(A):= R(B)					*/
+					stack[a] = stack[bs[pc]];
 					continue;
 					
-				case LOADK:/*	A Bx	R(A):= Kst(Bx)					*/
-					stack[a] = k[getBx(i)];
+				case OP_LOADK:/*	A Bx	R(A):= Kst(Bx)					*/
+					stack[a] = k[bs[pc]];
 					continue;
 
-				case LOADKX:/*	A Bx	R(A) := Kst(extra arg)				*/
-					stack[a] = k[getAx(code[++pc])];
+				case OP_LOADKX:/*	A Bx	R(A) := Kst(extra arg)				*/
+					stack[a] = k[as[++pc]];
 					continue;
 					
-				case LOADBOOL:/*	A B C	R(A):= (Bool)B: if (C) pc++			*/
-	                stack[a] = (getB(i)!=0)? LuaValue.TRUE: LuaValue.FALSE;
-	                if (getC(i) != 0)
+				case OP_LOADBOOL:/*	A B C	R(A):= (Bool)B: if (C) pc++			*/
+	                stack[a] = (bs[pc]!=0)? LuaValue.TRUE: LuaValue.FALSE;
+	                if (cs[pc] != 0)
 	                    ++pc; /* skip next instruction (if C) */
 	                continue;
 	
-				case LOADNIL: /*	A B	R(A):= ...:= R(A+B):= nil			*/
-					for ( b=getB(i); b-->=0; )
+				case OP_LOADNIL: /*	A B	R(A):= ...:= R(A+B):= nil			*/
+					for ( b=bs[pc]; b-->=0; )
 						stack[a++] = LuaValue.NIL;
 					continue;
 					
-				case GETUPVAL: /*	A B	R(A):= UpValue[B]				*/
-	                stack[a] = upValues[getB(i)].getValue();
+				case OP_GETUPVAL: /*	A B	R(A):= UpValue[B]				*/
+	                stack[a] = upValues[bs[pc]].getValue();
 	                continue;
 					
-				case GETTABUP: /*	A B C	R(A) := UpValue[B][RK(C)]			*/
-					stack[a] = upValues[getB(i)].getValue().get((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_GETTABUP: /*	A B C	R(A) := UpValue[B][RK(C)]			*/
+					stack[a] = upValues[bs[pc]].getValue().get((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 	                
-				case GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
-	                stack[a] = stack[getB(i)].get((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
+	                stack[a] = stack[bs[pc]].get((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 					
-				case SETTABUP: /*	A B C	UpValue[A][RK(B)] := RK(C)			*/
-	                upValues[a].getValue().set(((b=getB(i))>0xff? k[b&0x0ff]: stack[b]), (c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_SETTABUP: /*	A B C	UpValue[A][RK(B)] := RK(C)			*/
+	                upValues[a].getValue().set(((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]), (c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 					
-				case SETUPVAL: /*	A B	UpValue[B]:= R(A)				*/
-					upValues[getB(i)].setValue(stack[a]);
+				case OP_SETUPVAL: /*	A B	UpValue[B]:= R(A)				*/
+					upValues[bs[pc]].setValue(stack[a]);
 					continue;
 					
-				case SETTABLE: /*	A B C	R(A)[RK(B)]:= RK(C)				*/
-					stack[a].set(((b=getB(i))>0xff? k[b&0x0ff]: stack[b]), (c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_SETTABLE: /*	A B C	R(A)[RK(B)]:= RK(C)				*/
+					stack[a].set(((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]), (c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 					
-				case NEWTABLE: /*	A B C	R(A):= {} (size = B,C)				*/
-					stack[a] = new LuaTable(getB(i),getC(i));
+				case OP_NEWTABLE: /*	A B C	R(A):= {} (size = B,C)				*/
+					stack[a] = new LuaTable(bs[pc],cs[pc]);
 					continue;
 					
-				case SELF: /*	A B C	R(A+1):= R(B): R(A):= R(B)[RK(C)]		*/
-					stack[a+1] = (o = stack[getB(i)]);
-					stack[a] = o.get((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_SELF: /*	A B C	R(A+1):= R(B): R(A):= R(B)[RK(C)]		*/
+					stack[a+1] = (o = stack[bs[pc]]);
+					stack[a] = o.get((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 					
-				case ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
-					stack[a] = ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).add((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
+					stack[a] = ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).add((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 					
-				case SUB: /*	A B C	R(A):= RK(B) - RK(C)				*/
-					stack[a] = ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).sub((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_SUB: /*	A B C	R(A):= RK(B) - RK(C)				*/
+					stack[a] = ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).sub((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 					
-				case MUL: /*	A B C	R(A):= RK(B) * RK(C)				*/
-					stack[a] = ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).mul((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_MUL: /*	A B C	R(A):= RK(B) * RK(C)				*/
+					stack[a] = ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).mul((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 					
-				case DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
-					stack[a] = ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).div((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
+					stack[a] = ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).div((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 
-				case IDIV: /*	A B C	R(A) := RK(B) // RK(C)			*/
-					stack[a] = ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).idiv((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_IDIV: /*	A B C	R(A) := RK(B) // RK(C)			*/
+					stack[a] = ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).idiv((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 					
-				case MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
-					stack[a] = ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).mod((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
+					stack[a] = ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).mod((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 					
-				case POW: /*	A B C	R(A):= RK(B) ^ RK(C)				*/
-					stack[a] = ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).pow((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_POW: /*	A B C	R(A):= RK(B) ^ RK(C)				*/
+					stack[a] = ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).pow((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 
-				case BAND: /*	A B C	R(A) := RK(B) & RK(C)				*/
-					stack[a] = ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).band((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_BAND: /*	A B C	R(A) := RK(B) & RK(C)				*/
+					stack[a] = ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).band((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 
-				case BOR: /*	A B C	R(A) := RK(B) | RK(C)				*/
-					stack[a] = ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).bor((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_BOR: /*	A B C	R(A) := RK(B) | RK(C)				*/
+					stack[a] = ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).bor((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 
-				case BXOR: /*	A B C	R(A) := RK(B) ~ RK(C)				*/
-					stack[a] = ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).bxor((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_BXOR: /*	A B C	R(A) := RK(B) ~ RK(C)				*/
+					stack[a] = ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).bxor((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 
-				case SHL: /*	A B C	R(A) := RK(B) << RK(C)			*/
-					stack[a] = ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).shl((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_SHL: /*	A B C	R(A) := RK(B) << RK(C)			*/
+					stack[a] = ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).shl((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 
-				case SHR: /*	A B C	R(A) := RK(B) >> RK(C)				*/
-					stack[a] = ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).shr((c=getC(i))>0xff? k[c&0x0ff]: stack[c]);
+				case OP_SHR: /*	A B C	R(A) := RK(B) >> RK(C)				*/
+					stack[a] = ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).shr((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]);
 					continue;
 
-				case BNOT: /*	A B C	R(A) := ~R(B)			*/
-					stack[a] = ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).bnot();
+				case OP_BNOT: /*	A B C	R(A) := ~R(B)			*/
+					stack[a] = ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).bnot();
 					continue;
 					
-				case UNM: /*	A B	R(A):= -R(B)					*/
-					stack[a] = stack[getB(i)].neg();
+				case OP_UNM: /*	A B	R(A):= -R(B)					*/
+					stack[a] = stack[bs[pc]].neg();
 					continue;
 					
-				case NOT: /*	A B	R(A):= not R(B)				*/
-					stack[a] = stack[getB(i)].not();
+				case OP_NOT: /*	A B	R(A):= not R(B)				*/
+					stack[a] = stack[bs[pc]].not();
 					continue;
 					
-				case LEN: /*	A B	R(A):= length of R(B)				*/
-					stack[a] = stack[getB(i)].len();
+				case OP_LEN: /*	A B	R(A):= length of R(B)				*/
+					stack[a] = stack[bs[pc]].len();
 					continue;
 					
-				case CONCAT: /*	A B C	R(A):= R(B).. ... ..R(C)			*/
-					b = getB(i);
-					c = getC(i);
+				case OP_CONCAT: /*	A B C	R(A):= R(B).. ... ..R(C)			*/
+					b = bs[pc];
+					c = cs[pc];
 					{
 						if ( c > b+1 ) {
 							Buffer sb = stack[c].buffer();
@@ -325,9 +441,17 @@ public class LuaClosure extends LuaFunction {
 					}
 					continue;
 					
-				case JMP: /*	sBx	pc+=sBx					*/
-					pc  += getSBx(i);
-					if (a > 0) {
+				case OP_JMP: /*	sBx	pc+=sBx					*/
+					if ( bs[pc] < 0 ) {
+						if ( counting )
+							++p.backedges;
+						if ( budget != null )
+							budget.charge(-bs[pc]);
+						if ( frame != null )
+							frame.poll(profiler, pc);
+					}
+					pc  += bs[pc];
+					if (a > 0 && openups != null) {
 						for (--a, b = openups.length; --b>=0; )
 							if (openups[b] != null && openups[b].index >= a) {
 								openups[b].close();
@@ -336,52 +460,57 @@ public class LuaClosure extends LuaFunction {
 					}
 					continue;
 					
-				case EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
-					if ( ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).eq_b((c=getC(i))>0xff? k[c&0x0ff]: stack[c]) != (a!=0) )
+				case OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
+					if ( ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).eq_b((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]) != (a!=0) )
 						++pc;
 					continue;
 					
-				case LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
-					if ( ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).lt_b((c=getC(i))>0xff? k[c&0x0ff]: stack[c]) != (a!=0) )
+				case OP_LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
+					if ( ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).lt_b((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]) != (a!=0) )
 						++pc;
 					continue;
 					
-				case LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
-					if ( ((b=getB(i))>0xff? k[b&0x0ff]: stack[b]).lteq_b((c=getC(i))>0xff? k[c&0x0ff]: stack[c]) != (a!=0) )
+				case OP_LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
+					if ( ((b=bs[pc])>0xff? k[b&0x0ff]: stack[b]).lteq_b((c=cs[pc])>0xff? k[c&0x0ff]: stack[c]) != (a!=0) )
 						++pc;
 					continue;
 					
-				case TEST: /*	A C	if not (R(A) <=> C) then pc++			*/
-					if ( stack[a].toboolean() != (getC(i)!=0) )
+				case OP_TEST: /*	A C	if not (R(A) <=> C) then pc++			*/
+					if ( stack[a].toboolean() != (cs[pc]!=0) )
 						++pc;
 					continue;
 					
-				case TESTSET: /*	A B C	if (R(B) <=> C) then R(A):= R(B) else pc++	*/
+				case OP_TESTSET: /*	A B C	if (R(B) <=> C) then R(A):= R(B) else pc++	*/
 					/* note: doc appears to be reversed */
-					if ( (o=stack[getB(i)]).toboolean() != (getC(i)!=0) )
+					if ( (o=stack[bs[pc]]).toboolean() != (cs[pc]!=0) )
 						++pc;
 					else
 						stack[a] = o; // TODO: should be sBx? 
 					continue;
 					
-				case CALL: /*	A B C	R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
-					switch ( i & (LuaInstruction.MASK_B | LuaInstruction.MASK_C) ) {
-					case (1<< LuaInstruction.POS_B) | (0<< LuaInstruction.POS_C): v=stack[a].invoke(NONE); top=a+v.narg(); continue;
-					case (2<< LuaInstruction.POS_B) | (0<< LuaInstruction.POS_C): v=stack[a].invoke(stack[a+1]); top=a+v.narg(); continue;
-					case (1<< LuaInstruction.POS_B) | (1<< LuaInstruction.POS_C): stack[a].call(); continue;
-					case (2<< LuaInstruction.POS_B) | (1<< LuaInstruction.POS_C): stack[a].call(stack[a+1]); continue;
-					case (3<< LuaInstruction.POS_B) | (1<< LuaInstruction.POS_C): stack[a].call(stack[a+1],stack[a+2]); continue;
-					case (4<< LuaInstruction.POS_B) | (1<< LuaInstruction.POS_C): stack[a].call(stack[a+1],stack[a+2],stack[a+3]); continue;
-					case (1<< LuaInstruction.POS_B) | (2<< LuaInstruction.POS_C): stack[a] = stack[a].call(); continue;
-					case (2<< LuaInstruction.POS_B) | (2<< LuaInstruction.POS_C): stack[a] = stack[a].call(stack[a+1]); continue;
-					case (3<< LuaInstruction.POS_B) | (2<< LuaInstruction.POS_C): stack[a] = stack[a].call(stack[a+1],stack[a+2]); continue;
-					case (4<< LuaInstruction.POS_B) | (2<< LuaInstruction.POS_C): stack[a] = stack[a].call(stack[a+1],stack[a+2],stack[a+3]); continue;
+				case OP_CALL: /*	A B C	R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
+					if (co != null) co.callee = callee(stack[a]);
+					if (frame != null) frame.poll(profiler, pc);
+					switch ( (bs[pc]<<9) | cs[pc] ) {
+					case (1<<9) | 0: v=stack[a].invoke(NONE); top=a+v.narg(); continue;
+					case (2<<9) | 0: v=stack[a].invoke(stack[a+1]); top=a+v.narg(); continue;
+					case (1<<9) | 1: stack[a].call(); continue;
+					case (2<<9) | 1: stack[a].call(stack[a+1]); continue;
+					case (3<<9) | 1: stack[a].call(stack[a+1],stack[a+2]); continue;
+					case (4<<9) | 1: stack[a].call(stack[a+1],stack[a+2],stack[a+3]); continue;
+					case (1<<9) | 2: stack[a] = stack[a].call(); continue;
+					case (2<<9) | 2: stack[a] = stack[a].call(stack[a+1]); continue;
+					case (3<<9) | 2: stack[a] = stack[a].call(stack[a+1],stack[a+2]); continue;
+					case (4<<9) | 2: stack[a] = stack[a].call(stack[a+1],stack[a+2],stack[a+3]); continue;
 					default:
-						b = getB(i);
-						c = getC(i);
-						v = stack[a].invoke(b>0? 
-							varargsOf(stack, a+1, b-1): // exact arg count
-							varargsOf(stack, a+1, top-v.narg()-(a+1), v));  // from prev top 
+						b = bs[pc];
+						c = cs[pc];
+						v = b>0? 
+							values(stack, a+1, b-1, NONE, registers): // exact arg count
+							values(stack, a+1, top-v.narg()-(a+1), v, registers);  // from prev top 
+						if ( budget != null )
+							budget.allocate(Globals.Budget.VARARGS + 4L * v.narg());
+						v = stack[a].invoke(v);
 						if ( c > 0 ) {
 							v.copyto(stack, a, c-1);
 							v = NONE;
@@ -392,31 +521,43 @@ public class LuaClosure extends LuaFunction {
 						continue;
 					}
 					
-				case TAILCALL: /*	A B C	return R(A)(R(A+1), ... ,R(A+B-1))		*/
-					switch ( i & LuaInstruction.MASK_B ) {
-					case (1<< LuaInstruction.POS_B): return new TailcallVarargs(stack[a], NONE);
-					case (2<< LuaInstruction.POS_B): return new TailcallVarargs(stack[a], stack[a+1]);
-					case (3<< LuaInstruction.POS_B): return new TailcallVarargs(stack[a], varargsOf(stack[a+1],stack[a+2]));
-					case (4<< LuaInstruction.POS_B): return new TailcallVarargs(stack[a], varargsOf(stack[a+1],stack[a+2],stack[a+3]));
+				case OP_TAILCALL: /*	A B C	return R(A)(R(A+1), ... ,R(A+B-1))		*/
+					if (clean) co.callee = callee(stack[a]);
+					switch ( bs[pc] ) {
+					case 1: return new TailcallVarargs(stack[a], NONE, budget);
+					case 2: return new TailcallVarargs(stack[a], stack[a+1], budget);
+					case 3: return new TailcallVarargs(stack[a], varargsOf(stack[a+1],stack[a+2]), budget);
+					case 4: return new TailcallVarargs(stack[a], varargsOf(stack[a+1],stack[a+2],stack[a+3]), budget);
 					default:
-						b = getB(i);
+						b = bs[pc];
 						v = b>0? 
-							varargsOf(stack,a+1,b-1): // exact arg count
-							varargsOf(stack, a+1, top-v.narg()-(a+1), v); // from prev top 
-						return new TailcallVarargs( stack[a], v );
+							values(stack, a+1, b-1, NONE, registers): // exact arg count
+							values(stack, a+1, top-v.narg()-(a+1), v, registers); // from prev top 
+						if ( budget != null )
+							budget.allocate(Globals.Budget.VARARGS + 4L * v.narg());
+						return new TailcallVarargs( stack[a], v, budget);
 					}
 					
-				case RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
-					b = getB(i);
+				case OP_RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
+					b = bs[pc];
 					switch ( b ) {
-					case 0: return varargsOf(stack, a, top-v.narg()-a, v); 
+					case 0: v = values(stack, a, top-v.narg()-a, v, registers); break;
 					case 1: return NONE;
 					case 2: return stack[a]; 
+					case 3: return varargsOf(stack[a], stack[a+1]);
 					default:
-						return varargsOf(stack, a, b-1);
+						v = values(stack, a, b-1, NONE, registers);
+						break;
 					}
-					
-				case FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
+					if ( budget != null )
+						budget.allocate(Globals.Budget.VARARGS + 4L * v.narg());
+					return v;
+					
+				case OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
+					if ( budget != null )
+						budget.charge(-bs[pc]);
+					if ( frame != null )
+						frame.poll(profiler, pc);
 					{
 			            LuaValue limit = stack[a + 1];
 						LuaValue step  = stack[a + 2];
@@ -424,12 +565,14 @@ public class LuaClosure extends LuaFunction {
 			            if (step.gt_b(0)? idx.lteq_b(limit): idx.gteq_b(limit)) {
 		                    stack[a] = idx;
 		                    stack[a + 3] = idx;
-		                    pc += getSBx(i);
+		                    pc += bs[pc];
+		                    if ( counting )
+		                    	++p.backedges;
 			            }
 					}
 					continue;
 					
-				case FORPREP: /*	A sBx	R(A)-=R(A+2): pc+=sBx				*/
+				case OP_FORPREP: /*	A sBx	R(A)-=R(A+2): pc+=sBx				*/
 					{
 						LuaValue init  = stack[a].checknumber("'for' initial value must be a number");
 						LuaValue limit = stack[a + 1].checknumber("'for' limit must be a number");
@@ -437,32 +580,50 @@ public class LuaClosure extends LuaFunction {
 						stack[a] = init.sub(step);
 						stack[a + 1] = limit;
 						stack[a + 2] = step;
-						pc += getSBx(i);
+						pc += bs[pc];
 					}
 					continue;
 
-				case TFORCALL: /* A C	R(A+3), ... ,R(A+2+C) := R(A)(R(A+1), R(A+2));	*/
-					v = stack[a].invoke(varargsOf(stack[a+1],stack[a+2]));
-					c = getC(i);
+				case OP_TFORCALL: /* A C	R(A+3), ... ,R(A+2+C) := R(A)(R(A+1), R(A+2));	*/
+					if (co != null) co.callee = callee(stack[a]);
+					if (frame != null) frame.poll(profiler, pc);
+					if (stack[a] instanceof BaseLib.next && stack[a+1] instanceof LuaTable) {
+						// step next with a cursor kept for the loop, which continues from the last key
+						if (cursors == null)
+							cursors = new LuaTable.Cursor[p.maxstacksize];
+						LuaTable.Cursor cursor = cursors[a];
+						if (cursor == null || cursor.table != stack[a+1])
+							cursors[a] = cursor = ((LuaTable) stack[a+1]).cursor();
+						v = cursor.next(stack[a+1],stack[a+2]);
+					} else {
+						v = stack[a].invoke(varargsOf(stack[a+1],stack[a+2]));
+					}
+					c = cs[pc];
 					while (--c >= 0)
 						stack[a+3+c] = v.arg(c+1);
 					v = NONE;
 					continue;
 
-				case TFORLOOP: /* A sBx	if R(A+1) ~= nil then { R(A)=R(A+1); pc += sBx */
+				case OP_TFORLOOP: /* A sBx	if R(A+1) ~= nil then { R(A)=R(A+1); pc += sBx */
+					if ( budget != null )
+						budget.charge(-bs[pc]);
+					if ( frame != null )
+						frame.poll(profiler, pc);
 					if (!stack[a+1].isnil()) { /* continue loop? */
 						stack[a] = stack[a+1];  /* save control varible. */
-						pc += getSBx(i);
+						pc += bs[pc];
+						if ( counting )
+							++p.backedges;
 					}
 					continue;
 					
-				case SETLIST: /*	A B C	R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B	*/
+				case OP_SETLIST: /*	A B C	R(A)[(C-1)*FPF+i]:= R(A+i), 1 <= i <= B	*/
 					{
-		                if ( (c=getC(i)) == 0 )
-		                    c = getAx(code[++pc]);
+		                if ( (c=cs[pc]) == 0 )
+		                    c = as[++pc];
 		                int offset = (c-1) * LuaInstruction.LFIELDS_PER_FLUSH;
 		                o = stack[a];
-		                if ( (b=getB(i)) == 0 ) {
+		                if ( (b=bs[pc]) == 0 ) {
 		                    b = top - a - 1;
 		                    int m = b - v.narg(); 
 		                	int j=1;
@@ -478,23 +639,26 @@ public class LuaClosure extends LuaFunction {
 					}
 					continue;
 					
-				case CLOSURE: /*	A Bx	R(A):= closure(KPROTO[Bx])	*/
+				case OP_CLOSURE: /*	A Bx	R(A):= closure(KPROTO[Bx])	*/
 					{
-						Prototype newp = p.p[getBx(i)];
+						Prototype newp = p.p[bs[pc]];
 						LuaClosure ncl = new LuaClosure(newp, globals);
 						Upvaldesc[] uv = newp.upvalues;
 						for ( int j=0, nup=uv.length; j<nup; ++j ) {
-							if (uv[j].instack)  /* upvalue refes to local variable? */
-								ncl.upValues[j] = findupval(stack, uv[j].idx, openups);
-							else  /* get upvalue from enclosing function */
+							if (uv[j].instack) { /* upvalue refes to local variable? */
+								UpValue u = findupval(stack, uv[j].idx, openups);
+								if (u == null)
+									u = findupval(stack, uv[j].idx, openups = growupvals(openups));
+								ncl.upValues[j] = u;
+							} else  /* get upvalue from enclosing function */
 								ncl.upValues[j] = upValues[uv[j].idx];
 						}
 						stack[a] = ncl;
 					}
 					continue;
 					
-				case VARARG: /*	A B	R(A), R(A+1), ..., R(A+B-1) = vararg		*/
-					b = getB(i);
+				case OP_VARARG: /*	A B	R(A), R(A+1), ..., R(A+B-1) = vararg		*/
+					b = bs[pc];
 					if ( b == 0 ) {
 						top = a + (b = varargs.narg());
 						v = varargs;
@@ -504,15 +668,19 @@ public class LuaClosure extends LuaFunction {
 					}
 					continue;				
 
-				case EXTRAARG:
+				case OP_EXTRAARG:
 					throw new IllegalArgumentException("Uexecutable opcode: OP_EXTRAARG");
 
 				default:
-					throw new IllegalArgumentException("Illegal opcode: " + (i & 0x3f));
+					throw new IllegalArgumentException("Illegal opcode: " + ops[pc]);
 				}
 			}
+		} catch ( LuaThread.Yield y ) {
+			suspended = true;
+			y.push(new SuspendedFrame(this, stack, varargs, pc, top, v, openups));
+			throw y;
 		} catch ( LuaError le ) {
-			if (le.traceback == null)
+			if (le.traceback == null && le.p == null)
 				processErrorHooks(le, p, pc);
 			throw le;
 		} catch ( Exception e ) {
@@ -520,12 +688,122 @@ public class LuaClosure extends LuaFunction {
 			processErrorHooks(le, p, pc);
 			throw le;
 		} finally {
-			if ( openups != null )
-				for ( int u=openups.length; --u>=0; )
-					if ( openups[u] != null )
-						openups[u].close();
-			if (globals != null && globals.debuglib != null)
-				globals.debuglib.onReturn();
+			if ( co != null )
+				co.exit(clean);
+			if ( budget != null && outer != budget )
+				Globals.Budget.restore(outer);
+			if ( frame != null )
+				frame.exit();
+			if ( !suspended ) {
+				if ( openups != null )
+					for ( int u=openups.length; --u>=0; )
+						if ( openups[u] != null )
+							openups[u].close();
+				if (globals != null && globals.debuglib != null)
+					globals.debuglib.onReturn();
+				if (registers != null)
+					registers.pop(stack, p.maxstacksize);
+			}
+		}
+	}
+
+	/** Values of registers passed to a call or returned, copied out of registers that are reused
+	 * so that no {@link Varargs} refers to them once the call returns. */
+	private static Varargs values(LuaValue[] stack, int offset, int length, Varargs more, Registers registers) {
+		if ( registers == null || length < 2 || length == 2 && more.narg() == 0 )
+			return varargsOf(stack, offset, length, more);
+		LuaValue[] v = new LuaValue[length];
+		System.arraycopy(stack, offset, v, 0, length);
+		return varargsOf(v, more);
+	}
+
+	/** 
+	 * Registers of the interpreted frames of a coroutine, one array per call depth, 
+	 * reused by later calls at the same depth so that calls allocate no stack.
+	 * <p>
+	 * Values passed or returned from the registers are copied, so no {@link Varargs} refers 
+	 * to an array once its call returns, and the array is reset to nil then.  
+	 * The outermost call claims the registers for its thread until it returns,
+	 * and calls from other threads meanwhile get new arrays, as do the frames 
+	 * of stackless coroutines, which may be suspended.
+	 */
+	static final class Registers {
+		/** Deepest call depth whose registers are kept for reuse. */
+		static final int MAX_DEPTH = 256;
+
+		private static final AtomicReferenceFieldUpdater<Registers, Thread> OWNER =
+			AtomicReferenceFieldUpdater.newUpdater(Registers.class, Thread.class, "owner");
+
+		LuaValue[][] frames = new LuaValue[16][];
+		int depth;
+		/** Thread of the calls using the registers, or null when depth is 0. */
+		private volatile Thread owner;
+
+		/** Claim the registers for the current thread, unless another thread is using them. */
+		boolean acquire() {
+			Thread t = Thread.currentThread(), o = owner;
+			return o == t || o == null && OWNER.compareAndSet(this, null, t);
+		}
+
+		LuaValue[] push(int size) {
+			int d = depth++;
+			if ( d >= MAX_DEPTH )
+				return fresh(size);
+			if ( d == frames.length ) {
+				LuaValue[][] f = new LuaValue[d * 2][];
+				System.arraycopy(frames, 0, f, 0, d);
+				frames = f;
+			}
+			LuaValue[] stack = frames[d];
+			if ( stack == null || stack.length < size )
+				frames[d] = stack = fresh(size);
+			return stack;
+		}
+
+		void pop(LuaValue[] stack, int size) {
+			int d = --depth;
+			if ( d < MAX_DEPTH && frames[d] == stack )
+				System.arraycopy(NILS, 0, stack, 0, size);
+			if ( d == 0 )
+				owner = null;
+		}
+
+		private static LuaValue[] fresh(int size) {
+			LuaValue[] stack = new LuaValue[size];
+			System.arraycopy(NILS, 0, stack, 0, size);
+			return stack;
+		}
+	}
+
+	/** The function entered by calling f, which for a value with a {@code __call}
+	 * metamethod is the metamethod, so that a stackless coroutine sees a Lua frame
+	 * rather than a Java boundary. */
+	private static LuaValue callee(LuaValue f) {
+		return f.isfunction()? f: f.metatag(CALL);
+	}
+
+	/** Interpreter state of a frame suspended at a call by a stackless coroutine. */
+	static final class SuspendedFrame extends LuaThread.Frame {
+		final LuaClosure closure;
+		final LuaValue[] stack;
+		final Varargs varargs;
+		final int pc;
+		final int top;
+		final Varargs v;
+		final UpValue[] openups;
+
+		SuspendedFrame(LuaClosure closure, LuaValue[] stack, Varargs varargs, int pc, int top, Varargs v, UpValue[] openups) {
+			this.closure = closure;
+			this.stack = stack;
+			this.varargs = varargs;
+			this.pc = pc;
+			this.top = top;
+			this.v = v;
+			this.openups = openups;
+		}
+
+		protected Varargs resume(Varargs args) {
+			return closure.execute(stack, varargs, this, args, null);
 		}
 	}
 
@@ -551,24 +829,58 @@ public class LuaClosure extends LuaFunction {
 		}
 	}
 
+	/** Give an error raised in the compiled function the traceback the interpreter 
+	 * would have given it, with the position its generated code recorded. */
+	private LuaError compiledError(Exception e) {
+		LuaError le = e instanceof LuaError? (LuaError) e: new LuaError(e);
+		if (le.traceback == null && le.p == null) {
+			if (le.fileline == null)
+				le.fileline = (p.source != null? p.source.tojstring(): "?") + ":?";
+			le.traceback = errorHook(le.getMessage(), le.level);
+		}
+		return le;
+	}
+
 	private void processErrorHooks(LuaError le, Prototype p, int pc) {
-		le.fileline = (p.source != null? p.source.tojstring(): "?") + ":" 
-			+ (p.lineinfo != null && pc >= 0 && pc < p.lineinfo.length? String.valueOf(p.lineinfo[pc]): "?");
+		if (le.lightweight && (globals == null || globals.running.errorfunc == null && globals.debuglib == null)) {
+			// no handler needs the message now, so leave the position to be formatted on demand
+			le.p = p;
+			le.pc = pc;
+			return;
+		}
+		if (le.fileline == null)
+			le.fileline = (p.source != null? p.source.tojstring(): "?") + ":" 
+				+ (p.lineinfo != null && pc >= 0 && pc < p.lineinfo.length? String.valueOf(p.lineinfo[pc]): "?");
 		le.traceback = errorHook(le.getMessage(), le.level);
 	}
 	
+	/** Create a closure of the nested prototype at index with the same globals, 
+	 * as done by {@link OpCode#CLOSURE}; the caller sets its upvalues. 
+	 * Used by functions compiled for {@link Globals#tiering}. */
+	public LuaClosure newClosure(int index) {
+		return new LuaClosure(p.p[index], globals);
+	}
+
+	/** Find or open the upvalue of a register, or return null if openups is full. */
 	private UpValue findupval(LuaValue[] stack, short idx, UpValue[] openups) {
-		final int n = openups.length;
+		final int n = openups != null? openups.length: 0;
 		for (int i = 0; i < n; ++i)
 			if (openups[i] != null && openups[i].index == idx)
 				return openups[i];
 		for (int i = 0; i < n; ++i)
 			if (openups[i] == null)
 				return openups[i] = new UpValue(stack, idx);
-		error("No space for upvalue");
 		return null;
 	}
 
+	private UpValue[] growupvals(UpValue[] openups) {
+		if (openups == null)
+			return new UpValue[Math.min(4, p.maxstacksize)];
+		UpValue[] u = new UpValue[Math.min(openups.length * 2, p.maxstacksize)];
+		System.arraycopy(openups, 0, u, 0, openups.length);
+		return u;
+	}
+
 	protected LuaValue getUpvalue(int i) {
 		return upValues[i].getValue();
 	}
@@ -64,7 +64,12 @@ public class LuaDouble extends LuaNumber {
 	}
 
 	public int hashCode() {
-		long l = Double.doubleToLongBits(v + 1);
+		return hashCode(v);
+	}
+
+	/** Hash code of a double, equal to that of a {@link LuaLong} with the same value. */
+	static int hashCode(double d) {
+		long l = Double.doubleToLongBits(d + 1);
 		return ((int)(l>>32)) + (int) l;
 	}
 	
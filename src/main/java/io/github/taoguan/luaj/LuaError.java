@@ -16,6 +16,10 @@ package io.github.taoguan.luaj;
  * is the string representation of that object.  getMessageObject will get the object
  * supplied at construct time, or a LuaString containing the message of an object 
  * was not supplied.
+ * <p>
+ * Errors raised by lua {@code error()} and {@code assert()} in a {@link Globals} whose
+ * {@link Globals#errorstacktraces} is false do not capture a Java stack trace, 
+ * and format their message and position only when they are asked for them.
  */
 public class LuaError extends RuntimeException {
 	private static final long serialVersionUID = 1L;
@@ -29,6 +33,17 @@ public class LuaError extends RuntimeException {
 	protected Throwable cause;
 
 	private LuaValue object;
+
+	/** string message of an error constructed without a java stack trace, converted on demand */
+	private LuaValue message;
+
+	/** whether this error has no java stack trace, and may format its position on demand */
+	boolean lightweight;
+
+	/** function and instruction where a lightweight error was raised, 
+	 * from which {@link #fileline} is formatted on demand */
+	Prototype p;
+	int pc;
 	
 	/** Get the string message if it was supplied, or a string 
 	 * representation of the message object if that was supplied.
@@ -37,8 +52,11 @@ public class LuaError extends RuntimeException {
 		if (traceback != null)
 			return traceback;
 		String m = super.getMessage();
-		if (m == null)
+		if (m == null && (m = message != null? message.tojstring(): object != null? object.tojstring(): null) == null)
 			return null;
+		if (fileline == null && p != null)
+			fileline = (p.source != null? p.source.tojstring(): "?") + ":" 
+				+ (p.lineinfo != null && pc >= 0 && pc < p.lineinfo.length? String.valueOf(p.lineinfo[pc]): "?");
 		if (fileline != null)
 			return fileline + " " + m;
 		return m;
@@ -98,6 +116,41 @@ public class LuaError extends RuntimeException {
 	}	
 
 
+	/**
+	 * Construct a LuaError for a call to lua {@code error()}, 
+	 * optionally without capturing the Java stack trace.
+	 * @param message_object string message, nil for no message, or any other value
+	 * to be returned as is by {@code pcall}
+	 * @param level where to supply line info from in call stack
+	 * @param stacktrace false to skip capturing the Java stack trace, which lua code never sees
+	 */
+	public LuaError(LuaValue message_object, int level, boolean stacktrace) {
+		super( null, null, stacktrace, stacktrace );
+		if (message_object.isstring())
+			this.message = message_object;
+		else if (!message_object.isnil())
+			this.object = message_object;
+		this.level = level;
+		this.lightweight = !stacktrace;
+	}
+
+	/**
+	 * Give an error raised in code compiled by luajc the position the interpreter 
+	 * would have given it, unless a function it was raised in already did.
+	 * Called by the exception handlers of the generated code, which know the line 
+	 * without a java stack trace.
+	 * @param e the exception thrown at the line
+	 * @param source the source name of the compiled function
+	 * @param line the line, or -1 if not known
+	 * @return e if it is a LuaError, or a LuaError caused by e
+	 */
+	public static LuaError at(RuntimeException e, String source, int line) {
+		LuaError le = e instanceof LuaError? (LuaError) e: new LuaError(e);
+		if (le.fileline == null && le.traceback == null && le.p == null)
+			le.fileline = source + ":" + (line >= 0? String.valueOf(line): "?");
+		return le;
+	}
+
 	/** 
 	 * Get the cause, if any.
 	 */
@@ -1,5 +1,7 @@
 package io.github.taoguan.luaj;
 
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  * Base class for functions implemented in Java. 
@@ -19,9 +21,18 @@ public class LuaFunction extends LuaValue {
 	/** Shared static metatable for all functions and closures. */
 	public static LuaValue s_metatable;
 
+	/** values of weak-keyed tables with this function as key, or null */
+	private Map ephemerons;
+
 	public int type() {
 		return TFUNCTION;
 	}
+
+	Map ephemerons(boolean create) {
+		if ( ephemerons == null && create )
+			ephemerons = new WeakHashMap(2);
+		return ephemerons;
+	}
 	
 	public String typename() {
 		return "function";
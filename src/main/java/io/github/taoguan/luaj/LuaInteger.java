@@ -33,15 +33,15 @@ public class LuaInteger extends LuaNumber {
 	
 	/** Return a LuaNumber that represents the value provided
 	 * @param l long value to represent.
-	 * @return LuaNumber that is eithe LuaInteger or LuaDouble representing l
+	 * @return LuaNumber that is either LuaInteger or LuaLong representing l
 	 * @see io.github.taoguan.luaj.LuaValue#valueOf(int)
-	 * @see io.github.taoguan.luaj.LuaValue#valueOf(double)
+	 * @see io.github.taoguan.luaj.LuaValue#valueOf(long)
 	 */
 	public static LuaNumber valueOf(long l) {
 		int i = (int) l;
 		return l==i? (i<=255 && i>=-256? intValues[i+256]: 
 			(LuaNumber) new LuaInteger(i)): 
-			(LuaNumber) LuaDouble.valueOf(l);
+			(LuaNumber) new LuaLong(l);
 	}
 	
 	/** The value being held by this instance. */
@@ -129,7 +129,7 @@ public class LuaInteger extends LuaNumber {
 	public LuaValue add(int lhs )        { return LuaInteger.valueOf(lhs + (long)v); }
 	public LuaValue sub(LuaValue rhs )        { return rhs.subFrom(v); }
 	public LuaValue sub(double rhs )        { return LuaDouble.valueOf(v - rhs); }
-	public LuaValue sub(int rhs )        { return LuaDouble.valueOf(v - rhs); }
+	public LuaValue sub(int rhs )        { return LuaInteger.valueOf(v - (long)rhs); }
 	public LuaValue subFrom(double lhs )   { return LuaDouble.valueOf(lhs - v); }
 	public LuaValue subFrom(int lhs )      { return LuaInteger.valueOf(lhs - (long)v); }
 	public LuaValue mul(LuaValue rhs )        { return rhs.mul(v); }
@@ -144,13 +144,13 @@ public class LuaInteger extends LuaNumber {
 	public LuaValue div(double rhs )        { return LuaDouble.ddiv(v,rhs); }
 	public LuaValue div(int rhs )        { return LuaDouble.ddiv(v,rhs); }
 	public LuaValue divInto(double lhs )   { return LuaDouble.ddiv(lhs,v); }
-	public LuaValue idiv(LuaValue rhs )        { return rhs.idivInto(v); }
+	public LuaValue idiv(LuaValue rhs )        { return LuaLong.isinteger(rhs = LuaLong.arith(rhs))? LuaLong.idiv(v, rhs.tolong()): rhs.idivInto(v); }
 	public LuaValue idiv(double rhs )        { return LuaDouble.valueOf(MathLib.floorDiv(v,rhs)); }
-	public LuaValue idiv(int rhs )        { return LuaDouble.valueOf(MathLib.floorDiv(v,rhs)); }
+	public LuaValue idiv(int rhs )        { return LuaLong.idiv(v, rhs); }
 	public LuaValue idivInto(double lhs )   { return LuaDouble.valueOf(MathLib.floorDiv(lhs,v)); }
-	public LuaValue mod(LuaValue rhs )        { return rhs.modFrom(v); }
+	public LuaValue mod(LuaValue rhs )        { return LuaLong.isinteger(rhs = LuaLong.arith(rhs))? LuaLong.mod(v, rhs.tolong()): rhs.modFrom(v); }
 	public LuaValue mod(double rhs )        { return LuaDouble.dmod(v,rhs); }
-	public LuaValue mod(int rhs )        { return LuaDouble.dmod(v,rhs); }
+	public LuaValue mod(int rhs )        { return LuaLong.mod(v, rhs); }
 	public LuaValue modFrom(double lhs )   { return LuaDouble.dmod(lhs,v); }
 	
 	// relational operators
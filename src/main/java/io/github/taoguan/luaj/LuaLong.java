@@ -0,0 +1,220 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.lib.MathLib;
+
+/**
+ * Extension of {@link LuaNumber} which can hold a Java long as its value.
+ * <p>
+ * Integers that fit in a Java int are always held by {@link LuaInteger},
+ * so a LuaLong only holds values outside that range, such as timestamps in
+ * milliseconds or 64-bit identifiers.  Arithmetic between integers stays exact
+ * and wraps around on overflow as in lua 5.3, while arithmetic with a
+ * {@link LuaDouble} converts the integer to a double.
+ * <p>
+ * These instance are not instantiated directly by clients, but indirectly
+ * via the static functions {@link io.github.taoguan.luaj.LuaValue#valueOf(long)} or
+ * {@link LuaInteger#valueOf(long)}.
+ *
+ * @see io.github.taoguan.luaj.LuaValue
+ * @see LuaNumber
+ * @see LuaInteger
+ * @see LuaDouble
+ */
+public class LuaLong extends LuaNumber {
+
+	/** The value being held by this instance, never within the range of a Java int. */
+	public final long v;
+
+	/**
+	 * Package protected constructor.
+	 * @see LuaInteger#valueOf(long)
+	 **/
+	LuaLong(long l) {
+		this.v = l;
+	}
+
+	public boolean islong() {		return true;	}
+
+	public byte    tobyte()        { return (byte) v; }
+	public char    tochar()        { return (char) v; }
+	public double  todouble()      { return v; }
+	public float   tofloat()       { return v; }
+	public int     toint()         { return (int) v; }
+	public long    tolong()        { return v; }
+	public short   toshort()       { return (short) v; }
+
+	public double      optdouble(double defval)            { return v; }
+	public int         optint(int defval)                  { return (int) v;  }
+	public LuaInteger  optinteger(LuaInteger defval)       { return LuaInteger.valueOf((int) v); }
+	public long        optlong(long defval)                { return v; }
+
+	public String tojstring() {
+		return Long.toString(v);
+	}
+
+	public LuaString strvalue() {
+		return LuaString.valueOf(Long.toString(v));
+	}
+
+	public LuaString optstring(LuaString defval) {
+		return LuaString.valueOf(Long.toString(v));
+	}
+
+	public LuaValue tostring() {
+		return LuaString.valueOf(Long.toString(v));
+	}
+
+	public String optjstring(String defval) {
+		return Long.toString(v);
+	}
+
+	public LuaInteger checkinteger() {
+		return LuaInteger.valueOf((int) v);
+	}
+
+	public int hashCode() {
+		return hashCode(v);
+	}
+
+	/** Hash code of an integer, equal to that of a {@link LuaDouble} with the same value. */
+	public static int hashCode(long l) {
+		double d = l;
+		return (long) d == l? LuaDouble.hashCode(d): (int) (l ^ (l >>> 32));
+	}
+
+	/** Whether a value is an integer, held by a {@link LuaInteger} or a LuaLong. */
+	static boolean isinteger(LuaValue x) {
+		return x instanceof LuaInteger || x instanceof LuaLong;
+	}
+
+	/** Compare an integer with a double that is not NaN without rounding either.
+	 * @return negative, zero or positive as l is less than, equal to or greater than d */
+	static int compare(long l, double d) {
+		if ( d >= 0x1p63 ) return -1;
+		if ( d < -0x1p63 ) return 1;
+		long t = (long) d;
+		if ( l != t ) return l < t? -1: 1;
+		double f = d - t;
+		return f > 0? -1: f < 0? 1: 0;
+	}
+
+	/** A numeric string as the number it converts to, so that integer numerals stay exact,
+	 * or any other value as it is. */
+	static LuaValue arith(LuaValue x) {
+		if ( x instanceof LuaString ) {
+			LuaValue n = x.tonumber();
+			if ( !n.isnil() )
+				return n;
+		}
+		return x;
+	}
+
+	/** Floor division of integers according to lua math.
+	 * @throws LuaError if rhs is zero */
+	static LuaValue idiv(long lhs, long rhs) {
+		if ( rhs == 0 )
+			error("attempt to perform 'n//0'");
+		return LuaInteger.valueOf(Math.floorDiv(lhs, rhs));
+	}
+
+	/** Modulo of integers according to lua math.
+	 * @throws LuaError if rhs is zero */
+	static LuaValue mod(long lhs, long rhs) {
+		if ( rhs == 0 )
+			error("attempt to perform 'n%%0'");
+		return LuaInteger.valueOf(Math.floorMod(lhs, rhs));
+	}
+
+	// unary operators
+	public LuaValue neg() { return LuaInteger.valueOf(-v); }
+
+	// object equality, used for key comparison
+	public boolean equals(Object o) {
+		return o instanceof LuaLong? ((LuaLong)o).v == v: false;
+	}
+
+	// equality w/ metatable processing
+	public LuaValue eq(LuaValue val )    { return raweq(val)? TRUE: FALSE; }
+	public boolean eq_b( LuaValue val )   { return raweq(val); }
+
+	// equality w/o metatable processing
+	public boolean raweq( LuaValue val )  { return val instanceof LuaLong? ((LuaLong)val).v == v: val instanceof LuaDouble && raweq(((LuaDouble)val).v); }
+	public boolean raweq( double val )    { return !Double.isNaN(val) && compare(v, val) == 0; }
+	public boolean raweq( int val )       { return false; }
+
+	// arithmetic operators
+	public LuaValue add(LuaValue rhs )        { return isinteger(rhs = arith(rhs))? LuaInteger.valueOf(v + rhs.tolong()): rhs.add(todouble()); }
+	public LuaValue add(double lhs )     { return LuaDouble.valueOf(lhs + v); }
+	public LuaValue add(int lhs )        { return LuaInteger.valueOf(lhs + v); }
+	public LuaValue sub(LuaValue rhs )        { return isinteger(rhs = arith(rhs))? LuaInteger.valueOf(v - rhs.tolong()): rhs.subFrom(todouble()); }
+	public LuaValue sub(double rhs )        { return LuaDouble.valueOf(v - rhs); }
+	public LuaValue sub(int rhs )        { return LuaInteger.valueOf(v - rhs); }
+	public LuaValue subFrom(double lhs )   { return LuaDouble.valueOf(lhs - v); }
+	public LuaValue subFrom(int lhs )      { return LuaInteger.valueOf(lhs - v); }
+	public LuaValue mul(LuaValue rhs )        { return isinteger(rhs = arith(rhs))? LuaInteger.valueOf(v * rhs.tolong()): rhs.mul(todouble()); }
+	public LuaValue mul(double lhs )   { return LuaDouble.valueOf(lhs * v); }
+	public LuaValue mul(int lhs )      { return LuaInteger.valueOf(lhs * v); }
+	public LuaValue pow(LuaValue rhs )        { return rhs.powWith(todouble()); }
+	public LuaValue pow(double rhs )        { return MathLib.dpow(v,rhs); }
+	public LuaValue pow(int rhs )        { return MathLib.dpow(v,rhs); }
+	public LuaValue powWith(double lhs )   { return MathLib.dpow(lhs,v); }
+	public LuaValue powWith(int lhs )      { return MathLib.dpow(lhs,v); }
+	public LuaValue div(LuaValue rhs )        { return rhs.divInto(todouble()); }
+	public LuaValue div(double rhs )        { return LuaDouble.ddiv(v,rhs); }
+	public LuaValue div(int rhs )        { return LuaDouble.ddiv(v,rhs); }
+	public LuaValue divInto(double lhs )   { return LuaDouble.ddiv(lhs,v); }
+	public LuaValue idiv(LuaValue rhs )        { return isinteger(rhs = arith(rhs))? idiv(v, rhs.tolong()): rhs.idivInto(todouble()); }
+	public LuaValue idiv(double rhs )        { return LuaDouble.valueOf(MathLib.floorDiv(v,rhs)); }
+	public LuaValue idiv(int rhs )        { return idiv(v, rhs); }
+	public LuaValue idivInto(double lhs )   { return LuaDouble.valueOf(MathLib.floorDiv(lhs,v)); }
+	public LuaValue mod(LuaValue rhs )        { return isinteger(rhs = arith(rhs))? mod(v, rhs.tolong()): rhs.modFrom(todouble()); }
+	public LuaValue mod(double rhs )        { return LuaDouble.dmod(v,rhs); }
+	public LuaValue mod(int rhs )        { return mod(v, rhs); }
+	public LuaValue modFrom(double lhs )   { return LuaDouble.dmod(lhs,v); }
+
+	// relational operators
+	public LuaValue lt(LuaValue rhs )         { return lt_b(rhs)? TRUE: FALSE; }
+	public LuaValue lt(double rhs )      { return lt_b(rhs)? TRUE: FALSE; }
+	public LuaValue lt(int rhs )         { return v < rhs? TRUE: FALSE; }
+	public boolean lt_b( LuaValue rhs )       { return rhs instanceof LuaLong? v < ((LuaLong)rhs).v: rhs instanceof LuaNumber? lt_b(rhs.todouble()): rhs.gt_b(todouble()); }
+	public boolean lt_b( int rhs )         { return v < rhs; }
+	public boolean lt_b( double rhs )      { return !Double.isNaN(rhs) && compare(v, rhs) < 0; }
+	public LuaValue lteq(LuaValue rhs )       { return lteq_b(rhs)? TRUE: FALSE; }
+	public LuaValue lteq(double rhs )    { return lteq_b(rhs)? TRUE: FALSE; }
+	public LuaValue lteq(int rhs )       { return v <= rhs? TRUE: FALSE; }
+	public boolean lteq_b( LuaValue rhs )     { return rhs instanceof LuaLong? v <= ((LuaLong)rhs).v: rhs instanceof LuaNumber? lteq_b(rhs.todouble()): rhs.gteq_b(todouble()); }
+	public boolean lteq_b( int rhs )       { return v <= rhs; }
+	public boolean lteq_b( double rhs )    { return !Double.isNaN(rhs) && compare(v, rhs) <= 0; }
+	public LuaValue gt(LuaValue rhs )         { return gt_b(rhs)? TRUE: FALSE; }
+	public LuaValue gt(double rhs )      { return gt_b(rhs)? TRUE: FALSE; }
+	public LuaValue gt(int rhs )         { return v > rhs? TRUE: FALSE; }
+	public boolean gt_b( LuaValue rhs )       { return rhs instanceof LuaLong? v > ((LuaLong)rhs).v: rhs instanceof LuaNumber? gt_b(rhs.todouble()): rhs.lt_b(todouble()); }
+	public boolean gt_b( int rhs )         { return v > rhs; }
+	public boolean gt_b( double rhs )      { return !Double.isNaN(rhs) && compare(v, rhs) > 0; }
+	public LuaValue gteq(LuaValue rhs )       { return gteq_b(rhs)? TRUE: FALSE; }
+	public LuaValue gteq(double rhs )    { return gteq_b(rhs)? TRUE: FALSE; }
+	public LuaValue gteq(int rhs )       { return v >= rhs? TRUE: FALSE; }
+	public boolean gteq_b( LuaValue rhs )     { return rhs instanceof LuaLong? v >= ((LuaLong)rhs).v: rhs instanceof LuaNumber? gteq_b(rhs.todouble()): rhs.lteq_b(todouble()); }
+	public boolean gteq_b( int rhs )       { return v >= rhs; }
+	public boolean gteq_b( double rhs )    { return !Double.isNaN(rhs) && compare(v, rhs) >= 0; }
+
+	// string comparison
+	public int strcmp( LuaString rhs )      { typerror("attempt to compare number with string"); return 0; }
+
+	public int checkint() {
+		return (int) v;
+	}
+	public long checklong() {
+		return v;
+	}
+	public double checkdouble() {
+		return v;
+	}
+	public String checkjstring() {
+		return Long.toString(v);
+	}
+	public LuaString checkstring() {
+		return LuaString.valueOf( Long.toString(v) );
+	}
+
+}
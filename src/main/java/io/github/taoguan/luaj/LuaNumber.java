@@ -4,8 +4,10 @@ package io.github.taoguan.luaj;
  * Base class for representing numbers as lua values directly. 
  * <p>
  * The main subclasses are {@link io.github.taoguan.luaj.LuaInteger} which holds values that fit in a java int,
+ * {@link LuaLong} which holds other integers that fit in a java long,
  * and {@link LuaDouble} which holds all other number values.
  * @see io.github.taoguan.luaj.LuaInteger
+ * @see LuaLong
  * @see LuaDouble
  * @see io.github.taoguan.luaj.LuaValue
  * 
@@ -4,6 +4,9 @@ package io.github.taoguan.luaj;
 import io.github.taoguan.luaj.lib.MathLib;
 
 import java.io.*;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Subclass of {@link LuaValue} for representing lua strings. 
@@ -15,7 +18,9 @@ import java.io.*;
  * {@link LuaString} values are not considered mutable once constructed, 
  * so multiple {@link LuaString} values can chare a single byte array.
  * <p>
- * Currently {@link LuaString}s are pooled via a centrally managed weak table.
+ * Short {@link LuaString}s are interned in a centrally managed weak table, 
+ * so that equal short strings are the same instance while any of them is in use, 
+ * see {@link #intern_max_length}.
  * To ensure that as many string values as possible take advantage of this, 
  * Constructors are not exposed directly.  As with number, booleans, and nil, 
  * instance construction should be via {@link LuaValue#valueOf(byte[])} or similar API.
@@ -59,24 +64,122 @@ public class LuaString extends LuaValue {
 	/** The hashcode for this string.  Computed at construct time. */
 	private final int m_hashcode;
 
-	/** Size of cache of recent short strings. This is the maximum number of LuaStrings that 
-	 * will be retained in the cache of recent short strings.  Exposed to package for testing. */
-	static final int RECENT_STRINGS_CACHE_SIZE = 128;
+	/** Whether this is the interned instance of its value, so no other equal string is. */
+	private boolean m_interned;
 
-	/** Maximum length of a string to be considered for recent short strings caching. 
-	 * This effectively limits the total memory that can be spent on the recent strings cache,
-	 * because no LuaString whose backing exceeds this length will be put into the cache.  
-	 * Exposed to package for testing. */
+	/** Maximum length of a string to be interned, 0 to intern no strings.
+	 * Strings up to this length made by {@link #valueOf(byte[], int, int)} or 
+	 * {@link #valueUsing(byte[], int, int)} are looked up in the intern table,
+	 * so equal ones are the same instance and compare by identity.  */
+	public static int intern_max_length = 64;
+
+	/** Length up to which a key of a table is assumed to be interned or cheap to keep. 
+	 * Keys of dead table entries longer than this are only weakly referenced. */
 	static final int RECENT_STRINGS_MAX_LENGTH = 32;
 
-	/** Simple cache of recently created strings that are short.  
-	 * This is simply a list of strings, indexed by their hash codes modulo the cache size 
-	 * that have been recently constructed.  If a string is being constructed frequently 
-	 * from different contexts, it will generally show up as a cache hit and resolve 
-	 * to the same value.  */
-	private static final class RecentShortStrings {
-		private static final LuaString recent_short_strings[] = 
-				new LuaString[RECENT_STRINGS_CACHE_SIZE];
+	/**
+	 * Concurrent table of interned strings, split into segments locked independently
+	 * and holding its strings through weak references, so a string leaves
+	 * the table once it is no longer used.
+	 */
+	private static final class Intern {
+		private static final int SEGMENT_BITS = 6;
+		private static final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+		private static final LongAdder hits = new LongAdder();
+		private static final LongAdder misses = new LongAdder();
+
+		static {
+			for (int i = 0; i < segments.length; i++)
+				segments[i] = new Segment();
+		}
+
+		/** Return the interned string with the given bytes, adding one if there is none.
+		 * @param copy true to copy the bytes for a new string, false to use the array */
+		static LuaString intern(byte[] bytes, int off, int len, boolean copy) {
+			final int hash = LuaString.hashCode(bytes, off, len);
+			final int h = hash * 0x9E3779B9;
+			return segments[h >>> (32 - SEGMENT_BITS)].intern(bytes, off, len, hash, h, copy);
+		}
+
+		private static final class Entry extends WeakReference {
+			final int h;
+			Entry next;
+
+			Entry(LuaString s, int h, Entry next, ReferenceQueue queue) {
+				super(s, queue);
+				this.h = h;
+				this.next = next;
+			}
+		}
+
+		private static final class Segment {
+			private final ReferenceQueue queue = new ReferenceQueue();
+			private Entry[] table = new Entry[16];
+			private int count;
+
+			synchronized LuaString intern(byte[] bytes, int off, int len, int hash, int h, boolean copy) {
+				expunge();
+				Entry[] t = table;
+				int i = h & (t.length - 1);
+				for (Entry e = t[i]; e != null; e = e.next) {
+					if (e.h != h)
+						continue;
+					LuaString s = (LuaString) e.get();
+					if (s != null && s.byteseq(bytes, off, len)) {
+						hits.increment();
+						return s;
+					}
+				}
+				misses.increment();
+				LuaString s = copy? valueFromCopy(bytes, off, len): new LuaString(bytes, off, len);
+				s.m_interned = true;
+				t[i] = new Entry(s, h, t[i], queue);
+				if (++count > t.length - (t.length >> 2))
+					resize();
+				return s;
+			}
+
+			private void expunge() {
+				for (Object r; (r = queue.poll()) != null; ) {
+					Entry dead = (Entry) r;
+					int i = dead.h & (table.length - 1);
+					for (Entry e = table[i], prev = null; e != null; prev = e, e = e.next) {
+						if (e == dead) {
+							if (prev == null)
+								table[i] = e.next;
+							else
+								prev.next = e.next;
+							--count;
+							break;
+						}
+					}
+				}
+			}
+
+			private void resize() {
+				Entry[] old = table;
+				Entry[] t = new Entry[old.length * 2];
+				for (int i = 0; i < old.length; i++) {
+					for (Entry e = old[i], next; e != null; e = next) {
+						next = e.next;
+						int j = e.h & (t.length - 1);
+						e.next = t[j];
+						t[j] = e;
+					}
+				}
+				table = t;
+			}
+		}
+	}
+
+	/** Number of times an interned string was found for the value asked for. */
+	public static long getInternHits() {
+		return Intern.hits.sum();
+	}
+
+	/** Number of strings added to the intern table. */
+	public static long getInternMisses() {
+		return Intern.misses.sum();
 	}
 
 	/**
@@ -105,15 +208,9 @@ public class LuaString extends LuaValue {
 	 * @return {@link LuaString} wrapping the byte buffer
 	 */
 	public static LuaString valueOf(byte[] bytes, int off, int len) {
-		if (len > RECENT_STRINGS_MAX_LENGTH)
+		if (len > intern_max_length)
 			return valueFromCopy(bytes, off, len);
-		final int hash = hashCode(bytes, off, len);
-		final int bucket = hash & (RECENT_STRINGS_CACHE_SIZE - 1);
-		final LuaString t = RecentShortStrings.recent_short_strings[bucket];
-		if (t != null && t.m_hashcode == hash && t.byteseq(bytes, off, len)) return t;
-		final LuaString s = valueFromCopy(bytes, off, len);
-		RecentShortStrings.recent_short_strings[bucket] = s;
-		return s;
+		return Intern.intern(bytes, off, len, true);
 	}
 
 	/** Construct a new LuaString using a copy of the bytes array supplied */
@@ -127,22 +224,17 @@ public class LuaString extends LuaValue {
 	 * byte array as the backing store.
 	 * <p>
 	 * The caller must ensure that the array is not mutated after the call.
-	 * However, if the string is short enough the short-string cache is checked
+	 * However, if the string is short enough the intern table is checked
 	 * for a match which may be used instead of the supplied byte array.
 	 * <p>
 	 * @param bytes byte buffer
 	 * @return {@link LuaString} wrapping the byte buffer, or an equivalent string.
 	 */
 	static public LuaString valueUsing(byte[] bytes, int off, int len) {
-		if (bytes.length > RECENT_STRINGS_MAX_LENGTH)
+		if (len > intern_max_length)
 			return new LuaString(bytes, off, len);
-		final int hash = hashCode(bytes, off, len);
-		final int bucket = hash & (RECENT_STRINGS_CACHE_SIZE - 1);
-		final LuaString t = RecentShortStrings.recent_short_strings[bucket];
-		if (t != null && t.m_hashcode == hash && t.byteseq(bytes, off, len)) return t;
-		final LuaString s = new LuaString(bytes, off, len);
-		RecentShortStrings.recent_short_strings[bucket] = s;
-		return s;
+		// an interned string must not keep a larger backing array alive
+		return Intern.intern(bytes, off, len, bytes.length > intern_max_length);
 	}
 
 	/** Construct a {@link LuaString} using the supplied characters as byte values.
@@ -191,7 +283,7 @@ public class LuaString extends LuaValue {
 	 * or be an existing LuaString used already having the same value.
 	 * <p>
 	 * The caller must not mutate the contents of the byte array after this call, as 
-	 * it may be used elsewhere due to recent short string caching.
+	 * it may be used elsewhere due to short string interning.
 	 * @param bytes byte buffer
 	 * @return {@link LuaString} wrapping the byte buffer
 	 */
@@ -236,19 +328,20 @@ public class LuaString extends LuaValue {
 	}
 
 	// unary operators
-	public LuaValue neg() { double d = scannumber(); return Double.isNaN(d)? super.neg(): valueOf(-d); }
-
-	// basic binary arithmetic
-	public LuaValue   add( LuaValue rhs )      { double d = scannumber(); return Double.isNaN(d)? arithmt(ADD,rhs): rhs.add(d); }
-	public LuaValue   add( double rhs )        { return valueOf( checkarith() + rhs ); }
-	public LuaValue   add( int rhs )           { return valueOf( checkarith() + rhs ); }
-	public LuaValue   sub( LuaValue rhs )      { double d = scannumber(); return Double.isNaN(d)? arithmt(SUB,rhs): rhs.subFrom(d); }
-	public LuaValue   sub( double rhs )        { return valueOf( checkarith() - rhs ); }
-	public LuaValue   sub( int rhs )           { return valueOf( checkarith() - rhs ); }
-	public LuaValue   subFrom( double lhs )    { return valueOf( lhs - checkarith() ); }
-	public LuaValue   mul( LuaValue rhs )      { double d = scannumber(); return Double.isNaN(d)? arithmt(MUL,rhs): rhs.mul(d); }
-	public LuaValue   mul( double rhs )        { return valueOf( checkarith() * rhs ); }
-	public LuaValue   mul( int rhs )           { return valueOf( checkarith() * rhs ); }
+	public LuaValue neg() { LuaValue n = tonumber(); return n.isnil()? super.neg(): n.neg(); }
+
+	// basic binary arithmetic, with integer numerals as exact integers
+	public LuaValue   add( LuaValue rhs )      { LuaValue n = tonumber(); return n.isnil()? arithmt(ADD,rhs): n.add(rhs); }
+	public LuaValue   add( double rhs )        { return checkarithnumber().add(rhs); }
+	public LuaValue   add( int rhs )           { return checkarithnumber().add(rhs); }
+	public LuaValue   sub( LuaValue rhs )      { LuaValue n = tonumber(); return n.isnil()? arithmt(SUB,rhs): n.sub(rhs); }
+	public LuaValue   sub( double rhs )        { return checkarithnumber().sub(rhs); }
+	public LuaValue   sub( int rhs )           { return checkarithnumber().sub(rhs); }
+	public LuaValue   subFrom( double lhs )    { return checkarithnumber().subFrom(lhs); }
+	public LuaValue   subFrom( int lhs )       { return checkarithnumber().subFrom(lhs); }
+	public LuaValue   mul( LuaValue rhs )      { LuaValue n = tonumber(); return n.isnil()? arithmt(MUL,rhs): n.mul(rhs); }
+	public LuaValue   mul( double rhs )        { return checkarithnumber().mul(rhs); }
+	public LuaValue   mul( int rhs )           { return checkarithnumber().mul(rhs); }
 	public LuaValue   pow( LuaValue rhs )      { double d = scannumber(); return Double.isNaN(d)? arithmt(POW,rhs): rhs.powWith(d); }
 	public LuaValue   pow( double rhs )        { return MathLib.dpow(checkarith(),rhs); }
 	public LuaValue   pow( int rhs )           { return MathLib.dpow(checkarith(),rhs); }
@@ -258,14 +351,14 @@ public class LuaString extends LuaValue {
 	public LuaValue   div( double rhs )        { return LuaDouble.ddiv(checkarith(),rhs); }
 	public LuaValue   div( int rhs )           { return LuaDouble.ddiv(checkarith(),rhs); }
 	public LuaValue   divInto( double lhs )    { return LuaDouble.ddiv(lhs, checkarith()); }
-	public LuaValue   idiv( LuaValue rhs )        { double d = scannumber(); return Double.isNaN(d)? arithmt(IDIV,rhs): rhs.idivInto(d);  }
-	public LuaValue   idiv( double rhs )        { return LuaDouble.valueOf(MathLib.floorDiv(checkarith(),rhs)); }
-	public LuaValue   idiv( int rhs )        { return LuaDouble.valueOf(MathLib.floorDiv(checkarith(),rhs)); }
-	public LuaValue   idivInto( double lhs )   { return LuaDouble.valueOf(MathLib.floorDiv(lhs,checkarith())); }
-	public LuaValue   mod( LuaValue rhs )      { double d = scannumber(); return Double.isNaN(d)? arithmt(MOD,rhs): rhs.modFrom(d); }
-	public LuaValue   mod( double rhs )        { return LuaDouble.dmod(checkarith(), rhs); }
-	public LuaValue   mod( int rhs )           { return LuaDouble.dmod(checkarith(), rhs); }
-	public LuaValue   modFrom( double lhs )    { return LuaDouble.dmod(lhs, checkarith()); }
+	public LuaValue   idiv( LuaValue rhs )     { LuaValue n = tonumber(); return n.isnil()? arithmt(IDIV,rhs): n.idiv(rhs); }
+	public LuaValue   idiv( double rhs )       { return checkarithnumber().idiv(rhs); }
+	public LuaValue   idiv( int rhs )          { return checkarithnumber().idiv(rhs); }
+	public LuaValue   idivInto( double lhs )   { return checkarithnumber().idivInto(lhs); }
+	public LuaValue   mod( LuaValue rhs )      { LuaValue n = tonumber(); return n.isnil()? arithmt(MOD,rhs): n.mod(rhs); }
+	public LuaValue   mod( double rhs )        { return checkarithnumber().mod(rhs); }
+	public LuaValue   mod( int rhs )           { return checkarithnumber().mod(rhs); }
+	public LuaValue   modFrom( double lhs )    { return checkarithnumber().modFrom(lhs); }
 	
 	// relational operators, these only work with other strings
 	public LuaValue   lt( LuaValue rhs )         { return rhs.strcmp(this)>0? LuaValue.TRUE: FALSE; }
@@ -290,6 +383,7 @@ public class LuaString extends LuaValue {
 	public Buffer   concat(Buffer rhs)        { return rhs.concatTo(this); }
 	public LuaValue concatTo(LuaNumber lhs)   { return concatTo(lhs.strvalue()); }
 	public LuaValue concatTo(LuaString lhs)   { 
+		Globals.Budget.allocated(Globals.Budget.STRING + lhs.m_length + this.m_length);
 		byte[] b = new byte[lhs.m_length+this.m_length];
 		System.arraycopy(lhs.m_bytes, lhs.m_offset, b, 0, lhs.m_length);
 		System.arraycopy(this.m_bytes, this.m_offset, b, lhs.m_length, this.m_length);
@@ -314,15 +408,23 @@ public class LuaString extends LuaValue {
 			aritherror();
 		return d;
 	}
+
+	/** Check for number in arithmetic, keeping integers exact, or throw aritherror */
+	private LuaValue checkarithnumber() {
+		LuaValue n = tonumber();
+		if ( n.isnil() )
+			aritherror();
+		return n;
+	}
 	
 	public int checkint() {
-		return (int) (long) checkdouble();
+		return (int) checklong();
 	}
 	public LuaInteger checkinteger() {
 		return valueOf(checkint());
 	}
 	public long checklong() {
-		return (long) checkdouble();
+		return checknumber().tolong();
 	}
 	public double checkdouble() {
 		double d = scannumber();
@@ -331,13 +433,16 @@ public class LuaString extends LuaValue {
 		return d;
 	}
 	public LuaNumber checknumber() {
-		return valueOf(checkdouble());
+		LuaValue n = tonumber();
+		if ( n.isnil() )
+			argerror("number");
+		return (LuaNumber) n;
 	}
 	public LuaNumber checknumber(String msg) {
-		double d = scannumber();
-		if ( Double.isNaN(d) )
+		LuaValue n = tonumber();
+		if ( n.isnil() )
 			error(msg);
-		return valueOf(d);
+		return (LuaNumber) n;
 	}
 
 	public boolean isnumber() {
@@ -366,7 +471,7 @@ public class LuaString extends LuaValue {
 	public double  todouble()      { double d=scannumber(); return Double.isNaN(d)? 0: d; }
 	public float   tofloat()       { return (float) todouble(); }
 	public int     toint()         { return (int) tolong(); }
-	public long    tolong()        { return (long) todouble(); }
+	public long    tolong()        { LuaValue n = tonumber(); return n.isnil()? 0: n.tolong(); }
 	public short   toshort()       { return (short) toint(); }
 
 	public double optdouble(double defval) {
@@ -460,6 +565,8 @@ public class LuaString extends LuaValue {
 			return true;
 		if ( s.m_length != m_length )
 			return false;
+		if ( s.m_interned && m_interned )
+			return false;
 		if ( s.m_bytes == m_bytes && s.m_offset == m_offset )
 			return true;
 		if ( s.hashCode() != hashCode() )
@@ -715,7 +822,7 @@ public class LuaString extends LuaValue {
 	 */
 	public LuaValue tonumber() {
 		double d = scannumber();
-		return Double.isNaN(d)? NIL: valueOf(d);
+		return Double.isNaN(d)? NIL: isLargeInteger(d)? scaninteger(d, 10): valueOf(d);
 	}
 	
 	/** 
@@ -726,7 +833,54 @@ public class LuaString extends LuaValue {
 	 */
 	public LuaValue tonumber( int base ) {
 		double d = scannumber( base );
-		return Double.isNaN(d)? NIL: valueOf(d);
+		return Double.isNaN(d)? NIL: isLargeInteger(d)? scaninteger(d, base): valueOf(d);
+	}
+
+	/** Whether a scanned number is an integer too large for an int, which a double may have rounded.
+	 * Integers beyond the long range are floats; 2^63 itself is also what {@link Long#MAX_VALUE}
+	 * rounds to, so {@link #scaninteger(double, int)} decides it from the digits. */
+	private static boolean isLargeInteger(double d) {
+		return d == (long) d && d <= 0x1p63 && (d >= 0x1p31 || d < -0x1p31);
+	}
+
+	/**
+	 * Convert to an exact integer a string whose number was scanned as a large integer.
+	 * @param d the scanned number
+	 * @param base the base to use, 10 also allowing a leading '0x' for base 16
+	 * @return {@link LuaLong} for an integer numeral, or d if the numeral has a fraction or an exponent,
+	 * or is a decimal that does not fit in a long; hexadecimal numerals wrap around as in lua 5.3
+	 */
+	private LuaValue scaninteger( double d, int base ) {
+		int i=m_offset,j=m_offset+m_length;
+		while ( i<j && m_bytes[i]==' ' ) ++i;
+		while ( i<j && m_bytes[j-1]==' ' ) --j;
+		boolean neg = (m_bytes[i] == '-');
+		if ( neg ) ++i;
+		if ( base == 10 && m_bytes[i]=='0' && i+1<j && (m_bytes[i+1]=='x'||m_bytes[i+1]=='X') ) {
+			base = 16;
+			i += 2;
+		}
+		long x = 0;
+		for ( ; i<j; i++ ) {
+			int digit = m_bytes[i] - (base<=10||(m_bytes[i]>='0'&&m_bytes[i]<='9')? '0':
+					m_bytes[i]>='A'&&m_bytes[i]<='Z'? ('A'-10): ('a'-10));
+			if ( digit < 0 || digit >= base )
+				return valueOf(d);
+			if ( base == 16 ) {
+				x = x << 4 | digit;
+				continue;
+			}
+			try {
+				x = Math.subtractExact(Math.multiplyExact(x, base), digit);
+			} catch ( ArithmeticException e ) {
+				return valueOf(d);
+			}
+		}
+		if ( base == 16 )
+			return valueOf(neg? -x: x);
+		if ( neg )
+			return valueOf(x);
+		return x != Long.MIN_VALUE? valueOf(-x): valueOf(d);
 	}
 	
 	/** 
@@ -741,7 +895,7 @@ public class LuaString extends LuaValue {
 		if ( i>=j )
 			return Double.NaN;
 		if ( m_bytes[i]=='0' && i+1<j && (m_bytes[i+1]=='x'||m_bytes[i+1]=='X'))
-			return scanlong(16, i+2, j);
+			return scanhex(i+2, j);
 		double l = scanlong(10, i, j);
 		return Double.isNaN(l)? scandouble(i,j): l;
 	}
@@ -778,12 +932,36 @@ public class LuaString extends LuaValue {
 					m_bytes[i]>='A'&&m_bytes[i]<='Z'? ('A'-10): ('a'-10));
 			if ( digit < 0 || digit >= base )
 				return Double.NaN;		
-			x = x * base + digit;
-			if ( x < 0 )
+			try {
+				x = Math.addExact(Math.multiplyExact(x, base), digit);
+			} catch ( ArithmeticException e ) {
 				return Double.NaN; // overflow
+			}
 		}
 		return neg? -x: x;
 	}
+
+	/**
+	 * Scan and convert a hexadecimal integer, wrapping around on overflow as in lua 5.3,
+	 * or return Double.NaN if not found.
+	 * @param start the index of the first digit
+	 * @param end the first index beyond the search range
+	 * @return double value of the wrapped integer if conversion is valid,
+	 * or Double.NaN if not
+	 */
+	private double scanhex( int start, int end ) {
+		if ( start >= end )
+			return Double.NaN;
+		long x = 0;
+		for ( int i=start; i<end; i++ ) {
+			int digit = m_bytes[i] - (m_bytes[i]>='0'&&m_bytes[i]<='9'? '0':
+					m_bytes[i]>='A'&&m_bytes[i]<='Z'? ('A'-10): ('a'-10));
+			if ( digit < 0 || digit >= 16 )
+				return Double.NaN;
+			x = x << 4 | digit;
+		}
+		return x;
+	}
 	
 	/**
 	 * Scan and convert a double value, or return Double.NaN if not a double.
@@ -1,10 +1,13 @@
 package io.github.taoguan.luaj;
 
+import io.github.taoguan.luaj.lib.VarArgFunction;
+
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.Map;
 import java.util.Vector;
+import java.util.WeakHashMap;
 
 /**
  * Subclass of {@link io.github.taoguan.luaj.LuaValue} for representing lua tables.
@@ -62,14 +65,23 @@ public class LuaTable extends LuaValue implements Metatable {
 	/** the hash part */
 	protected Slot[] hash;
 
-	private Map<LuaValue, LuaValue> hashHelperMap = new HashMap<>();
-
 	/** the number of hash entries */
 	protected int hashEntries;
 
+	/** last known border, where the value at border is non-nil and at border+1 is nil,
+	 * kept by {@link #arrayset(int, LuaValue)} and checked before use by {@link #rawlen()} */
+	private int border;
+
 	/** metatable for this table, or null */
 	protected Metatable m_metatable;
 
+	/** values of weak-keyed tables with this table as key, or null */
+	private Map ephemerons;
+
+	/** metamethods known to be absent while this table is used as a metatable, 
+	 * one bit per tag of {@link Tags}, cleared when an entry is added */
+	private int absent;
+
 	/** Construct empty table */
 	public LuaTable() {
 		array = NOVALS;
@@ -145,14 +157,21 @@ public class LuaTable extends LuaValue implements Metatable {
 	}
 
 	public void presize( int narray ) {
-		if ( narray > array.length )
+		if ( narray > array.length ) {
+			Globals.Budget.allocatedArray( 1 << log2(narray), false );
 			array = resize( array, 1 << log2(narray) );
+		}
 	}
 
 	public void presize(int narray, int nhash) {
 		if ( nhash > 0 && nhash < MIN_HASH_CAPACITY )
 			nhash = MIN_HASH_CAPACITY;
 		// Size of both parts must be a power of two.
+		Globals.Budget.allocated( Globals.Budget.TABLE );
+		if ( narray > 0 )
+			Globals.Budget.allocatedArray( 1 << log2(narray), false );
+		if ( nhash > 0 )
+			Globals.Budget.allocatedArray( 1 << log2(nhash), true );
 		array = (narray>0? new LuaValue[1 << log2(narray)]: NOVALS);
 		hash = (nhash>0? new Slot[1 << log2(nhash)]: NOBUCKETS);
 		hashEntries = 0;
@@ -181,12 +200,42 @@ public class LuaTable extends LuaValue implements Metatable {
 		return hash.length;
 	}
 
+	Map ephemerons(boolean create) {
+		if ( ephemerons == null && create )
+			ephemerons = new WeakHashMap(2);
+		return ephemerons;
+	}
+
 	public LuaValue getmetatable() {
 		return ( m_metatable != null ) ? m_metatable.toLuaValue() : null;
 	}
 
 	public LuaValue setmetatable(LuaValue metatable) {
+		Metatable old = m_metatable;
 		m_metatable = metatableOf( metatable );
+		boolean hadWeakKeys = old != null && old.useWeakKeys();
+		boolean hadWeakValues = old != null && old.useWeakValues();
+		if ( hadWeakKeys != ( m_metatable != null && m_metatable.useWeakKeys() ) ||
+				hadWeakValues != ( m_metatable != null && m_metatable.useWeakValues() ) ) {
+			// __mode changed, so store every entry again in the form the new mode requires
+			LuaValue[] oldArray = array;
+			Slot[] oldHash = hash;
+			array = NOVALS;
+			hash = NOBUCKETS;
+			hashEntries = 0;
+			for ( int i = 0; i < oldArray.length; ++i ) {
+				LuaValue v = old != null ? old.arrayget(oldArray, i) : oldArray[i];
+				if ( v != null )
+					rawset( i+1, v );
+			}
+			for ( int i = 0; i < oldHash.length; ++i ) {
+				for ( Slot slot = oldHash[i]; slot != null; slot = slot.rest() ) {
+					StrongSlot e = slot.first();
+					if ( e != null )
+						rawset( e.key(), e.value() );
+				}
+			}
+		}
 		return this;
 	}
 
@@ -222,9 +271,11 @@ public class LuaTable extends LuaValue implements Metatable {
 
 	protected LuaValue hashget(LuaValue key) {
 		if ( hashEntries > 0 ) {
-			LuaValue value = hashHelperMap.get(key);
-			if(value != null){
-				return value;
+			for ( Slot slot = hash[ hashSlot(key) ]; slot != null; slot = slot.rest() ) {
+				StrongSlot foundSlot;
+				if ( ( foundSlot = slot.find(key) ) != null ) {
+					return foundSlot.value();
+				}
 			}
 		}
 		return NIL;
@@ -257,8 +308,15 @@ public class LuaTable extends LuaValue implements Metatable {
 	/** Set an array element */
 	private boolean arrayset( int key, LuaValue value ) {
 		if ( key>0 && key<=array.length ) {
-			array[key - 1] = value.isnil() ? null :
-					(m_metatable != null ? m_metatable.wrap(value) : value);
+			if ( value.isnil() ) {
+				array[key - 1] = null;
+				if ( key <= border )
+					border = key - 1;
+			} else {
+				array[key - 1] = m_metatable != null ? m_metatable.wrap(value) : value;
+				if ( key == border + 1 )
+					border = key;
+			}
 			return true;
 		}
 		return false;
@@ -273,14 +331,20 @@ public class LuaTable extends LuaValue implements Metatable {
 		int n = rawlen();
 		if ( pos == 0 )
 			pos = n;
-		else if (pos > n)
+		if ( pos < 1 || pos > n )
 			return NONE;
 		LuaValue v = rawget(pos);
-		for ( LuaValue r=v; !r.isnil(); ) {
-			r = rawget(pos+1);
-			rawset(pos++, r);
-		}
-		return v.isnil()? NONE: v;
+		if ( n <= array.length ) {
+			// shift the rest of the array part down in one copy
+			System.arraycopy(array, pos, array, pos - 1, n - pos);
+			array[n - 1] = null;
+			border = n - 1;
+			return v;
+		}
+		for ( ; pos < n; pos++ )
+			rawset(pos, rawget(pos+1));
+		rawset(n, NIL);
+		return v;
 	}
 
 	/** Insert an element at a position in a list-table
@@ -289,13 +353,27 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @param value The value to insert
 	 */
 	public void insert(int pos, LuaValue value) {
+		int n = rawlen();
 		if ( pos == 0 )
-			pos = rawlen()+1;
-		while ( ! value.isnil() ) {
-			LuaValue v = rawget( pos );
-			rawset(pos++, value);
-			value = v;
+			pos = n+1;
+		if ( value.isnil() )
+			return;
+		if ( pos < 1 || pos > n ) {
+			rawset(pos, value);
+			return;
+		}
+		// move the last element through rawset, which may resize the array part
+		rawset(n+1, rawget(n));
+		if ( n < array.length ) {
+			// shift the rest up in one copy
+			System.arraycopy(array, pos - 1, array, pos, n - pos);
+			arrayset(pos, value);
+			border = n + 1;
+			return;
 		}
+		for ( int i = n; i > pos; i-- )
+			rawset(i, rawget(i-1));
+		rawset(pos, value);
 	}
 
 	/** Concatenate the contents of a table efficiently, using {@link Buffer}
@@ -306,6 +384,8 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * @return {@link LuaString} value of the concatenation
 	 */
 	public LuaValue concat(LuaString sep, int i, int j) {
+		if ( m_metatable == null && i <= j )
+			return rawconcat(sep, i, j);
 		Buffer  sb = new Buffer ();
 		if ( i<=j ) {
 			sb.append( get(i).checkstring() );
@@ -317,6 +397,22 @@ public class LuaTable extends LuaValue implements Metatable {
 		return sb.tostring();
 	}
 
+	/** Concatenate without metatable into a buffer sized by a first pass over the elements. */
+	private LuaValue rawconcat(LuaString sep, int i, int j) {
+		long size = (long) sep.m_length * (j - (long) i);
+		for ( int k=i; k<=j && k>=i; k++ )
+			size += rawget(k).checkstring().m_length;
+		if ( size > Integer.MAX_VALUE - 8 )
+			throw new LuaError("resulting string too large");
+		Buffer sb = new Buffer((int) size);
+		sb.append( rawget(i).checkstring() );
+		for ( int k=i+1; k<=j && k>i; k++ ) {
+			sb.append( sep );
+			sb.append( rawget(k).checkstring() );
+		}
+		return sb.tostring();
+	}
+
 	public int length() {
 		if (m_metatable != null) {
 			LuaValue len = len();
@@ -334,6 +430,9 @@ public class LuaTable extends LuaValue implements Metatable {
 	}
 
 	public int rawlen() {
+		int b = border;
+		if ( b >= 0 && ( b == 0 || !rawget(b).isnil() ) && rawget(b+1).isnil() )
+			return b;
 		int a = getArrayLength();
 		int n = a+1,m=0;
 		while ( !rawget(n).isnil() ) {
@@ -347,7 +446,7 @@ public class LuaTable extends LuaValue implements Metatable {
 			else
 				n = k;
 		}
-		return m;
+		return border = m;
 	}
 
 	/**
@@ -411,6 +510,118 @@ public class LuaTable extends LuaValue implements Metatable {
 		return NIL;
 	}
 
+	/**
+	 * Create an iterator function over this table for a generic for loop,
+	 * which gives the same entries as {@link #next(LuaValue)} but continues
+	 * from where it was instead of finding the previous key again.
+	 * @return {@link Cursor} to call with this table and the previous key
+	 */
+	public Cursor cursor() {
+		return new Cursor(this);
+	}
+
+	/**
+	 * Iterator function over the entries of a table.  The interpreter steps a generic
+	 * for loop over the {@code next} of {@link io.github.taoguan.luaj.lib.BaseLib},
+	 * as returned by pairs, with a cursor of its own for the loop.
+	 * <p>
+	 * The cursor remembers the array index or the hash bucket of the last key
+	 * it returned, so each step only walks the rest of one bucket.  Clearing or
+	 * assigning existing fields during the traversal is allowed as with next.
+	 * When called with a key other than the last one it returned, or after the
+	 * table was resized, it falls back to {@link LuaTable#next(LuaValue)}.
+	 */
+	public static final class Cursor extends VarArgFunction {
+		final LuaTable table;
+		private LuaValue[] array;
+		private Slot[] hash;
+		private LuaValue last;
+
+		/** next array index to look at, while bucket is negative */
+		private int index;
+
+		/** bucket of the last key, or -1 while in the array part */
+		private int bucket = -1;
+
+		Cursor(LuaTable table) {
+			this.table = table;
+		}
+
+		public Varargs invoke(Varargs args) {
+			return next(args.arg1(), args.arg(2));
+		}
+
+		/** Get the entry after key in table, or nil at the end. */
+		public Varargs next(LuaValue t, LuaValue key) {
+			final LuaTable tb = table;
+			if ( t != tb )
+				return t.checktable().next(key);
+			if ( key.isnil() ) {
+				array = tb.array;
+				hash = tb.hash;
+				index = 0;
+				bucket = -1;
+			} else if ( key != last || array != tb.array || hash != tb.hash ) {
+				return found(tb.next(key));
+			}
+
+			// array part
+			Slot s = null;
+			int b = bucket;
+			if ( b < 0 ) {
+				final LuaValue[] a = array;
+				for ( int i = index; i < a.length; ) {
+					LuaValue v = a[i++];
+					if ( v != null && ( tb.m_metatable == null || ( v = tb.m_metatable.arrayget(a, i-1) ) != null ) ) {
+						index = i;
+						return varargsOf(last = LuaInteger.valueOf(i), v);
+					}
+				}
+			} else {
+				for ( s = hash[b]; s != null && !s.keyeq(key); s = s.rest() )
+					;
+				if ( s == null )
+					return found(tb.next(key));
+				s = s.rest();
+			}
+
+			// rest of the bucket, then the following buckets
+			final Slot[] h = hash;
+			for (;;) {
+				for ( ; s != null; s = s.rest() ) {
+					StrongSlot e = s.first();
+					if ( e != null ) {
+						bucket = b;
+						last = e.key();
+						return e.toVarargs();
+					}
+				}
+				if ( ++b >= h.length )
+					break;
+				s = h[b];
+			}
+			bucket = h.length;
+			last = null;
+			return NIL;
+		}
+
+		/** Continue from an entry found by {@link LuaTable#next(LuaValue)}. */
+		private Varargs found(Varargs entry) {
+			final LuaTable tb = table;
+			LuaValue k = entry.arg1();
+			array = tb.array;
+			hash = tb.hash;
+			last = k.isnil()? null: k;
+			if ( k.isinttype() && k.checkint() > 0 && k.checkint() <= array.length ) {
+				index = k.checkint();
+				bucket = -1;
+			} else if ( last != null ) {
+				bucket = tb.hashSlot(k);
+			}
+			return entry;
+		}
+	}
+
 	/**
 	 * Get the next element after a particular key in the
 	 * contiguous array part of a table
@@ -431,6 +642,7 @@ public class LuaTable extends LuaValue implements Metatable {
 		if ( value.isnil() )
 			hashRemove(key);
 		else {
+			absent = 0;
 			int index = 0;
 			if ( hash.length > 0 ) {
 				index = hashSlot( key );
@@ -438,7 +650,6 @@ public class LuaTable extends LuaValue implements Metatable {
 					StrongSlot foundSlot;
 					if ( ( foundSlot = slot.find( key ) ) != null ) {
 						hash[index] = hash[index].set( foundSlot, value );
-						hashHelperMap.put(key, value);
 						return;
 					}
 				}
@@ -457,9 +668,10 @@ public class LuaTable extends LuaValue implements Metatable {
 			Slot entry = ( m_metatable != null )
 					? m_metatable.entry( key, value )
 					: defaultEntry( key, value );
+			if ( entry == null )
+				return;
 			hash[ index ] = ( hash[index] != null )	? hash[index].add( entry ) : entry;
 			++hashEntries;
-			hashHelperMap.put(key, value);
 		}
 	}
 
@@ -505,7 +717,6 @@ public class LuaTable extends LuaValue implements Metatable {
 				if ( ( foundSlot = slot.find( key ) ) != null ) {
 					hash[index] = hash[index].remove( foundSlot );
 					--hashEntries;
-					hashHelperMap.remove(key);
 					return;
 				}
 			}
@@ -605,6 +816,10 @@ public class LuaTable extends LuaValue implements Metatable {
 	 * newKey < 0 next key will go in hash part
 	 */
 	private void rehash(int newKey) {
+		if ( m_metatable != null && ( m_metatable.useWeakKeys() || m_metatable.useWeakValues() ) ) {
+			// collected entries are still counted, size the table by the ones alive
+			hashEntries = countHashKeys();
+		}
 		int[] nums = new int[32];
 		int total = countIntKeys(nums);
 		if ( newKey > 0 ) {
@@ -637,6 +852,7 @@ public class LuaTable extends LuaValue implements Metatable {
 			movingToArray--;
 		}
 		if (newArraySize != oldArray.length) {
+			Globals.Budget.allocatedArray(newArraySize, false);
 			newArray = new LuaValue[newArraySize];
 			if (newArraySize > oldArray.length) {
 				for (int i = log2(oldArray.length + 1), j = log2(newArraySize) + 1; i < j; ++i) {
@@ -664,13 +880,12 @@ public class LuaTable extends LuaValue implements Metatable {
 					? MIN_HASH_CAPACITY
 					: 1 << log2(newHashSize);
 			newHashMask = newCapacity - 1;
+			Globals.Budget.allocatedArray(newCapacity, true);
 			newHash = new Slot[ newCapacity ];
-			hashHelperMap = new HashMap<>(newCapacity);
 		} else {
 			newCapacity = 0;
 			newHashMask = 0;
 			newHash = NOBUCKETS;
-			hashHelperMap.clear();
 		}
 
 		// Move hash buckets
@@ -684,7 +899,6 @@ public class LuaTable extends LuaValue implements Metatable {
 				} else {
 					int j = slot.keyindex( newHashMask );
 					newHash[j] = slot.relink( newHash[j] );
-					hashHelperMap.put(slot.first().key(), slot.first().value());
 				}
 			}
 		}
@@ -704,7 +918,6 @@ public class LuaTable extends LuaValue implements Metatable {
 				}
 				newHash[ slot ] = ( newHash[slot] != null )
 						? newHash[slot].add( newEntry ) : newEntry;
-				hashHelperMap.put(newEntry.first().key(), newEntry.first().value());
 			}
 		}
 
@@ -732,7 +945,7 @@ public class LuaTable extends LuaValue implements Metatable {
 	protected static Entry defaultEntry(LuaValue key, LuaValue value) {
 		if ( key.isinttype() ) {
 			return new IntKeyEntry( key.checkint(), value );
-		} else if (value.type() == TNUMBER) {
+		} else if (value.type() == TNUMBER && !(value instanceof LuaLong)) {
 			return new NumberValueEntry( key, value.checkdouble() );
 		} else {
 			return new NormalEntry( key, value );
@@ -741,9 +954,13 @@ public class LuaTable extends LuaValue implements Metatable {
 
 	// ----------------- sort support -----------------------------
 	//
-	// implemented heap sort from wikipedia
+	// Sorts a snapshot of the contiguous array part, so each element is read
+	// through the metatable once, and writes the result back.
 	//
-	// Only sorts the contiguous array part.
+	// Arrays of only integers, only numbers, or only strings without a comparator
+	// are sorted with the java library sorts on primitive keys or a direct ordering.
+	// Everything else goes through a natural merge sort which keeps the number of
+	// comparisons, each of which may be a lua call, as low as it can.
 	//
 	/** Sort the table using a comparator.
 	 * @param comparator {@link LuaValue} to be called to compare elements.
@@ -753,58 +970,169 @@ public class LuaTable extends LuaValue implements Metatable {
 		int n = array.length;
 		while ( n > 0 && array[n-1] == null )
 			--n;
-		if ( n > 1 )
-			heapSort(n, comparator);
+		if ( n < 2 )
+			return;
+		LuaValue[] values = new LuaValue[n];
+		int count = 0;
+		for ( int i=0; i<n; i++ ) {
+			LuaValue v = m_metatable == null? array[i]: m_metatable.arrayget(array, i);
+			if ( v != null )
+				values[count++] = v;
+		}
+		if ( ! comparator.isnil() || ! sortPrimitive(values, count) )
+			new Sorter(values, comparator).sort(count);
+		n = Math.min(n, array.length);
+		for ( int i=0; i<n; i++ )
+			array[i] = i >= count? null: m_metatable == null? values[i]: m_metatable.wrap(values[i]);
+	}
+
+	/** Sort values that are all integers, all numbers, or all strings without calling lt.
+	 * @return false if the values are of other or mixed types, and were not sorted. */
+	private static boolean sortPrimitive(LuaValue[] values, int n) {
+		boolean integers = true, numbers = true, strings = true;
+		for ( int i=0; i<n; i++ ) {
+			LuaValue v = values[i];
+			if ( v instanceof LuaInteger || v instanceof LuaLong ) {
+				strings = false;
+			} else if ( v instanceof LuaDouble && ! Double.isNaN(((LuaDouble) v).v) ) {
+				integers = strings = false;
+			} else if ( v instanceof LuaString ) {
+				integers = numbers = false;
+			} else {
+				return false;
+			}
+			if ( ! numbers && ! strings )
+				return false;
+		}
+		if ( integers ) {
+			long[] keys = new long[n];
+			for ( int i=0; i<n; i++ )
+				keys[i] = values[i].tolong();
+			Arrays.sort(keys);
+			for ( int i=0; i<n; i++ )
+				values[i] = LuaInteger.valueOf(keys[i]);
+		} else {
+			Arrays.sort(values, 0, n, numbers? NUMBER_ORDER: STRING_ORDER);
+		}
+		return true;
 	}
 
-	private void heapSort(int count, LuaValue cmpfunc) {
-		heapify(count, cmpfunc);
-		for ( int end=count-1; end>0; ) {
-			swap(end, 0);
-			siftDown(0, --end, cmpfunc);
+	private static final Comparator<LuaValue> NUMBER_ORDER = new Comparator<LuaValue>() {
+		public int compare(LuaValue a, LuaValue b) {
+			return a.lt_b(b)? -1: b.lt_b(a)? 1: 0;
 		}
-	}
+	};
 
-	private void heapify(int count, LuaValue cmpfunc) {
-		for ( int start=count/2-1; start>=0; --start )
-			siftDown(start, count - 1, cmpfunc);
-	}
+	private static final Comparator<LuaValue> STRING_ORDER = new Comparator<LuaValue>() {
+		public int compare(LuaValue a, LuaValue b) {
+			return ((LuaString) a).strcmp((LuaString) b);
+		}
+	};
 
-	private void siftDown(int start, int end, LuaValue cmpfunc) {
-		for ( int root=start; root*2+1 <= end; ) {
-			int child = root*2+1;
-			if (child < end && compare(child, child + 1, cmpfunc))
-				++child;
-			if (compare(root, child, cmpfunc)) {
-				swap(root, child);
-				root = child;
-			} else
-				return;
+	/** Natural merge sort ordering values by a lua comparator, or by lt when it is nil.
+	 * <p>
+	 * Ascending and strictly descending runs are found first, short runs are extended
+	 * by binary insertion, and runs are merged pairwise unless a pair is already in order. */
+	private static final class Sorter {
+		private static final int MIN_RUN = 16;
+
+		private final LuaValue[] a;
+		private final LuaValue cmpfunc;
+		private final boolean lt;
+		private LuaValue[] tmp;
+
+		Sorter(LuaValue[] a, LuaValue cmpfunc) {
+			this.a = a;
+			this.cmpfunc = cmpfunc;
+			this.lt = cmpfunc.isnil();
+		}
+
+		void sort(int n) {
+			int[] runs = new int[n / MIN_RUN + 2];
+			int nruns = 0;
+			for ( int lo=0; lo<n; ) {
+				int hi = run(lo, n);
+				if ( hi - lo < MIN_RUN ) {
+					int end = Math.min(lo + MIN_RUN, n);
+					insertion(lo, hi, end);
+					hi = end;
+				}
+				runs[nruns++] = lo;
+				lo = hi;
+			}
+			runs[nruns] = n;
+			while ( nruns > 1 ) {
+				int k = 0;
+				for ( int i=0; i<nruns; i+=2 ) {
+					if ( i + 1 < nruns )
+						merge(runs[i], runs[i+1], runs[i+2]);
+					runs[k++] = runs[i];
+				}
+				runs[k] = n;
+				nruns = k;
+			}
 		}
-	}
 
-	private boolean compare(int i, int j, LuaValue cmpfunc) {
-		LuaValue a, b;
-		if (m_metatable == null) {
-			a = array[i];
-			b = array[j];
-		} else {
-			a = m_metatable.arrayget(array, i);
-			b = m_metatable.arrayget(array, j);
+		private boolean less(LuaValue x, LuaValue y) {
+			return lt? x.lt_b(y): cmpfunc.call(x,y).checkboolean();
 		}
-		if ( a == null || b == null )
-			return false;
-		if ( ! cmpfunc.isnil() ) {
-			return cmpfunc.call(a,b).checkboolean();
-		} else {
-			return a.lt_b(b);
+
+		/** Find the run starting at lo, reversing it if it is descending.
+		 * @return the end of the run */
+		private int run(int lo, int n) {
+			int hi = lo + 1;
+			if ( hi == n )
+				return hi;
+			if ( less(a[hi], a[lo]) ) {
+				while ( ++hi < n && less(a[hi], a[hi-1]) )
+					;
+				for ( int i=lo, j=hi-1; i<j; i++, j-- ) {
+					LuaValue t = a[i];
+					a[i] = a[j];
+					a[j] = t;
+				}
+			} else {
+				while ( ++hi < n && ! less(a[hi], a[hi-1]) )
+					;
+			}
+			return hi;
 		}
-	}
 
-	private void swap(int i, int j) {
-		LuaValue a = array[i];
-		array[i] = array[j];
-		array[j] = a;
+		/** Insert the elements from start to end into the sorted range from lo to start. */
+		private void insertion(int lo, int start, int end) {
+			for ( int i=start; i<end; i++ ) {
+				LuaValue x = a[i];
+				int p = upper(x, lo, i);
+				System.arraycopy(a, p, a, p + 1, i - p);
+				a[p] = x;
+			}
+		}
+
+		/** First index in the sorted range from lo to hi whose element is greater than x. */
+		private int upper(LuaValue x, int lo, int hi) {
+			while ( lo < hi ) {
+				int mid = (lo + hi) >>> 1;
+				if ( less(x, a[mid]) )
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+			return lo;
+		}
+
+		/** Merge the sorted ranges from lo to mid and from mid to hi. */
+		private void merge(int lo, int mid, int hi) {
+			if ( ! less(a[mid], a[mid-1]) )
+				return;
+			int n = mid - lo;
+			if ( tmp == null || tmp.length < n )
+				tmp = new LuaValue[Math.max(n, tmp == null? 0: tmp.length * 2)];
+			System.arraycopy(a, lo, tmp, 0, n);
+			int i = 0, j = mid, k = lo;
+			while ( i < n && j < hi )
+				a[k++] = less(a[j], tmp[i])? a[j++]: tmp[i++];
+			System.arraycopy(tmp, i, a, k, n - i);
+		}
 	}
 
 	/** This may be deprecated in a future release.
@@ -874,6 +1202,13 @@ public class LuaTable extends LuaValue implements Metatable {
 					return NONE;
 				try {
 					LuaValue[] v = new LuaValue[n];
+					if ( m_metatable == null && i > 0 && j <= array.length ) {
+						System.arraycopy(array, i - 1, v, 0, n);
+						while (--n >= 0)
+							if (v[n] == null)
+								v[n] = NIL;
+						return varargsOf(v);
+					}
 					while (--n >= 0)
 						v[n] = get(i+n);
 					return varargsOf(v);
@@ -1147,7 +1482,7 @@ public class LuaTable extends LuaValue implements Metatable {
 		}
 
 		public boolean keyeq(LuaValue key) {
-			return key.raweq(this.key);
+			return key == this.key || key.raweq(this.key);
 		}
 
 		@Override
@@ -1223,7 +1558,7 @@ public class LuaTable extends LuaValue implements Metatable {
 		}
 
 		public Entry set(LuaValue value) {
-			if (value.type() == TNUMBER) {
+			if (value.type() == TNUMBER && !(value instanceof LuaLong)) {
 				LuaValue n = value.checknumber();
 				if (!n.isnil()) {
 					this.value = n.checkdouble();
@@ -1328,6 +1663,59 @@ public class LuaTable extends LuaValue implements Metatable {
 		}
 	};
 
+	/**
+	 * Get a metamethod from this table used as a metatable, or {@link #NIL} if it is not defined.
+	 * <p>
+	 * Like the flags of reference lua, the common tags that were looked up and found 
+	 * absent are remembered, so the next lookup of such a tag is a single bit test 
+	 * until an entry is added to this table.
+	 * @param tag metatag name to look up, such as {@link #INDEX}
+	 * @return the value of the tag, or {@link #NIL}
+	 */
+	public LuaValue metamethod(LuaValue tag) {
+		int bit = Tags.bit(tag);
+		if ( ( absent & bit ) != 0 )
+			return NIL;
+		LuaValue h = rawget(tag);
+		if ( h.isnil() )
+			absent |= bit;
+		return h;
+	}
+
+	/** Bits of the metatags whose absence is remembered by {@link #metamethod(LuaValue)}. */
+	private static final class Tags {
+		private static final LuaValue[] TAGS = new LuaValue[64];
+		private static final int[] BITS = new int[64];
+
+		static {
+			LuaValue[] tags = { INDEX, NEWINDEX, CALL, EQ, LT, LE, LEN, CONCAT, TOSTRING, UNM,
+					ADD, SUB, MUL, DIV, IDIV, MOD, POW, BAND, BOR, BXOR, SHL, SHR, BNOT, METATABLE };
+			for ( int i = 0; i < tags.length; ++i ) {
+				int j = tags[i].hashCode() & 63;
+				while ( TAGS[j] != null )
+					j = ( j + 1 ) & 63;
+				TAGS[j] = tags[i];
+				BITS[j] = 1 << i;
+			}
+		}
+
+		/** Return the bit of a tag, or 0 if its absence is not remembered. */
+		static int bit(LuaValue tag) {
+			for ( int j = tag.hashCode() & 63; TAGS[j] != null; j = ( j + 1 ) & 63 )
+				if ( TAGS[j] == tag )
+					return BITS[j];
+			return 0;
+		}
+	}
+
+	public boolean useWeakKeys() {
+		return false;
+	}
+
+	public boolean useWeakValues() {
+		return false;
+	}
+
 	public LuaValue toLuaValue() {
 		return this;
 	}
@@ -1,7 +1,13 @@
 package io.github.taoguan.luaj;
 
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
 
 /** 
  * Subclass of {@link io.github.taoguan.luaj.LuaValue} that implements
@@ -36,6 +42,21 @@ import java.lang.ref.WeakReference;
  * in a dead state.   In either case all references to the thread must be
  * dropped, and the garbage collector must run for the thread to be 
  * garbage collected. 
+ * <p>
+ * When {@link #coroutine_mode} is {@link #COROUTINE_VIRTUAL}, coroutines created
+ * afterwards run on JDK virtual threads where the runtime provides them, or on
+ * daemon platform threads otherwise.  Control is handed back and forth with
+ * {@link LockSupport#park(Object)} and {@link LockSupport#unpark(Thread)} instead of
+ * monitors, and orphaned coroutines are detected through a {@link ReferenceQueue}
+ * as soon as the garbage collector clears them, so no polling takes place.
+ * <p>
+ * When {@link #coroutine_mode} is {@link #COROUTINE_STACKLESS}, a coroutine whose
+ * body is a {@link LuaClosure} runs on the resuming Java thread.  A yield unwinds the
+ * interpreter frames into a chain of {@link Frame}s, which are re-entered on the next
+ * resume.  This is possible only when every frame between the body and the yield is a
+ * {@link LuaClosure} call or {@code pcall}; yielding across any other Java frame,
+ * such as a metamethod or a library function calling back into lua, raises a
+ * {@link LuaError} just as the C implementation does for C-call boundaries.
  *
  *   
  * @see io.github.taoguan.luaj.LuaValue
@@ -58,6 +79,23 @@ public class LuaThread extends io.github.taoguan.luaj.LuaValue {
 	 * collection is run.  This can be changed by Java startup code if desired.
 	 */
 	public static long thread_orphan_check_interval = 5000;
+
+	/** Coroutine mode using one platform Java thread per coroutine with monitor handoff. */
+	public static final int COROUTINE_PLATFORM = 0;
+
+	/** Coroutine mode using virtual threads, when available, with lock-free handoff. */
+	public static final int COROUTINE_VIRTUAL  = 1;
+
+	/** Coroutine mode that suspends {@link LuaClosure} frames without using a Java thread.
+	 * Coroutines whose body is not a {@link LuaClosure}, or that are created while the
+	 * debug library is loaded, use {@link #COROUTINE_PLATFORM} instead. */
+	public static final int COROUTINE_STACKLESS = 2;
+
+	/** Mode used by coroutines created from now on, one of {@link #COROUTINE_PLATFORM},
+	 * {@link #COROUTINE_VIRTUAL} or {@link #COROUTINE_STACKLESS}.
+	 * This can be changed by Java startup code if desired.
+	 */
+	public static int coroutine_mode = COROUTINE_PLATFORM;
 	
 	public static final int STATUS_INITIAL       = 0;
 	public static final int STATUS_SUSPENDED     = 1;
@@ -83,6 +121,9 @@ public class LuaThread extends io.github.taoguan.luaj.LuaValue {
 
 	/** Error message handler for this thread, if any.  */
 	public LuaValue errorfunc;
+
+	/** values of weak-keyed tables with this thread as key, or null */
+	private Map ephemerons;
 	
 	/** Private constructor for main thread only */
 	public LuaThread(Globals globals) {
@@ -108,6 +149,12 @@ public class LuaThread extends io.github.taoguan.luaj.LuaValue {
 	public String typename() {
 		return "thread";
 	}
+
+	Map ephemerons(boolean create) {
+		if ( ephemerons == null && create )
+			ephemerons = new WeakHashMap(2);
+		return ephemerons;
+	}
 	
 	public boolean isthread() {
 		return true;
@@ -141,6 +188,11 @@ public class LuaThread extends io.github.taoguan.luaj.LuaValue {
 		return s.lua_resume(this, args);
 	}
 
+	/** Return true if coroutines in {@link #COROUTINE_VIRTUAL} mode run on JDK virtual threads. */
+	public static boolean isVirtualThreadSupported() {
+		return Handoff.VIRTUAL_FACTORY != null;
+	}
+
 	public static class State implements Runnable {
 		private final Globals globals;
 		final WeakReference lua_thread;
@@ -149,6 +201,19 @@ public class LuaThread extends io.github.taoguan.luaj.LuaValue {
 		Varargs result = LuaValue.NONE;
 		String error = null;
 
+		/** Lock-free handoff state, or null when using monitors. */
+		private final Handoff handoff;
+
+		/** Stackless suspension state, or null when this coroutine runs on a Java thread. */
+		public final Stackless stackless;
+
+		/** Registers reused by interpreted calls, or null for stackless coroutines. */
+		final LuaClosure.Registers registers;
+
+		/** Innermost lua frame while profiling, and the profiler tick of the last sample. */
+		Profiler.Frame frames;
+		int sampled;
+
 		/** Hook function control state used by debug lib. */
 		public LuaValue hookfunc;
 
@@ -166,72 +231,398 @@ public class LuaThread extends io.github.taoguan.luaj.LuaValue {
 			this.globals = globals;
 			this.lua_thread = new WeakReference(lua_thread);
 			this.function = function;
+			this.handoff = function != null && coroutine_mode == COROUTINE_VIRTUAL ? new Handoff() : null;
+			this.stackless = function instanceof LuaClosure && coroutine_mode == COROUTINE_STACKLESS
+					&& globals.debuglib == null ? new Stackless() : null;
+			this.registers = stackless == null ? new LuaClosure.Registers() : null;
 		}
 		
-		public synchronized void run() {
-			try {
-				Varargs a = this.args;
-				this.args = LuaValue.NONE;
-				this.result = function.invoke(a);
-			} catch (Throwable t) {
-				this.error = t.getMessage();
-			} finally {
-				this.status = LuaThread.STATUS_DEAD;
-				this.notify();
+		public void run() {
+			if (handoff != null) {
+				handoff.run(this);
+				return;
+			}
+			synchronized (this) {
+				try {
+					Varargs a = this.args;
+					this.args = LuaValue.NONE;
+					this.result = function.invoke(a);
+				} catch (Throwable t) {
+					this.error = t.getMessage();
+				} finally {
+					this.status = LuaThread.STATUS_DEAD;
+					this.notify();
+				}
 			}
 		}
 
-		public synchronized Varargs lua_resume(LuaThread new_thread, Varargs args) {
+		public Varargs lua_resume(LuaThread new_thread, Varargs args) {
+			if (handoff != null)
+				return handoff.resume(this, new_thread, args);
+			if (stackless != null)
+				return stackless.resume(this, new_thread, args);
+			synchronized (this) {
+				LuaThread previous_thread = globals.running;
+				try {
+					globals.running = new_thread;
+					this.args = args;
+					if (this.status == STATUS_INITIAL) {
+						this.status = STATUS_RUNNING; 
+						new Thread(this, "Coroutine-"+(++coroutine_count)).start();
+					} else {
+						this.notify();
+					}
+					if (previous_thread != null)
+						previous_thread.state.status = STATUS_NORMAL;
+					this.status = STATUS_RUNNING;
+					this.wait();
+					return (this.error != null? 
+						LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf(this.error)):
+						LuaValue.varargsOf(LuaValue.TRUE, this.result));
+				} catch (InterruptedException ie) {
+					throw new OrphanedThread();
+				} finally {
+					this.args = LuaValue.NONE;
+					this.result = LuaValue.NONE;
+					this.error = null;
+					globals.running = previous_thread;
+					if (previous_thread != null)
+						globals.running.state.status =STATUS_RUNNING;
+				}
+			}
+		}
+
+		public Varargs lua_yield(Varargs args) {
+			if (handoff != null)
+				return handoff.yield(this, args);
+			if (stackless != null)
+				return stackless.yield(null, args);
+			synchronized (this) {
+				try {
+					this.result = args;
+					this.status = STATUS_SUSPENDED;
+					this.notify();
+					do {
+						this.wait(thread_orphan_check_interval);
+						if (this.lua_thread.get() == null) {
+							this.status = STATUS_DEAD;
+							throw new OrphanedThread();
+						}
+					} while (this.status == STATUS_SUSPENDED);
+					return this.args;
+				} catch (InterruptedException ie) {
+					this.status = STATUS_DEAD;
+					throw new OrphanedThread();
+				} finally {
+					this.args = LuaValue.NONE;
+					this.result = LuaValue.NONE;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lock-free transfer of control between a resuming thread and a coroutine thread.
+	 * <p>
+	 * Exactly one side runs at a time, as recorded by the volatile {@link #turn}; the
+	 * other side is parked.  The volatile write of {@link #turn} publishes the plain
+	 * fields of {@link State} written before it.
+	 */
+	static final class Handoff {
+		private static final int CALLER    = 0;
+		private static final int COROUTINE = 1;
+		private static final int ORPHANED  = 2;
+
+		/** Number of times to re-check {@link #turn} before parking, on multiprocessors. */
+		private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 2000 : 0;
+
+		/** Factory for virtual threads, or null if the runtime does not provide them. */
+		static final ThreadFactory VIRTUAL_FACTORY = virtualThreadFactory();
+
+		/** Queue receiving the references of collected {@link LuaThread}s. */
+		private static final ReferenceQueue ORPHANS = new ReferenceQueue();
+
+		private volatile int turn = CALLER;
+		private volatile Thread caller;
+		private Thread coroutine;
+
+		/** Kept reachable through the parked coroutine thread until enqueued. */
+		private OrphanReference orphanref;
+
+		Varargs resume(State s, LuaThread new_thread, Varargs args) {
+			final Globals globals = s.globals;
 			LuaThread previous_thread = globals.running;
 			try {
 				globals.running = new_thread;
-				this.args = args;
-				if (this.status == STATUS_INITIAL) {
-					this.status = STATUS_RUNNING; 
-					new Thread(this, "Coroutine-"+(++coroutine_count)).start();
-				} else {
-					this.notify();
-				}
+				s.args = args;
+				caller = Thread.currentThread();
 				if (previous_thread != null)
 					previous_thread.state.status = STATUS_NORMAL;
-				this.status = STATUS_RUNNING;
-				this.wait();
-				return (this.error != null? 
-					LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf(this.error)):
-					LuaValue.varargsOf(LuaValue.TRUE, this.result));
-			} catch (InterruptedException ie) {
-				throw new OrphanedThread();
+				if (s.status == STATUS_INITIAL) {
+					s.status = STATUS_RUNNING;
+					orphanref = new OrphanReference(new_thread, this);
+					coroutine = newThread(s);
+					turn = COROUTINE;
+					coroutine.start();
+				} else {
+					s.status = STATUS_RUNNING;
+					turn = COROUTINE;
+					LockSupport.unpark(coroutine);
+				}
+				for (int spins = SPINS; turn != CALLER; ) {
+					if (spins > 0) {
+						--spins;
+						continue;
+					}
+					LockSupport.park(this);
+					if (Thread.interrupted())
+						throw new OrphanedThread();
+				}
+				return (s.error != null?
+					LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf(s.error)):
+					LuaValue.varargsOf(LuaValue.TRUE, s.result));
 			} finally {
-				this.args = LuaValue.NONE;
-				this.result = LuaValue.NONE;
-				this.error = null;
+				s.args = LuaValue.NONE;
+				s.result = LuaValue.NONE;
+				s.error = null;
 				globals.running = previous_thread;
 				if (previous_thread != null)
-					globals.running.state.status =STATUS_RUNNING;
+					globals.running.state.status = STATUS_RUNNING;
 			}
 		}
 
-		public synchronized Varargs lua_yield(Varargs args) {
+		Varargs yield(State s, Varargs args) {
 			try {
-				this.result = args;
-				this.status = STATUS_SUSPENDED;
-				this.notify();
-				do {
-					this.wait(thread_orphan_check_interval);
-					if (this.lua_thread.get() == null) {
-						this.status = STATUS_DEAD;
+				s.result = args;
+				s.status = STATUS_SUSPENDED;
+				turn = CALLER;
+				LockSupport.unpark(caller);
+				int t;
+				for (int spins = SPINS; (t = turn) != COROUTINE; ) {
+					if (t == ORPHANED) {
+						s.status = STATUS_DEAD;
 						throw new OrphanedThread();
 					}
-				} while (this.status == STATUS_SUSPENDED);
-				return this.args;
-			} catch (InterruptedException ie) {
-				this.status = STATUS_DEAD;
-				throw new OrphanedThread();
+					if (spins > 0) {
+						--spins;
+						continue;
+					}
+					LockSupport.park(this);
+				}
+				return s.args;
+			} finally {
+				s.args = LuaValue.NONE;
+				s.result = LuaValue.NONE;
+			}
+		}
+
+		void run(State s) {
+			try {
+				Varargs a = s.args;
+				s.args = LuaValue.NONE;
+				s.result = s.function.invoke(a);
+			} catch (OrphanedThread o) {
+				return;
+			} catch (Throwable t) {
+				s.error = t.getMessage();
+			} finally {
+				orphanref = null;
+				s.status = LuaThread.STATUS_DEAD;
+			}
+			turn = CALLER;
+			LockSupport.unpark(caller);
+		}
+
+		/** Called once the LuaThread can never be resumed again. */
+		void orphan() {
+			if (turn != CALLER)
+				return;
+			turn = ORPHANED;
+			LockSupport.unpark(coroutine);
+		}
+
+		private static Thread newThread(Runnable r) {
+			if (VIRTUAL_FACTORY != null)
+				return VIRTUAL_FACTORY.newThread(r);
+			Thread t = new Thread(r, "Coroutine-"+(++coroutine_count));
+			t.setDaemon(true);
+			return t;
+		}
+
+		private static ThreadFactory virtualThreadFactory() {
+			try {
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Class c = Class.forName("java.lang.Thread$Builder");
+				Method name = c.getMethod("name", String.class, long.class);
+				builder = name.invoke(builder, "Coroutine-", Long.valueOf(1));
+				return (ThreadFactory) c.getMethod("factory").invoke(builder);
+			} catch (Exception e) {
+				return null;
+			}
+		}
+
+		static {
+			Thread reaper = new Thread(new Runnable() {
+				public void run() {
+					for (;;) {
+						try {
+							((OrphanReference) ORPHANS.remove()).handoff.orphan();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}, "Coroutine-Reaper");
+			reaper.setDaemon(true);
+			reaper.start();
+		}
+	}
+
+	/**
+	 * Suspension state of a {@link #COROUTINE_STACKLESS} coroutine.
+	 * <p>
+	 * Interpreter frames record in {@link #callee} the function they are about to call.
+	 * A frame entered with itself as the callee was called directly by another resumable
+	 * frame; any other entry means a Java frame sits in between and is counted in
+	 * {@link #javaDepth}.  A yield can be captured only when that count is zero and the
+	 * yield function itself was the recorded callee.
+	 */
+	public static final class Stackless {
+		/** The function most recently called by a resumable frame. */
+		public LuaValue callee;
+
+		/** Number of active frames entered through a Java frame. */
+		public int javaDepth;
+
+		/** Outermost frame of the suspended call chain, or null when not suspended. */
+		private Frame suspended;
+
+		/** Return true if the frame of function f is entered directly from a resumable frame,
+		 * and count it otherwise. */
+		public boolean enter(LuaValue f) {
+			if (callee == f) {
+				callee = null;
+				return true;
+			}
+			++javaDepth;
+			return false;
+		}
+
+		/** Undo {@link #enter(LuaValue)} when the frame returns or is suspended. */
+		public void exit(boolean clean) {
+			if (!clean)
+				--javaDepth;
+		}
+
+		/** Pass a call through the Java function f to the function target if f was called
+		 * directly from a resumable frame.  Returns true if the call may then be resumed. */
+		public boolean passthrough(LuaValue f, LuaValue target) {
+			if (callee != f || javaDepth != 0)
+				return false;
+			callee = target;
+			return true;
+		}
+
+		/** Suspend the coroutine from the yield function f.
+		 * @throws Yield carrying args, to be completed by the enclosing frames
+		 * @throws LuaError if a Java frame sits between the coroutine body and the yield */
+		public Varargs yield(LuaValue f, Varargs args) {
+			if (f == null || callee != f || javaDepth != 0)
+				throw new LuaError("attempt to yield across a Java call boundary");
+			callee = null;
+			throw new Yield(args);
+		}
+
+		Varargs resume(State s, LuaThread new_thread, Varargs args) {
+			final Globals globals = s.globals;
+			LuaThread previous_thread = globals.running;
+			try {
+				globals.running = new_thread;
+				if (previous_thread != null)
+					previous_thread.state.status = STATUS_NORMAL;
+				Varargs r;
+				if (s.status == STATUS_INITIAL) {
+					s.status = STATUS_RUNNING;
+					callee = s.function;
+					r = s.function.invoke(args);
+				} else {
+					s.status = STATUS_RUNNING;
+					// with no frames left, the yield was tail called by the body itself
+					Frame f = suspended;
+					suspended = null;
+					r = f != null? f.resume(args).eval(): args;
+				}
+				s.status = STATUS_DEAD;
+				return LuaValue.varargsOf(LuaValue.TRUE, r);
+			} catch (Yield y) {
+				suspended = y.frames;
+				s.status = STATUS_SUSPENDED;
+				return LuaValue.varargsOf(LuaValue.TRUE, y.values);
+			} catch (Throwable t) {
+				suspended = null;
+				s.status = STATUS_DEAD;
+				return LuaValue.varargsOf(LuaValue.FALSE, LuaValue.valueOf(t.getMessage()));
 			} finally {
-				this.args = LuaValue.NONE;
-				this.result = LuaValue.NONE;
+				callee = null;
+				javaDepth = 0;
+				globals.running = previous_thread;
+				if (previous_thread != null)
+					globals.running.state.status = STATUS_RUNNING;
 			}
 		}
 	}
+
+	/**
+	 * A suspended activation of a stackless coroutine, waiting for the result of the call
+	 * it was making when the coroutine yielded.
+	 */
+	public static abstract class Frame {
+		/** The frame that was called by this one, or null if it called the yield function. */
+		protected Frame inner;
+
+		/** Re-enter this frame, completing its pending call with the result of resuming
+		 * {@link #inner}, or with args if there is no inner frame.
+		 * @return the result of this frame, which may be a tail call */
+		protected abstract Varargs resume(Varargs args);
+
+		/** Result of the pending call: resume the inner frame, or take the resume arguments. */
+		protected Varargs resumeInner(Varargs args) {
+			return inner != null ? inner.resume(args).eval() : args;
+		}
+	}
+
+	/**
+	 * Thrown by a stackless yield to unwind the resumable frames, each of which adds
+	 * itself with {@link #push(Frame)} before rethrowing.  Applications should not
+	 * catch it.
+	 */
+	public static final class Yield extends Error {
+		final Varargs values;
+		Frame frames;
+
+		Yield(Varargs values) {
+			super("yield");
+			this.values = values;
+		}
+
+		/** Add the next enclosing frame to the suspended chain. */
+		public void push(Frame f) {
+			f.inner = frames;
+			frames = f;
+		}
+
+		public Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	/** Weak reference to a coroutine's LuaThread, enqueued once it has been collected. */
+	static final class OrphanReference extends WeakReference {
+		final Handoff handoff;
+		OrphanReference(LuaThread lua_thread, Handoff handoff) {
+			super(lua_thread, Handoff.ORPHANS);
+			this.handoff = handoff;
+		}
+	}
 		
 }
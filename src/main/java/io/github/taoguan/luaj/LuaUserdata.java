@@ -1,10 +1,15 @@
 package io.github.taoguan.luaj;
 
+import java.util.Map;
+import java.util.WeakHashMap;
 
 public class LuaUserdata extends LuaValue {
 	
 	public Object m_instance;
 	public LuaValue m_metatable;
+
+	/** values of weak-keyed tables with this userdata as key, or null */
+	private Map ephemerons;
 	
 	public LuaUserdata(Object obj) {
 		m_instance = obj;
@@ -27,6 +32,12 @@ public class LuaUserdata extends LuaValue {
 		return "userdata";
 	}
 
+	Map ephemerons(boolean create) {
+		if ( ephemerons == null && create )
+			ephemerons = new WeakHashMap(2);
+		return ephemerons;
+	}
+
 	public int hashCode() {
 		return m_instance.hashCode();
 	}
@@ -2,6 +2,8 @@ package io.github.taoguan.luaj;
 
 import io.github.taoguan.luaj.lib.MathLib;
 
+import java.util.Map;
+
 /**
  * Base class for all concrete lua type values.  
  * <p>
@@ -3138,37 +3140,37 @@ public class LuaValue extends Varargs {
 	public LuaValue concatTo(LuaString lhs)   { return lhs.concatmt(this); }
 
 	public LuaValue band(LuaValue rhs){
-		int value = checkint();
-		int right = rhs.checkint();
+		long value = checklong();
+		long right = rhs.checklong();
 		return LuaValue.valueOf(value & right);
 	}
 
 	public LuaValue bor(LuaValue rhs){
-		int value = checkint();
-		int right = rhs.checkint();
+		long value = checklong();
+		long right = rhs.checklong();
 		return LuaValue.valueOf(value | right);
 	}
 
 	public LuaValue bxor(LuaValue rhs){
-		int value = checkint();
-		int right = rhs.checkint();
+		long value = checklong();
+		long right = rhs.checklong();
 		return LuaValue.valueOf(value ^ right);
 	}
 
 	public LuaValue bnot(){
-		int value = checkint();
+		long value = checklong();
 		return LuaValue.valueOf(~value);
 	}
 
 	public LuaValue shl(LuaValue rhs){
-		int value = checkint();
-		int right = rhs.checkint();
+		long value = checklong();
+		long right = rhs.checklong();
 		return LuaValue.valueOf(MathLib.shiftLeft(value, right));
 	}
 
 	public LuaValue shr(LuaValue rhs){
-		int value = checkint();
-		int right = rhs.checkint();
+		long value = checklong();
+		long right = rhs.checklong();
 		return LuaValue.valueOf(MathLib.shiftRight(value, right));
 	}
 
@@ -3245,6 +3247,14 @@ public class LuaValue extends Varargs {
 	 */
 	public LuaValue  strongvalue()  { return this; }
 
+	/** Return the values of weak-keyed tables whose key is this value, 
+	 * which live as long as this value does.
+	 * Only values which can be weak keys, see {@link WeakTable}, keep such a map.
+	 * @param create true to create the map if there is none yet
+	 * @return map from entry tokens to values, or null if there is none
+	 */
+	Map ephemerons(boolean create)  { return null; }
+
 	/** Convert java boolean to a {@link LuaValue}.
 	 * 
 	 * @param b boolean value to convert
@@ -3268,6 +3278,15 @@ public class LuaValue extends Varargs {
 	 */
 	public static LuaNumber   valueOf(double d)     { return LuaDouble.valueOf(d); };
 	
+	/** Convert java long to a {@link LuaValue}.  
+	 * This may return a {@link LuaInteger} or {@link LuaLong} depending 
+	 * on the value supplied.  
+	 * 
+	 * @param l long value to convert
+	 * @return {@link LuaNumber} instance, possibly pooled, whose value is l
+	 */
+	public static LuaNumber   valueOf(long l)       { return LuaInteger.valueOf(l); };
+	
 	/** Convert java string to a {@link LuaValue}.
 	 * 
 	 * @param s String value to convert
@@ -3442,7 +3461,7 @@ public class LuaValue extends Varargs {
     	LuaValue mt = getmetatable();
     	if ( mt == null )
     		return NIL;
-    	return mt.rawget(tag);
+    	return mt instanceof LuaTable? ((LuaTable) mt).metamethod(tag): mt.rawget(tag);
     }
 
     /**
@@ -3463,6 +3482,14 @@ public class LuaValue extends Varargs {
 	/** Construct a Metatable instance from the given LuaValue */
 	protected static Metatable metatableOf(LuaValue mt) {
 		if ( mt != null && mt.istable() ) {
+			LuaValue mode = mt.rawget(MODE);
+			if ( mode.isstring() ) {
+				String m = mode.tojstring();
+				boolean weakkeys = m.indexOf('k') >= 0;
+				boolean weakvalues = m.indexOf('v') >= 0;
+				if ( weakkeys || weakvalues )
+					return new WeakTable(weakkeys, weakvalues, mt);
+			}
 			return (LuaTable)mt;
 		} else if ( mt != null ) {
 			return new NonTableMetatable( mt );
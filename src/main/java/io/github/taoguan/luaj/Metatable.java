@@ -6,6 +6,12 @@ package io.github.taoguan.luaj;
  */
 interface Metatable {
 
+	/** Return whether or not this table's keys are weak. */
+	boolean useWeakKeys();
+
+	/** Return whether or not this table's values are weak. */
+	boolean useWeakValues();
+
 	/** Return this metatable as a LuaValue. */
 	LuaValue toLuaValue();
 
@@ -8,6 +8,14 @@ class NonTableMetatable implements Metatable {
 		this.value = value;
 	}
 
+	public boolean useWeakKeys() {
+		return false;
+	}
+
+	public boolean useWeakValues() {
+		return false;
+	}
+
 	public LuaValue toLuaValue() {
 		return value;
 	}
@@ -0,0 +1,261 @@
+package io.github.taoguan.luaj;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sampling profiler of the lua functions run with the {@link Globals} it is set on,
+ * interpreted or compiled by {@link io.github.taoguan.luaj.luajc.LuaJC}.
+ * <p>
+ * A daemon thread ticks at the sampling interval, and each running {@link LuaThread}
+ * records its stack of lua functions at its next call, return from a call or loop back-edge
+ * after a tick, counted once for each tick that passed since its previous sample,
+ * so a sample costs nothing to the threads that are not running lua code,
+ * and time spent in a Java function is attributed to the lua line that called it
+ * once it returns.  Functions only maintain the stack while {@link Globals#profiler}
+ * is set when they are called, so there is no cost besides a null check without a profiler.
+ * <p>
+ * Samples are aggregated as folded stacks, the input format of flame graph tools:
+ * one line per distinct stack, with frames from the outermost to the innermost separated
+ * by semicolons, followed by a space and the number of samples.  A frame is
+ * {@code source:linedefined:line}, the chunk name, the line the function is defined at,
+ * which is 0 for a main chunk, and the line being run, or {@code source:linedefined}
+ * when profiling functions without lines.  Coroutines have stacks of their own.
+ * <pre> {@code
+ * Profiler profiler = new Profiler(1000, true);
+ * globals.profiler = profiler;
+ * profiler.start();
+ * globals.load(script, "script.lua").call();
+ * profiler.stop();
+ * profiler.writeFolded(new FileWriter("script.folded"));
+ * } </pre>
+ * A profiler may be shared by the globals of several threads.
+ */
+public class Profiler {
+
+	/** Sampling interval in nanoseconds. */
+	private final long interval;
+
+	/** True to record the line being run in each frame. */
+	private final boolean lines;
+
+	/** Number of ticks of the sampling thread; a thread records a sample when it has not seen the last one,
+	 * weighted by the number of ticks since the one it last saw. */
+	volatile int tick;
+
+	private final ConcurrentHashMap<String, AtomicLong> stacks = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong samples = new AtomicLong();
+	/** The sampling thread, which runs until it no longer finds itself here. */
+	private volatile Thread sampler;
+
+	/** Construct a profiler sampling every intervalMicros microseconds,
+	 * recording the line being run in each frame if lines is true. */
+	public Profiler(long intervalMicros, boolean lines) {
+		if (intervalMicros <= 0)
+			throw new IllegalArgumentException("interval must be positive");
+		this.interval = intervalMicros * 1000L;
+		this.lines = lines;
+	}
+
+	/** Start sampling, if not started. */
+	public synchronized void start() {
+		if (sampler != null)
+			return;
+		sampler = new Thread(new Runnable() {
+			public void run() {
+				while (sampler == Thread.currentThread()) {
+					LockSupport.parkNanos(interval);
+					++tick;
+				}
+			}
+		}, "luaj-profiler");
+		sampler.setDaemon(true);
+		sampler.start();
+	}
+
+	/** Stop sampling; the samples recorded so far are kept. */
+	public synchronized void stop() {
+		Thread t = sampler;
+		sampler = null;
+		if (t != null)
+			LockSupport.unpark(t);
+	}
+
+	/** Discard the samples recorded so far. */
+	public void reset() {
+		stacks.clear();
+		samples.set(0);
+	}
+
+	/** @return the number of samples recorded, the sum of the counts of the stacks */
+	public long getSamples() {
+		return samples.get();
+	}
+
+	/** @return the number of samples of each folded stack, sorted by stack */
+	public Map<String, Long> getStacks() {
+		Map<String, Long> m = new TreeMap<String, Long>();
+		for (Iterator<Map.Entry<String, AtomicLong>> i = stacks.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry<String, AtomicLong> e = i.next();
+			m.put(e.getKey(), Long.valueOf(e.getValue().get()));
+		}
+		return m;
+	}
+
+	/** Write the folded stacks, one line per stack, sorted by stack. */
+	public void writeFolded(Writer w) throws IOException {
+		for (Iterator<Map.Entry<String, Long>> i = getStacks().entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry<String, Long> e = i.next();
+			w.write(e.getKey());
+			w.write(' ');
+			w.write(e.getValue().toString());
+			w.write('\n');
+		}
+		w.flush();
+	}
+
+	/** Record a sample of the stack of state if a tick has passed since its last one,
+	 * counted once for each tick that passed. */
+	final void poll(LuaThread.State state) {
+		int t = tick;
+		if (state.sampled != t) {
+			int ticks = t - state.sampled;
+			state.sampled = t;
+			sample(state.frames, ticks);
+		}
+	}
+
+	private void sample(Frame top, int ticks) {
+		if (top == null)
+			return;
+		ArrayList<String> frames = new ArrayList<String>();
+		StackTraceElement[] trace = null;
+		int t = 0;
+		for (Frame f = top; f != null; f = f.parent) {
+			String name = f.p != null? name(f.p): f.name;
+			if (!lines) {
+				frames.add(name);
+			} else if (f.p != null) {
+				int[] li = f.p.lineinfo;
+				frames.add(li != null && f.pc >= 0 && f.pc < li.length? name + ':' + li[f.pc]: name);
+			} else {
+				// compiled functions have the lua lines as line numbers of their class,
+				// and are found on the Java stack in the same order as on the lua stack
+				if (trace == null)
+					trace = new Throwable().getStackTrace();
+				String c = f.function.getClass().getName();
+				while (t < trace.length && !trace[t].getClassName().equals(c))
+					++t;
+				frames.add(t < trace.length && trace[t].getLineNumber() > 0? name + ':' + trace[t++].getLineNumber(): name);
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = frames.size(); --i >= 0; ) {
+			sb.append(frames.get(i));
+			if (i > 0)
+				sb.append(';');
+		}
+		String key = sb.toString();
+		AtomicLong n = stacks.get(key);
+		if (n == null) {
+			AtomicLong prev = stacks.putIfAbsent(key, n = new AtomicLong());
+			if (prev != null)
+				n = prev;
+		}
+		n.addAndGet(ticks);
+		samples.addAndGet(ticks);
+	}
+
+	/** Push a frame of an interpreted function onto the stack of the running thread of globals.
+	 * @return the frame to pop with {@link Frame#exit()} */
+	final Frame enter(Globals globals, LuaClosure closure) {
+		LuaThread.State s = globals.running.state;
+		poll(s, s.frames);
+		return s.frames = new Frame(s, closure.p, null, null);
+	}
+
+	/** Record the ticks since the last sample for the caller of a function being entered,
+	 * or skip them when the thread was not running lua code. */
+	private void poll(LuaThread.State s, Frame caller) {
+		if (caller != null)
+			poll(s);
+		else
+			s.sampled = tick;
+	}
+
+	/** Push a frame of a compiled function onto the stack of the running thread of globals,
+	 * if profiling; called by compiled functions on entry.
+	 * @param name the name of the function, as returned by {@link #name(Prototype)}
+	 * @return the frame to pass to {@link #exit(Frame)} on return, or null */
+	public static Frame enter(Globals globals, LuaFunction function, String name) {
+		Profiler profiler;
+		if (globals == null || (profiler = globals.profiler) == null)
+			return null;
+		LuaThread.State s = globals.running.state;
+		profiler.poll(s, s.frames);
+		return s.frames = new Frame(s, null, function, name);
+	}
+
+	/** Pop the frame returned by {@link #enter(Globals, LuaFunction, String)};
+	 * called by compiled functions on return. */
+	public static void exit(Frame frame) {
+		if (frame != null)
+			frame.exit();
+	}
+
+	/** Record a sample if a tick has passed; called by compiled functions at loop back-edges 
+	 * and on return from calls. */
+	public static void poll(Globals globals) {
+		Profiler profiler;
+		if (globals != null && (profiler = globals.profiler) != null)
+			profiler.poll(globals.running.state);
+	}
+
+	/** @return the name of the function of a prototype in samples, {@code source:linedefined} */
+	public static String name(Prototype p) {
+		String source = p.source != null? p.source.tojstring(): "?";
+		if (source.startsWith("@") || source.startsWith("="))
+			source = source.substring(1);
+		return source + ':' + p.linedefined;
+	}
+
+	/** Frame of a lua function on the stack of a thread, while a profiler is set. */
+	public static final class Frame {
+		final LuaThread.State state;
+		final Frame parent;
+		/** Prototype of an interpreted function, or null for a compiled function. */
+		final Prototype p;
+		/** Compiled function and its name, or null for an interpreted function. */
+		final LuaFunction function;
+		final String name;
+		/** Instruction being run by an interpreted function, updated at calls and back-edges
+		 * after recording the ticks spent since the previous update. */
+		int pc;
+
+		Frame(LuaThread.State state, Prototype p, LuaFunction function, String name) {
+			this.state = state;
+			this.parent = state.frames;
+			this.p = p;
+			this.function = function;
+			this.name = name;
+		}
+
+		/** Record a sample if a tick has passed, at the instruction of the previous poll, 
+		 * which was being run meanwhile, then move to pc. */
+		final void poll(Profiler profiler, int pc) {
+			profiler.poll(state);
+			this.pc = pc;
+		}
+
+		final void exit() {
+			state.frames = parent;
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package io.github.taoguan.luaj;
 
 import io.github.taoguan.luaj.compiler.LuaC;
+import io.github.taoguan.luaj.vm.DecodedCode;
 
 /**
  * Prototype representing compiled lua code. 
@@ -81,6 +82,13 @@ public class Prototype {
 	public int numparams;
 	public int is_vararg;
 	public int maxstacksize;
+	/* calls and loop back-edges counted while interpreted, when tiered execution is installed */
+	public int calls;
+	public int backedges;
+	/* compiled form made by the installed Globals.Tiering, or null while only interpreted */
+	public volatile Object compiled;
+	/* code decoded for the interpreter, built on first use */
+	private DecodedCode decoded;
 	private static final Upvaldesc[] NOUPVALUES = {};
 	private static final Prototype[] NOSUBPROTOS = {};
 
@@ -94,6 +102,15 @@ public class Prototype {
 		upvalues = new Upvaldesc[n_upvalues];
 	}
 	
+	/** Get the instructions decoded into opcode and operand arrays, 
+	 * decoding them on first use or when {@link #code} was replaced. */
+	public DecodedCode decoded() {
+		DecodedCode d = decoded;
+		if (d == null || d.code != code)
+			decoded = d = new DecodedCode(code);
+		return d;
+	}
+	
 	public String toString() {
 		return source + ":" + linedefined+"-"+lastlinedefined;
 	}
@@ -24,12 +24,21 @@ public class TailcallVarargs extends Varargs {
 	private io.github.taoguan.luaj.LuaValue func;
 	private Varargs args;
 	private Varargs result;
+	private Globals.Budget budget;
 	
 	public TailcallVarargs(io.github.taoguan.luaj.LuaValue f, Varargs args) {
 		this.func = f;
 		this.args = args;
 	}
 	
+	/** Construct a tail call that binds budget, if not null, to the thread while it is evaluated, 
+	 * so that functions in Java called last by lua code are charged for their allocations. */
+	public TailcallVarargs(io.github.taoguan.luaj.LuaValue f, Varargs args, Globals.Budget budget) {
+		this.func = f;
+		this.args = args;
+		this.budget = budget;
+	}
+	
 	public TailcallVarargs(io.github.taoguan.luaj.LuaValue object, io.github.taoguan.luaj.LuaValue methodname, Varargs args) {
 		this.func = object.get(methodname);
 		this.args = io.github.taoguan.luaj.LuaValue.varargsOf(object, args);
@@ -40,18 +49,24 @@ public class TailcallVarargs extends Varargs {
 	}
 	
 	public Varargs eval() {
-		while ( result == null ) {
-			Varargs r = func.onInvoke(args);
-			if (r.isTailcall()) {
-				TailcallVarargs t = (TailcallVarargs) r;
-				func = t.func;
-				args = t.args;
-			}
-			else {
-				result = r;			
-				func = null;
-				args = null;
+		final Globals.Budget outer = budget != null? budget.bind(): null;
+		try {
+			while ( result == null ) {
+				Varargs r = func.onInvoke(args);
+				if (r.isTailcall()) {
+					TailcallVarargs t = (TailcallVarargs) r;
+					func = t.func;
+					args = t.args;
+				}
+				else {
+					result = r;			
+					func = null;
+					args = null;
+				}
 			}
+		} finally {
+			if ( budget != null && outer != budget )
+				Globals.Budget.restore(outer);
 		}
 		return result;
 	}
@@ -0,0 +1,358 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.LuaTable.Slot;
+import io.github.taoguan.luaj.LuaTable.StrongSlot;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+
+/**
+ * Implementation of {@link Metatable} for a metatable whose {@code __mode}
+ * contains {@code 'k'} or {@code 'v'}, so that the table refers weakly
+ * to its collectable keys, values, or both.
+ * <p>
+ * Only tables, functions, threads and userdata are collectable;
+ * entries whose keys and values are strings, numbers or booleans stay strong.
+ * <p>
+ * Weak keys behave as ephemerons: the value of a weak-keyed entry is
+ * stored with the key itself, see {@link LuaValue#ephemerons(boolean)},
+ * so a value referring to its own key does not keep the entry alive.
+ * <p>
+ * Entries whose key or value was collected release what they still hold
+ * the first time they are looked at, typically by {@link LuaTable#next(LuaValue)},
+ * and are unlinked on the next rehash, which also sizes the table by
+ * the entries still alive.
+ *
+ * @see LuaValue#MODE
+ */
+class WeakTable implements Metatable {
+
+	private final boolean weakkeys;
+	private final boolean weakvalues;
+	private final LuaValue backing;
+
+	WeakTable(boolean weakkeys, boolean weakvalues, LuaValue backing) {
+		this.weakkeys = weakkeys;
+		this.weakvalues = weakvalues;
+		this.backing = backing;
+	}
+
+	public boolean useWeakKeys() {
+		return weakkeys;
+	}
+
+	public boolean useWeakValues() {
+		return weakvalues;
+	}
+
+	public LuaValue toLuaValue() {
+		return backing;
+	}
+
+	public Slot entry(LuaValue key, LuaValue value) {
+		value = value.strongvalue();
+		if ( value == null )
+			return null;
+		boolean wk = weakkeys && collectable(key);
+		boolean wv = weakvalues && collectable(value);
+		if ( wk )
+			return wv? new WeakKeyAndValueSlot(key, value): new EphemeronSlot(key, value);
+		if ( wv )
+			return new WeakValueSlot(key, value);
+		return LuaTable.defaultEntry(key, value);
+	}
+
+	public LuaValue wrap(LuaValue value) {
+		return weakvalues? weaken(value): value;
+	}
+
+	public LuaValue arrayget(LuaValue[] array, int index) {
+		LuaValue value = array[index];
+		if ( value != null ) {
+			value = strengthen(value);
+			if ( value == null )
+				array[index] = null;
+		}
+		return value;
+	}
+
+	/** Whether a key or value can be referred to weakly. */
+	static boolean collectable(LuaValue value) {
+		switch ( value.type() ) {
+		case LuaValue.TTABLE:
+		case LuaValue.TFUNCTION:
+		case LuaValue.TTHREAD:
+		case LuaValue.TUSERDATA:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/** Return a collectable value wrapped in a {@link WeakValue}, or the value itself. */
+	static LuaValue weaken(LuaValue value) {
+		return collectable(value)? new WeakValue(value): value;
+	}
+
+	/** Return the value behind a weak reference or {@link WeakValue},
+	 * or null if it was collected. */
+	static LuaValue strengthen(Object ref) {
+		if ( ref instanceof WeakReference )
+			ref = ((WeakReference) ref).get();
+		if ( ref instanceof WeakValue )
+			return ((WeakValue) ref).strongvalue();
+		return (LuaValue) ref;
+	}
+
+	/**
+	 * Slot holding one entry of a weak table.
+	 * <p>
+	 * The key's hash is kept so the slot can be placed during rehash
+	 * even when its key is gone.
+	 * Once the entry is gone the key is only referred to weakly, so that
+	 * {@link LuaTable#next(LuaValue)} can still find it while it is in use.
+	 */
+	static abstract class WeakSlot implements Slot {
+		protected Object key;
+		protected Slot next;
+		private final int keyhash;
+		private final boolean keymod;
+
+		WeakSlot(Object key, LuaValue strongkey, Slot next) {
+			this.key = key;
+			this.next = next;
+			this.keyhash = strongkey.hashCode();
+			switch ( strongkey.type() ) {
+			case LuaValue.TNUMBER:
+			case LuaValue.TTABLE:
+			case LuaValue.TUSERDATA:
+				keymod = true;
+				break;
+			default:
+				keymod = false;
+			}
+		}
+
+		WeakSlot(WeakSlot copyFrom, Slot next) {
+			this.key = copyFrom.key;
+			this.next = next;
+			this.keyhash = copyFrom.keyhash;
+			this.keymod = copyFrom.keymod;
+		}
+
+		/** Return the value, or null if it was removed or collected. */
+		abstract LuaValue strongvalue();
+
+		/** Set the value, or clear it when value is null. */
+		abstract void setvalue(LuaValue value);
+
+		/** Return a copy of this slot followed by rest. */
+		abstract WeakSlot copy(Slot rest);
+
+		LuaValue strongkey() {
+			return strengthen(key);
+		}
+
+		/** Release the references of an entry which is gone. */
+		void drop() {
+			if ( !(key instanceof WeakReference) && key != null )
+				key = new WeakReference(key);
+			setvalue(null);
+		}
+
+		public int keyindex(int hashMask) {
+			return keymod? LuaTable.hashmod(keyhash, hashMask): LuaTable.hashpow2(keyhash, hashMask);
+		}
+
+		public StrongSlot first() {
+			LuaValue k = strongkey();
+			LuaValue v = k != null? strongvalue(): null;
+			if ( v != null )
+				return new LuaTable.NormalEntry(k, v);
+			drop();
+			return null;
+		}
+
+		public StrongSlot find(LuaValue key) {
+			return keyeq(key)? first(): null;
+		}
+
+		public boolean keyeq(LuaValue key) {
+			LuaValue k = strongkey();
+			return k != null && (key == k || key.raweq(k));
+		}
+
+		public Slot rest() {
+			return next;
+		}
+
+		public int arraykey(int max) {
+			// integer keys are never weak
+			return 0;
+		}
+
+		public Slot set(StrongSlot target, LuaValue value) {
+			LuaValue k = strongkey();
+			if ( k != null && target.keyeq(k) && strongvalue() != null ) {
+				setvalue(value);
+				return this;
+			}
+			next = next.set(target, value);
+			return k != null? this: next;
+		}
+
+		public Slot add(Slot entry) {
+			next = ( next != null )? next.add(entry): entry;
+			return strongkey() != null? this: next;
+		}
+
+		public Slot remove(StrongSlot target) {
+			LuaValue k = strongkey();
+			if ( k == null )
+				return next.remove(target);
+			if ( target.keyeq(k) ) {
+				drop();
+				return this;
+			}
+			next = next.remove(target);
+			return this;
+		}
+
+		public Slot relink(Slot rest) {
+			if ( strongkey() == null || strongvalue() == null )
+				return rest;
+			return ( rest == null && next == null )? this: copy(rest);
+		}
+	}
+
+	/** Entry of a table with weak values and a strong key. */
+	static final class WeakValueSlot extends WeakSlot {
+		private LuaValue value;
+
+		WeakValueSlot(LuaValue key, LuaValue value) {
+			super(key, key, null);
+			this.value = weaken(value);
+		}
+
+		private WeakValueSlot(WeakValueSlot copyFrom, Slot next) {
+			super(copyFrom, next);
+			this.value = copyFrom.value;
+		}
+
+		LuaValue strongvalue() {
+			return value != null? strengthen(value): null;
+		}
+
+		void setvalue(LuaValue value) {
+			this.value = value != null? weaken(value): null;
+		}
+
+		WeakSlot copy(Slot rest) {
+			return new WeakValueSlot(this, rest);
+		}
+	}
+
+	/** Entry of a table with both weak keys and weak values. */
+	static final class WeakKeyAndValueSlot extends WeakSlot {
+		private LuaValue value;
+
+		WeakKeyAndValueSlot(LuaValue key, LuaValue value) {
+			super(new WeakReference(key), key, null);
+			this.value = weaken(value);
+		}
+
+		private WeakKeyAndValueSlot(WeakKeyAndValueSlot copyFrom, Slot next) {
+			super(copyFrom, next);
+			this.value = copyFrom.value;
+		}
+
+		LuaValue strongvalue() {
+			return value != null? strengthen(value): null;
+		}
+
+		void setvalue(LuaValue value) {
+			this.value = value != null? weaken(value): null;
+		}
+
+		WeakSlot copy(Slot rest) {
+			return new WeakKeyAndValueSlot(this, rest);
+		}
+	}
+
+	/**
+	 * Entry of a table with weak keys and strong values.
+	 * <p>
+	 * The value is kept in the {@link LuaValue#ephemerons(boolean)} map of the key
+	 * under a token which only this slot and its copies refer to,
+	 * so it lives as long as both the key and the table do.
+	 */
+	static final class EphemeronSlot extends WeakSlot {
+		private final Object token;
+
+		EphemeronSlot(LuaValue key, LuaValue value) {
+			super(new WeakReference(key), key, null);
+			this.token = new Object();
+			setvalue(value);
+		}
+
+		private EphemeronSlot(EphemeronSlot copyFrom, Slot next) {
+			super(copyFrom, next);
+			this.token = copyFrom.token;
+		}
+
+		LuaValue strongvalue() {
+			LuaValue k = strongkey();
+			Map m = k != null? k.ephemerons(false): null;
+			return m != null? (LuaValue) m.get(token): null;
+		}
+
+		void setvalue(LuaValue value) {
+			LuaValue k = strongkey();
+			if ( k == null )
+				return;
+			if ( value != null ) {
+				k.ephemerons(true).put(token, value);
+			} else {
+				Map m = k.ephemerons(false);
+				if ( m != null )
+					m.remove(token);
+			}
+		}
+
+		WeakSlot copy(Slot rest) {
+			return new EphemeronSlot(this, rest);
+		}
+	}
+
+	/** Weak reference to a collectable value, as stored in the array part of a table with weak values. */
+	static final class WeakValue extends LuaValue {
+		private final WeakReference ref;
+
+		WeakValue(LuaValue value) {
+			ref = new WeakReference(value);
+		}
+
+		public int type() {
+			illegal("type", "weak value");
+			return 0;
+		}
+
+		public String typename() {
+			illegal("typename", "weak value");
+			return null;
+		}
+
+		public LuaValue strongvalue() {
+			return (LuaValue) ref.get();
+		}
+
+		public boolean raweq(LuaValue rhs) {
+			Object o = ref.get();
+			return o != null && rhs.raweq((LuaValue) o);
+		}
+
+		public String toString() {
+			return "weak<" + ref.get() + ">";
+		}
+	}
+}
@@ -102,7 +102,10 @@ public class DumpState {
 	}
 	
 	void dumpDouble(double d) throws IOException {
-		long l = Double.doubleToLongBits(d);
+		dumpInt64(Double.doubleToLongBits(d));
+	}
+
+	void dumpInt64(long l) throws IOException {
 		if ( IS_LITTLE_ENDIAN ) {
 			dumpInt( (int) l );
 			dumpInt( (int) (l>>32) );
@@ -136,8 +139,13 @@ public class DumpState {
 			case io.github.taoguan.luaj.LuaValue.TNUMBER:
 				switch (NUMBER_FORMAT) {
 				case NUMBER_FORMAT_FLOATS_OR_DOUBLES:
-					writer.write(io.github.taoguan.luaj.LuaValue.TNUMBER);
-					dumpDouble(o.todouble());
+					if ( o instanceof LuaLong ) {
+						writer.write(LoadState.LUA_TINT64);
+						dumpInt64(o.tolong());
+					} else {
+						writer.write(io.github.taoguan.luaj.LuaValue.TNUMBER);
+						dumpDouble(o.todouble());
+					}
 					break;
 				case NUMBER_FORMAT_INTS_ONLY:
 					if ( ! ALLOW_INTEGER_CASTING && ! o.isint() )
@@ -149,6 +157,9 @@ public class DumpState {
 					if ( o.isint() ) {
 						writer.write(io.github.taoguan.luaj.LuaValue.TINT);
 						dumpInt(o.toint());
+					} else if ( o instanceof LuaLong ) {
+						writer.write(LoadState.LUA_TINT64);
+						dumpInt64(o.tolong());
 					} else {
 						writer.write(io.github.taoguan.luaj.LuaValue.TNUMBER);
 						dumpDouble(o.todouble());
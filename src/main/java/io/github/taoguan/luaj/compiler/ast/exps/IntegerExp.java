@@ -1,6 +1,7 @@
 package io.github.taoguan.luaj.compiler.ast.exps;
 
 import io.github.taoguan.luaj.LuaInteger;
+import io.github.taoguan.luaj.LuaNumber;
 import io.github.taoguan.luaj.compiler.ast.Exp;
 import lombok.Getter;
 import lombok.Setter;
@@ -9,23 +10,23 @@ import lombok.Setter;
 @Setter
 public class IntegerExp extends Exp {
 
-    private LuaInteger luaInteger;
+    private LuaNumber luaInteger;
 
-    public IntegerExp(int line, int val) {
+    public IntegerExp(int line, long val) {
         this.luaInteger = LuaInteger.valueOf(val);
         setLine(line);
     }
 
-    public IntegerExp(int line, LuaInteger luaInteger) {
+    public IntegerExp(int line, LuaNumber luaInteger) {
         this.luaInteger = luaInteger;
         setLine(line);
     }
 
-    public int getVal(){
-        return luaInteger.toint();
+    public long getVal(){
+        return luaInteger.tolong();
     }
 
-    public void setVal(int val){
+    public void setVal(long val){
         luaInteger = LuaInteger.valueOf(val);
     }
 
@@ -2,6 +2,8 @@ package io.github.taoguan.luaj.compiler.parser;
 
 import io.github.taoguan.luaj.LuaDouble;
 import io.github.taoguan.luaj.LuaInteger;
+import io.github.taoguan.luaj.LuaLong;
+import io.github.taoguan.luaj.LuaNumber;
 import io.github.taoguan.luaj.LuaValue;
 import io.github.taoguan.luaj.compiler.ast.*;
 import io.github.taoguan.luaj.compiler.ast.exps.*;
@@ -278,8 +280,8 @@ class ExpParser {
         Token token = lexer.nextToken();
         try {
             LuaValue luaValue = HelpNumber.str2d(token.getValue());
-            if(luaValue instanceof LuaInteger){
-                return new IntegerExp(token.getLine(), (LuaInteger)luaValue);
+            if(luaValue instanceof LuaInteger || luaValue instanceof LuaLong){
+                return new IntegerExp(token.getLine(), (LuaNumber)luaValue);
             }else {
                 return new FloatExp(token.getLine(), (LuaDouble)luaValue);
             }
@@ -9,6 +9,10 @@ public class HelpNumber {
         return f == (int) f;
     }
 
+    public static boolean isLong(double f) {
+        return f == (long) f && f != 0x1p63;
+    }
+
     public static  boolean isalnum(int c) {
         return (c >= '0' && c <= '9')
                 || (c >= 'a' && c <= 'z')
@@ -61,9 +65,15 @@ public class HelpNumber {
 
         // read integer part.
         double m = 0;
+        long l = 0;
         int e = 0;
-        while (s < c.length && isxdigit(c[s]))
+        while (s < c.length && isxdigit(c[s])) {
+            l = (l << 4) + hexvalue(c[s]);
             m = (m * 16) + hexvalue(c[s++]);
+        }
+        // hexadecimal integers wrap around as in lua 5.3
+        if (s == c.length || !(c[s] == '.' || c[s] == 'p' || c[s] == 'P'))
+            return LuaValue.valueOf(sgn < 0 ? -l : l);
         if (s < c.length && c[s] == '.') {
             ++s;  // skip dot
             while (s < c.length && isxdigit(c[s])) {
@@ -93,8 +103,26 @@ public class HelpNumber {
             return LuaValue.ZERO;
         else if (str.indexOf('x')>=0 || str.indexOf('X')>=0)
             return strx2number(str);
-        else
-            return LuaValue.valueOf(Double.parseDouble(str.trim()));
+        else {
+            String s = str.trim();
+            if (isDecimalInteger(s)) {
+                try {
+                    return LuaValue.valueOf(Long.parseLong(s));
+                } catch (NumberFormatException e) {
+                    // too large for an integer, read as a float as in lua 5.3
+                }
+            }
+            return LuaValue.valueOf(Double.parseDouble(s));
+        }
+    }
+
+    private static boolean isDecimalInteger(String s) {
+        if (s.isEmpty())
+            return false;
+        for (int i = 0; i < s.length(); i++)
+            if (!isdigit(s.charAt(i)))
+                return false;
+        return true;
     }
 
 }
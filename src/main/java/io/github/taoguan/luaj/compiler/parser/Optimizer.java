@@ -30,16 +30,16 @@ class Optimizer {
     }
 
     static Exp optimizeBitwiseBinaryOp(BinopExp exp) {
-        Integer i = castToInteger(exp.getExp1());
+        Long i = castToInteger(exp.getExp1());
         if (i != null) {
-            Integer j = castToInteger(exp.getExp2());
+            Long j = castToInteger(exp.getExp2());
             if (j != null) {
                 switch (exp.getOp()) {
                     case TOKEN_OP_BAND: return new IntegerExp(exp.getLine(), i & j);
                     case TOKEN_OP_BOR:  return new IntegerExp(exp.getLine(), i | j);
                     case TOKEN_OP_BXOR: return new IntegerExp(exp.getLine(), i ^ j);
-                    case TOKEN_OP_SHL:  return new IntegerExp(exp.getLine(), (int) MathLib.shiftLeft(i, j));
-                    case TOKEN_OP_SHR:  return new IntegerExp(exp.getLine(), (int) MathLib.shiftRight(i, j));
+                    case TOKEN_OP_SHL:  return new IntegerExp(exp.getLine(), MathLib.shiftLeft(i, j));
+                    case TOKEN_OP_SHR:  return new IntegerExp(exp.getLine(), MathLib.shiftRight(i, j));
                 }
             }
         }
@@ -149,8 +149,8 @@ class Optimizer {
         if (exp.getExp() instanceof FloatExp) {
             FloatExp fExp = (FloatExp) exp.getExp();
             double f = fExp.getVal();
-            if (HelpNumber.isInteger(f)) {
-                return new IntegerExp(fExp.getLine(), ~((int) f));
+            if (HelpNumber.isLong(f)) {
+                return new IntegerExp(fExp.getLine(), ~((long) f));
             }
         }
         return exp;
@@ -173,13 +173,13 @@ class Optimizer {
                 || exp instanceof FuncCallExp;
     }
 
-    private static Integer castToInteger(Exp exp) {
+    private static Long castToInteger(Exp exp) {
         if (exp instanceof IntegerExp) {
             return ((IntegerExp) exp).getVal();
         }
         if (exp instanceof FloatExp) {
             double f = ((FloatExp) exp).getVal();
-            return HelpNumber.isInteger(f) ? (int) f : null;
+            return HelpNumber.isLong(f) ? (long) f : null;
         }
         return null;
     }
@@ -102,11 +102,15 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 	}
 
 	
+	private static final LuaString ASSERTION_FAILED = valueOf("assertion failed!");
+
+	private static final LuaString PAIRS = valueOf("__pairs");
+
 	// "assert", // ( v [,message] ) -> v, message | ERR
-	static final class _assert extends VarArgFunction {
+	final class _assert extends VarArgFunction {
 		public Varargs invoke(Varargs args) {
 			if ( !args.arg1().toboolean() ) 
-				error( args.narg()>1? args.optjstring(2,"assertion failed!"): "assertion failed!" );
+				throw new LuaError( args.narg()>1? args.optstring(2,ASSERTION_FAILED): ASSERTION_FAILED, 1, globals.errorstacktraces );
 			return args;
 		}
 	}
@@ -145,8 +149,10 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 	}
 
 	// "error", // ( message [,level] ) -> ERR
-	static final class error extends TwoArgFunction {
+	final class error extends TwoArgFunction {
 		public LuaValue call(LuaValue arg1, LuaValue arg2) {
+			if ( !globals.errorstacktraces )
+				throw new LuaError(arg1, arg1.isnil() || arg1.isstring()? arg2.optint(1): 1, false);
 			throw arg1.isnil()? new LuaError(null, arg2.optint(1)):
 				arg1.isstring()? new LuaError(arg1.tojstring(), arg2.optint(1)):
 					new LuaError(arg1);
@@ -195,8 +201,15 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 			LuaValue func = args.checkvalue(1);
 			if (globals != null && globals.debuglib != null)
 				globals.debuglib.onCall(this);
+			// in a stackless coroutine, func may yield through this call
+			final LuaThread.Stackless co = globals != null? globals.running.state.stackless: null;
+			if (co != null)
+				co.passthrough(this, func);
 			try {
 				return varargsOf(TRUE, func.invoke(args.subargs(2)));
+			} catch ( LuaThread.Yield y ) {
+				y.push(new PcallFrame());
+				throw y;
 			} catch ( LuaError le ) {
 				final LuaValue m = le.getMessageObject();
 				return varargsOf(FALSE, m!=null? m: NIL);
@@ -210,6 +223,24 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 		}
 	}
 
+	/** A pcall suspended by a stackless coroutine, which still catches errors once resumed. */
+	static final class PcallFrame extends LuaThread.Frame {
+		protected Varargs resume(Varargs args) {
+			try {
+				return varargsOf(TRUE, resumeInner(args));
+			} catch ( LuaThread.Yield y ) {
+				y.push(this);
+				throw y;
+			} catch ( LuaError le ) {
+				final LuaValue m = le.getMessageObject();
+				return varargsOf(FALSE, m!=null? m: NIL);
+			} catch ( Exception e ) {
+				final String m = e.getMessage();
+				return varargsOf(FALSE, valueOf(m!=null? m: e.toString()));
+			}
+		}
+	}
+
 	// "print", // (...) -> void
 	final class print extends VarArgFunction {
 		final BaseLib baselib;
@@ -345,12 +376,20 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 		public Varargs invoke(Varargs args) {
 			final LuaThread t = globals.running;
 			final LuaValue preverror = t.errorfunc;
-			t.errorfunc = args.checkvalue(2);
+			final LuaValue errorfunc = args.checkvalue(2);
+			t.errorfunc = errorfunc;
 			try {
 				if (globals != null && globals.debuglib != null)
 					globals.debuglib.onCall(this);
+				// in a stackless coroutine, the function may yield through this call
+				final LuaThread.Stackless co = t.state.stackless;
+				if (co != null)
+					co.passthrough(this, args.arg1());
 				try {
 					return varargsOf(TRUE, args.arg1().invoke(args.subargs(3)));
+				} catch ( LuaThread.Yield y ) {
+					y.push(new XpcallFrame(t, errorfunc));
+					throw y;
 				} catch ( LuaError le ) {
 					final LuaValue m = le.getMessageObject();
 					return varargsOf(FALSE, m!=null? m: NIL);
@@ -366,6 +405,35 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 			}
 		}
 	}
+
+	/** An xpcall suspended by a stackless coroutine, which sets its message handler again
+	 * while resumed. */
+	static final class XpcallFrame extends LuaThread.Frame {
+		final LuaThread thread;
+		final LuaValue errorfunc;
+		XpcallFrame(LuaThread thread, LuaValue errorfunc) {
+			this.thread = thread;
+			this.errorfunc = errorfunc;
+		}
+		protected Varargs resume(Varargs args) {
+			final LuaValue preverror = thread.errorfunc;
+			thread.errorfunc = errorfunc;
+			try {
+				return varargsOf(TRUE, resumeInner(args));
+			} catch ( LuaThread.Yield y ) {
+				y.push(this);
+				throw y;
+			} catch ( LuaError le ) {
+				final LuaValue m = le.getMessageObject();
+				return varargsOf(FALSE, m!=null? m: NIL);
+			} catch ( Exception e ) {
+				final String m = e.getMessage();
+				return varargsOf(FALSE, valueOf(m!=null? m: e.toString()));
+			} finally {
+				thread.errorfunc = preverror;
+			}
+		}
+	}
 	
 	// "pairs" (t) -> iter-func, t, nil
 	static final class pairs extends VarArgFunction {
@@ -374,7 +442,12 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 			this.next = next;
 		}
 		public Varargs invoke(Varargs args) {
-				return varargsOf( next, args.checktable(1), NIL );
+			LuaValue h = args.arg1().metatag(PAIRS);
+			if ( !h.isnil() ) {
+				Varargs v = h.invoke(args.arg1());
+				return varargsOf( v.arg1(), v.arg(2), v.arg(3) );
+			}
+			return varargsOf( next, args.checktable(1), NIL );
 		}
 	}
 	
@@ -387,7 +460,8 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
 	}
 	
 	// "next"  ( table, [index] ) -> next-index, next-value
-	static final class next extends VarArgFunction {
+	// generic for loops over next are stepped by the interpreter with a LuaTable.Cursor
+	public static final class next extends VarArgFunction {
 		public Varargs invoke(Varargs args) {
 			return args.checktable(1).next(args.arg(2));
 		}
@@ -195,6 +195,6 @@ public class Bit32Lib extends TwoArgFunction {
 	}
 
 	private static LuaValue bitsToValue(int x ) {
-		return ( x < 0 ) ? valueOf((double) ((long) x & 0xFFFFFFFFL)) : valueOf(x);
+		return ( x < 0 ) ? valueOf((long) x & 0xFFFFFFFFL) : valueOf(x);
 	}
 }
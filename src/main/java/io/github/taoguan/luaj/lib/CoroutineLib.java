@@ -13,6 +13,11 @@ import io.github.taoguan.luaj.*;
  * However, coroutines that are yielded but never resumed to complete their execution
  * may not be collected by the garbage collector.
  * <p>
+ * Setting {@link LuaThread#coroutine_mode} to {@link LuaThread#COROUTINE_VIRTUAL}
+ * runs coroutines on virtual threads, when the JDK provides them, with a lock-free
+ * handoff between resume and yield, and {@link LuaThread#COROUTINE_STACKLESS} runs
+ * coroutines of lua functions without any Java thread.
+ * <p>
  * Typically, this library is included as part of a call to either
  * {@link io.github.taoguan.luaj.lib.jse.JsePlatform#standardGlobals()}
  * <pre> {@code
@@ -88,6 +93,9 @@ public class CoroutineLib extends TwoArgFunction {
 	
 	final class yield extends VarArgFunction {
 		public Varargs invoke(Varargs args) {
+			final LuaThread.Stackless co = globals.running.state.stackless;
+			if ( co != null )
+				return co.yield( this, args );
 			return globals.yield( args );
 		}
 	}
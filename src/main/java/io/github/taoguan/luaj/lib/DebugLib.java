@@ -360,6 +360,7 @@ public class DebugLib extends TwoArgFunction {
 			if (n2 < 1 || n2 > f2.upValues.length)
 				argerror("index out of range");
 			f1.upValues[n1-1] = f2.upValues[n2-1];
+			f1.compiled = null; // rebind a tiered compiled form to the joined upvalue
 			return NONE;
 		}
 	}
@@ -641,20 +642,24 @@ public class DebugLib extends TwoArgFunction {
 		}
 		Varargs getLocal(int i) {
 			LuaString name = getlocalname(i);
-			if ( i >= 1 && i <= stack.length && stack[i-1] != null )
+			if ( i >= 1 && i <= nregisters() && stack[i-1] != null )
 				return varargsOf( name == null ? NIL : name, stack[i-1] );
 			else
 				return NIL;
 		}
 		Varargs setLocal(int i, LuaValue value) {
 			LuaString name = getlocalname(i);
-			if ( i >= 1 && i <= stack.length && stack[i-1] != null ) {
+			if ( i >= 1 && i <= nregisters() && stack[i-1] != null ) {
 				stack[i-1] = value;
 				return name == null ? NIL : name;
 			} else {
 				return NIL;
 			}
 		}
+		// the registers may be longer than the function uses when reused from another call
+		int nregisters() {
+			return Math.min(stack.length, f.checkclosure().p.maxstacksize);
+		}
 		int currentline() {
 			if ( !f.isclosure() ) return -1;
 			int[] li = f.checkclosure().p.lineinfo;
@@ -66,6 +66,19 @@ public class IoLib extends TwoArgFunction {
 		abstract public int read() throws IOException, EOFException;
 		// return number of bytes read if positive, false if eof, throw IOException on other exception
 		abstract public int read(byte[] bytes, int offset, int length) throws IOException;
+		// return the next line without its end, NIL if eof, reading one byte at a time unless overridden
+		public LuaValue readline() throws IOException {
+			return freaduntil(this, true);
+		}
+		// return all remaining bytes, reading one byte at a time if the length is unknown unless overridden
+		public LuaValue readall() throws IOException {
+			int n = remaining();
+			if ( n >= 0 ) {
+				return freadbytes(this, n);
+			} else {
+				return freaduntil(this, false);
+			}
+		}
 		
 		// delegate method access to file methods table
 		public LuaValue get( LuaValue key ) {
@@ -207,6 +220,7 @@ public class IoLib extends TwoArgFunction {
 	
 	public LuaValue call(LuaValue modname, LuaValue env) {
 		globals = env.checkglobals();
+		globals.iolib = this;
 		
 		// io lib functions
 		LuaTable t = new LuaTable();
@@ -284,6 +298,16 @@ public class IoLib extends TwoArgFunction {
 		}
 	}
 	
+	/** Forget the files set by io.input() and io.output(), so the default
+	 * files are the standard streams of the globals again. 
+	 * The files themselves are not closed. 
+	 */
+	public void resetDefaultFiles() {
+		infile = null;
+		outfile = null;
+		errfile = null;
+	}
+
 	private File input() {
 		return infile!=null? infile: (infile=ioopenfile(FTYPE_STDIN, "-","r"));
 	}
@@ -536,7 +560,7 @@ public class IoLib extends TwoArgFunction {
 		int c;
 		try {
 			if ( lineonly ) {
-				loop: while ( (c = f.read()) > 0 ) {
+				loop: while ( (c = f.read()) >= 0 ) {
 					switch ( c ) {
 					case '\r': break;
 					case '\n': break loop;
@@ -544,7 +568,7 @@ public class IoLib extends TwoArgFunction {
 					}
 				}
 			} else {
-				while ( (c = f.read()) > 0 )
+				while ( (c = f.read()) >= 0 )
 					baos.write(c);
 			}
 		} catch ( EOFException e ) {
@@ -555,15 +579,10 @@ public class IoLib extends TwoArgFunction {
 			(LuaValue) LuaString.valueUsing(baos.toByteArray());
 	}
 	public static LuaValue freadline(File f) throws IOException {
-		return freaduntil(f,true);
+		return f.readline();
 	}
 	public static LuaValue freadall(File f) throws IOException {
-		int n = f.remaining();
-		if ( n >= 0 ) {
-			return freadbytes(f, n);
-		} else {
-			return freaduntil(f,false);
-		}
+		return f.readall();
 	}
 	public static LuaValue freadnumber(File f) throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -0,0 +1,289 @@
+package io.github.taoguan.luaj.lib;
+
+import io.github.taoguan.luaj.LuaString;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lua pattern compiled for the pattern matching functions of {@link StringLib}.
+ * <p>
+ * Each item of the pattern becomes one node of a program, and each single character,
+ * character class or set becomes a 256-bit set computed once with the rules the matcher
+ * otherwise applies to the pattern text at every step.  A malformed part of a pattern
+ * compiles to a node raising the error, so errors are raised when, and only when,
+ * matching reaches them.
+ * <p>
+ * Compiled patterns are immutable and kept in a bounded LRU cache keyed by the pattern string,
+ * whose size is {@link #cache_size}.
+ */
+public final class LuaPattern {
+
+	/** Number of compiled patterns kept in the cache, 0 to compile on every use. */
+	public static int cache_size = 256;
+
+	private static final Map cache = new LinkedHashMap(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return size() > cache_size;
+		}
+	};
+
+	private static final int L_ESC = '%';
+	private static final int MAX_CAPTURES = 32;
+
+	/* end of the pattern, the match ends here */
+	static final int END = 0;
+	/* '$' at the end of the pattern */
+	static final int END_ANCHOR = 1;
+	/* '(' */
+	static final int OPEN = 2;
+	/* '()' */
+	static final int OPEN_POSITION = 3;
+	/* ')' */
+	static final int CLOSE = 4;
+	/* '%bxy', arg holds x and arg2 holds y */
+	static final int BALANCE = 5;
+	/* '%f[set]' */
+	static final int FRONTIER = 6;
+	/* '%1' to '%9', arg holds the digit */
+	static final int BACKREF = 7;
+	/* single character class */
+	static final int SINGLE = 8;
+	/* single character class followed by '?' */
+	static final int OPTIONAL = 9;
+	/* single character class followed by '*' */
+	static final int STAR = 10;
+	/* single character class followed by '+' */
+	static final int PLUS = 11;
+	/* single character class followed by '-' */
+	static final int MINUS = 12;
+	/* malformed pattern, message holds the error */
+	static final int ERROR = 13;
+
+	/** Program starting at the first character of the pattern. */
+	final Program program;
+
+	/** Program starting after a leading '^', or null if the pattern does not start with one. */
+	final Program anchored;
+
+	private LuaPattern(LuaString p) {
+		program = new Program(p, 0);
+		anchored = p.length() > 0 && p.luaByte(0) == '^'? new Program(p, 1): null;
+	}
+
+	/** Return the compiled form of a pattern, from the cache if possible. */
+	static LuaPattern compile(LuaString p) {
+		if (cache_size <= 0)
+			return new LuaPattern(p);
+		LuaPattern c;
+		synchronized (cache) {
+			c = (LuaPattern) cache.get(p);
+		}
+		if (c == null) {
+			c = new LuaPattern(p);
+			synchronized (cache) {
+				cache.put(p, c);
+			}
+		}
+		return c;
+	}
+
+	/** Remove all compiled patterns from the cache. */
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/** Return the program to match from a pattern offset, 0 or 1 after a leading '^'. */
+	Program program(int poffset) {
+		return poffset == 0? program: anchored;
+	}
+
+	/** Whether a character is in a set of 256 bits. */
+	static boolean test(long[] set, int c) {
+		return ( set[c >> 6] & ( 1L << c ) ) != 0;
+	}
+
+	/** Nodes of a pattern from some offset on, in the order the matcher visits them. */
+	static final class Program {
+		final int[] op;
+		final int[] arg;
+		final int[] arg2;
+		final long[][] set;
+		final String[] message;
+		/** Upper bound of the number of captures open at the same time. */
+		final int captures;
+		/** Characters a match can start with, or null if it may start with any or none. */
+		final long[] first;
+
+		private int n;
+
+		Program(LuaString p, int poffset) {
+			int size = p.length() - poffset + 1;
+			op = new int[size];
+			arg = new int[size];
+			arg2 = new int[size];
+			set = new long[size][];
+			message = new String[size];
+			int opens = 0;
+			final int len = p.length();
+			compile: while ( true ) {
+				if ( poffset == len ) {
+					add(END);
+					break;
+				}
+				switch ( p.luaByte( poffset ) ) {
+				case '(':
+					opens++;
+					if ( poffset + 1 < len && p.luaByte( poffset + 1 ) == ')' ) {
+						add(OPEN_POSITION);
+						poffset += 2;
+					} else {
+						add(OPEN);
+						poffset += 1;
+					}
+					continue;
+				case ')':
+					add(CLOSE);
+					poffset += 1;
+					continue;
+				case L_ESC:
+					if ( poffset + 1 == len ) {
+						error("malformed pattern (ends with '%')");
+						break compile;
+					}
+					switch ( p.luaByte( poffset + 1 ) ) {
+					case 'b':
+						if ( poffset + 2 >= len - 1 ) {
+							error("unbalanced pattern");
+							break compile;
+						}
+						arg[n] = p.luaByte( poffset + 2 );
+						arg2[n] = p.luaByte( poffset + 3 );
+						add(BALANCE);
+						poffset += 4;
+						continue;
+					case 'f': {
+						poffset += 2;
+						if ( poffset == len || p.luaByte( poffset ) != '[' ) {
+							error("Missing '[' after '%f' in pattern");
+							break compile;
+						}
+						int ep = classend( p, poffset );
+						if ( ep < 0 ) {
+							error("malformed pattern (missing ']')");
+							break compile;
+						}
+						long[] s = new long[4];
+						for ( int c = 0; c < 256; c++ )
+							if ( matchbracketclass( p, c, poffset, ep - 1 ) )
+								s[c >> 6] |= 1L << c;
+						set[n] = s;
+						add(FRONTIER);
+						poffset = ep;
+						continue;
+					}
+					default:
+						if ( Character.isDigit( (char) p.luaByte( poffset + 1 ) ) ) {
+							arg[n] = p.luaByte( poffset + 1 );
+							add(BACKREF);
+							poffset += 2;
+							continue;
+						}
+					}
+					break;
+				case '$':
+					if ( poffset + 1 == len ) {
+						add(END_ANCHOR);
+						break compile;
+					}
+				}
+				int ep = classend( p, poffset );
+				if ( ep < 0 ) {
+					error("malformed pattern (missing ']')");
+					break;
+				}
+				long[] s = new long[4];
+				for ( int c = 0; c < 256; c++ )
+					if ( singlematch( p, c, poffset, ep ) )
+						s[c >> 6] |= 1L << c;
+				set[n] = s;
+				switch ( ep < len? p.luaByte( ep ): '\0' ) {
+				case '?': add(OPTIONAL); poffset = ep + 1; break;
+				case '*': add(STAR); poffset = ep + 1; break;
+				case '+': add(PLUS); poffset = ep + 1; break;
+				case '-': add(MINUS); poffset = ep + 1; break;
+				default: add(SINGLE); poffset = ep; break;
+				}
+			}
+			captures = Math.min( opens, MAX_CAPTURES );
+			
+			// a match must start with the first single character class, if nothing but 
+			// captures that can be opened without error come before it 
+			int i = 0;
+			while ( i < MAX_CAPTURES && ( op[i] == OPEN || op[i] == OPEN_POSITION ) )
+				i++;
+			first = ( op[i] == SINGLE || op[i] == PLUS )? set[i]: null;
+		}
+
+		private void add(int o) {
+			op[n++] = o;
+		}
+
+		private void error(String m) {
+			message[n] = m;
+			add(ERROR);
+		}
+	}
+
+	/** Return the offset after the single character class at poffset, or -1 if a set misses its ']'. */
+	static int classend( LuaString p, int poffset ) {
+		switch ( p.luaByte( poffset++ ) ) {
+		case L_ESC:
+			return poffset + 1;
+		case '[':
+			if ( poffset != p.length() && p.luaByte( poffset ) == '^' ) poffset++;
+			do {
+				if ( poffset == p.length() )
+					return -1;
+				if ( p.luaByte( poffset++ ) == L_ESC && poffset < p.length() )
+					poffset++; /* skip escapes (e.g. '%]') */
+			} while ( poffset == p.length() || p.luaByte( poffset ) != ']' );
+			return poffset + 1;
+		default:
+			return poffset;
+		}
+	}
+
+	static boolean matchbracketclass( LuaString p, int c, int poff, int ec ) {
+		boolean sig = true;
+		if ( p.luaByte( poff + 1 ) == '^' ) {
+			sig = false;
+			poff++;
+		}
+		while ( ++poff < ec ) {
+			if ( p.luaByte( poff ) == L_ESC ) {
+				poff++;
+				if ( StringLib.MatchState.match_class( c, p.luaByte( poff ) ) )
+					return sig;
+			}
+			else if ( ( p.luaByte( poff + 1 ) == '-' ) && ( poff + 2 < ec ) ) {
+				poff += 2;
+				if ( p.luaByte( poff - 2 ) <= c && c <= p.luaByte( poff ) )
+					return sig;
+			}
+			else if ( p.luaByte( poff ) == c ) return sig;
+		}
+		return !sig;
+	}
+
+	static boolean singlematch( LuaString p, int c, int poff, int ep ) {
+		switch ( p.luaByte( poff ) ) {
+		case '.': return true;
+		case L_ESC: return StringLib.MatchState.match_class( c, p.luaByte( poff + 1 ) );
+		case '[': return matchbracketclass( p, c, poff, ep - 1 );
+		default: return p.luaByte( poff ) == c;
+		}
+	}
+}
@@ -84,6 +84,8 @@ public class MathLib extends TwoArgFunction {
 		math.set("fmod", new fmod());
 		math.set("frexp", new frexp());
 		math.set("huge", LuaDouble.POSINF );
+		math.set("maxinteger", valueOf(Long.MAX_VALUE) );
+		math.set("mininteger", valueOf(Long.MIN_VALUE) );
 		math.set("ldexp", new ldexp());
 		math.set("max", new max());
 		math.set("min", new min());
@@ -116,11 +118,20 @@ public class MathLib extends TwoArgFunction {
 		abstract protected double call(double x, double y);
 	}
 
-	static final class abs extends UnaryOp { protected double call(double d) { return Math.abs(d); } }
-	static final class ceil extends UnaryOp { protected double call(double d) { return Math.ceil(d); } }
+	static final class abs extends UnaryOp {
+		public LuaValue call(LuaValue arg) { return arg instanceof LuaLong? valueOf(Math.abs(arg.tolong())): super.call(arg); }
+		protected double call(double d) { return Math.abs(d); }
+	}
+	static final class ceil extends UnaryOp {
+		public LuaValue call(LuaValue arg) { return arg instanceof LuaLong? arg: super.call(arg); }
+		protected double call(double d) { return Math.ceil(d); }
+	}
 	static final class cos extends UnaryOp { protected double call(double d) { return Math.cos(d); } }
 	static final class deg extends UnaryOp { protected double call(double d) { return Math.toDegrees(d); } }
-	static final class floor extends UnaryOp { protected double call(double d) { return Math.floor(d); } }
+	static final class floor extends UnaryOp {
+		public LuaValue call(LuaValue arg) { return arg instanceof LuaLong? arg: super.call(arg); }
+		protected double call(double d) { return Math.floor(d); }
+	}
 	static final class rad extends UnaryOp { protected double call(double d) { return Math.toRadians(d); } }
 	static final class sin extends UnaryOp { protected double call(double d) { return Math.sin(d); } }
 	static final class sqrt extends UnaryOp { protected double call(double d) { return Math.sqrt(d); } }
@@ -234,6 +245,16 @@ public class MathLib extends TwoArgFunction {
 		}
 	}
 	
+	/** Give a {@code math.random} function a new unseeded generator,
+	 * undoing any {@code math.randomseed} and the numbers drawn so far.
+	 * Values that are not the {@code math.random} of this library are left alone.
+	 * @param f the value of {@code math.random}
+	 */
+	public static void reseed(LuaValue f) {
+		if ( f instanceof random )
+			((random) f).random = new Random();
+	}
+
 	/** compute power using installed math library, or default if there is no math library installed */
 	public static LuaValue dpow(double a, double b) {
 		return LuaDouble.valueOf(
@@ -294,11 +315,11 @@ public class MathLib extends TwoArgFunction {
 	}
 
 	public static long shiftLeft(long a, long n) {
-		return n >= 0 ? a << n : a >>> -n;
+		return n <= -64 || n >= 64 ? 0 : n >= 0 ? a << n : a >>> -n;
 	}
 
 	public static long shiftRight(long a, long n) {
-		return n >= 0 ? a >>> n : a << -n;
+		return n <= -64 || n >= 64 ? 0 : n >= 0 ? a >>> n : a << -n;
 	}
 
 }
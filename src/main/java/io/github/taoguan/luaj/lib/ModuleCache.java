@@ -0,0 +1,259 @@
+package io.github.taoguan.luaj.lib;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.Prototype;
+import io.github.taoguan.luaj.lib.jse.JseBaseLib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.InvalidPathException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe cache of the {@link Prototype}s of lua modules loaded
+ * by {@link PackageLib}, shared by all {@link Globals} that use it.
+ * <p>
+ * Modules are always read through {@link Globals#finder}, so a custom
+ * {@link ResourceFinder} serving modules from a jar, from memory or from a sandbox
+ * is honored, and only compiling them is saved.  Entries are keyed by the normalized
+ * path of the module file, so a module is compiled once and later {@code require}s
+ * in any Globals only create a closure.  With the file system finder of {@link JseBaseLib},
+ * an entry is current while the modification time and length of its file are unchanged,
+ * so a hit costs one stat; with any other finder, which only provides a stream,
+ * the module is read and compared to the contents it was compiled from.
+ * A module whose contents changed is compiled again.
+ * <p>
+ * The cache also remembers which file a module name was resolved to for each value of
+ * {@code package.path} and each finder, so that a {@code require} in a fresh Globals checks
+ * one file instead of probing every template of the path.  The stateless finders of
+ * {@link BaseLib} and {@link JseBaseLib} share resolutions; any other finder has its own.
+ * A remembered resolution is dropped when its file is no longer found, but a file added
+ * earlier in the path afterwards is not seen until {@link #clear()} is called.
+ * <p>
+ * {@link #preload(Globals, File, ForkJoinPool)} compiles all modules of a directory
+ * ahead of time.
+ * <p>
+ * All {@link PackageLib}s use {@link #SHARED} unless their
+ * {@link PackageLib#module_cache} is changed, or set to null to compile modules
+ * from their files on every {@code require}.
+ */
+public class ModuleCache {
+
+	/** Cache used by default by all {@link PackageLib} instances. */
+	public static final ModuleCache SHARED = new ModuleCache();
+
+	private final ConcurrentHashMap<String, Entry> modules = new ConcurrentHashMap<String, Entry>();
+
+	/** Resolutions by finder scope, then by package path and module name. */
+	private final Map<Object, ConcurrentHashMap<String, String>> resolved =
+		Collections.synchronizedMap(new WeakHashMap<Object, ConcurrentHashMap<String, String>>());
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/** Get the prototype of a module file, compiling it if it is not cached or has changed.
+	 * @param globals Globals whose finder reads the file, and whose undumper and compiler load it.
+	 * @param filename Name of the file, which is also used for the chunk name.
+	 * @return the prototype, or null if the finder of globals does not find the file.
+	 * @throws IOException if the file could not be read.
+	 * @throws io.github.taoguan.luaj.LuaError if the file could not be compiled.
+	 */
+	public Prototype load(Globals globals, String filename) throws IOException {
+		String key = key(filename);
+		Entry e = modules.get(key);
+		long modified = 0, length = 0;
+		if ( globals.finder.getClass() == JseBaseLib.class ) {
+			File f = new File(filename);
+			if ( f.isFile() ) {
+				modified = f.lastModified();
+				length = f.length();
+				if ( e != null && e.modified != 0 && e.modified == modified && e.length == length ) {
+					hits.increment();
+					return e.p;
+				}
+			}
+		}
+		InputStream is = globals.finder.findResource(filename);
+		if ( is == null )
+			return null;
+		byte[] source;
+		try {
+			source = read(is);
+		} finally {
+			is.close();
+		}
+		if ( e != null && Arrays.equals(e.source, source) ) {
+			hits.increment();
+			if ( modified != e.modified || length != e.length )
+				modules.replace(key, e, new Entry(e.p, source, modified, length));
+			return e.p;
+		}
+		misses.increment();
+		Prototype p = globals.loadPrototype(new ByteArrayInputStream(source), "@"+filename, "bt");
+		modules.put(key, new Entry(p, source, modified, length));
+		return p;
+	}
+
+	/** The file a module name was last resolved to with a package path by the finder of globals,
+	 * or null if unknown. */
+	public String resolve(Globals globals, String path, String name) {
+		ConcurrentHashMap<String, String> m = resolved.get(scope(globals.finder));
+		return m != null? m.get(path + '\0' + name): null;
+	}
+
+	/** Remember the file a module name was resolved to with a package path by the finder of globals. */
+	public void resolved(Globals globals, String path, String name, String filename) {
+		Object scope = scope(globals.finder);
+		ConcurrentHashMap<String, String> m = resolved.get(scope);
+		if ( filename == null ) {
+			if ( m != null )
+				m.remove(path + '\0' + name);
+			return;
+		}
+		if ( m == null ) {
+			synchronized ( resolved ) {
+				m = resolved.get(scope);
+				if ( m == null )
+					resolved.put(scope, m = new ConcurrentHashMap<String, String>());
+			}
+		}
+		m.put(path + '\0' + name, filename);
+	}
+
+	/** Finders of {@link BaseLib} and {@link JseBaseLib} resolve names the same way in every
+	 * Globals, so they share resolutions by class; any other finder has resolutions of its own. */
+	private static Object scope(ResourceFinder finder) {
+		Class c = finder.getClass();
+		return c == BaseLib.class || c == JseBaseLib.class? c: finder;
+	}
+
+	/** Compile all files ending in ".lua" in a directory and its subdirectories,
+	 * splitting the work by directory over a fork-join pool.
+	 * <p>
+	 * The chunk name of each module is the path of its file below directory,
+	 * so directory should be given as it appears in {@code package.path}.
+	 * Files that fail to compile are skipped, and report their error when required.
+	 * @param globals Globals whose undumper and compiler are used to load the files.
+	 * @param directory Directory containing lua modules.
+	 * @param pool Pool to compile on, such as {@link ForkJoinPool#commonPool()}.
+	 * @return the number of modules cached from the directory.
+	 */
+	public int preload(Globals globals, File directory, ForkJoinPool pool) {
+		return pool.invoke(new Preload(globals, directory)).intValue();
+	}
+
+	/** Number of prototypes currently cached. */
+	public int size() {
+		return modules.size();
+	}
+
+	/** Number of loads that found a current cached prototype. */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/** Number of loads that had to compile the module file. */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/** Remove all prototypes and resolutions, keeping the statistics. */
+	public void clear() {
+		modules.clear();
+		resolved.clear();
+	}
+
+	/** Reset hit and miss counts to zero. */
+	public void resetStats() {
+		hits.reset();
+		misses.reset();
+	}
+
+	public String toString() {
+		return "ModuleCache(size=" + modules.size() + ", finders=" + resolved.size() +
+			", hits=" + hits.sum() + ", misses=" + misses.sum() + ")";
+	}
+
+	private static String key(String filename) {
+		try {
+			return new File(filename).toPath().toAbsolutePath().normalize().toString();
+		} catch ( InvalidPathException e ) {
+			return filename;
+		}
+	}
+
+	private static byte[] read(InputStream is) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		for ( int n; (n = is.read(buf)) > 0; )
+			os.write(buf, 0, n);
+		return os.toByteArray();
+	}
+
+	/** Prototype of a module file, the contents it was compiled from, and the modification time
+	 * and length of the file when read from the file system, or 0. */
+	static final class Entry {
+		final Prototype p;
+		final byte[] source;
+		final long modified;
+		final long length;
+
+		Entry(Prototype p, byte[] source, long modified, long length) {
+			this.p = p;
+			this.source = source;
+			this.modified = modified;
+			this.length = length;
+		}
+	}
+
+	/** Compiles the modules of one directory, forking a task per subdirectory. */
+	final class Preload extends RecursiveTask<Integer> {
+		final Globals globals;
+		final File directory;
+
+		Preload(Globals globals, File directory) {
+			this.globals = globals;
+			this.directory = directory;
+		}
+
+		protected Integer compute() {
+			File[] files = directory.listFiles();
+			if ( files == null )
+				return 0;
+			List<Preload> subdirectories = new ArrayList<Preload>();
+			for ( File f : files ) {
+				if ( f.isDirectory() ) {
+					Preload task = new Preload(globals, f);
+					task.fork();
+					subdirectories.add(task);
+				}
+			}
+			int n = 0;
+			for ( File f : files ) {
+				if ( f.isFile() && f.getName().endsWith(".lua") ) {
+					try {
+						if ( load(globals, f.getPath()) != null )
+							++n;
+					} catch ( Exception e ) {
+						// reported by require
+					}
+				}
+			}
+			for ( Preload task : subdirectories )
+				n += task.join();
+			return n;
+		}
+	}
+}
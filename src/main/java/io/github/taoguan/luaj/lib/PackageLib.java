@@ -90,6 +90,10 @@ public class PackageLib extends TwoArgFunction {
 	/** Loader that loads as a Java class.  Class must have public constructor and be a LuaValue. */
 	public java_searcher java_searcher;
 
+	/** Cache of module prototypes used by {@link lua_searcher}, or null to compile
+	 * modules from their files on every require.  {@link ModuleCache#SHARED} by default. */
+	public ModuleCache module_cache = ModuleCache.SHARED;
+
 	private static final LuaString _SENTINEL   = valueOf("\u0001");
 	
 	private static final String FILE_SEP = System.getProperty("file.separator");
@@ -235,13 +239,35 @@ public class PackageLib extends TwoArgFunction {
 				return valueOf("package.path is not a string");
 		
 			// get the searchpath function.
-			Varargs v = package_.get(_SEARCHPATH).invoke(varargsOf(name, path));
+			LuaValue search = package_.get(_SEARCHPATH);
+			ModuleCache cache = module_cache;
+			boolean resolvable = cache != null && search instanceof searchpath;
+			if ( resolvable ) {
+				String previous = cache.resolve(globals, path.tojstring(), name.tojstring());
+				if ( previous != null ) {
+					LuaValue f = loadcached(cache, previous);
+					if ( f != null )
+						return varargsOf(f, valueOf(previous));
+					cache.resolved(globals, path.tojstring(), name.tojstring(), null);
+				}
+			}
+			Varargs v = search.invoke(varargsOf(name, path));
 			
 			// Did we get a result?
 			if (!v.isstring(1))
 				return v.arg(2).tostring();
 			LuaString filename = v.arg1().strvalue();
 		
+			// Try the cached prototype of the file.
+			if ( cache != null ) {
+				LuaValue f = loadcached(cache, filename.tojstring());
+				if ( f != null ) {
+					if ( resolvable )
+						cache.resolved(globals, path.tojstring(), name.tojstring(), filename.tojstring());
+					return varargsOf(f, filename);
+				}
+			}
+
 			// Try to load the file.
 			v = globals.loadfile(filename.tojstring()); 
 			if ( v.arg1().isfunction() )
@@ -250,6 +276,16 @@ public class PackageLib extends TwoArgFunction {
 			// report error
 			return varargsOf(NIL, valueOf("'"+filename+"': "+v.arg(2).tojstring()));
 		}
+
+		/** Closure of the cached prototype of a file, or null if the finder does not find it. */
+		private LuaValue loadcached(ModuleCache cache, String filename) {
+			try {
+				Prototype p = cache.load(globals, filename);
+				return p != null? globals.loader.load(p, "@"+filename, globals): null;
+			} catch ( java.io.IOException e ) {
+				return null;
+			}
+		}
 	}
 
 	public class searchpath extends VarArgFunction {
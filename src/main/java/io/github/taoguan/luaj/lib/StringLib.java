@@ -503,11 +503,13 @@ public class StringLib extends TwoArgFunction {
 		private int soffset;
 		public GMatchAux(Varargs args, LuaString src, LuaString pat) {
 			this.srclen = src.length();
-			this.ms = new MatchState(args, src, pat);
+			this.ms = new MatchState(args, src, pat, 0);
 			this.soffset = 0;
 		}
 		public Varargs invoke(Varargs args) {
 			for ( ; soffset<=srclen; soffset++ ) {
+				if ( !ms.canstart( soffset ) )
+					continue;
 				ms.reset();
 				int res = ms.match(soffset, 0);
 				if ( res >=0 ) {
@@ -577,13 +579,16 @@ public class StringLib extends TwoArgFunction {
 			final boolean anchor = p.length() > 0 && p.charAt( 0 ) == '^';
 			
 			Buffer lbuf = new Buffer( srclen );
-			MatchState ms = new MatchState( args, src, p );
+			MatchState ms = new MatchState( args, src, p, anchor ? 1 : 0 );
 			
 			int soffset = 0;
 			int n = 0;
 			while ( n < max_s ) {
-				ms.reset();
-				int res = ms.match( soffset, anchor ? 1 : 0 );
+				int res = -1;
+				if ( ms.canstart( soffset ) ) {
+					ms.reset();
+					res = ms.match( soffset, 0 );
+				}
 				if ( res != -1 ) {
 					n++;
 					ms.add_value( lbuf, soffset, res, repl );
@@ -651,6 +656,7 @@ public class StringLib extends TwoArgFunction {
 		public Varargs invoke(Varargs args) {
 			LuaString s = args.checkstring( 1 );
 			int n = args.checkint( 2 );
+			Globals.Budget.allocated( Globals.Budget.STRING + (long) s.length() * Math.max( n, 0 ) );
 			final byte[] bytes = new byte[ s.length() * n ];
 			int len = s.length();
 			for ( int offset = 0; offset < bytes.length; offset += len ) {
@@ -743,20 +749,16 @@ public class StringLib extends TwoArgFunction {
 				return varargsOf( valueOf(result+1), valueOf(result+pat.length()) );
 			}
 		} else {
-			MatchState ms = new MatchState( args, s, pat );
-			
-			boolean anchor = false;
-			int poff = 0;
-			if ( pat.length() > 0 && pat.luaByte( 0 ) == '^' ) {
-				anchor = true;
-				poff = 1;
-			}
+			boolean anchor = pat.length() > 0 && pat.luaByte( 0 ) == '^';
+			MatchState ms = new MatchState( args, s, pat, anchor ? 1 : 0 );
 			
 			int soff = init;
 			do {
 				int res;
+				if ( !ms.canstart( soff ) )
+					continue;
 				ms.reset();
-				if ( ( res = ms.match( soff, poff ) ) != -1 ) {
+				if ( ( res = ms.match( soff, 0 ) ) != -1 ) {
 					if ( find ) {
 						return varargsOf( valueOf(soff+1), valueOf(res), ms.push_captures( false, soff, res ));
 					} else {
@@ -822,25 +824,51 @@ public class StringLib extends TwoArgFunction {
 	
 	static class MatchState {
 		final LuaString s;
-		final LuaString p;
 		final Varargs args;
+		final int[] op;
+		final int[] arg;
+		final int[] arg2;
+		final long[][] set;
+		final String[] message;
+		final long[] first;
+		final byte[] sbytes;
+		final int soffset;
+		final int slen;
 		int level;
 		int[] cinit;
 		int[] clen;
 		
-		MatchState(Varargs args, LuaString s, LuaString pattern ) {
+		/**
+		 * Prepare to match a subject against a pattern, compiled or taken from the cache. 
+		 * @param poffset where in the pattern matching starts, 1 to skip a leading '^'
+		 */
+		MatchState(Varargs args, LuaString s, LuaString pattern, int poffset ) {
+			LuaPattern.Program program = LuaPattern.compile( pattern ).program( poffset );
 			this.s = s;
-			this.p = pattern;
+			this.first = program.first;
 			this.args = args;
+			this.op = program.op;
+			this.arg = program.arg;
+			this.arg2 = program.arg2;
+			this.set = program.set;
+			this.message = program.message;
+			this.sbytes = s.m_bytes;
+			this.soffset = s.m_offset;
+			this.slen = s.m_length;
 			this.level = 0;
-			this.cinit = new int[ MAX_CAPTURES ];
-			this.clen = new int[ MAX_CAPTURES ];
+			this.cinit = new int[ program.captures ];
+			this.clen = new int[ program.captures ];
 		}
 		
 		void reset() {
 			level = 0;
 		}
 		
+		/** Whether a match may start at an offset, false if matching there is sure to fail. */
+		boolean canstart( int soff ) {
+			return first == null || ( soff < slen && LuaPattern.test( first, sbyte( soff ) ) );
+		}
+		
 		private void add_s(Buffer lbuf, LuaString news, int soff, int e ) {
 			int l = news.length();
 			for ( int i = 0; i < l; ++i ) {
@@ -946,29 +974,6 @@ public class StringLib extends TwoArgFunction {
 			return 0;
 		}
 		
-		int classend( int poffset ) {
-			switch ( p.luaByte( poffset++ ) ) {
-			case L_ESC:
-				if ( poffset == p.length() ) {
-					error( "malformed pattern (ends with '%')" );
-				}
-				return poffset + 1;
-				
-			case '[':
-				if ( poffset != p.length() && p.luaByte( poffset ) == '^' ) poffset++;
-				do {
-					if ( poffset == p.length() ) {
-						error( "malformed pattern (missing ']')" );
-					}
-					if ( p.luaByte( poffset++ ) == L_ESC && poffset < p.length() )
-						poffset++; /* skip escapes (e.g. '%]') */
-				} while ( poffset == p.length() || p.luaByte( poffset ) != ']' );
-				return poffset + 1;
-			default:
-				return poffset;
-			}
-		}
-		
 		static boolean match_class( int c, int cl ) {
 			final char lcl = Character.toLowerCase( (char) cl );
 			int cdata = CHAR_TABLE[c];
@@ -990,127 +995,82 @@ public class StringLib extends TwoArgFunction {
 			return ( lcl == cl ) ? res : !res;
 		}
 		
-		boolean matchbracketclass( int c, int poff, int ec ) {
-			boolean sig = true;
-			if ( p.luaByte( poff + 1 ) == '^' ) {
-				sig = false;
-				poff++;
-			}
-			while ( ++poff < ec ) {
-				if ( p.luaByte( poff ) == L_ESC ) {
-					poff++;
-					if ( match_class( c, p.luaByte( poff ) ) )
-						return sig;
-				}
-				else if ( ( p.luaByte( poff + 1 ) == '-' ) && ( poff + 2 < ec ) ) {
-					poff += 2;
-					if ( p.luaByte( poff - 2 ) <= c && c <= p.luaByte( poff ) )
-						return sig;
-				}
-				else if ( p.luaByte( poff ) == c ) return sig;
-			}
-			return !sig;
-		}
-		
-		boolean singlematch( int c, int poff, int ep ) {
-			switch ( p.luaByte( poff ) ) {
-			case '.': return true;
-			case L_ESC: return match_class( c, p.luaByte( poff + 1 ) );
-			case '[': return matchbracketclass( c, poff, ep - 1 );
-			default: return p.luaByte( poff ) == c;
-			}
+		private int sbyte( int i ) {
+			return sbytes[ soffset + i ] & 0xff;
 		}
 		
 		/**
-		 * Perform pattern matching. If there is a match, returns offset into s
-		 * where match ends, otherwise returns -1.
+		 * Perform pattern matching from a node of the compiled pattern. If there is a match, 
+		 * returns offset into s where match ends, otherwise returns -1.
 		 */
-		int match( int soffset, int poffset ) {
+		int match( int soff, int n ) {
 			while ( true ) {
-				// Check if we are at the end of the pattern -
-				// equivalent to the '\0' case in the C version, but our pattern
-				// string is not NUL-terminated.
-				if ( poffset == p.length() )
-					return soffset;
-				switch ( p.luaByte( poffset ) ) {
-				case '(':
-					if ( ++poffset < p.length() && p.luaByte( poffset ) == ')' )
-						return start_capture( soffset, poffset + 1, CAP_POSITION );
-					else
-						return start_capture( soffset, poffset, CAP_UNFINISHED );
-				case ')':
-					return end_capture( soffset, poffset + 1 );
-				case L_ESC:
-					if ( poffset + 1 == p.length() )
-						error("malformed pattern (ends with '%')");
-					switch ( p.luaByte( poffset + 1 ) ) {
-					case 'b':
-						soffset = matchbalance( soffset, poffset + 2 );
-						if ( soffset == -1 ) return -1;
-						poffset += 4;
-						continue;
-					case 'f': {
-						poffset += 2;
-						if ( poffset == p.length() || p.luaByte( poffset ) != '[' ) {
-							error("Missing '[' after '%f' in pattern");
-						}
-						int ep = classend( poffset );
-						int previous = ( soffset == 0 ) ? '\0' : s.luaByte( soffset - 1 );
-						int next = ( soffset == s.length() ) ? '\0' : s.luaByte( soffset );
-						if ( matchbracketclass( previous, poffset, ep - 1 ) ||
-							 !matchbracketclass( next, poffset, ep - 1 ) )
-							return -1;
-						poffset = ep;
+				switch ( op[ n ] ) {
+				case LuaPattern.END:
+					return soff;
+				case LuaPattern.END_ANCHOR:
+					return ( soff == slen ) ? soff : -1;
+				case LuaPattern.OPEN:
+					return start_capture( soff, n + 1, CAP_UNFINISHED );
+				case LuaPattern.OPEN_POSITION:
+					return start_capture( soff, n + 1, CAP_POSITION );
+				case LuaPattern.CLOSE:
+					return end_capture( soff, n + 1 );
+				case LuaPattern.BALANCE:
+					soff = matchbalance( soff, arg[ n ], arg2[ n ] );
+					if ( soff == -1 ) return -1;
+					n++;
+					continue;
+				case LuaPattern.FRONTIER: {
+					int previous = ( soff == 0 ) ? '\0' : sbyte( soff - 1 );
+					int next = ( soff == slen ) ? '\0' : sbyte( soff );
+					if ( LuaPattern.test( set[ n ], previous ) || !LuaPattern.test( set[ n ], next ) )
+						return -1;
+					n++;
+					continue;
+				}
+				case LuaPattern.BACKREF:
+					soff = match_capture( soff, arg[ n ] );
+					if ( soff == -1 )
+						return -1;
+					n++;
+					continue;
+				case LuaPattern.SINGLE:
+					if ( soff < slen && LuaPattern.test( set[ n ], sbyte( soff ) ) ) {
+						soff++;
+						n++;
 						continue;
 					}
-					default: {
-						int c = p.luaByte( poffset + 1 );
-						if ( Character.isDigit( (char) c ) ) {
-							soffset = match_capture( soffset, c );
-							if ( soffset == -1 )
-								return -1;
-							return match( soffset, poffset + 2 );
-						}
-					}
-					}
-				case '$':
-					if ( poffset + 1 == p.length() )
-						return ( soffset == s.length() ) ? soffset : -1;
-				}
-				int ep = classend( poffset );
-				boolean m = soffset < s.length() && singlematch( s.luaByte( soffset ), poffset, ep );
-				int pc = ( ep < p.length() ) ? p.luaByte( ep ) : '\0';
-				
-				switch ( pc ) {
-				case '?':
+					return -1;
+				case LuaPattern.OPTIONAL: {
 					int res;
-					if ( m && ( ( res = match( soffset + 1, ep + 1 ) ) != -1 ) )
+					if ( soff < slen && LuaPattern.test( set[ n ], sbyte( soff ) ) &&
+							( res = match( soff + 1, n + 1 ) ) != -1 )
 						return res;
-					poffset = ep + 1;
+					n++;
 					continue;
-				case '*':
-					return max_expand( soffset, poffset, ep );
-				case '+':
-					return ( m ? max_expand( soffset + 1, poffset, ep ) : -1 );
-				case '-':
-					return min_expand( soffset, poffset, ep );
+				}
+				case LuaPattern.STAR:
+					return max_expand( soff, n );
+				case LuaPattern.PLUS:
+					return ( soff < slen && LuaPattern.test( set[ n ], sbyte( soff ) ) ) ? 
+							max_expand( soff + 1, n ) : -1;
+				case LuaPattern.MINUS:
+					return min_expand( soff, n );
 				default:
-					if ( !m )
-						return -1;
-					soffset++;
-					poffset = ep;
-					continue;
+					error( message[ n ] );
+					return -1;
 				}
 			}
 		}
 		
-		int max_expand( int soff, int poff, int ep ) {
+		int max_expand( int soff, int n ) {
+			final long[] set = this.set[ n ];
 			int i = 0;
-			while ( soff + i < s.length() &&
-					singlematch( s.luaByte( soff + i ), poff, ep ) )
+			while ( soff + i < slen && LuaPattern.test( set, sbyte( soff + i ) ) )
 				i++;
 			while ( i >= 0 ) {
-				int res = match( soff + i, ep + 1 );
+				int res = match( soff + i, n + 1 );
 				if ( res != -1 )
 					return res;
 				i--;
@@ -1118,18 +1078,19 @@ public class StringLib extends TwoArgFunction {
 			return -1;
 		}
 		
-		int min_expand( int soff, int poff, int ep ) {
+		int min_expand( int soff, int n ) {
+			final long[] set = this.set[ n ];
 			for ( ;; ) {
-				int res = match( soff, ep + 1 );
+				int res = match( soff, n + 1 );
 				if ( res != -1 )
 					return res;
-				else if ( soff < s.length() && singlematch( s.luaByte( soff ), poff, ep ) )
+				else if ( soff < slen && LuaPattern.test( set, sbyte( soff ) ) )
 					soff++;
 				else return -1;
 			}
 		}
 		
-		int start_capture( int soff, int poff, int what ) {
+		int start_capture( int soff, int n, int what ) {
 			int res;
 			int level = this.level;
 			if ( level >= MAX_CAPTURES ) {
@@ -1138,16 +1099,16 @@ public class StringLib extends TwoArgFunction {
 			cinit[ level ] = soff;
 			clen[ level ] = what;
 			this.level = level + 1;
-			if ( ( res = match( soff, poff ) ) == -1 )
+			if ( ( res = match( soff, n ) ) == -1 )
 				this.level--;
 			return res;
 		}
 		
-		int end_capture( int soff, int poff ) {
+		int end_capture( int soff, int n ) {
 			int l = capture_to_close();
 			int res;
 			clen[l] = soff - cinit[l];
-			if ( ( res = match( soff, poff ) ) == -1 )
+			if ( ( res = match( soff, n ) ) == -1 )
 				clen[l] = CAP_UNFINISHED;
 			return res;
 		}
@@ -1155,31 +1116,26 @@ public class StringLib extends TwoArgFunction {
 		int match_capture( int soff, int l ) {
 			l = check_capture( l );
 			int len = clen[ l ];
-			if ( ( s.length() - soff ) >= len &&
+			// a position capture never matches, as in C where its length is taken unsigned
+			if ( len >= 0 && ( slen - soff ) >= len &&
 				 LuaString.equals( s, cinit[l], s, soff, len ) )
 				return soff + len;
 			else
 				return -1;
 		}
 		
-		int matchbalance( int soff, int poff ) {
-			final int plen = p.length();
-			if ( poff == plen || poff + 1 == plen ) {
-				error( "unbalanced pattern" );
-			}
-			final int slen = s.length();
+		int matchbalance( int soff, int b, int e ) {
 			if ( soff >= slen )
 				return -1;
-			final int b = p.luaByte( poff );
-			if ( s.luaByte( soff ) != b )
+			if ( sbyte( soff ) != b )
 				return -1;
-			final int e = p.luaByte( poff + 1 );
 			int cont = 1;
 			while ( ++soff < slen ) {
-				if ( s.luaByte( soff ) == e ) {
+				int c = sbyte( soff );
+				if ( c == e ) {
 					if ( --cont == 0 ) return soff + 1;
 				}
-				else if ( s.luaByte( soff ) == b ) cont++;
+				else if ( c == b ) cont++;
 			}
 			return -1;
 		}
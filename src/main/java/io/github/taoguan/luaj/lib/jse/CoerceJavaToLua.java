@@ -125,7 +125,7 @@ public class CoerceJavaToLua {
 		COERCIONS.put( Character.class, charCoercion );
 		COERCIONS.put( Short.class, intCoercion );
 		COERCIONS.put( Integer.class, intCoercion );
-		COERCIONS.put( Long.class, doubleCoercion );
+		COERCIONS.put( Long.class, intCoercion );
 		COERCIONS.put( Float.class, doubleCoercion );
 		COERCIONS.put( Double.class, doubleCoercion );
 		COERCIONS.put( String.class, stringCoercion );
@@ -138,7 +138,8 @@ public class CoerceJavaToLua {
 	 * <p>
 	 * Integral types {@code boolean}, {@code byte},  {@code char}, and {@code int} 
 	 * will become {@link LuaInteger};
-	 * {@code long}, {@code float}, and {@code double} will become {@link LuaDouble};
+	 * {@code long} will become {@link LuaInteger}, or {@link LuaLong} beyond int range;
+	 * {@code float} and {@code double} will become {@link LuaDouble};
 	 * {@code String} and {@code byte[]} will become {@link io.github.taoguan.luaj.LuaString};
 	 * types inheriting from {@link LuaValue} will be returned without coercion;
 	 * other types will become {@link LuaUserdata}.
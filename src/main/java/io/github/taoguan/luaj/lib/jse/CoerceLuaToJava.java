@@ -270,7 +270,7 @@ public class CoerceLuaToJava {
 		public int score(LuaValue value) {
 			switch ( value.type() ) {
 			case LuaValue.TNUMBER:
-				return inheritanceLevels( targetType, value.isint()? Integer.class: Double.class );
+				return inheritanceLevels( targetType, value.isint()? Integer.class: value instanceof LuaLong? Long.class: Double.class );
 			case LuaValue.TBOOLEAN:
 				return inheritanceLevels( targetType, Boolean.class );
 			case LuaValue.TSTRING:
@@ -286,7 +286,8 @@ public class CoerceLuaToJava {
 		public Object coerce(LuaValue value) {
 			switch ( value.type() ) {
 			case LuaValue.TNUMBER:
-				return value.isint()? (Object)new Integer(value.toint()): (Object)new Double(value.todouble());
+				return value.isint()? (Object)new Integer(value.toint()):
+					value instanceof LuaLong? (Object)Long.valueOf(value.tolong()): (Object)new Double(value.todouble());
 			case LuaValue.TBOOLEAN:
 				return value.toboolean()? Boolean.TRUE: Boolean.FALSE;
 			case LuaValue.TSTRING:
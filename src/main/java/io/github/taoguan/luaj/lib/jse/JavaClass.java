@@ -52,24 +52,24 @@ public class JavaClass extends JavaInstance implements CoerceJavaToLua.Coercion
 		return this;
 	}
 		
-	Field getField(LuaValue key) {
+	JavaField getField(LuaValue key) {
 		if ( fields == null ) {
 			Map m = new HashMap();
 			Field[] f = ((Class)m_instance).getFields();
 			for ( int i=0; i<f.length; i++ ) {
 				Field fi = f[i];
 				if ( Modifier.isPublic(fi.getModifiers()) ) {
-					m.put(LuaValue.valueOf(fi.getName()), fi);
 					try {
 						if (!fi.isAccessible())
 							fi.setAccessible(true);
 					} catch (SecurityException s) {
 					}
+					m.put(LuaValue.valueOf(fi.getName()), new JavaField(fi));
 				}
 			}
 			fields = m;
 		}
-		return (Field) fields.get(key);
+		return (JavaField) fields.get(key);
 	}
 	
 	LuaValue getMethod(LuaValue key) {
@@ -3,6 +3,7 @@ package io.github.taoguan.luaj.lib.jse;
 import io.github.taoguan.luaj.*;
 import io.github.taoguan.luaj.lib.*;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Collections;
@@ -43,12 +44,25 @@ public class JavaConstructor extends JavaMember {
 
 	final Constructor constructor;
 	
+	/** Invoker of type {@link JavaInvoker#CONSTRUCTOR}, or null to call through reflection. */
+	final MethodHandle invoker;
+	
 	private JavaConstructor(Constructor c) {
 		super( c.getParameterTypes(), c.getModifiers() );
 		this.constructor = c;
+		this.invoker = JavaInvoker.forConstructor(c, fixedargs);
 	}
 	
 	public Varargs invoke(Varargs args) {
+		if ( invoker != null && LuajavaLib.method_handles ) {
+			try {
+				return (LuaValue) invoker.invokeExact(args);
+			} catch (JavaInvoker.ArgumentMismatch e) {
+				return LuaValue.error("coercion error "+e);
+			} catch (Throwable t) {
+				throw new LuaError(t);
+			}
+		}
 		Object[] a = convertArgs(args);
 		try {
 			return CoerceJavaToLua.coerce( constructor.newInstance(a) );
@@ -63,6 +77,7 @@ public class JavaConstructor extends JavaMember {
 	 * LuaValue that represents an overloaded Java constructor.
 	 * <p>
 	 * On invocation, will pick the best method from the list, and invoke it.
+	 * The choice is remembered per argument signature in an {@link OverloadCache}.
 	 * <p>
 	 * This class is not used directly.  
 	 * It is returned by calls to calls to {@link JavaClass#get(LuaValue key)} 
@@ -70,22 +85,14 @@ public class JavaConstructor extends JavaMember {
 	 */
 	public static class Overload extends VarArgFunction {
 		final JavaConstructor[] constructors; 
+		final OverloadCache cache;
 		public Overload(JavaConstructor[] c) {
 			this.constructors = c;
+			this.cache = new OverloadCache(c);
 		}
 
 		public Varargs invoke(Varargs args) {
-			JavaConstructor best = null;
-			int score = CoerceLuaToJava.SCORE_UNCOERCIBLE;
-			for ( int i=0; i<constructors.length; i++ ) {
-				int s = constructors[i].score(args);
-				if ( s < score ) {
-					score = s;
-					best = constructors[i];
-					if ( score == 0 )
-						break;
-				}
-			}
+			JavaConstructor best = (JavaConstructor) cache.select(args);
 			
 			// any match? 
 			if ( best == null )
@@ -0,0 +1,59 @@
+package io.github.taoguan.luaj.lib.jse;
+
+import io.github.taoguan.luaj.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Field;
+
+/**
+ * Public field of a Java class, read and written through
+ * {@link MethodHandle} accessors when they are available.
+ * <p>
+ * This class is not used directly.
+ * It is returned by {@link JavaClass#getField(LuaValue)}.
+ * @see JavaInstance
+ * @see JavaInvoker
+ */
+final class JavaField {
+
+	final Field field;
+	final MethodHandle getter;
+	final MethodHandle setter;
+
+	JavaField(Field f) {
+		this.field = f;
+		this.getter = JavaInvoker.getter(f);
+		this.setter = JavaInvoker.setter(f);
+	}
+
+	LuaValue get(Object instance) {
+		if ( getter != null && LuajavaLib.method_handles ) {
+			try {
+				return (LuaValue) getter.invokeExact(instance);
+			} catch (Throwable t) {
+				throw new LuaError(t);
+			}
+		}
+		try {
+			return CoerceJavaToLua.coerce(field.get(instance));
+		} catch (Exception e) {
+			throw new LuaError(e);
+		}
+	}
+
+	void set(Object instance, LuaValue value) {
+		if ( setter != null && LuajavaLib.method_handles ) {
+			try {
+				setter.invokeExact(instance, value);
+				return;
+			} catch (Throwable t) {
+				throw new LuaError(t);
+			}
+		}
+		try {
+			field.set(instance, CoerceLuaToJava.coerce(value, field.getType()));
+		} catch (Exception e) {
+			throw new LuaError(e);
+		}
+	}
+}
@@ -3,8 +3,6 @@ package io.github.taoguan.luaj.lib.jse;
 import io.github.taoguan.luaj.*;
 import io.github.taoguan.luaj.lib.*;
 
-import java.lang.reflect.Field;
-
 /**
  * LuaValue that represents a Java instance.
  * <p>
@@ -27,13 +25,9 @@ public class JavaInstance extends LuaUserdata {
 	public LuaValue get(LuaValue key) {
 		if ( jclass == null )
 			jclass = JavaClass.forClass(m_instance.getClass());
-		Field f = jclass.getField(key);
+		JavaField f = jclass.getField(key);
 		if ( f != null )
-			try {
-				return CoerceJavaToLua.coerce(f.get(m_instance));
-			} catch (Exception e) {
-				throw new LuaError(e);
-			}
+			return f.get(m_instance);
 		LuaValue m = jclass.getMethod(key);
 		if ( m != null )
 			return m;
@@ -46,14 +40,11 @@ public class JavaInstance extends LuaUserdata {
 	public void set(LuaValue key, LuaValue value) {
 		if ( jclass == null )
 			jclass = JavaClass.forClass(m_instance.getClass());
-		Field f = jclass.getField(key);
-		if ( f != null )
-			try {
-				f.set(m_instance, CoerceLuaToJava.coerce(value, f.getType()));
-				return;
-			} catch (Exception e) {
-				throw new LuaError(e);
-			}
+		JavaField f = jclass.getField(key);
+		if ( f != null ) {
+			f.set(m_instance, value);
+			return;
+		}
 		super.set(key, value);
 	} 	
 	
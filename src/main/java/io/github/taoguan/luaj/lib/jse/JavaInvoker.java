@@ -0,0 +1,250 @@
+package io.github.taoguan.luaj.lib.jse;
+
+import io.github.taoguan.luaj.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Builds {@link MethodHandle} based call paths for Java methods, constructors and fields.
+ * <p>
+ * Each handle takes its arguments straight from the {@link Varargs} and converts them with
+ * a converter specialized by parameter type: primitive parameters are read with
+ * {@link LuaValue#toint()}, {@link LuaValue#todouble()} and friends without boxing,
+ * other parameters go through the {@link CoerceLuaToJava} coercion for their type.
+ * Return values are converted the same way, so primitive results become
+ * {@link LuaInteger}, {@link LuaLong} or {@link LuaDouble} directly.
+ * Conversions match {@link CoerceLuaToJava} and {@link CoerceJavaToLua}.
+ * <p>
+ * Each factory returns null when a handle cannot be created, for example for
+ * java varargs methods or inaccessible members, in which case callers keep using
+ * core reflection.
+ * <p>
+ * This class is not used directly.
+ * @see JavaMethod
+ * @see JavaConstructor
+ * @see JavaField
+ */
+final class JavaInvoker {
+
+	/** Type of method invokers, {@code (instance, args) -> result}. */
+	static final MethodType METHOD = MethodType.methodType(LuaValue.class, Object.class, Varargs.class);
+
+	/** Type of constructor invokers, {@code (args) -> instance}. */
+	static final MethodType CONSTRUCTOR = MethodType.methodType(LuaValue.class, Varargs.class);
+
+	/** Type of field getters, {@code (instance) -> value}. */
+	static final MethodType GETTER = MethodType.methodType(LuaValue.class, Object.class);
+
+	/** Type of field setters, {@code (instance, value) -> void}. */
+	static final MethodType SETTER = MethodType.methodType(void.class, Object.class, LuaValue.class);
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	private static final MethodHandle ARG;
+	private static final MethodHandle TOINT;
+	private static final MethodHandle TOLONG;
+	private static final MethodHandle TODOUBLE;
+	private static final MethodHandle TOBOOLEAN;
+	private static final MethodHandle COERCE;
+	private static final MethodHandle CAST;
+	private static final MethodHandle INTEGER;
+	private static final MethodHandle LONG;
+	private static final MethodHandle DOUBLE;
+	private static final MethodHandle BOOLEAN;
+	private static final MethodHandle OBJECT;
+	private static final MethodHandle NIL;
+
+	static {
+		try {
+			ARG = LOOKUP.findVirtual(Varargs.class, "arg", MethodType.methodType(LuaValue.class, int.class));
+			TOINT = LOOKUP.findVirtual(LuaValue.class, "toint", MethodType.methodType(int.class));
+			TOLONG = LOOKUP.findVirtual(LuaValue.class, "tolong", MethodType.methodType(long.class));
+			TODOUBLE = LOOKUP.findVirtual(LuaValue.class, "todouble", MethodType.methodType(double.class));
+			TOBOOLEAN = LOOKUP.findVirtual(LuaValue.class, "toboolean", MethodType.methodType(boolean.class));
+			COERCE = LOOKUP.findVirtual(CoerceLuaToJava.Coercion.class, "coerce", MethodType.methodType(Object.class, LuaValue.class));
+			CAST = LOOKUP.findStatic(JavaInvoker.class, "cast", MethodType.methodType(Object.class, Class.class, Object.class));
+			INTEGER = LOOKUP.findStatic(LuaInteger.class, "valueOf", MethodType.methodType(LuaInteger.class, int.class))
+					.asType(MethodType.methodType(LuaValue.class, int.class));
+			LONG = LOOKUP.findStatic(LuaInteger.class, "valueOf", MethodType.methodType(LuaNumber.class, long.class))
+					.asType(MethodType.methodType(LuaValue.class, long.class));
+			DOUBLE = LOOKUP.findStatic(LuaDouble.class, "valueOf", MethodType.methodType(LuaNumber.class, double.class))
+					.asType(MethodType.methodType(LuaValue.class, double.class));
+			BOOLEAN = LOOKUP.findStatic(LuaValue.class, "valueOf", MethodType.methodType(LuaBoolean.class, boolean.class))
+					.asType(MethodType.methodType(LuaValue.class, boolean.class));
+			OBJECT = LOOKUP.findStatic(CoerceJavaToLua.class, "coerce", MethodType.methodType(LuaValue.class, Object.class));
+			NIL = MethodHandles.constant(LuaValue.class, LuaValue.NIL);
+		} catch (Exception e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Thrown when a coerced argument does not fit the parameter type,
+	 * reported the same way as the reflective {@code argument type mismatch}.
+	 */
+	static final class ArgumentMismatch extends IllegalArgumentException {
+		private static final long serialVersionUID = 1L;
+		ArgumentMismatch() {
+			super("argument type mismatch");
+		}
+		public String toString() {
+			return IllegalArgumentException.class.getName() + ": " + getMessage();
+		}
+		public synchronized Throwable fillInStackTrace() {
+			return this;
+		}
+	}
+
+	private JavaInvoker() {}
+
+	/**
+	 * Create an invoker of type {@link #METHOD} for a method with fixed arguments.
+	 * The instance argument is ignored for static methods.
+	 * @return the invoker, or null if the method must be called reflectively
+	 */
+	static MethodHandle forMethod(Method m, CoerceLuaToJava.Coercion[] fixedargs) {
+		if ( (m.getModifiers() & JavaMember.METHOD_MODIFIERS_VARARGS) != 0 )
+			return null;
+		try {
+			MethodHandle h = LOOKUP.unreflect(m);
+			if ( Modifier.isStatic(m.getModifiers()) )
+				h = MethodHandles.dropArguments(h, 0, Object.class);
+			else
+				h = h.asType(h.type().changeParameterType(0, Object.class));
+			return bind(h, 1, m.getParameterTypes(), fixedargs, m.getReturnType()).asType(METHOD);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Create an invoker of type {@link #CONSTRUCTOR} for a constructor with fixed arguments.
+	 * @return the invoker, or null if the constructor must be called reflectively
+	 */
+	static MethodHandle forConstructor(Constructor c, CoerceLuaToJava.Coercion[] fixedargs) {
+		if ( (c.getModifiers() & JavaMember.METHOD_MODIFIERS_VARARGS) != 0 )
+			return null;
+		try {
+			MethodHandle h = LOOKUP.unreflectConstructor(c);
+			return bind(h, 0, c.getParameterTypes(), fixedargs, c.getDeclaringClass()).asType(CONSTRUCTOR);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Create a getter of type {@link #GETTER} for a field.
+	 * The instance argument is ignored for static fields.
+	 * @return the getter, or null if the field must be read reflectively
+	 */
+	static MethodHandle getter(Field f) {
+		try {
+			MethodHandle h = LOOKUP.unreflectGetter(f);
+			if ( Modifier.isStatic(f.getModifiers()) )
+				h = MethodHandles.dropArguments(h, 0, Object.class);
+			else
+				h = h.asType(h.type().changeParameterType(0, Object.class));
+			return MethodHandles.filterReturnValue(h, toLua(f.getType())).asType(GETTER);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Create a setter of type {@link #SETTER} for a field.
+	 * The instance argument is ignored for static fields.
+	 * @return the setter, or null if the field must be written reflectively,
+	 * which is always the case for final fields.
+	 */
+	static MethodHandle setter(Field f) {
+		if ( Modifier.isFinal(f.getModifiers()) )
+			return null;
+		try {
+			MethodHandle h = LOOKUP.unreflectSetter(f);
+			if ( Modifier.isStatic(f.getModifiers()) )
+				h = MethodHandles.dropArguments(h, 0, Object.class);
+			else
+				h = h.asType(h.type().changeParameterType(0, Object.class));
+			int last = h.type().parameterCount() - 1;
+			Class type = f.getType();
+			return MethodHandles.filterArguments(h, last, toJava(type, CoerceLuaToJava.getCoercion(type))).asType(SETTER);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Adapt {@code h}, taking {@code offset} leading arguments followed by {@code params},
+	 * to take the leading arguments followed by a single {@link Varargs},
+	 * and to return a {@link LuaValue}.
+	 */
+	private static MethodHandle bind(MethodHandle h, int offset, Class[] params, CoerceLuaToJava.Coercion[] fixedargs, Class returnType) {
+		int n = params.length;
+		if ( n > 0 ) {
+			MethodHandle[] filters = new MethodHandle[n];
+			for ( int i=0; i<n; i++ ) {
+				MethodHandle arg = MethodHandles.insertArguments(ARG, 1, i+1);
+				filters[i] = MethodHandles.filterReturnValue(arg, toJava(params[i], fixedargs[i]));
+			}
+			h = MethodHandles.filterArguments(h, offset, filters);
+		}
+		Class[] leading = new Class[offset+1];
+		int[] reorder = new int[offset+n];
+		for ( int i=0; i<offset; i++ ) {
+			leading[i] = h.type().parameterType(i);
+			reorder[i] = i;
+		}
+		leading[offset] = Varargs.class;
+		for ( int i=0; i<n; i++ )
+			reorder[offset+i] = offset;
+		h = MethodHandles.permuteArguments(h, MethodType.methodType(h.type().returnType(), leading), reorder);
+		return MethodHandles.filterReturnValue(h, toLua(returnType));
+	}
+
+	/** Converter of type {@code (LuaValue) -> type} matching {@link CoerceLuaToJava}. */
+	private static MethodHandle toJava(Class type, CoerceLuaToJava.Coercion coercion) {
+		if ( type == int.class )
+			return TOINT;
+		if ( type == byte.class || type == char.class || type == short.class )
+			return MethodHandles.explicitCastArguments(TOINT, MethodType.methodType(type, LuaValue.class));
+		if ( type == long.class )
+			return TOLONG;
+		if ( type == double.class )
+			return TODOUBLE;
+		if ( type == float.class )
+			return MethodHandles.explicitCastArguments(TODOUBLE, MethodType.methodType(float.class, LuaValue.class));
+		if ( type == boolean.class )
+			return TOBOOLEAN;
+		MethodHandle h = COERCE.bindTo(coercion);
+		if ( type != Object.class )
+			h = MethodHandles.filterReturnValue(h, CAST.bindTo(type));
+		return h.asType(MethodType.methodType(type, LuaValue.class));
+	}
+
+	/** Converter of type {@code (type) -> LuaValue} matching {@link CoerceJavaToLua}. */
+	private static MethodHandle toLua(Class type) {
+		if ( type == void.class )
+			return NIL;
+		if ( type == int.class || type == byte.class || type == char.class || type == short.class )
+			return INTEGER.asType(MethodType.methodType(LuaValue.class, type));
+		if ( type == long.class )
+			return LONG;
+		if ( type == float.class || type == double.class )
+			return DOUBLE.asType(MethodType.methodType(LuaValue.class, type));
+		if ( type == boolean.class )
+			return BOOLEAN;
+		return OBJECT.asType(MethodType.methodType(LuaValue.class, type));
+	}
+
+	private static Object cast(Class type, Object o) {
+		if ( o != null && !type.isInstance(o) )
+			throw new ArgumentMismatch();
+		return o;
+	}
+}
@@ -3,6 +3,7 @@ package io.github.taoguan.luaj.lib.jse;
 import io.github.taoguan.luaj.*;
 import io.github.taoguan.luaj.lib.*;
 
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.Collections;
@@ -42,6 +43,9 @@ public class JavaMethod extends JavaMember {
 	
 	final Method method;
 	
+	/** Invoker of type {@link JavaInvoker#METHOD}, or null to call through reflection. */
+	final MethodHandle invoker;
+	
 	private JavaMethod(Method m) {
 		super( m.getParameterTypes(), m.getModifiers() );
 		this.method = m;
@@ -50,6 +54,7 @@ public class JavaMethod extends JavaMember {
 				m.setAccessible(true);
 		} catch (SecurityException s) {
 		}
+		this.invoker = JavaInvoker.forMethod(m, fixedargs);
 	}
 
 	public LuaValue call() {
@@ -73,6 +78,15 @@ public class JavaMethod extends JavaMember {
 	}
 	
 	LuaValue invokeMethod(Object instance, Varargs args) {
+		if ( invoker != null && LuajavaLib.method_handles ) {
+			try {
+				return (LuaValue) invoker.invokeExact(instance, args);
+			} catch (JavaInvoker.ArgumentMismatch e) {
+				return LuaValue.error("coercion error "+e);
+			} catch (Throwable t) {
+				throw new LuaError(t);
+			}
+		}
 		Object[] a = convertArgs(args);
 		try {
 			return CoerceJavaToLua.coerce( method.invoke(instance, a) );
@@ -87,6 +101,7 @@ public class JavaMethod extends JavaMember {
 	 * LuaValue that represents an overloaded Java method.
 	 * <p>
 	 * On invocation, will pick the best method from the list, and invoke it.
+	 * The choice is remembered per argument signature in an {@link OverloadCache}.
 	 * <p>
 	 * This class is not used directly.  
 	 * It is returned by calls to calls to {@link JavaInstance#get(LuaValue key)}
@@ -96,8 +111,11 @@ public class JavaMethod extends JavaMember {
 
 		final JavaMethod[] methods;
 		
+		final OverloadCache cache;
+		
 		Overload(JavaMethod[] methods) {
 			this.methods = methods;
+			this.cache = new OverloadCache(methods);
 		}
 
 		public LuaValue call() {
@@ -121,17 +139,7 @@ public class JavaMethod extends JavaMember {
 		}
 
 		private LuaValue invokeBestMethod(Object instance, Varargs args) {
-			JavaMethod best = null;
-			int score = CoerceLuaToJava.SCORE_UNCOERCIBLE;
-			for ( int i=0; i<methods.length; i++ ) {
-				int s = methods[i].score(args);
-				if ( s < score ) {
-					score = s;
-					best = methods[i];
-					if ( score == 0 )
-						break;
-				}
-			}
+			JavaMethod best = (JavaMethod) cache.select(args);
 			
 			// any match? 
 			if ( best == null )
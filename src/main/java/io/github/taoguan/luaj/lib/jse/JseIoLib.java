@@ -4,12 +4,18 @@ import io.github.taoguan.luaj.*;
 import io.github.taoguan.luaj.lib.*;
 
 import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /** 
  * Subclass of {@link IoLib} and therefore {@link LibFunction} which implements the lua standard {@code io} 
  * library for the JSE platform. 
  * <p> 
- * It uses RandomAccessFile to implement seek on files.  
+ * It uses RandomAccessFile to implement seek on files, and reads files through 
+ * their {@link FileChannel} with a read-ahead buffer of {@link #read_buffer_size} bytes, 
+ * finding line ends in the buffer rather than reading one byte at a time.  Files opened
+ * for reading only with at least {@link #map_threshold} bytes are memory mapped instead.
  * <p>
  * Typically, this library is included as part of a call to 
  * {@link io.github.taoguan.luaj.lib.jse.JsePlatform#standardGlobals()}
@@ -38,6 +44,12 @@ import java.io.*;
  */
 public class JseIoLib extends IoLib {
 
+	/** Size of the read-ahead buffer of files, 0 to read files one byte at a time through RandomAccessFile. */
+	public static int read_buffer_size = 64 * 1024;
+
+	/** Length from which files opened for reading only are memory mapped, 0 to never map files. */
+	public static long map_threshold = 0;
+
 	protected File wrapStdin() throws IOException {
 		return new StdinFile();
 	}
@@ -58,7 +70,10 @@ public class JseIoLib extends IoLib {
 			if ( ! readMode )
 				f.setLength(0);
 		}
-		return new FileImpl( f );
+		if ( readMode && ! updateMode && map_threshold > 0 
+				&& f.length() >= map_threshold && f.length() <= Integer.MAX_VALUE )
+			return new ChannelFile( f, f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length()) );
+		return read_buffer_size > 0? new ChannelFile( f, ByteBuffer.allocate(read_buffer_size) ): new FileImpl( f );
 	}
 	
 	protected File openProgram(String prog, String mode) throws IOException {
@@ -71,7 +86,8 @@ public class JseIoLib extends IoLib {
 	protected File tmpFile() throws IOException {
 		java.io.File f = java.io.File.createTempFile(".luaj","bin");
 		f.deleteOnExit();
-		return new FileImpl( new RandomAccessFile(f,"rw") );
+		RandomAccessFile r = new RandomAccessFile(f,"rw");
+		return read_buffer_size > 0? new ChannelFile( r, ByteBuffer.allocate(read_buffer_size) ): new FileImpl( r );
 	}
 	
 	private static void notimplemented() {
@@ -192,6 +208,156 @@ public class JseIoLib extends IoLib {
 		}
 	}
 
+	/**
+	 * File read through its channel into a buffer of bytes read ahead, or through a buffer
+	 * mapping the whole file, which then holds all the bytes from the start of the file.
+	 */
+	private final class ChannelFile extends File {
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final ByteBuffer buf;
+		private final boolean mapped;
+		private boolean closed = false;
+
+		private ChannelFile( RandomAccessFile file, ByteBuffer buf ) {
+			this.file = file;
+			this.channel = file.getChannel();
+			this.buf = buf;
+			this.mapped = ! buf.hasArray();
+			if ( ! mapped )
+				((Buffer) buf).limit(0);
+		}
+		public String tojstring() {
+			return "file ("+this.hashCode()+")";
+		}
+		public boolean isstdfile() {
+			return false;
+		}
+		public void close() throws IOException  {
+			closed = true;
+			file.close();
+		}
+		public void flush() throws IOException {
+		}
+		public void write(LuaString s) throws IOException {
+			if ( mapped )
+				throw new IOException("file not open for writing");
+			if ( buf.hasRemaining() ) {
+				channel.position( position() );
+				((Buffer) buf).limit(0);
+			}
+			ByteBuffer b = ByteBuffer.wrap( s.m_bytes, s.m_offset, s.m_length );
+			while ( b.hasRemaining() )
+				channel.write( b );
+		}
+		public boolean isclosed() {
+			return closed;
+		}
+		public int seek(String option, int pos) throws IOException {
+			long p = "set".equals(option)? pos: "end".equals(option)? channel.size()+pos: position()+pos;
+			if ( mapped ) {
+				((Buffer) buf).position( (int) Math.max(0, Math.min(p, buf.limit())) );
+			} else {
+				channel.position( p );
+				((Buffer) buf).limit(0);
+			}
+			return (int) position();
+		}
+		public void setvbuf(String mode, int size) {
+		}
+
+		// position of the next byte to read
+		private long position() throws IOException {
+			return mapped? buf.position(): channel.position() - buf.remaining();
+		}
+
+		// read ahead more bytes when the buffer is empty, return false at eof
+		private boolean fill() throws IOException {
+			if ( buf.hasRemaining() )
+				return true;
+			if ( mapped )
+				return false;
+			buf.clear();
+			int n = channel.read( buf );
+			((Buffer) buf).flip();
+			return n > 0;
+		}
+
+		public int remaining() throws IOException {
+			return (int) (channel.size() - position());
+		}
+
+		public int peek() throws IOException {
+			return fill()? buf.get(buf.position()) & 0xff: -1;
+		}
+
+		public int read() throws IOException {
+			return fill()? buf.get() & 0xff: -1;
+		}
+
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if ( length == 0 )
+				return 0;
+			int n = 0;
+			while ( n < length && fill() ) {
+				int k = Math.min( length - n, buf.remaining() );
+				buf.get( bytes, offset + n, k );
+				n += k;
+			}
+			return n > 0? n: -1;
+		}
+
+		public LuaValue readline() throws IOException {
+			byte[] line = null;
+			int n = 0;
+			while ( fill() ) {
+				int start = buf.position(), end = buf.limit(), i = start;
+				boolean cr = false;
+				byte[] a = mapped? null: buf.array();
+				int o = mapped? 0: buf.arrayOffset();
+				for ( byte b; i < end && (b = mapped? buf.get(i): a[o+i]) != '\n'; i++ )
+					if ( b == '\r' )
+						cr = true;
+				if ( line == null && i < end && ! cr ) {
+					// the whole line is in the buffer
+					LuaString s = mapped? LuaString.valueUsing( readbytes(i - start) ): LuaString.valueOf( a, o + start, i - start );
+					((Buffer) buf).position( i + 1 );
+					return s;
+				}
+				if ( line == null || n + (i - start) > line.length )
+					line = grow( line, n, n + (i - start) );
+				for ( int j = start; j < i; j++ ) {
+					byte b = buf.get(j);
+					if ( b != '\r' )
+						line[n++] = b;
+				}
+				((Buffer) buf).position( i < end? i + 1: end );
+				if ( i < end )
+					break;
+			}
+			return line == null? NIL: LuaString.valueOf( line, 0, n );
+		}
+
+		public LuaValue readall() throws IOException {
+			return LuaString.valueUsing( readbytes(Math.max(0, remaining())) );
+		}
+
+		// return the next n bytes, which must remain in the file
+		private byte[] readbytes(int n) throws IOException {
+			byte[] b = new byte[n];
+			if ( n > 0 )
+				read( b, 0, n );
+			return b;
+		}
+
+		private byte[] grow(byte[] line, int n, int min) {
+			byte[] b = new byte[Math.max( min, Math.max( 64, n * 2 ) )];
+			if ( line != null )
+				System.arraycopy( line, 0, b, 0, n );
+			return b;
+		}
+	}
+
 	private final class StdoutFile extends File {
 		private final int file_type;
 
@@ -241,11 +407,11 @@ public class JseIoLib extends IoLib {
 		}
 
 		public int peek() throws IOException, EOFException {
-			return 0;
+			return -1;
 		}
 
 		public int read() throws IOException, EOFException {
-			return 0;
+			return -1;
 		}
 
 		public int read(byte[] bytes, int offset, int length)
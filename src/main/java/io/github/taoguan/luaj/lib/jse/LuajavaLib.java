@@ -67,6 +67,12 @@ public class LuajavaLib extends VarArgFunction {
 	
 	static final int METHOD_MODIFIERS_VARARGS = 0x80;
 
+	/** When true, Java methods, constructors and fields are accessed through
+	 * {@link java.lang.invoke.MethodHandle}s with argument coercion specialized 
+	 * by parameter type; when false, through core reflection. 
+	 */
+	public static boolean method_handles = true;
+
 	public LuajavaLib() {
 	}
 
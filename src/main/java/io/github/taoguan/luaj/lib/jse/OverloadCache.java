@@ -0,0 +1,280 @@
+package io.github.taoguan.luaj.lib.jse;
+
+import io.github.taoguan.luaj.*;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Inline cache of overload resolution for {@link JavaMethod.Overload}
+ * and {@link JavaConstructor.Overload}.
+ * <p>
+ * Picking an overload scores every candidate against the arguments with the
+ * {@link CoerceLuaToJava} coercions.  The score only depends on a few properties
+ * of each argument: its lua type, which java numeric types a number fits in,
+ * whether a string is valid utf-8 or numeric, and the java class of userdata
+ * and other values.  The cache keys the winning overload on that signature,
+ * keeping up to {@link #polymorphic_limit} signatures per overload set.
+ * Calls with other signatures, or with arguments whose score depends on more
+ * than the signature such as tables of tables, are scored as before.
+ * <p>
+ * Hit and miss counts across all overloads are available through
+ * {@link #hits()} and {@link #misses()}.
+ * @see CoerceLuaToJava
+ */
+public final class OverloadCache {
+
+	/** Number of argument signatures remembered per overload set. */
+	public static int polymorphic_limit = 8;
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+
+	/** Number of calls resolved from the cache. */
+	public static long hits() {
+		return hits.sum();
+	}
+
+	/** Number of calls resolved by scoring every candidate. */
+	public static long misses() {
+		return misses.sum();
+	}
+
+	/** Reset the hit and miss counts. */
+	public static void resetStats() {
+		hits.reset();
+		misses.reset();
+	}
+
+	private static final Entry[] NOENTRIES = {};
+
+	private final JavaMember[] members;
+
+	/** Per argument position, whether any candidate scores strings by their contents. */
+	private final boolean[] strings;
+
+	/** Whether any candidate takes java varargs, which extend the last position. */
+	private final boolean varstrings;
+
+	private volatile Entry[] entries = NOENTRIES;
+
+	OverloadCache(JavaMember[] members) {
+		this.members = members;
+		int n = 0;
+		for ( int i=0; i<members.length; i++ )
+			n = Math.max(n, members[i].fixedargs.length);
+		strings = new boolean[n];
+		boolean v = false;
+		for ( int i=0; i<members.length; i++ ) {
+			JavaMember m = members[i];
+			for ( int j=0; j<m.fixedargs.length; j++ )
+				strings[j] |= scoresStrings(m.fixedargs[j]);
+			if ( m.varargs != null ) {
+				boolean b = scoresStrings(m.varargs);
+				v |= b;
+				for ( int j=m.fixedargs.length; j<n; j++ )
+					strings[j] |= b;
+			}
+		}
+		varstrings = v;
+	}
+
+	private static boolean scoresStrings(CoerceLuaToJava.Coercion c) {
+		return c instanceof CoerceLuaToJava.NumericCoercion
+			|| c instanceof CoerceLuaToJava.StringCoercion
+			|| c instanceof CoerceLuaToJava.ArrayCoercion;
+	}
+
+	private boolean scoresStrings(int position) {
+		return position < strings.length? strings[position]: varstrings;
+	}
+
+	/** Find the best member for the arguments, or null if none can be coerced. */
+	JavaMember select(Varargs args) {
+		Signature s = Signature.of(this, args);
+		if ( s != null ) {
+			Entry[] e = entries;
+			for ( int i=0; i<e.length; i++ ) {
+				if ( e[i].signature.equals(s) ) {
+					hits.increment();
+					return e[i].member;
+				}
+			}
+		}
+		misses.increment();
+		JavaMember best = score(args);
+		if ( best != null && s != null )
+			remember(s, best);
+		return best;
+	}
+
+	private JavaMember score(Varargs args) {
+		JavaMember best = null;
+		int score = CoerceLuaToJava.SCORE_UNCOERCIBLE;
+		for ( int i=0; i<members.length; i++ ) {
+			int s = members[i].score(args);
+			if ( s < score ) {
+				score = s;
+				best = members[i];
+				if ( score == 0 )
+					break;
+			}
+		}
+		return best;
+	}
+
+	private synchronized void remember(Signature s, JavaMember best) {
+		Entry[] e = entries;
+		if ( e.length >= polymorphic_limit )
+			return;
+		for ( int i=0; i<e.length; i++ )
+			if ( e[i].signature.equals(s) )
+				return;
+		Entry[] n = Arrays.copyOf(e, e.length+1);
+		n[e.length] = new Entry(s, best);
+		entries = n;
+	}
+
+	private static final class Entry {
+		final Signature signature;
+		final JavaMember member;
+		Entry(Signature signature, JavaMember member) {
+			this.signature = signature;
+			this.member = member;
+		}
+	}
+
+	/**
+	 * The properties of an argument list that {@link CoerceLuaToJava.Coercion#score(LuaValue)} depends on.
+	 */
+	static final class Signature {
+		static final int UNCACHEABLE = -1;
+
+		// number flags
+		static final int INT     = 0x01;
+		static final int BYTE    = 0x02;
+		static final int CHAR    = 0x04;
+		static final int SHORT   = 0x08;
+		static final int LONG    = 0x10;
+		static final int FLOAT   = 0x20;
+
+		// string and table flags
+		static final int UTF8    = 0x40;
+		static final int NUMERIC = 0x80;
+		static final int ELEMENT = 0x100;
+
+		/** Shift of the code of the first element of a table, above the flags. */
+		static final int ELEMENT_SHIFT = 13;
+
+		final int[] codes;
+		final Class[] classes;
+		final int hash;
+
+		private Signature(int[] codes, Class[] classes) {
+			this.codes = codes;
+			this.classes = classes;
+			this.hash = Arrays.hashCode(codes) * 31 + Arrays.hashCode(classes);
+		}
+
+		/** Signature of the arguments, or null if they cannot be cached. */
+		static Signature of(OverloadCache cache, Varargs args) {
+			int n = args.narg();
+			int[] codes = new int[n];
+			Class[] classes = null;
+			for ( int i=0; i<n; i++ ) {
+				LuaValue v = args.arg(i+1);
+				int c = code(v, cache.scoresStrings(i));
+				if ( c == UNCACHEABLE )
+					return null;
+				codes[i] = c;
+				switch ( c & 0xf ) {
+				case LuaValue.TNIL:
+				case LuaValue.TBOOLEAN:
+				case LuaValue.TNUMBER:
+				case LuaValue.TSTRING:
+				case LuaValue.TTABLE:
+					break;
+				default: {
+					// scored by the java class of the value
+					Object o = c == LuaValue.TUSERDATA? v.touserdata(): v;
+					if ( o == null )
+						return null;
+					if ( classes == null )
+						classes = new Class[n];
+					classes[i] = o.getClass();
+					break;
+				}
+				}
+			}
+			return new Signature(codes, classes);
+		}
+
+		private static int code(LuaValue v, boolean contents) {
+			switch ( v.type() ) {
+			case LuaValue.TNIL:
+				return LuaValue.TNIL;
+			case LuaValue.TBOOLEAN:
+				return LuaValue.TBOOLEAN;
+			case LuaValue.TNUMBER:
+				return LuaValue.TNUMBER | number(v) << 4;
+			case LuaValue.TSTRING: {
+				if ( !contents )
+					return LuaValue.TSTRING;
+				int flags = v.checkstring().isValidUtf8()? UTF8: 0;
+				LuaValue n = v.tonumber();
+				if ( !n.isnil() )
+					flags |= NUMERIC | number(n);
+				return LuaValue.TSTRING | flags << 4;
+			}
+			case LuaValue.TTABLE: {
+				if ( v.getClass() != LuaTable.class )
+					return UNCACHEABLE;
+				if ( v.length() == 0 )
+					return LuaValue.TTABLE;
+				int element = code(v.get(1), true);
+				switch ( element & 0xf ) {
+				case LuaValue.TNIL:
+				case LuaValue.TBOOLEAN:
+				case LuaValue.TNUMBER:
+				case LuaValue.TSTRING:
+					return LuaValue.TTABLE | ELEMENT << 4 | element << ELEMENT_SHIFT;
+				default:
+					return UNCACHEABLE;
+				}
+			}
+			default: {
+				int t = v.type();
+				return t >= 0 && t <= 0xf? t: UNCACHEABLE;
+			}
+			}
+		}
+
+		private static int number(LuaValue v) {
+			if ( v.isint() ) {
+				int i = v.toint();
+				return INT
+					| (i == (byte) i? BYTE: 0)
+					| (i == (char) i? CHAR: 0)
+					| (i == (short) i? SHORT: 0);
+			}
+			double d = v.todouble();
+			return (d == (long) d? LONG: 0)
+				| (d == (float) d? FLOAT: 0);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if ( this == o )
+				return true;
+			if ( !(o instanceof Signature) )
+				return false;
+			Signature s = (Signature) o;
+			return hash == s.hash
+				&& Arrays.equals(codes, s.codes)
+				&& Arrays.equals(classes, s.classes);
+		}
+	}
+}
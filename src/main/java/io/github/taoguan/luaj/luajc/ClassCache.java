@@ -0,0 +1,246 @@
+package io.github.taoguan.luaj.luajc;
+
+import io.github.taoguan.luaj.Prototype;
+import io.github.taoguan.luaj.compiler.DumpState;
+import io.github.taoguan.luaj.vm.LuaInstruction;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Directory of class files generated by {@link JavaGen}, so that chunks compiled
+ * with {@link LuaJC} in an earlier run are defined from disk instead of being
+ * generated again.
+ * <p>
+ * Each entry is a zip file holding the class for a chunk and its inner functions,
+ * named by a SHA-256 hash of the dumped {@link Prototype} including debug information,
+ * the class and file names, the luaj version, and the bytes of the generator classes
+ * themselves, so a changed script or a changed code generator never finds a stale entry.
+ * Entries are written to a temporary file and renamed into place, so several
+ * processes may share a directory.
+ * <p>
+ * To use a cache, install it with {@link LuaJC#install(io.github.taoguan.luaj.Globals, ClassCache)},
+ * or set the system property 'io.github.taoguan.luaj.luajc.cache' to a directory
+ * before calling {@link LuaJC#install(io.github.taoguan.luaj.Globals)}.
+ *
+ * @see LuaJC
+ * @see JavaLoader
+ */
+public class ClassCache {
+
+	private static final String SUFFIX = ".jar";
+
+	private static final String[] GENERATOR_CLASSES = {
+		"JavaGen", "JavaBuilder", "ProtoInfo", "BasicBlock", "UpvalInfo", "VarInfo",
+	};
+
+	private static byte[] generatorDigest;
+
+	private final File dir;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+	/** Construct a cache storing classes in a directory, which is created if needed. */
+	public ClassCache(File dir) {
+		this.dir = dir;
+		dir.mkdirs();
+	}
+
+	/** The directory holding the cache entries. */
+	public File getDirectory() {
+		return dir;
+	}
+
+	/** Get the key of the classes generated for a prototype. */
+	public String key(Prototype p, String classname, String filename) throws IOException {
+		MessageDigest md = sha256();
+		md.update(generatorDigest());
+		md.update(LuaInstruction._VERSION.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+		md.update(classname.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+		md.update(filename.getBytes(StandardCharsets.UTF_8));
+		md.update((byte) 0);
+		DumpState.dump(p, new DigestOutputStream(NullOutputStream.INSTANCE, md), false);
+		byte[] d = md.digest();
+		StringBuilder sb = new StringBuilder(d.length * 2);
+		for (int i = 0; i < d.length; i++)
+			sb.append(Character.forDigit((d[i] >> 4) & 0xf, 16)).append(Character.forDigit(d[i] & 0xf, 16));
+		return sb.toString();
+	}
+
+	/** Get the class bytes stored under key, by class name, or null if there are none. */
+	public Map<String, byte[]> get(String key) {
+		File f = file(key);
+		if (f.isFile()) {
+			try {
+				Map<String, byte[]> classes = read(f);
+				hits.increment();
+				return classes;
+			} catch (IOException e) {
+				// unreadable entry, regenerate it
+				f.delete();
+			}
+		}
+		misses.increment();
+		return null;
+	}
+
+	/** Store the classes generated by jg under key.
+	 * @throws IOException if the entry could not be written, which is counted in {@link #getWriteFailures()} */
+	public void put(String key, JavaGen jg) throws IOException {
+		try {
+			write(key, jg);
+		} catch (IOException e) {
+			failures.increment();
+			throw e;
+		}
+	}
+
+	private void write(String key, JavaGen jg) throws IOException {
+		File tmp = File.createTempFile(key, ".tmp", dir);
+		try {
+			ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				write(zip, jg);
+			} finally {
+				zip.close();
+			}
+			Files.move(tmp.toPath(), file(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			writes.increment();
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/** Remove the entry for a key, returning true if there was one. */
+	public boolean invalidate(String key) {
+		return file(key).delete();
+	}
+
+	/** Remove the entry for the classes generated for a prototype, returning true if there was one. */
+	public boolean invalidate(Prototype p, String classname, String filename) throws IOException {
+		return invalidate(key(p, classname, filename));
+	}
+
+	/** Remove all entries, returning the number removed. */
+	public int invalidateAll() {
+		int n = 0;
+		File[] files = dir.listFiles();
+		for (int i = 0, m = files != null ? files.length : 0; i < m; i++)
+			if (files[i].getName().endsWith(SUFFIX) && files[i].delete())
+				++n;
+		return n;
+	}
+
+	/** Number of lookups that found an entry. */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/** Number of lookups that did not find an entry. */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/** Number of entries written. */
+	public long getWrites() {
+		return writes.sum();
+	}
+
+	/** Number of entries that could not be written. */
+	public long getWriteFailures() {
+		return failures.sum();
+	}
+
+	public String toString() {
+		return "ClassCache(" + dir + ", hits=" + getHits() + ", misses=" + getMisses() + ", writes=" + getWrites() +
+			", writeFailures=" + getWriteFailures() + ")";
+	}
+
+	private File file(String key) {
+		return new File(dir, key + SUFFIX);
+	}
+
+	private static void write(ZipOutputStream zip, JavaGen jg) throws IOException {
+		zip.putNextEntry(new ZipEntry(jg.classname.replace('.', '/') + ".class"));
+		zip.write(jg.bytecode);
+		zip.closeEntry();
+		for (int i = 0, n = jg.inners != null ? jg.inners.length : 0; i < n; i++)
+			write(zip, jg.inners[i]);
+	}
+
+	private static Map<String, byte[]> read(File f) throws IOException {
+		Map<String, byte[]> classes = new HashMap<String, byte[]>();
+		ZipInputStream zip = new ZipInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			for (ZipEntry e; (e = zip.getNextEntry()) != null; ) {
+				String name = e.getName();
+				if (!name.endsWith(".class"))
+					continue;
+				classes.put(name.substring(0, name.length() - 6).replace('/', '.'), readAll(zip));
+			}
+		} finally {
+			zip.close();
+		}
+		if (classes.isEmpty())
+			throw new IOException("empty cache entry " + f);
+		return classes;
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] b = new byte[4096];
+		for (int n; (n = is.read(b)) >= 0; )
+			baos.write(b, 0, n);
+		return baos.toByteArray();
+	}
+
+	private static synchronized byte[] generatorDigest() throws IOException {
+		if (generatorDigest == null) {
+			MessageDigest md = sha256();
+			for (int i = 0; i < GENERATOR_CLASSES.length; i++) {
+				InputStream is = ClassCache.class.getResourceAsStream(GENERATOR_CLASSES[i] + ".class");
+				if (is == null)
+					continue;
+				try {
+					md.update(readAll(is));
+				} finally {
+					is.close();
+				}
+			}
+			generatorDigest = md.digest();
+		}
+		return generatorDigest;
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static final class NullOutputStream extends OutputStream {
+		static final NullOutputStream INSTANCE = new NullOutputStream();
+		public void write(int b) {
+		}
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
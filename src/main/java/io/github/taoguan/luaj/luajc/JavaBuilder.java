@@ -9,7 +9,9 @@ import org.apache.bcel.generic.*;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class JavaBuilder {
@@ -22,7 +24,18 @@ public class JavaBuilder {
 	private static final String STR_LUABOOLEAN = LuaBoolean.class.getName();
 	private static final String STR_LUATABLE = LuaTable.class.getName();
 	private static final String STR_BUFFER = Buffer.class.getName();
+	private static final String STR_UPVALUE = UpValue.class.getName();
+	private static final String STR_LUACLOSURE = LuaClosure.class.getName();
 	private static final String STR_STRING = String.class.getName();
+	private static final String STR_GLOBALS = Globals.class.getName();
+	private static final String STR_BUDGET = Globals.Budget.class.getName();
+	private static final ObjectType TYPE_BUDGET = new ObjectType(STR_BUDGET);
+	private static final String STR_PROFILER = Profiler.class.getName();
+	private static final String STR_FRAME = Profiler.Frame.class.getName();
+	private static final ObjectType TYPE_FRAME = new ObjectType(STR_FRAME);
+	private static final String STR_LUAERROR = LuaError.class.getName();
+	private static final ObjectType TYPE_LUAERROR = new ObjectType(STR_LUAERROR);
+	private static final ObjectType TYPE_RUNTIMEEXCEPTION = new ObjectType(RuntimeException.class.getName());
 	private static final String STR_JSEPLATFORM = "io.github.taoguan.luaj.lib.jse.JsePlatform";
 
 	private static final ObjectType TYPE_VARARGS = new ObjectType(STR_VARARGS);
@@ -33,11 +46,15 @@ public class JavaBuilder {
 	private static final ObjectType TYPE_LUABOOLEAN = new ObjectType(STR_LUABOOLEAN);
 	private static final ObjectType TYPE_LUATABLE = new ObjectType(STR_LUATABLE);
 	private static final ObjectType TYPE_BUFFER = new ObjectType(STR_BUFFER);
+	private static final ObjectType TYPE_UPVALUE = new ObjectType(STR_UPVALUE);
+	private static final ObjectType TYPE_LUACLOSURE = new ObjectType(STR_LUACLOSURE);
 	private static final ObjectType TYPE_STRING = new ObjectType(STR_STRING);
+	private static final ObjectType TYPE_GLOBALS = new ObjectType(STR_GLOBALS);
 	
 	private static final ArrayType TYPE_LOCALUPVALUE = new ArrayType( TYPE_LUAVALUE, 1 );
 	private static final ArrayType TYPE_CHARARRAY = new ArrayType( Type.CHAR, 1 );
 	private static final ArrayType TYPE_STRINGARRAY = new ArrayType( TYPE_STRING, 1 );
+	private static final ArrayType TYPE_UPVALUEARRAY = new ArrayType( TYPE_UPVALUE, 1 );
 
 
 	private static final String STR_FUNCV = VarArgFunction.class.getName();
@@ -67,6 +84,14 @@ public class JavaBuilder {
 	private static final Type[] ARG_TYPES_BUFFER = { TYPE_BUFFER };
 	private static final Type[] ARG_TYPES_STRINGARRAY = { TYPE_STRINGARRAY };
 	private static final Type[] ARG_TYPES_LUAVALUE_STRINGARRAY = { TYPE_LUAVALUE, TYPE_STRINGARRAY };
+	private static final Type[] ARG_TYPES_LUAVALUEARRAY_INT = { new ArrayType( TYPE_LUAVALUE, 1 ), Type.INT };
+	private static final Type[] ARG_TYPES_GLOBALS = { TYPE_GLOBALS };
+	private static final Type[] ARG_TYPES_GLOBALS_INT = { TYPE_GLOBALS, Type.INT };
+	private static final Type[] ARG_TYPES_BUDGET = { TYPE_BUDGET };
+	private static final Type[] ARG_TYPES_GLOBALS_LUAFUNCTION_STRING = { TYPE_GLOBALS, new ObjectType(LuaFunction.class.getName()), TYPE_STRING };
+	private static final Type[] ARG_TYPES_FRAME = { TYPE_FRAME };
+	private static final Type[] ARG_TYPES_RUNTIMEEXCEPTION_STRING_INT = { TYPE_RUNTIMEEXCEPTION, TYPE_STRING, Type.INT };
+	private static final Type[] ARG_TYPES_LUAVALUE_VARARGS_GLOBALS = { TYPE_LUAVALUE, TYPE_VARARGS, TYPE_GLOBALS };
 
 	// names, arg types for main prototype classes
 	private static final String[]     SUPER_NAME_N   = { STR_FUNC0, STR_FUNC1, STR_FUNC2, STR_FUNC3, STR_FUNCV, };
@@ -83,12 +108,17 @@ public class JavaBuilder {
 	private static final String PREFIX_PLAIN_SLOT   = "s";
 	private static final String PREFIX_UPVALUE_SLOT = "a";
 	private static final String NAME_VARRESULT      = "v";
+	private static final String NAME_CLOSURE        = "closure";
+	private static final String NAME_GLOBALS        = "globals";
 	
 	// basic info
 	private final ProtoInfo pi;
 	private final Prototype p;
 	private final String classname;
 	
+	// compiled for tiered execution: upvalues are the UpValue objects of an interpreted closure
+	private final boolean tiered;
+	
 	// bcel variables
 	private final ClassGen cg;
 	private final ConstantPoolGen cp;
@@ -112,12 +142,36 @@ public class JavaBuilder {
 	
 	// hold vararg result
 	private LocalVariableGen varresult = null;
+	
+	// budget binding to restore on return, profiler frame to pop on return, 
+	// and the last instruction of the entry
+	private LocalVariableGen outerBudget;
+	private LocalVariableGen profilerFrame;
+	private InstructionHandle entered;
 	private int prev_line = -1;
 	
+	// runs of instructions generated for the same source line, 
+	// each given a handler that positions the errors raised there
+	private final List<InstructionHandle> lineStarts = new ArrayList<InstructionHandle>();
+	private final List<InstructionHandle> lineEnds = new ArrayList<InstructionHandle>();
+	private final List<Integer> lineNumbers = new ArrayList<Integer>();
+	
 	public JavaBuilder(ProtoInfo pi, String classname, String filename) {
+		this(pi, classname, filename, false);
+	}
+	
+	/** Construct a builder, for tiered execution if tiered is true.
+	 * The class of a tiered function has a public {@link UpValue} field per upvalue
+	 * and a public field 'closure' holding the {@link LuaClosure} it was compiled for, 
+	 * and creates nested functions as interpreted closures. 
+	 * All classes have a public field 'globals' holding the {@link Globals} whose 
+	 * {@link Globals#budget} is charged at calls and loop back-edges, 
+	 * and whose {@link Globals#profiler} samples there. */
+	public JavaBuilder(ProtoInfo pi, String classname, String filename, boolean tiered) {
 		this.pi = pi;
 		this.p = pi.prototype;
 		this.classname = classname;
+		this.tiered = tiered;
 		
 		// what class to inherit from
 		superclassType = p.numparams;
@@ -144,12 +198,17 @@ public class JavaBuilder {
 		main = new InstructionList();
 
 		// create the fields
-		for ( int i=0; i<p.upvalues.length; i++ ) {
+		if ( tiered ) {
+			for ( int i=0; i<p.upvalues.length; i++ )
+				cg.addField(new FieldGen(Const.ACC_PUBLIC, TYPE_UPVALUE, upvalueName(i), cp).getField());
+			cg.addField(new FieldGen(Const.ACC_PUBLIC, TYPE_LUACLOSURE, NAME_CLOSURE, cp).getField());
+		} else for ( int i=0; i<p.upvalues.length; i++ ) {
 			boolean isrw = pi.isReadWriteUpvalue( pi.upvals[i] ); 
 			Type uptype = isrw? (Type) TYPE_LOCALUPVALUE: (Type) TYPE_LUAVALUE;
 			FieldGen fg = new FieldGen(0, uptype, upvalueName(i), cp);
 			cg.addField(fg.getField());
 		}
+		cg.addField(new FieldGen(Const.ACC_PUBLIC, TYPE_GLOBALS, NAME_GLOBALS, cp).getField());
 		
 		// create the method
 		mg = new MethodGen( Const.ACC_PUBLIC | Const.ACC_FINAL, // access flags
@@ -160,6 +219,11 @@ public class JavaBuilder {
 				STR_LUAVALUE, // method, defining class
 				main, cp);
 		
+		// charge the call, and bind the budget for allocations, outside of any branch target
+		enterBudget();
+		enterProfiler();
+		beginningOfLuaInstruction = null;
+		
 		// initialize the values in the slots
 		initializeSlots();	
 
@@ -218,12 +282,18 @@ public class JavaBuilder {
 		
 		// gen method
 		resolveBranches();
+		addLineHandlers();
+		InstructionHandle end = main.getEnd();
+		InstructionHandle handler = exitProfiler(main);
+		exitBudget(main);
+		main.append(InstructionConst.ATHROW);
+		mg.addExceptionHandler(entered.getNext(), end, handler, null);
 		mg.setMaxStack();
 		cg.addMethod(mg.getMethod());
 		main.dispose();
 
 		// add initupvalue1(LuaValue env) to initialize environment for main chunk 
-		if (p.upvalues.length == 1 && superclassType == SUPERTYPE_VARARGS) {
+		if (p.upvalues.length == 1 && superclassType == SUPERTYPE_VARARGS && !tiered) {
 			MethodGen mg = new MethodGen( Const.ACC_PUBLIC | Const.ACC_FINAL, // access flags
 					Type.VOID, // return type
 					ARG_TYPES_LUAVALUE, // argument types
@@ -377,6 +447,12 @@ public class JavaBuilder {
 	}
 	
 	public void loadUpvalue(int upindex) {
+		if ( tiered ) {
+			append(InstructionConst.THIS);
+			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_UPVALUE, Const.GETFIELD));
+			append(factory.createInvoke(STR_UPVALUE, "getValue", TYPE_LUAVALUE, ARG_TYPES_NONE, Const.INVOKEVIRTUAL));
+			return;
+		}
 		boolean isrw = pi.isReadWriteUpvalue( pi.upvals[upindex] ); 
 		append(InstructionConst.THIS);
 		if ( isrw ) {
@@ -389,6 +465,13 @@ public class JavaBuilder {
 	}
 
 	public void storeUpvalue(int pc, int upindex, int slot) {
+		if ( tiered ) {
+			append(InstructionConst.THIS);
+			append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_UPVALUE, Const.GETFIELD));
+			loadLocal(pc, slot);
+			append(factory.createInvoke(STR_UPVALUE, "setValue", Type.VOID, ARG_TYPES_LUAVALUE, Const.INVOKEVIRTUAL));
+			return;
+		}
 		boolean isrw = pi.isReadWriteUpvalue( pi.upvals[upindex] ); 
 		append(InstructionConst.THIS);
 		if ( isrw ) {
@@ -498,6 +581,8 @@ public class JavaBuilder {
 	}
 
 	public void areturn() {
+		exitProfiler(main);
+		exitBudget(main);
 		append(InstructionConst.ARETURN);
 	}
 	
@@ -563,8 +648,58 @@ public class JavaBuilder {
 		}
 	}
 
+	/** Charge the call to the execution budget of the globals, if any, and bind it to the thread 
+	 * until the function returns or throws. */
+	private void enterBudget() {
+		outerBudget = mg.addLocalVariable("budget", TYPE_BUDGET, null, null);
+		append(InstructionConst.THIS);
+		append(factory.createFieldAccess(classname, NAME_GLOBALS, TYPE_GLOBALS, Const.GETFIELD));
+		append(factory.createInvoke(STR_BUDGET, "enter", TYPE_BUDGET, ARG_TYPES_GLOBALS, Const.INVOKESTATIC));
+		main.append(new ASTORE(outerBudget.getIndex()));
+	}
+
+	/** Push a frame for the profiler of the globals, if any, until the function returns or throws. */
+	private void enterProfiler() {
+		profilerFrame = mg.addLocalVariable("frame", TYPE_FRAME, null, null);
+		append(InstructionConst.THIS);
+		append(factory.createFieldAccess(classname, NAME_GLOBALS, TYPE_GLOBALS, Const.GETFIELD));
+		append(InstructionConst.THIS);
+		append(new PUSH(cp, Profiler.name(p)));
+		append(factory.createInvoke(STR_PROFILER, "enter", TYPE_FRAME, ARG_TYPES_GLOBALS_LUAFUNCTION_STRING, Const.INVOKESTATIC));
+		entered = main.append(new ASTORE(profilerFrame.getIndex()));
+	}
+
+	private InstructionHandle exitProfiler(InstructionList il) {
+		InstructionHandle first = il.append(new ALOAD(profilerFrame.getIndex()));
+		il.append(factory.createInvoke(STR_PROFILER, "exit", Type.VOID, ARG_TYPES_FRAME, Const.INVOKESTATIC));
+		return first;
+	}
+	
+	private InstructionHandle exitBudget(InstructionList il) {
+		InstructionHandle first = il.append(new ALOAD(outerBudget.getIndex()));
+		il.append(factory.createInvoke(STR_BUDGET, "exit", Type.VOID, ARG_TYPES_BUDGET, Const.INVOKESTATIC));
+		return first;
+	}
+
+	/** Charge n instructions to the execution budget of the globals, if any. */
+	public void chargeBudget(int n) {
+		append(InstructionConst.THIS);
+		append(factory.createFieldAccess(classname, NAME_GLOBALS, TYPE_GLOBALS, Const.GETFIELD));
+		append(new PUSH(cp, n));
+		append(factory.createInvoke(STR_BUDGET, "charge", Type.VOID, ARG_TYPES_GLOBALS_INT, Const.INVOKESTATIC));
+	}
+
+	/** Record a sample for the profiler of the globals, if any and a tick has passed. */
+	public void pollProfiler() {
+		append(InstructionConst.THIS);
+		append(factory.createFieldAccess(classname, NAME_GLOBALS, TYPE_GLOBALS, Const.GETFIELD));
+		append(factory.createInvoke(STR_PROFILER, "poll", Type.VOID, ARG_TYPES_GLOBALS, Const.INVOKESTATIC));
+	}
+
 	public void newTailcallVarargs() {
-		append(factory.createInvoke(STR_LUAVALUE, "tailcallOf", TYPE_VARARGS, ARG_TYPES_LUAVALUE_VARARGS, Const.INVOKESTATIC));
+		append(InstructionConst.THIS);
+		append(factory.createFieldAccess(classname, NAME_GLOBALS, TYPE_GLOBALS, Const.GETFIELD));
+		append(factory.createInvoke(STR_BUDGET, "tailcallOf", TYPE_VARARGS, ARG_TYPES_LUAVALUE_VARARGS_GLOBALS, Const.INVOKESTATIC));
 	}
 	
 	public void invoke(int nargs) {
@@ -585,6 +720,10 @@ public class JavaBuilder {
 		append(factory.createNew(new ObjectType(protoname)));
 		append(InstructionConst.DUP);
 		append(factory.createInvoke(protoname, "<init>", Type.VOID, Type.NO_ARGS, Const.INVOKESPECIAL));
+		append(InstructionConst.DUP);
+		append(InstructionConst.THIS);
+		append(factory.createFieldAccess(classname, NAME_GLOBALS, TYPE_GLOBALS, Const.GETFIELD));
+		append(factory.createFieldAccess(protoname, NAME_GLOBALS, TYPE_GLOBALS, Const.PUTFIELD));
 	}
 
 	public void closureInitUpvalueFromUpvalue(String protoname, int newup, int upindex) {
@@ -606,6 +745,45 @@ public class JavaBuilder {
 		append(factory.createFieldAccess(protoname, destname, uptype, Const.PUTFIELD));
 	}
 	
+	// closures created by tiered functions are interpreted, and share upvalues through UpValue objects
+	
+	public void closureCreate(int index) {
+		append(InstructionConst.THIS);
+		append(factory.createFieldAccess(classname, NAME_CLOSURE, TYPE_LUACLOSURE, Const.GETFIELD));
+		append(new PUSH(cp, index));
+		append(factory.createInvoke(STR_LUACLOSURE, "newClosure", TYPE_LUACLOSURE, ARG_TYPES_INT, Const.INVOKEVIRTUAL));
+	}
+
+	public void closureInitUpvalueFromUpvalue(int newup, int upindex) {
+		append(factory.createFieldAccess(STR_LUACLOSURE, "upValues", TYPE_UPVALUEARRAY, Const.GETFIELD));
+		append(new PUSH(cp, newup));
+		append(InstructionConst.THIS);
+		append(factory.createFieldAccess(classname, upvalueName(upindex), TYPE_UPVALUE, Const.GETFIELD));
+		append(InstructionConst.AASTORE);
+	}
+
+	public void closureInitUpvalueFromLocal(int newup, int pc, int srcslot) {
+		boolean isrw = pi.isReadWriteUpvalue( pi.vars[srcslot][pc].upvalue ); 
+		append(factory.createFieldAccess(STR_LUACLOSURE, "upValues", TYPE_UPVALUEARRAY, Const.GETFIELD));
+		append(new PUSH(cp, newup));
+		append(factory.createNew(TYPE_UPVALUE));
+		append(InstructionConst.DUP);
+		if ( isrw ) {
+			append(new ALOAD(findSlotIndex( srcslot, true )));
+		} else {
+			// value never changes once captured, give it its own holder
+			append(new PUSH(cp, 1));
+			append(factory.createNewArray(TYPE_LUAVALUE, (short) 1));
+			append(InstructionConst.DUP);
+			append(new PUSH(cp, 0));
+			append(new ALOAD(findSlotIndex( srcslot, false )));
+			append(InstructionConst.AASTORE);
+		}
+		append(new PUSH(cp, 0));
+		append(factory.createInvoke(STR_UPVALUE, Const.CONSTRUCTOR_NAME, Type.VOID, ARG_TYPES_LUAVALUEARRAY_INT, Const.INVOKESPECIAL));
+		append(InstructionConst.AASTORE);
+	}
+	
 	private Map<LuaValue,String> constants = new HashMap<LuaValue,String>();
 	
 	public void loadConstant(LuaValue value) {
@@ -623,6 +801,8 @@ public class JavaBuilder {
 				name = value.type() == LuaValue.TNUMBER?
 						value.isinttype()? 
 							createLuaIntegerField(value.checkint()):
+						value instanceof LuaLong?
+							createLuaLongField(value.checklong()):
 							createLuaDoubleField(value.checkdouble()):
 						createLuaStringField(value.checkstring());
 				constants.put(value, name);
@@ -646,6 +826,18 @@ public class JavaBuilder {
 		return name;
 	}
 	
+	private String createLuaLongField(long value) {
+		String name = PREFIX_CONSTANT+constants.size();
+		FieldGen fg = new FieldGen(Const.ACC_STATIC | Const.ACC_FINAL,
+				TYPE_LUAVALUE, name, cp);
+		cg.addField(fg.getField());
+		init.append(new PUSH(cp, value));
+		init.append(factory.createInvoke(STR_LUAVALUE, "valueOf",
+				TYPE_LUANUMBER, ARG_TYPES_LONG, Const.INVOKESTATIC));
+		init.append(factory.createPutStatic(classname, name, TYPE_LUAVALUE));
+		return name;
+	}
+
 	private String createLuaDoubleField(double value) {
 		String name = PREFIX_CONSTANT+constants.size();
 		FieldGen fg = new FieldGen(Const.ACC_STATIC | Const.ACC_FINAL,
@@ -723,9 +915,33 @@ public class JavaBuilder {
 		lastInstrHandles[pc] = main.getEnd();
 		if (line != prev_line)
 			mg.addLineNumber(beginningOfLuaInstruction, prev_line = line);
+		if (beginningOfLuaInstruction != null) {
+			int n = lineNumbers.size();
+			if (n > 0 && lineNumbers.get(n-1).intValue() == line) {
+				lineEnds.set(n-1, main.getEnd());
+			} else {
+				lineStarts.add(beginningOfLuaInstruction);
+				lineEnds.add(main.getEnd());
+				lineNumbers.add(Integer.valueOf(line));
+			}
+		}
 		beginningOfLuaInstruction = null;
 	}
 	
+	/** Append a handler per run of instructions of the same line, which gives the 
+	 * errors raised there the position the interpreter would have given them,
+	 * so it does not depend on the java stack trace. */
+	private void addLineHandlers() {
+		String source = p.source != null? p.source.tojstring(): "?";
+		for (int i = 0, n = lineNumbers.size(); i < n; i++) {
+			InstructionHandle handler = main.append(new PUSH(cp, source));
+			main.append(new PUSH(cp, lineNumbers.get(i).intValue()));
+			main.append(factory.createInvoke(STR_LUAERROR, "at", TYPE_LUAERROR, ARG_TYPES_RUNTIMEEXCEPTION_STRING_INT, Const.INVOKESTATIC));
+			main.append(InstructionConst.ATHROW);
+			mg.addExceptionHandler(lineStarts.get(i), lineEnds.get(i), handler, TYPE_RUNTIMEEXCEPTION);
+		}
+	}
+	
 	public void setVarStartEnd(int slot, int start_pc, int end_pc, String name) {
 		Integer islot = Integer.valueOf(slot);
 		if (localVarGenBySlot.containsKey(islot)) {
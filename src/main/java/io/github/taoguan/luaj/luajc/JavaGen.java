@@ -14,15 +14,22 @@ public class JavaGen {
 	public final JavaGen[] inners;
 	
 	public JavaGen(Prototype p, String classname, String filename, boolean genmain ) {
-		this( new ProtoInfo(p,classname), classname, filename, genmain );
+		this( new ProtoInfo(p,classname), classname, filename, genmain, false );
 	}
 	
-	private JavaGen( ProtoInfo pi, String classname, String filename, boolean genmain ) {
+	/** Generate the class of a single prototype for tiered execution, 
+	 * leaving nested prototypes to the interpreter.
+	 * @see TieredLoader */
+	public static JavaGen tiered(Prototype p, String classname, String filename) {
+		return new JavaGen( new ProtoInfo(p,classname), classname, filename, false, true );
+	}
+	
+	private JavaGen( ProtoInfo pi, String classname, String filename, boolean genmain, boolean tiered ) {
 		this.classname = classname;
 		
 		// build this class
-		JavaBuilder builder = new JavaBuilder(pi, classname, filename);
-		scanInstructions(pi, classname, builder);
+		JavaBuilder builder = new JavaBuilder(pi, classname, filename, tiered);
+		scanInstructions(pi, classname, builder, tiered);
 		for (int i = 0; i < pi.prototype.locvars.length; ++i) {
 			LocVars l = pi.prototype.locvars[i];
 			builder.setVarStartEnd(i, l.startpc, l.endpc, l.varname.tojstring());
@@ -30,17 +37,17 @@ public class JavaGen {
 		this.bytecode = builder.completeClass(genmain);
 		
 		// build sub-prototypes
-		if ( pi.subprotos != null ) {
+		if ( pi.subprotos != null && !tiered ) {
 			int n = pi.subprotos.length;
 			inners = new JavaGen[n];
 			for ( int i=0; i<n; i++ )
-				inners[i] = new JavaGen(pi.subprotos[i], pi.subprotos[i].name, filename, false);
+				inners[i] = new JavaGen(pi.subprotos[i], pi.subprotos[i].name, filename, false, false);
 		} else {
 			inners = null;
 		}
 	}
 
-	private void scanInstructions(ProtoInfo pi, String classname, JavaBuilder builder) {
+	private void scanInstructions(ProtoInfo pi, String classname, JavaBuilder builder, boolean tiered) {
 		Prototype p = pi.prototype;
 		int vresultbase = -1;
 		
@@ -187,6 +194,10 @@ public class JavaGen {
 					break;
 					
 				case JMP: /*	sBx	pc+=sBx					*/
+					if (sbx < 0) {
+						builder.chargeBudget(-sbx);
+						builder.pollProfiler();
+					}
 					if (a > 0) {
 						for (int i = a-1; i < pi.openups.length; ++i) {
 							builder.closeUpvalue(pc, i);
@@ -246,6 +257,7 @@ public class JavaGen {
 						builder.invoke(narg);
 					else
 						builder.call(narg);
+					builder.pollProfiler();
 					
 					// handle results
 					switch ( c ) {
@@ -320,6 +332,8 @@ public class JavaGen {
 					break;
 					
 				case FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
+					builder.chargeBudget(-sbx);
+					builder.pollProfiler();
 					builder.loadLocal(pc, a);
 					builder.loadLocal(pc, a+2);
 					builder.binaryop( OpCode.ADD );
@@ -338,6 +352,7 @@ public class JavaGen {
 					builder.loadLocal(pc, a+1);
 					builder.loadLocal(pc, a+2);
 					builder.invoke(2);
+					builder.pollProfiler();
 					for ( int i=1; i<=c; i++ ) {
 						if ( i < c )
 							builder.dup();
@@ -347,6 +362,8 @@ public class JavaGen {
 					break;
 					
 				case TFORLOOP:/* A sBx   if R(A+1) ~= nil then { R(A)=R(A+1); pc += sBx } */
+					builder.chargeBudget(-sbx);
+					builder.pollProfiler();
 					builder.loadLocal(pc, a+1);
 					builder.dup();
 					builder.storeLocal(pc, a);
@@ -375,7 +392,10 @@ public class JavaGen {
 					Prototype newp = p.p[bx];
 					int nup = newp.upvalues.length;
 					String protoname = pi.subprotos[bx].name;
-					builder.closureCreate( protoname );
+					if ( tiered )
+						builder.closureCreate( bx );
+					else
+						builder.closureCreate( protoname );
 					if ( nup > 0 )
 						builder.dup();
 					builder.storeLocal( pc, a );
@@ -383,7 +403,12 @@ public class JavaGen {
 						if ( up+1 < nup )
 							builder.dup();
 						Upvaldesc u = newp.upvalues[up];
-						if (u.instack)
+						if ( tiered ) {
+							if (u.instack)
+								builder.closureInitUpvalueFromLocal( up, pc, u.idx );
+							else
+								builder.closureInitUpvalueFromUpvalue( up, u.idx );
+						} else if (u.instack)
 							builder.closureInitUpvalueFromLocal( protoname, up, pc, u.idx );
 						else
 							builder.closureInitUpvalueFromUpvalue( protoname, up, u.idx );
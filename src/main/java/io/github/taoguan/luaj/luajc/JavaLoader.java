@@ -2,6 +2,7 @@ package io.github.taoguan.luaj.luajc;
 
 import io.github.taoguan.luaj.*;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -17,6 +18,24 @@ public class JavaLoader extends ClassLoader {
 		return load( jg, env );
 	}
 	
+	/** Load a prototype, defining its classes from cache when they were generated before,
+	 * and storing them in cache otherwise.  Classes that cannot be stored are still loaded. */
+	public LuaFunction load(Prototype p, String classname, String filename, LuaValue env, ClassCache cache ) throws IOException {
+		String key = cache.key( p, classname, filename );
+		Map<String,byte[]> classes = cache.get( key );
+		if ( classes != null ) {
+			unloaded.putAll( classes );
+			return load( classname, env );
+		}
+		JavaGen jg = new JavaGen( p, classname, filename, false );
+		try {
+			cache.put( key, jg );
+		} catch ( IOException e ) {
+			// counted by the cache, generated again next time
+		}
+		return load( jg, env );
+	}
+	
 	public LuaFunction load(JavaGen jg, LuaValue env ) {
 		include( jg );
 		return load( jg.classname, env );
@@ -27,6 +46,8 @@ public class JavaLoader extends ClassLoader {
 			Class c = loadClass( classname );
 			LuaFunction v = (LuaFunction) c.newInstance();
 			v.initupvalue1(env);
+			if ( env instanceof Globals )
+				c.getField("globals").set(v, env);
 			return v;
 		} catch ( Exception e ) {
 			e.printStackTrace();
@@ -4,6 +4,7 @@ import io.github.taoguan.luaj.*;
 import io.github.taoguan.luaj.compiler.LuaC;
 import io.github.taoguan.luaj.lib.jse.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
@@ -28,6 +29,10 @@ import java.util.Hashtable;
  * chunk.call();
  * } </pre>
  * <p>
+ * Generated classes can be kept in a {@link ClassCache} directory with 
+ * {@link #install(Globals, ClassCache)}, so later loads of the same chunk, 
+ * also in later runs, skip bytecode generation.
+ * <p>
  * This requires the bcel library to be on the class path to work as expected.  
  * If the library is not found, the default {@link LuaC} lua-to-lua-bytecode 
  * compiler will be used.  
@@ -41,15 +46,52 @@ public class LuaJC implements Globals.Loader {
 	
 	public static final LuaJC instance = new LuaJC();
 	
+	/** LuaJC using the class cache named by the system property 
+	 * 'io.github.taoguan.luaj.luajc.cache', or null if it is not set. */
+	private static LuaJC cached;
+	
+	/** Cache of generated classes, or null to generate them on every load. */
+	protected final ClassCache cache;
+	
 	/** 
 	 * Install the compiler as the main Globals.Loader to use in a set of globals. 
 	 * Will fall back to the LuaC prototype compiler.
+	 * <p>
+	 * If the system property 'io.github.taoguan.luaj.luajc.cache' names a directory,
+	 * generated classes are cached there as by {@link #install(Globals, ClassCache)}.
 	 */
 	public static final void install(Globals G) {
-		G.loader = instance; 
+		String dir = System.getProperty("io.github.taoguan.luaj.luajc.cache");
+		G.loader = dir != null? cached(dir): instance; 
+	}
+	
+	/** 
+	 * Install the compiler as the main Globals.Loader to use in a set of globals,
+	 * keeping the generated classes in a {@link ClassCache} so that they are 
+	 * defined from disk when the same chunk is loaded again, also by later runs.
+	 */
+	public static final void install(Globals G, ClassCache cache) {
+		G.loader = new LuaJC(cache); 
 	}
 	
-	protected LuaJC() {}
+	private static synchronized LuaJC cached(String dir) {
+		if ( cached == null || !cached.cache.getDirectory().equals(new File(dir)) )
+			cached = new LuaJC(new ClassCache(new File(dir)));
+		return cached;
+	}
+	
+	protected LuaJC() {
+		this(null);
+	}
+	
+	protected LuaJC(ClassCache cache) {
+		this.cache = cache;
+	}
+	
+	/** The cache of generated classes used by this loader, or null. */
+	public ClassCache getCache() {
+		return cache;
+	}
 
 	public Hashtable compileAll(InputStream script, String chunkname, String filename, Globals globals, boolean genmain) throws IOException {
 		final String classname = toStandardJavaClassName( chunkname );
@@ -81,6 +123,8 @@ public class LuaJC implements Globals.Loader {
 		String luaname = toStandardLuaFileName( name );
 		String classname = toStandardJavaClassName( luaname );
 		JavaLoader loader = new JavaLoader();
+		if ( cache != null )
+			return loader.load(p, classname, luaname, globals, cache);
 		return loader.load(p, classname, luaname, globals);
 	}
 	
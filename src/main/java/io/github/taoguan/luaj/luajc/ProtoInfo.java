@@ -32,7 +32,7 @@ public class ProtoInfo {
 	private ProtoInfo(Prototype p, String name, UpvalInfo[] u) {
 		this.name = name;
 		this.prototype = p;
-		this.upvals = u != null? u: new UpvalInfo[] { new UpvalInfo(this) };
+		this.upvals = u != null? u: outerUpvalues(p);
 		this.subprotos = p.p!=null&&p.p.length>0? new ProtoInfo[p.p.length]: null;
 		
 		// find basic blocks
@@ -55,6 +55,14 @@ public class ProtoInfo {
 		findUpvalues();
 	}
 
+	// Upvalues of a prototype compiled on its own, such as the environment of a main chunk.
+	private UpvalInfo[] outerUpvalues(Prototype p) {
+		UpvalInfo[] u = new UpvalInfo[Math.max(1, p.upvalues.length)];
+		for ( int i=0; i<u.length; i++ )
+			u[i] = new UpvalInfo(this);
+		return u;
+	}
+
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
 		
@@ -0,0 +1,291 @@
+package io.github.taoguan.luaj.luajc;
+
+import io.github.taoguan.luaj.*;
+import io.github.taoguan.luaj.vm.LuaInstruction;
+import io.github.taoguan.luaj.vm.OpCode;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Implementation of {@link Globals.Loader} and {@link Globals.Tiering} which starts
+ * every function in the {@link LuaClosure} interpreter and compiles the hot ones
+ * to java bytecode with {@link JavaGen}.
+ * <p>
+ * Loading stays as fast as with {@link io.github.taoguan.luaj.compiler.LuaC},
+ * while functions that are called often or run long loops get close to the speed
+ * of {@link LuaJC}.  Calls and loop back-edges are counted per {@link Prototype},
+ * and once their sum reaches the threshold the prototype is compiled,
+ * on the calling thread or on a background thread, and each closure of it
+ * runs the compiled function from its next call on:
+ * <pre> {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * TieredLoader tiers = TieredLoader.install(globals);
+ * globals.load(script, "main.lua").call();
+ * System.out.println(tiers);
+ * } </pre>
+ * <p>
+ * Tiering state is kept on the {@link Prototype}, so it is process-wide for prototypes
+ * shared between globals, such as through {@link io.github.taoguan.luaj.script.PrototypeCache}
+ * or {@link io.github.taoguan.luaj.lib.ModuleCache}: calls from every globals count together,
+ * the first loader whose threshold they reach compiles the prototype with its own background
+ * setting, and closures in all globals with a TieredLoader then run that compiled form.
+ * Each loader counts only the prototypes it compiled and the closures it bound.
+ * <p>
+ * A compiled function shares the upvalues of its closure, and the functions it
+ * creates start interpreted again, so the two tiers can be mixed freely.
+ * A call already running in the interpreter stays there until it returns.
+ * As with {@link LuaJC}, compiled functions do not report calls and lines to debug hooks,
+ * and calls made from a stackless coroutine are always interpreted.
+ * <p>
+ * This requires the bcel library to be on the class path;
+ * prototypes that fail to compile keep being interpreted.
+ *
+ * @see Globals#tiering
+ * @see LuaJC
+ */
+public class TieredLoader implements Globals.Loader, Globals.Tiering {
+
+	/** Default sum of calls and loop back-edges at which a prototype is compiled. */
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	private static final Object QUEUED = new Object();
+	private static final Object FAILED = new Object();
+
+	private static final AtomicInteger classes = new AtomicInteger();
+
+	private final int threshold;
+	private final boolean background;
+	private ExecutorService executor;
+
+	private final LongAdder compiled = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder queued = new LongAdder();
+	private final LongAdder bound = new LongAdder();
+	private final LongAdder compileNanos = new LongAdder();
+
+	/**
+	 * Install tiered execution in a set of globals, compiling hot prototypes
+	 * on the calling thread once they reach {@link #DEFAULT_THRESHOLD}.
+	 */
+	public static TieredLoader install(Globals G) {
+		return install(G, new TieredLoader(DEFAULT_THRESHOLD, false));
+	}
+
+	/** Install tiered execution in a set of globals using loader for both
+	 * {@link Globals#loader} and {@link Globals#tiering}. */
+	public static TieredLoader install(Globals G, TieredLoader loader) {
+		G.loader = loader;
+		G.tiering = loader;
+		return loader;
+	}
+
+	/**
+	 * Construct a tiered loader.
+	 * @param threshold sum of calls and loop back-edges at which a prototype is compiled, 0 to compile on first call.
+	 * @param background true to compile on a background thread, interpreting meanwhile.
+	 */
+	public TieredLoader(int threshold, boolean background) {
+		if (threshold < 0)
+			throw new IllegalArgumentException("threshold < 0: " + threshold);
+		this.threshold = threshold;
+		this.background = background;
+	}
+
+	public LuaFunction load(Prototype prototype, String chunkname, LuaValue env) {
+		return new LuaClosure(prototype, env);
+	}
+
+	public LuaFunction onCall(LuaClosure closure) {
+		Prototype p = closure.p;
+		Object c = p.compiled;
+		if (c == null) {
+			if (++p.calls + p.backedges < threshold)
+				return null;
+			c = background? submit(p): compile(p);
+		}
+		if (!(c instanceof Binder))
+			return null;
+		LuaFunction f = ((Binder) c).bind(closure);
+		bound.increment();
+		return f;
+	}
+
+	// the compiled form of a prototype is claimed under the lock of the prototype,
+	// which may be shared with other loaders
+	private Object submit(final Prototype p) {
+		synchronized (p) {
+			if (p.compiled != null)
+				return p.compiled;
+			p.compiled = QUEUED;
+		}
+		queued.increment();
+		ExecutorService e;
+		synchronized (this) {
+			if (executor == null)
+				executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "luaj-tiered-compiler");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			e = executor;
+		}
+		e.execute(new Runnable() {
+			public void run() {
+				p.compiled = generate(p);
+			}
+		});
+		return QUEUED;
+	}
+
+	private Object compile(Prototype p) {
+		synchronized (p) {
+			if (p.compiled == null)
+				p.compiled = generate(p);
+			return p.compiled;
+		}
+	}
+
+	private Object generate(Prototype p) {
+		long start = System.nanoTime();
+		try {
+			if (!compilable(p)) {
+				failed.increment();
+				return FAILED;
+			}
+			String filename = p.source != null? p.source.tojstring(): "?";
+			if (filename.startsWith("@") || filename.startsWith("="))
+				filename = filename.substring(1);
+			String classname = "tiered_" + classes.incrementAndGet() + "_" + p.linedefined;
+			JavaLoader loader = new JavaLoader();
+			loader.include(JavaGen.tiered(p, classname, filename));
+			Binder b = new Binder(loader.loadClass(classname), p.upvalues.length);
+			compiled.increment();
+			return b;
+		} catch (Throwable t) {
+			failed.increment();
+			return FAILED;
+		} finally {
+			compileNanos.add(System.nanoTime() - start);
+		}
+	}
+
+	// instructions taking an extra argument are not supported by JavaGen
+	private static boolean compilable(Prototype p) {
+		for (int i = 0, n = p.code.length; i < n; i++) {
+			int ins = p.code[i];
+			OpCode o = LuaInstruction.getOpCode(ins);
+			if (o == OpCode.LOADKX || o == OpCode.EXTRAARG || (o == OpCode.SETLIST && LuaInstruction.getC(ins) == 0))
+				return false;
+		}
+		return true;
+	}
+
+	/** Wait until all prototypes queued for background compilation are compiled. */
+	public void awaitCompiled() throws InterruptedException {
+		ExecutorService e;
+		synchronized (this) {
+			e = executor;
+		}
+		if (e == null)
+			return;
+		Future f = e.submit(new Runnable() {
+			public void run() {
+			}
+		});
+		try {
+			f.get();
+		} catch (java.util.concurrent.ExecutionException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/** Sum of calls and loop back-edges at which a prototype is compiled. */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/** Whether prototypes are compiled on a background thread. */
+	public boolean isBackground() {
+		return background;
+	}
+
+	/** Number of prototypes compiled. */
+	public long getCompiledCount() {
+		return compiled.sum();
+	}
+
+	/** Number of hot prototypes that could not be compiled and stay interpreted. */
+	public long getFailedCount() {
+		return failed.sum();
+	}
+
+	/** Number of prototypes queued for background compilation. */
+	public long getQueuedCount() {
+		return queued.sum();
+	}
+
+	/** Number of closures switched to a compiled function. */
+	public long getBoundCount() {
+		return bound.sum();
+	}
+
+	/** Total time spent compiling, in nanoseconds. */
+	public long getCompileNanos() {
+		return compileNanos.sum();
+	}
+
+	public String toString() {
+		return "TieredLoader(threshold=" + threshold + ", compiled=" + getCompiledCount() +
+			", failed=" + getFailedCount() + ", queued=" + getQueuedCount() +
+			", bound=" + getBoundCount() + ", compileMillis=" + getCompileNanos() / 1000000 + ")";
+	}
+
+	/** Creates instances of a compiled class bound to the upvalues of a closure,
+	 * for any loader that finds it on a shared prototype. */
+	private static final class Binder {
+		private final MethodHandle constructor;
+		private final MethodHandle[] upvalues;
+		private final MethodHandle closure;
+		private final MethodHandle globals;
+
+		Binder(Class c, int nup) throws ReflectiveOperationException {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			constructor = lookup.findConstructor(c, MethodType.methodType(void.class))
+				.asType(MethodType.methodType(LuaFunction.class));
+			MethodType setter = MethodType.methodType(void.class, LuaFunction.class, UpValue.class);
+			upvalues = new MethodHandle[nup];
+			for (int i = 0; i < nup; i++)
+				upvalues[i] = lookup.findSetter(c, "u" + i, UpValue.class).asType(setter);
+			closure = lookup.findSetter(c, "closure", LuaClosure.class)
+				.asType(MethodType.methodType(void.class, LuaFunction.class, LuaClosure.class));
+			globals = lookup.findSetter(c, "globals", Globals.class)
+				.asType(MethodType.methodType(void.class, LuaFunction.class, Globals.class));
+		}
+
+		LuaFunction bind(LuaClosure c) {
+			try {
+				LuaFunction f = (LuaFunction) constructor.invokeExact();
+				UpValue[] u = c.upValues;
+				for (int i = 0; i < upvalues.length; i++)
+					upvalues[i].invokeExact(f, u[i]);
+				closure.invokeExact(f, c);
+				globals.invokeExact(f, c.globals);
+				return f;
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new IllegalStateException("bad class gen: " + t);
+			}
+		}
+	}
+}
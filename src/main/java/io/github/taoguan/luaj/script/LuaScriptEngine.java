@@ -7,7 +7,6 @@ import io.github.taoguan.luaj.lib.jse.CoerceJavaToLua;
 
 import javax.script.*;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
 
@@ -30,10 +29,18 @@ public class LuaScriptEngine extends AbstractScriptEngine implements ScriptEngin
     private static final String __LANGUAGE_VERSION__ = "5.3";
     private static final String __ARGV__             = "arg";
     private static final String __FILENAME__         = "?";
+    private static final String __CHUNKNAME__        = "script";
     
     private static final ScriptEngineFactory myFactory = new LuaScriptEngineFactory();
     
+    /** Prototype cache shared by engines that have not been given their own,
+     * sized by the system property 'io.github.taoguan.luaj.script.cache'. */
+    public static final PrototypeCache SHARED_CACHE = new PrototypeCache(
+    		Integer.getInteger("io.github.taoguan.luaj.script.cache", PrototypeCache.DEFAULT_MAX_ENTRIES));
+    
     private LuajContext context;
+    
+    private volatile PrototypeCache cache = SHARED_CACHE;
 
     public LuaScriptEngine() {
     	// set up context
@@ -60,21 +67,50 @@ public class LuaScriptEngine extends AbstractScriptEngine implements ScriptEngin
 	@Override
 	public CompiledScript compile(Reader script) throws ScriptException {
 		try {
-	    	InputStream is = new Utf8Encoder(script);
-	    	try {
-	    		final Globals g = context.globals;
-	    		final LuaFunction f = g.load(script, "script").checkfunction();
-	    		return new LuajCompiledScript(f, g);
+			final String text = readAll(script);
+			final Globals g = context.globals;
+			final PrototypeCache c = cache;
+			try {
+				final PrototypeCache.Key key = c != null? new PrototypeCache.Key(text, __CHUNKNAME__): null;
+				Prototype p = c != null? c.get(key): null;
+				if (p == null) {
+					p = g.compilePrototype(new StringReader(text), __CHUNKNAME__);
+					if (c != null)
+						c.put(key, p);
+				}
+				final LuaFunction f = g.loader.load(p, __CHUNKNAME__, g).checkfunction();
+				return new LuajCompiledScript(f, g);
 			} catch ( LuaError lee ) {
 				throw new ScriptException(lee.getMessage() );
-			} finally { 
-				is.close();
 			}
 		} catch ( Exception e ) {
 			throw new ScriptException("eval threw "+e.toString());
 		}
 	}
 
+	/** The cache of compiled prototypes consulted by {@link #compile(Reader)} 
+	 * and {@link #eval(Reader, ScriptContext)}, or null if caching is disabled. */
+	public PrototypeCache getPrototypeCache() {
+		return cache;
+	}
+
+	/** Replace the cache of compiled prototypes, or disable caching with null. */
+	public void setPrototypeCache(PrototypeCache cache) {
+		this.cache = cache;
+	}
+
+	private static String readAll(Reader r) throws IOException {
+		try {
+			StringBuilder sb = new StringBuilder();
+			char[] buf = new char[4096];
+			for (int n; (n = r.read(buf)) > 0; )
+				sb.append(buf, 0, n);
+			return sb.toString();
+		} finally {
+			r.close();
+		}
+	}
+
 	@Override
 	public Object eval(Reader reader, Bindings bindings) throws ScriptException {
 		return ((LuajCompiledScript) compile(reader)).eval(context.globals, bindings);
@@ -154,35 +190,6 @@ public class LuaScriptEngine extends AbstractScriptEngine implements ScriptEngin
 		}
 	}
 
-	// ------ convert char stream to byte stream for lua compiler ----- 
-
-	private final class Utf8Encoder extends InputStream {
-		private final Reader r;
-		private final int[] buf = new int[2];
-		private int n;
-
-		private Utf8Encoder(Reader r) {
-			this.r = r;
-		}
-
-		public int read() throws IOException {
-			if ( n > 0 )
-				return buf[--n];
-			int c = r.read();
-			if ( c < 0x80 )
-				return c;
-			n = 0;
-			if ( c < 0x800 ) {
-				buf[n++] = (0x80 | ( c      & 0x3f));				
-				return     (0xC0 | ((c>>6)  & 0x1f));
-			} else {
-				buf[n++] = (0x80 | ( c      & 0x3f));				
-				buf[n++] = (0x80 | ((c>>6)  & 0x3f));
-				return     (0xE0 | ((c>>12) & 0x0f));
-			}
-		}
-	}
-	
 	static class BindingsMetatable extends LuaTable {
 
 		BindingsMetatable(final Bindings bindings) {
@@ -225,6 +232,8 @@ public class LuaScriptEngine extends AbstractScriptEngine implements ScriptEngin
 		case LuaValue.TUSERDATA: return luajValue.checkuserdata(Object.class);
 		case LuaValue.TNUMBER: return luajValue.isinttype()?
 				(Object) new Integer(luajValue.toint()): 
+				luajValue instanceof LuaLong?
+				(Object) Long.valueOf(luajValue.tolong()):
 				(Object) new Double(luajValue.todouble());
 		default: return luajValue;
 		}
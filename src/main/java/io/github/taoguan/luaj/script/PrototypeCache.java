@@ -0,0 +1,170 @@
+package io.github.taoguan.luaj.script;
+
+import io.github.taoguan.luaj.Prototype;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, thread-safe cache of compiled {@link Prototype}s used by {@link LuaScriptEngine}.
+ * <p>
+ * Entries are keyed by the chunk name and a SHA-256 hash of the script text,
+ * so the same script evaluated again skips lexing, parsing and code generation.
+ * When the cache holds more than {@link #getMaxEntries()} prototypes, the least
+ * recently used ones are evicted.
+ * <p>
+ * All engines share {@link LuaScriptEngine#SHARED_CACHE} unless given a cache
+ * of their own with {@link LuaScriptEngine#setPrototypeCache(PrototypeCache)}.
+ * Its size is taken from the system property 'io.github.taoguan.luaj.script.cache',
+ * and defaults to {@link #DEFAULT_MAX_ENTRIES}.
+ */
+public class PrototypeCache {
+
+	/** Default number of prototypes retained. */
+	public static final int DEFAULT_MAX_ENTRIES = 512;
+
+	private final Map<Key, Prototype> entries = new LinkedHashMap<Key, Prototype>(16, 0.75f, true);
+
+	private int maxEntries;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/** Construct a cache retaining at most {@link #DEFAULT_MAX_ENTRIES} prototypes. */
+	public PrototypeCache() {
+		this(DEFAULT_MAX_ENTRIES);
+	}
+
+	/** Construct a cache retaining at most maxEntries prototypes.
+	 * @param maxEntries maximum number of prototypes, 0 to cache nothing.
+	 */
+	public PrototypeCache(int maxEntries) {
+		if (maxEntries < 0)
+			throw new IllegalArgumentException("maxEntries < 0: " + maxEntries);
+		this.maxEntries = maxEntries;
+	}
+
+	/** Look up the prototype compiled from a script.
+	 * @return the prototype, or null if it is not cached.
+	 */
+	public Prototype get(String script, String chunkname) {
+		return get(new Key(script, chunkname));
+	}
+
+	/** Remember the prototype compiled from a script. */
+	public void put(String script, String chunkname, Prototype p) {
+		put(new Key(script, chunkname), p);
+	}
+
+	synchronized Prototype get(Key key) {
+		Prototype p = entries.get(key);
+		if (p != null)
+			++hits;
+		else
+			++misses;
+		return p;
+	}
+
+	synchronized void put(Key key, Prototype p) {
+		entries.put(key, p);
+		trim();
+	}
+
+	/** Maximum number of prototypes retained. */
+	public synchronized int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/** Change the maximum number of prototypes retained, evicting the least
+	 * recently used ones if there are more.
+	 */
+	public synchronized void setMaxEntries(int maxEntries) {
+		if (maxEntries < 0)
+			throw new IllegalArgumentException("maxEntries < 0: " + maxEntries);
+		this.maxEntries = maxEntries;
+		trim();
+	}
+
+	/** Number of prototypes currently cached. */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/** Number of lookups that found a cached prototype. */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** Number of lookups that did not find a cached prototype. */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** Number of prototypes evicted to stay within {@link #getMaxEntries()}. */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/** Remove all prototypes, keeping the statistics. */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	/** Reset hit, miss and eviction counts to zero. */
+	public synchronized void resetStats() {
+		hits = misses = evictions = 0;
+	}
+
+	public synchronized String toString() {
+		return "PrototypeCache(size=" + entries.size() + ", maxEntries=" + maxEntries +
+			", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ")";
+	}
+
+	private void trim() {
+		for (Iterator<Key> i = entries.keySet().iterator(); entries.size() > maxEntries && i.hasNext(); ) {
+			i.next();
+			i.remove();
+			++evictions;
+		}
+	}
+
+	/** Chunk name and content hash of a script. */
+	static final class Key {
+		final String chunkname;
+		final byte[] digest;
+		final int hash;
+
+		Key(String script, String chunkname) {
+			this.chunkname = chunkname;
+			this.digest = sha256(script);
+			this.hash = Arrays.hashCode(digest) * 31 + chunkname.hashCode();
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return hash == k.hash && chunkname.equals(k.chunkname) && Arrays.equals(digest, k.digest);
+		}
+
+		private static byte[] sha256(String script) {
+			try {
+				return MessageDigest.getInstance("SHA-256").digest(script.getBytes(StandardCharsets.UTF_8));
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -22,6 +22,7 @@ import java.io.Reader;
  * @see LuajClassLoader
  * @see LuajClassLoader#NewLauncher()
  * @see LuajClassLoader#NewLauncher(Class)
+ * @see GlobalsPool
  */
 public class DefaultLauncher implements Launcher {
 	protected Globals g;
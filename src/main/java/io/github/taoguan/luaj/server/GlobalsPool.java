@@ -0,0 +1,203 @@
+package io.github.taoguan.luaj.server;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of fully initialized {@link Globals} for running many short scripts,
+ * such as one per tenant request, each in a pristine environment.
+ * <p>
+ * Building new globals with {@link JsePlatform#standardGlobals()} creates every
+ * library table and function again.  The pool instead keeps globals that were
+ * built once, takes a {@link GlobalsSnapshot} of each, and restores the snapshot
+ * when the globals are released, so the next {@link #checkout()} gets an
+ * environment indistinguishable from a new one.
+ * <pre> {@code
+ * GlobalsPool pool = new GlobalsPool();
+ * Globals g = pool.checkout();
+ * try {
+ *     g.load(script, "main").call();
+ * } finally {
+ *     pool.release(g);
+ * }
+ * } </pre>
+ * <p>
+ * The pool is thread-safe, but each checked out globals must only be used
+ * by one request at a time.  Coroutines still running in a released globals
+ * keep their own references and are not stopped.
+ * <p>
+ * Because the metatables of basic types such as strings are static, a script that
+ * changes them affects all globals in the class loader until its globals are released.
+ * Use {@link LuajClassLoader} for stronger isolation.
+ * <p>
+ * <em>Note: This class is experimental and subject to change in future versions.</em>
+ *
+ * @see GlobalsSnapshot
+ * @see DefaultLauncher
+ */
+public class GlobalsPool {
+
+	/** Factory for the globals held by a pool. */
+	public interface Factory {
+		/** Create new, fully initialized globals. */
+		Globals create();
+	}
+
+	/** Default maximum number of idle globals retained. */
+	public static final int DEFAULT_MAX_IDLE = 64;
+
+	private final Factory factory;
+	private final int maxIdle;
+
+	private final ConcurrentLinkedDeque<Globals> idle = new ConcurrentLinkedDeque<Globals>();
+	private final Map<Globals, Pooled> pooled = new IdentityHashMap<Globals, Pooled>();
+
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final AtomicInteger created = new AtomicInteger();
+	private final AtomicInteger checkedOut = new AtomicInteger();
+	private final LongAdder checkouts = new LongAdder();
+	private final LongAdder checkoutNanos = new LongAdder();
+	private final AtomicLong maxCheckoutNanos = new AtomicLong();
+
+	/** Construct a pool of {@link JsePlatform#standardGlobals()} retaining
+	 * up to {@link #DEFAULT_MAX_IDLE} idle globals. */
+	public GlobalsPool() {
+		this(new Factory() {
+			public Globals create() {
+				return JsePlatform.standardGlobals();
+			}
+		}, DEFAULT_MAX_IDLE);
+	}
+
+	/** Construct a pool of globals made by factory.
+	 * @param factory creates the globals, which are snapshotted as soon as they are created.
+	 * @param maxIdle maximum number of idle globals retained; extra globals
+	 * released to the pool are dropped.
+	 */
+	public GlobalsPool(Factory factory, int maxIdle) {
+		if (maxIdle < 0)
+			throw new IllegalArgumentException("maxIdle < 0: " + maxIdle);
+		this.factory = factory;
+		this.maxIdle = maxIdle;
+	}
+
+	/** Create globals until count of them are idle. */
+	public void prestart(int count) {
+		while (idleCount.get() < Math.min(count, maxIdle)) {
+			idle.push(create());
+			idleCount.incrementAndGet();
+		}
+	}
+
+	/** Take pristine globals from the pool, creating new ones if none are idle.
+	 * They must be given back with {@link #release(Globals)}. */
+	public Globals checkout() {
+		long start = System.nanoTime();
+		Globals g = idle.poll();
+		if (g != null)
+			idleCount.decrementAndGet();
+		else
+			g = create();
+		synchronized (pooled) {
+			pooled.get(g).checkedOut = true;
+		}
+		checkedOut.incrementAndGet();
+		long nanos = System.nanoTime() - start;
+		checkouts.increment();
+		checkoutNanos.add(nanos);
+		for (long max; nanos > (max = maxCheckoutNanos.get()); )
+			if (maxCheckoutNanos.compareAndSet(max, nanos))
+				break;
+		return g;
+	}
+
+	/** Restore globals obtained from {@link #checkout()} to their pristine state
+	 * and return them to the pool.
+	 * @throws IllegalArgumentException if the globals do not belong to this pool
+	 * @throws IllegalStateException if the globals are not checked out, such as when released twice */
+	public void release(Globals g) {
+		Pooled p;
+		synchronized (pooled) {
+			p = pooled.get(g);
+			if (p == null)
+				throw new IllegalArgumentException("globals do not belong to this pool");
+			if (!p.checkedOut)
+				throw new IllegalStateException("globals are not checked out");
+			p.checkedOut = false;
+		}
+		checkedOut.decrementAndGet();
+		p.snapshot.restore();
+		if (idleCount.incrementAndGet() <= maxIdle) {
+			idle.push(g);
+		} else {
+			idleCount.decrementAndGet();
+			synchronized (pooled) {
+				pooled.remove(g);
+			}
+		}
+	}
+
+	private Globals create() {
+		Globals g = factory.create();
+		Pooled p = new Pooled(new GlobalsSnapshot(g));
+		synchronized (pooled) {
+			pooled.put(g, p);
+		}
+		created.incrementAndGet();
+		return g;
+	}
+
+	/** Snapshot of globals of the pool, and whether they are checked out, guarded by the pool's lock. */
+	private static final class Pooled {
+		final GlobalsSnapshot snapshot;
+		boolean checkedOut;
+
+		Pooled(GlobalsSnapshot snapshot) {
+			this.snapshot = snapshot;
+		}
+	}
+
+	/** Number of idle globals in the pool. */
+	public int getIdleCount() {
+		return idleCount.get();
+	}
+
+	/** Number of globals currently checked out. */
+	public int getCheckedOutCount() {
+		return checkedOut.get();
+	}
+
+	/** Number of globals the pool has created. */
+	public int getCreatedCount() {
+		return created.get();
+	}
+
+	/** Number of calls to {@link #checkout()}. */
+	public long getCheckoutCount() {
+		return checkouts.sum();
+	}
+
+	/** Average time spent in {@link #checkout()}, in nanoseconds. */
+	public double getAverageCheckoutNanos() {
+		long n = checkouts.sum();
+		return n > 0 ? checkoutNanos.sum() / (double) n : 0;
+	}
+
+	/** Longest time spent in {@link #checkout()}, in nanoseconds. */
+	public long getMaxCheckoutNanos() {
+		return maxCheckoutNanos.get();
+	}
+
+	public String toString() {
+		return "GlobalsPool(idle=" + getIdleCount() + ", checkedOut=" + getCheckedOutCount() +
+			", created=" + getCreatedCount() + ", checkouts=" + getCheckoutCount() +
+			", avgCheckoutNanos=" + (long) getAverageCheckoutNanos() + ")";
+	}
+}
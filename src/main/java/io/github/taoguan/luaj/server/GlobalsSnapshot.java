@@ -0,0 +1,234 @@
+package io.github.taoguan.luaj.server;
+
+import io.github.taoguan.luaj.*;
+import io.github.taoguan.luaj.lib.BaseLib;
+import io.github.taoguan.luaj.lib.DebugLib;
+import io.github.taoguan.luaj.lib.IoLib;
+import io.github.taoguan.luaj.lib.MathLib;
+import io.github.taoguan.luaj.lib.PackageLib;
+import io.github.taoguan.luaj.lib.ResourceFinder;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Snapshot of a {@link Globals} that can later be restored in place.
+ * <p>
+ * The snapshot records the contents and metatable of every table reachable from
+ * the globals, such as the library tables and {@code package.loaded}, the fields
+ * of the {@link Globals} object, and the shared metatables of the basic types 
+ * that belong to these globals, such as the string metatable whose {@code __index} 
+ * is their {@code string} table.  Metatables of the basic types are shared by
+ * the whole process, so those that belong to other globals are left alone.
+ * {@link #restore()} puts all of these back, undoing any global assignments,
+ * library patches, and modules loaded since the snapshot was taken, and resets
+ * files set with {@code io.input()} or {@code io.output()}.
+ * The generator behind {@code math.random} is replaced by a new unseeded one,
+ * so neither a {@code math.randomseed} nor the numbers drawn before a restore
+ * carry over; other state held in Java by the libraries is not restored.
+ * Tables created after the snapshot are simply dropped from the globals.
+ * <p>
+ * Restoring only touches the tables that existed when the snapshot was taken,
+ * typically a few hundred entries for {@link io.github.taoguan.luaj.lib.jse.JsePlatform#standardGlobals()},
+ * so it is far cheaper than building new globals.
+ * <p>
+ * <em>Note: This class is experimental and subject to change in future versions.</em>
+ *
+ * @see GlobalsPool
+ */
+public class GlobalsSnapshot {
+
+	private final Globals globals;
+
+	private final LuaTable[] tables;
+	private final LuaValue[][] keys;
+	private final LuaValue[][] values;
+	private final Set<LuaValue>[] keysets;
+	private final LuaValue[] metatables;
+
+	private final LuaValue[] typeMetatables;
+	private final boolean[] ownedMetatables;
+
+	private final InputStream stdin;
+	private final PrintStream stdout;
+	private final PrintStream stderr;
+	private final ResourceFinder finder;
+	private final BaseLib baselib;
+	private final PackageLib package_;
+	private final DebugLib debuglib;
+	private final IoLib iolib;
+	private final Globals.Loader loader;
+	private final Globals.Compiler compiler;
+	private final Globals.Undumper undumper;
+	private final Globals.Tiering tiering;
+	private final Globals.Budget budget;
+	private final boolean errorstacktraces;
+	private final Profiler profiler;
+	private final LuaValue random;
+
+	/** Take a snapshot of the current state of globals. */
+	public GlobalsSnapshot(Globals globals) {
+		this.globals = globals;
+
+		Map<LuaTable, Boolean> seen = new IdentityHashMap<LuaTable, Boolean>();
+		List<LuaTable> found = new ArrayList<LuaTable>();
+		visit(globals, seen, found);
+		typeMetatables = new LuaValue[] {
+			LuaNil.s_metatable, LuaBoolean.s_metatable, LuaNumber.s_metatable,
+			LuaString.s_metatable, LuaFunction.s_metatable, LuaThread.s_metatable,
+		};
+		ownedMetatables = new boolean[typeMetatables.length];
+		for (int i = 0; i < typeMetatables.length; i++)
+			if (ownedMetatables[i] = owns(typeMetatables[i], seen))
+				visit(typeMetatables[i], seen, found);
+
+		int n = found.size();
+		tables = found.toArray(new LuaTable[n]);
+		keys = new LuaValue[n][];
+		values = new LuaValue[n][];
+		keysets = new Set[n];
+		metatables = new LuaValue[n];
+		for (int i = 0; i < n; i++) {
+			LuaTable t = tables[i];
+			LuaValue[] k = t.keys();
+			LuaValue[] v = new LuaValue[k.length];
+			for (int j = 0; j < k.length; j++)
+				v[j] = t.rawget(k[j]);
+			keys[i] = k;
+			values[i] = v;
+			Set<LuaValue> ks = new HashSet<LuaValue>(k.length * 2);
+			for (int j = 0; j < k.length; j++)
+				ks.add(k[j]);
+			keysets[i] = ks;
+			metatables[i] = t.getmetatable();
+		}
+
+		stdin = globals.STDIN;
+		stdout = globals.STDOUT;
+		stderr = globals.STDERR;
+		finder = globals.finder;
+		baselib = globals.baselib;
+		package_ = globals.package_;
+		debuglib = globals.debuglib;
+		iolib = globals.iolib;
+		loader = globals.loader;
+		compiler = globals.compiler;
+		undumper = globals.undumper;
+		tiering = globals.tiering;
+		budget = globals.budget;
+		errorstacktraces = globals.errorstacktraces;
+		profiler = globals.profiler;
+		LuaValue math = globals.rawget("math");
+		random = math.istable()? math.rawget("random"): LuaValue.NIL;
+	}
+
+	/** The globals this snapshot was taken from. */
+	public Globals getGlobals() {
+		return globals;
+	}
+
+	/** Number of tables recorded in the snapshot. */
+	public int getTableCount() {
+		return tables.length;
+	}
+
+	/** Restore the globals to the state they were in when the snapshot was taken. */
+	public void restore() {
+		for (int i = 0; i < tables.length; i++)
+			restore(tables[i], keys[i], values[i], keysets[i], metatables[i]);
+
+		if (ownedMetatables[0] && LuaNil.s_metatable != typeMetatables[0])
+			LuaNil.s_metatable = typeMetatables[0];
+		if (ownedMetatables[1] && LuaBoolean.s_metatable != typeMetatables[1])
+			LuaBoolean.s_metatable = typeMetatables[1];
+		if (ownedMetatables[2] && LuaNumber.s_metatable != typeMetatables[2])
+			LuaNumber.s_metatable = typeMetatables[2];
+		if (ownedMetatables[3] && LuaString.s_metatable != typeMetatables[3])
+			LuaString.s_metatable = typeMetatables[3];
+		if (ownedMetatables[4] && LuaFunction.s_metatable != typeMetatables[4])
+			LuaFunction.s_metatable = typeMetatables[4];
+		if (ownedMetatables[5] && LuaThread.s_metatable != typeMetatables[5])
+			LuaThread.s_metatable = typeMetatables[5];
+
+		globals.STDIN = stdin;
+		globals.STDOUT = stdout;
+		globals.STDERR = stderr;
+		globals.finder = finder;
+		globals.baselib = baselib;
+		globals.package_ = package_;
+		globals.debuglib = debuglib;
+		globals.iolib = iolib;
+		globals.loader = loader;
+		globals.compiler = compiler;
+		globals.undumper = undumper;
+		globals.tiering = tiering;
+		globals.budget = budget;
+		globals.errorstacktraces = errorstacktraces;
+		globals.profiler = profiler;
+		globals.running = new LuaThread(globals);
+		if (iolib != null)
+			iolib.resetDefaultFiles();
+		MathLib.reseed(random);
+	}
+
+	private static void restore(LuaTable t, LuaValue[] k, LuaValue[] v, Set<LuaValue> keyset, LuaValue mt) {
+		List<LuaValue> added = null;
+		for (LuaValue key = LuaValue.NIL; ; ) {
+			Varargs n = t.next(key);
+			if ((key = n.arg1()).isnil())
+				break;
+			if (!keyset.contains(key)) {
+				if (added == null)
+					added = new ArrayList<LuaValue>();
+				added.add(key);
+			}
+		}
+		if (added != null)
+			for (int i = 0, n = added.size(); i < n; i++)
+				t.rawset(added.get(i), LuaValue.NIL);
+		for (int i = 0; i < k.length; i++)
+			if (t.rawget(k[i]) != v[i])
+				t.rawset(k[i], v[i]);
+		if (t.getmetatable() != mt)
+			t.setmetatable(mt);
+	}
+
+	/** Whether a metatable of a basic type belongs to the globals whose tables were seen,
+	 * that is refers to one of them, like the string metatable to the string library. */
+	private static boolean owns(LuaValue mt, Map<LuaTable, Boolean> seen) {
+		if (mt == null || !mt.istable())
+			return false;
+		LuaTable t = (LuaTable) mt;
+		for (LuaValue key = LuaValue.NIL; ; ) {
+			Varargs n = t.next(key);
+			if ((key = n.arg1()).isnil())
+				return false;
+			LuaValue v = n.arg(2);
+			if (v.istable() && seen.containsKey(v))
+				return true;
+		}
+	}
+
+	private static void visit(LuaValue v, Map<LuaTable, Boolean> seen, List<LuaTable> found) {
+		if (v == null || !v.istable())
+			return;
+		LuaTable t = (LuaTable) v;
+		if (seen.put(t, Boolean.TRUE) != null)
+			return;
+		found.add(t);
+		visit(t.getmetatable(), seen, found);
+		for (LuaValue key = LuaValue.NIL; ; ) {
+			Varargs n = t.next(key);
+			if ((key = n.arg1()).isnil())
+				break;
+			visit(key, seen, found);
+			visit(n.arg(2), seen, found);
+		}
+	}
+}
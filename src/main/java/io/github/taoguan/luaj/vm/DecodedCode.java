@@ -0,0 +1,62 @@
+package io.github.taoguan.luaj.vm;
+
+import static io.github.taoguan.luaj.vm.LuaInstruction.*;
+
+/**
+ * Instructions of a prototype unpacked into parallel arrays of opcodes and operands,
+ * so that the interpreter dispatches on an int and reads each operand with one load.
+ * <p>
+ * For each pc, {@link #op} holds the opcode as one of the {@code OP_} constants of
+ * {@link LuaInstruction}, {@link #a} holds A, or Ax for {@code EXTRAARG}, 
+ * {@link #b} holds B, Bx or sBx according to the {@link OpMode} of the opcode, 
+ * and {@link #c} holds C.
+ *
+ * @see io.github.taoguan.luaj.Prototype#decoded()
+ */
+public final class DecodedCode {
+
+	/** The code these instructions were decoded from. */
+	public final int[] code;
+
+	public final int[] op;
+	public final int[] a;
+	public final int[] b;
+	public final int[] c;
+
+	public DecodedCode(int[] code) {
+		int n = code.length;
+		this.code = code;
+		this.op = new int[n];
+		this.a = new int[n];
+		this.b = new int[n];
+		this.c = new int[n];
+		for (int pc = 0; pc < n; pc++) {
+			int i = code[pc];
+			int o = getOp(i);
+			op[pc] = o;
+			c[pc] = getC(i);
+			switch (o) {
+			case OP_LOADK:
+			case OP_LOADKX:
+			case OP_CLOSURE:
+				a[pc] = getA(i);
+				b[pc] = getBx(i);
+				break;
+			case OP_JMP:
+			case OP_FORLOOP:
+			case OP_FORPREP:
+			case OP_TFORLOOP:
+				a[pc] = getA(i);
+				b[pc] = getSBx(i);
+				break;
+			case OP_EXTRAARG:
+				a[pc] = getAx(i);
+				break;
+			default:
+				a[pc] = getA(i);
+				b[pc] = getB(i);
+				break;
+			}
+		}
+	}
+}
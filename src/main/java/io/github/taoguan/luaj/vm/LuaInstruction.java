@@ -47,12 +47,69 @@ public class LuaInstruction {
     public static final int MASK_NOT_C  = ~MASK_C;
     public static final int MASK_NOT_Bx = ~MASK_Bx;
 
+    /*
+    ** opcodes as ints, equal to the ordinals of {@link OpCode}
+    */
+    public static final int OP_MOVE	= 0;
+    public static final int OP_LOADK	= 1;
+    public static final int OP_LOADKX	= 2;
+    public static final int OP_LOADBOOL	= 3;
+    public static final int OP_LOADNIL	= 4;
+    public static final int OP_GETUPVAL	= 5;
+    public static final int OP_GETTABUP	= 6;
+    public static final int OP_GETTABLE	= 7;
+    public static final int OP_SETTABUP	= 8;
+    public static final int OP_SETUPVAL	= 9;
+    public static final int OP_SETTABLE	= 10;
+    public static final int OP_NEWTABLE	= 11;
+    public static final int OP_SELF	= 12;
+    public static final int OP_ADD	= 13;
+    public static final int OP_SUB	= 14;
+    public static final int OP_MUL	= 15;
+    public static final int OP_DIV	= 16;
+    public static final int OP_MOD	= 17;
+    public static final int OP_POW	= 18;
+    public static final int OP_UNM	= 19;
+    public static final int OP_NOT	= 20;
+    public static final int OP_LEN	= 21;
+    public static final int OP_CONCAT	= 22;
+    public static final int OP_JMP	= 23;
+    public static final int OP_EQ	= 24;
+    public static final int OP_LT	= 25;
+    public static final int OP_LE	= 26;
+    public static final int OP_TEST	= 27;
+    public static final int OP_TESTSET	= 28;
+    public static final int OP_CALL	= 29;
+    public static final int OP_TAILCALL	= 30;
+    public static final int OP_RETURN	= 31;
+    public static final int OP_FORLOOP	= 32;
+    public static final int OP_FORPREP	= 33;
+    public static final int OP_TFORCALL	= 34;
+    public static final int OP_TFORLOOP	= 35;
+    public static final int OP_SETLIST	= 36;
+    public static final int OP_CLOSURE	= 37;
+    public static final int OP_VARARG	= 38;
+    public static final int OP_EXTRAARG	= 39;
+    public static final int OP_IDIV	= 40;
+    public static final int OP_BAND	= 41;
+    public static final int OP_BOR	= 42;
+    public static final int OP_BXOR	= 43;
+    public static final int OP_SHL	= 44;
+    public static final int OP_SHR	= 45;
+    public static final int OP_BNOT	= 46;
+
+    private static final OpCode[] OPCODES = OpCode.values();
+
     public static OpCode getOpCode(int i) {
         int index = i & 0x3F;
-        if(index >= OpCode.values().length){
+        if(index >= OPCODES.length){
             return null;
         }
-        return OpCode.values()[index];
+        return OPCODES[index];
+    }
+
+    public static int getOp(int i) {
+        return i & 0x3F;
     }
 
     public static int getA(int i) {
@@ -0,0 +1,182 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.luajc.LuaJC;
+import io.github.taoguan.luaj.luajc.TieredLoader;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BudgetTest {
+
+    private static final String COUNTED =
+            "local function f(n) local s = 0 for i = 1, n do s = s + i end return s end\n" +
+            "local s, i = 0, 0\n" +
+            "while i < 100 do i = i + 1 s = s + f(i) end\n" +
+            "for k, v in pairs({ 1, 2, 3, x = 4 }) do s = s + v end\n" +
+            "return s\n";
+
+    private static Globals globals(String mode) {
+        Globals g = JsePlatform.standardGlobals();
+        if (mode.equals("luajc"))
+            LuaJC.install(g);
+        else if (mode.equals("tiered"))
+            TieredLoader.install(g, new TieredLoader(0, false));
+        return g;
+    }
+
+    private static Globals.BudgetExceeded exceed(Globals g, String script) {
+        try {
+            g.load(script, "budget").call();
+        } catch (Globals.BudgetExceeded e) {
+            return e;
+        }
+        Assert.fail("expected the budget to be exceeded");
+        return null;
+    }
+
+    @Test
+    public void testSameCountInAllModes() {
+        long expected = -1;
+        for (String mode : new String[] { "interpreted", "luajc", "tiered" }) {
+            Globals g = globals(mode);
+            g.budget = new Globals.Budget(0, 0);
+            Assert.assertEquals(mode, 171710, g.load(COUNTED, "budget").call().toint());
+            long n = g.budget.getInstructions();
+            Assert.assertTrue(mode + " " + n, n > 5050);
+            if (expected < 0)
+                expected = n;
+            Assert.assertEquals(mode, expected, n);
+        }
+        Globals g = globals("interpreted");
+        g.budget = new Globals.Budget(expected, 0);
+        g.load(COUNTED, "budget").call();
+        g.budget = new Globals.Budget(expected - 1, 0);
+        Assert.assertEquals(Globals.Budget.INSTRUCTIONS, exceed(g, COUNTED).reason);
+    }
+
+    @Test
+    public void testInstructionLimit() {
+        for (String mode : new String[] { "interpreted", "luajc", "tiered" }) {
+            Globals g = globals(mode);
+            g.budget = new Globals.Budget(100000, 0);
+            Globals.BudgetExceeded e = exceed(g, "local n = 0 while true do n = n + 1 end");
+            Assert.assertEquals(mode, Globals.Budget.INSTRUCTIONS, e.reason);
+            Assert.assertTrue(mode, e.getMessage().contains("instruction budget exceeded"));
+            g.budget = new Globals.Budget(100000, 0);
+            exceed(g, "local function f() return f() end return f()");
+            g.budget = new Globals.Budget(200, 0);
+            exceed(g, "local function f() f() end f()");
+        }
+    }
+
+    @Test
+    public void testNotSwallowedByPcall() {
+        for (String mode : new String[] { "interpreted", "luajc" }) {
+            Globals g = globals(mode);
+            g.budget = new Globals.Budget(100000, 0);
+            String script =
+                    "caught = 0\n" +
+                    "while true do\n" +
+                    "  local ok, e = pcall(function() while true do end end)\n" +
+                    "  caught = caught + 1\n" +
+                    "  last = e\n" +
+                    "end\n";
+            exceed(g, script);
+            Assert.assertEquals(mode, 1, g.get("caught").toint());
+            Assert.assertTrue(mode, g.get("last").tojstring().contains("instruction budget exceeded"));
+        }
+    }
+
+    @Test
+    public void testTimeLimit() {
+        for (String mode : new String[] { "interpreted", "luajc" }) {
+            Globals g = globals(mode);
+            g.budget = new Globals.Budget(0, 50);
+            long start = System.nanoTime();
+            Assert.assertEquals(mode, Globals.Budget.TIME, exceed(g, "while true do end").reason);
+            Assert.assertTrue(System.nanoTime() - start >= 50000000L);
+        }
+    }
+
+    @Test
+    public void testMemoryLimit() {
+        String[] scripts = {
+                "local s = 'x' while true do s = s .. s end",
+                "local s = 'x' while true do s = s .. s .. '' end",
+                "return string.rep('x', 1e9)",
+                "local t = {} for i = 1, 1e9 do t[i] = i end",
+                "local t, i = {}, 0 while true do i = i + 1 t['k' .. i] = i end",
+                "local t = {} while true do t[#t + 1] = {} end",
+        };
+        for (String mode : new String[] { "interpreted", "luajc" }) {
+            for (String script : scripts) {
+                Globals g = globals(mode);
+                g.budget = new Globals.Budget(0, 0, 16 << 20);
+                Globals.BudgetExceeded e = exceed(g, script);
+                Assert.assertEquals(mode + " " + script, Globals.Budget.MEMORY, e.reason);
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("memory budget exceeded"));
+                Assert.assertTrue(g.budget.getBytes() > 16 << 20);
+            }
+        }
+    }
+
+    @Test
+    public void testAllocationCount() {
+        for (String mode : new String[] { "interpreted", "luajc" }) {
+            Globals g = globals(mode);
+            g.budget = new Globals.Budget(0, 0);
+            g.load("local t = {} for i = 1, 1000 do t[i] = 'v' .. i end return t", "budget").call();
+            Assert.assertNull(mode, Globals.Budget.current());
+            long bytes = g.budget.getBytes();
+            Assert.assertTrue(mode + " " + bytes, bytes > 1000 * Globals.Budget.STRING && bytes < 200000);
+        }
+        Globals g = globals("interpreted");
+        g.budget = new Globals.Budget(0, 0, 1 << 20);
+        LuaValue f = g.load("return function(n) return string.rep('x', n) end", "budget").call();
+        Assert.assertNull(Globals.Budget.current());
+        f.call(LuaValue.valueOf(1000));
+        Assert.assertNull(Globals.Budget.current());
+        Assert.assertEquals(0, new LuaTable(1 << 20, 0).length());
+        Assert.assertEquals(0, g.budget.getExceeded());
+    }
+
+    @Test
+    public void testHookErrorUndoesEntry() {
+        Globals g = JsePlatform.debugGlobals();
+        g.budget = new Globals.Budget(0, 0, 1 << 20);
+        g.profiler = new Profiler(1000, true);
+        LuaValue f = g.load("return function() end", "budget").call();
+        g.load("debug.sethook(function() error('hook') end, 'c')", "budget").call();
+        try {
+            f.call();
+            Assert.fail("expected the hook to throw");
+        } catch (LuaError e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("hook"));
+        }
+        Assert.assertNull(Globals.Budget.current());
+        Assert.assertNull(g.running.state.frames);
+        Assert.assertEquals(0, g.running.state.registers.depth);
+    }
+
+    @Test
+    public void testInterrupt() throws InterruptedException {
+        final Globals g = globals("interpreted");
+        final Globals.Budget budget = g.budget = new Globals.Budget(0, 0);
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                budget.interrupt();
+            }
+        });
+        t.start();
+        Globals.BudgetExceeded e = exceed(g, "local t = {} for i = 1, 1e12 do t[i % 10] = i end");
+        t.join();
+        Assert.assertEquals(Globals.Budget.INTERRUPTED, e.reason);
+        Assert.assertEquals(Globals.Budget.INTERRUPTED, budget.getExceeded());
+        g.budget = null;
+        Assert.assertEquals(6, g.load("return 1 + 2 + 3").call().toint());
+    }
+}
@@ -0,0 +1,168 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CoroutineTest {
+
+    private static final String SCRIPT =
+            "local gen = coroutine.wrap(function(n) for i = 1, n do coroutine.yield(i) end return 'done' end)\n" +
+            "local s = 0\n" +
+            "for i = 1, 5 do s = s + gen(5) end\n" +
+            "local last = gen()\n" +
+            "local co = coroutine.create(function(a, b) local c = coroutine.yield(a + b) error('boom' .. c) end)\n" +
+            "local ok1, v1 = coroutine.resume(co, 1, 2)\n" +
+            "local st = coroutine.status(co)\n" +
+            "local ok2, v2 = coroutine.resume(co, 7)\n" +
+            "return s, last, ok1, v1, st, ok2, v2, coroutine.status(co)\n";
+
+    @After
+    public void restoreMode() {
+        LuaThread.coroutine_mode = LuaThread.COROUTINE_PLATFORM;
+    }
+
+    @Test
+    public void testPlatformMode() {
+        check(LuaThread.COROUTINE_PLATFORM);
+    }
+
+    @Test
+    public void testVirtualMode() {
+        check(LuaThread.COROUTINE_VIRTUAL);
+    }
+
+    @Test
+    public void testStacklessMode() {
+        check(LuaThread.COROUTINE_STACKLESS);
+    }
+
+    @Test
+    public void testStacklessYieldThroughPcallAndTailcall() {
+        LuaThread.coroutine_mode = LuaThread.COROUTINE_STACKLESS;
+        Globals globals = JsePlatform.standardGlobals();
+        Varargs r = globals.load(
+                "local co = coroutine.wrap(function()\n" +
+                "  local ok, v = pcall(function() return coroutine.yield(1) + 1 end)\n" +
+                "  local ok2 = pcall(function() coroutine.yield(2) error('x') end)\n" +
+                "  return coroutine.yield(v, ok2)\n" +
+                "end)\n" +
+                "local a = co()\n" +
+                "local b = co(10)\n" +
+                "local c, d = co()\n" +
+                "return a, b, c, d, co('last')\n", "stackless").invoke();
+        Assert.assertEquals(1, r.arg(1).toint());
+        Assert.assertEquals(2, r.arg(2).toint());
+        Assert.assertEquals(11, r.arg(3).toint());
+        Assert.assertFalse(r.arg(4).toboolean());
+        Assert.assertEquals("last", r.arg(5).tojstring());
+    }
+
+    @Test
+    public void testYieldThroughXpcallAndCallMetamethod() {
+        String script =
+                "local function h(m) return 'handled ' .. tostring(m) end\n" +
+                "local t = setmetatable({}, { __call = function(self, n) return coroutine.yield(n) * 2 end })\n" +
+                "local co = coroutine.create(function()\n" +
+                "  local ok, v = xpcall(function() return coroutine.yield(1) end, h)\n" +
+                "  local ok2, e = xpcall(function() coroutine.yield(2) error('late', 0) end, h)\n" +
+                "  local ok3, e3 = pcall(error, 'outside', 0)\n" +
+                "  return 'after', ok, v, ok2, e, e3, t(5)\n" +
+                "end)\n" +
+                "local _, a = coroutine.resume(co)\n" +
+                "local _, b = coroutine.resume(co, 'x')\n" +
+                "local _, c = coroutine.resume(co)\n" +
+                "return a, b, c, coroutine.resume(co, 21)\n";
+        for (int mode : new int[] { LuaThread.COROUTINE_PLATFORM, LuaThread.COROUTINE_STACKLESS }) {
+            LuaThread.coroutine_mode = mode;
+            Varargs r = JsePlatform.standardGlobals().load(script, "xpcall").invoke();
+            String m = "mode " + mode;
+            Assert.assertEquals(m, 1, r.arg(1).toint());
+            Assert.assertEquals(m, 2, r.arg(2).toint());
+            Assert.assertEquals(m, 5, r.arg(3).toint());
+            Assert.assertTrue(m, r.arg(4).toboolean());
+            Assert.assertEquals(m, "after", r.arg(5).tojstring());
+            Assert.assertTrue(m, r.arg(6).toboolean());
+            Assert.assertEquals(m, "x", r.arg(7).tojstring());
+            Assert.assertFalse(m, r.arg(8).toboolean());
+            String e = r.arg(9).tojstring();
+            Assert.assertTrue(e, e.startsWith("handled ") && e.endsWith("late"));
+            Assert.assertTrue(m, r.arg(10).tojstring().endsWith("outside"));
+            Assert.assertEquals(m, 42, r.arg(11).toint());
+        }
+    }
+
+    @Test
+    public void testStacklessYieldAcrossJavaFrame() {
+        LuaThread.coroutine_mode = LuaThread.COROUTINE_STACKLESS;
+        Globals globals = JsePlatform.standardGlobals();
+        Varargs r = globals.load(
+                "local t = setmetatable({}, {__index = function(t, k) return coroutine.yield(k) end})\n" +
+                "return coroutine.resume(coroutine.create(function() return t.foo end))\n", "boundary").invoke();
+        Assert.assertFalse(r.arg1().toboolean());
+        Assert.assertTrue(r.arg(2).tojstring().contains("attempt to yield across a Java call boundary"));
+    }
+
+    @Test
+    public void testVirtualModeReclaimsOrphans() throws Exception {
+        LuaThread.coroutine_mode = LuaThread.COROUTINE_VIRTUAL;
+        final Globals globals = JsePlatform.standardGlobals();
+        final List<LuaThread.State> states = new ArrayList<LuaThread.State>();
+        final AtomicInteger unwound = new AtomicInteger();
+        final int[] finished = new int[1];
+        globals.set("guard", new io.github.taoguan.luaj.lib.ZeroArgFunction() {
+            public LuaValue call() {
+                synchronized (states) {
+                    states.add(globals.running.state);
+                }
+                try {
+                    return globals.get("coroutine").get("yield").call();
+                } finally {
+                    unwound.incrementAndGet();
+                }
+            }
+        });
+        globals.set("finished", new io.github.taoguan.luaj.lib.ZeroArgFunction() {
+            public LuaValue call() {
+                synchronized (finished) {
+                    finished[0]++;
+                }
+                return NONE;
+            }
+        });
+        globals.load("for i = 1, 50 do\n" +
+                "  local co = coroutine.create(function() local ok = pcall(guard) finished() end)\n" +
+                "  coroutine.resume(co)\n" +
+                "end\n", "orphans").call();
+        Assert.assertEquals(50, states.size());
+        for (int i = 0; i < 100 && unwound.get() < 50; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(50, unwound.get());
+        for (LuaThread.State s : states) {
+            Assert.assertNull(s.lua_thread.get());
+            Assert.assertEquals(LuaThread.STATUS_DEAD, s.status);
+        }
+        Assert.assertEquals(0, finished[0]);
+    }
+
+    private void check(int mode) {
+        LuaThread.coroutine_mode = mode;
+        Globals globals = JsePlatform.standardGlobals();
+        Varargs r = globals.load(SCRIPT, "coroutines").invoke();
+        Assert.assertEquals(15, r.arg(1).toint());
+        Assert.assertEquals("done", r.arg(2).tojstring());
+        Assert.assertTrue(r.arg(3).toboolean());
+        Assert.assertEquals(3, r.arg(4).toint());
+        Assert.assertEquals("suspended", r.arg(5).tojstring());
+        Assert.assertFalse(r.arg(6).toboolean());
+        Assert.assertTrue(r.arg(7).tojstring().endsWith("boom7"));
+        Assert.assertEquals("dead", r.arg(8).tojstring());
+    }
+}
@@ -0,0 +1,53 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.vm.DecodedCode;
+import io.github.taoguan.luaj.vm.LuaInstruction;
+import io.github.taoguan.luaj.vm.OpCode;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DecodedCodeTest {
+
+    private static final String SCRIPT =
+            "local t, s = {}, 0\n" +
+            "for i = 1, 10 do t[i] = i * 2 end\n" +
+            "for _, v in ipairs(t) do if v % 4 == 0 then s = s + v else s = s - 1 end end\n" +
+            "local function f(a, ...) return a, select('#', ...) end\n" +
+            "local x, n = f(1, 2, 3)\n" +
+            "return s .. ' ' .. x .. ' ' .. n .. ' ' .. (3 // 2) .. ' ' .. (6 & 3)\n";
+
+    @Test
+    public void testOpConstantsMatchOpCodes() throws Exception {
+        for (OpCode o : OpCode.values())
+            Assert.assertEquals(o.name(), o.ordinal(), LuaInstruction.class.getField("OP_" + o.name()).getInt(null));
+    }
+
+    @Test
+    public void testDecodedOperands() {
+        Globals globals = JsePlatform.standardGlobals();
+        LuaClosure chunk = (LuaClosure) globals.load(SCRIPT, "decoded");
+        Prototype p = chunk.p;
+        DecodedCode d = p.decoded();
+        Assert.assertSame(d, p.decoded());
+        for (int pc = 0; pc < p.code.length; pc++) {
+            int i = p.code[pc];
+            Assert.assertEquals(LuaInstruction.getOpCode(i).ordinal(), d.op[pc]);
+            Assert.assertEquals(LuaInstruction.getA(i), d.a[pc]);
+            Assert.assertEquals(LuaInstruction.getC(i), d.c[pc]);
+            switch (LuaInstruction.getOpCode(i)) {
+            case JMP: case FORLOOP: case FORPREP: case TFORLOOP:
+                Assert.assertEquals(LuaInstruction.getSBx(i), d.b[pc]); break;
+            case LOADK: case CLOSURE:
+                Assert.assertEquals(LuaInstruction.getBx(i), d.b[pc]); break;
+            default:
+                Assert.assertEquals(LuaInstruction.getB(i), d.b[pc]);
+            }
+        }
+        Assert.assertEquals("55 1 2 1 2", chunk.call().tojstring());
+
+        p.code = p.code.clone();
+        Assert.assertNotSame(d, p.decoded());
+        Assert.assertEquals("55 1 2 1 2", chunk.call().tojstring());
+    }
+}
@@ -0,0 +1,110 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.luajc.LuaJC;
+import io.github.taoguan.luaj.luajc.TieredLoader;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ErrorModeTest {
+
+    private static final String FAIL = "local function fail(v, level) error(v, level) end\n";
+
+    private static ScriptRunner runner(boolean stacktraces) {
+        Globals globals = JsePlatform.standardGlobals();
+        globals.errorstacktraces = stacktraces;
+        return new ScriptRunner(globals, "errors");
+    }
+
+    @Test
+    public void testSameResults() {
+        for (boolean stacktraces : new boolean[] { true, false }) {
+            ScriptRunner lua = runner(stacktraces);
+            String mode = "stacktraces " + stacktraces;
+            Assert.assertEquals(mode, "plain", lua.eval(FAIL + "return select(2, pcall(error, 'plain'))").tojstring());
+            Assert.assertEquals(mode, "errors:1 nested", lua.eval(FAIL + "return select(2, pcall(fail, 'nested'))").tojstring());
+            Assert.assertEquals(mode, "errors:1 42", lua.eval(FAIL + "return select(2, pcall(fail, 42))").tojstring());
+            Assert.assertTrue(mode, lua.eval(FAIL + "return select(2, pcall(fail))").isnil());
+            Assert.assertTrue(mode, lua.eval(FAIL + "local t = {} return select(2, pcall(fail, t)) == t").toboolean());
+            Assert.assertEquals(mode, "assertion failed!", lua.eval("return select(2, pcall(assert, false))").tojstring());
+            Assert.assertEquals(mode, "checked", lua.eval("return select(2, pcall(assert, nil, 'checked'))").tojstring());
+
+            Varargs r = lua.run("return pcall(assert, 1 == 1, 'unused')");
+            Assert.assertTrue(mode, r.arg(1).toboolean());
+            Assert.assertTrue(mode, r.arg(2).toboolean());
+            Assert.assertEquals(mode, "unused", r.arg(3).tojstring());
+
+            String arith = lua.eval("return select(2, pcall(function() return nil + 1 end))").tojstring();
+            Assert.assertTrue(mode + ": " + arith, arith.startsWith("errors:1 ") && arith.contains("arithmetic"));
+
+            r = lua.run(FAIL + "return xpcall(fail, function(m) return 'handled ' .. m end, 'x')");
+            Assert.assertFalse(mode, r.arg(1).toboolean());
+            Assert.assertEquals(mode, "handled errors:1 x", r.arg(2).tojstring());
+
+            Assert.assertEquals(mode, 100, lua.eval(FAIL +
+                    "local n = 0\n" +
+                    "for i = 1, 100 do if not pcall(fail, i) then n = n + 1 end end\n" +
+                    "return n").toint());
+        }
+    }
+
+    @Test
+    public void testLevelsAgree() {
+        String script = FAIL +
+                "local function caller() fail('two', 2) end\n" +
+                "return select(2, pcall(fail, 'zero', 0)), select(2, pcall(caller))\n";
+        Varargs expected = runner(true).run(script);
+        Varargs actual = runner(false).run(script);
+        Assert.assertTrue(expected.arg(1).tojstring(), expected.arg(1).tojstring().endsWith("zero"));
+        Assert.assertTrue(expected.arg(2).tojstring(), expected.arg(2).tojstring().endsWith("two"));
+        Assert.assertEquals(expected.arg(1).tojstring(), actual.arg(1).tojstring());
+        Assert.assertEquals(expected.arg(2).tojstring(), actual.arg(2).tojstring());
+    }
+
+    @Test
+    public void testNoJavaStack() {
+        Globals globals = JsePlatform.standardGlobals();
+        globals.errorstacktraces = false;
+        try {
+            globals.load("local function f() error('boom') end f()", "stackless").call();
+            Assert.fail("expected an error");
+        } catch (LuaError e) {
+            Assert.assertEquals(0, e.getStackTrace().length);
+            Assert.assertEquals("stackless:1 boom", e.getMessage());
+            Assert.assertEquals("stackless:1 boom", e.getMessageObject().tojstring());
+        }
+        try {
+            globals.load("local x = nil; return x.y", "runtime").call();
+            Assert.fail("expected an error");
+        } catch (LuaError e) {
+            Assert.assertTrue(e.getStackTrace().length > 0);
+        }
+    }
+
+    @Test
+    public void testCompiledLinesWithoutJavaStack() {
+        String script =
+                "local function inner(v)\n" +
+                "  error(v)\n" +
+                "end\n" +
+                "local function outer(v)\n" +
+                "  local t = nil\n" +
+                "  if v then inner(v) end\n" +
+                "  return t.field\n" +
+                "end\n" +
+                "local _, a = pcall(outer, 'boom')\n" +
+                "local _, b = pcall(outer)\n" +
+                "return a, b\n";
+        for (int mode = 0; mode < 3; mode++) {
+            Globals globals = JsePlatform.standardGlobals();
+            globals.errorstacktraces = false;
+            if (mode == 1)
+                LuaJC.install(globals);
+            else if (mode == 2)
+                TieredLoader.install(globals, new TieredLoader(0, false));
+            Varargs r = globals.load(script, "lines").invoke();
+            Assert.assertEquals("mode " + mode, "lines:2 boom", r.arg(1).tojstring());
+            Assert.assertTrue("mode " + mode + ": " + r.arg(2), r.arg(2).tojstring().startsWith("lines:7 "));
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.server.GlobalsPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GlobalsPoolTest {
+
+    private static final String TENANT =
+            "x = 1\n" +
+            "string.shout = function(s) return s:upper() .. '!' end\n" +
+            "table.insert = nil\n" +
+            "package.loaded.tenant = { secret = 42 }\n" +
+            "package.path = '/tmp/?.lua'\n" +
+            "getmetatable('').__index = { len = function() return -1 end }\n" +
+            "setmetatable(_G, { __index = function(_, k) return 'leak:' .. k end })\n" +
+            "math.pi = 3\n" +
+            "return ('abc'):len()\n";
+
+    private static final String CHECK =
+            "return tostring(rawget(_G, 'x')), tostring(string.shout), type(table.insert),\n" +
+            "  tostring(package.loaded.tenant), ('abc'):len(), tostring(getmetatable(_G)), math.pi == 3,\n" +
+            "  package.path == path\n";
+
+    @Test
+    public void testReleaseRestoresPristineGlobals() {
+        // the first globals created own the string metatable
+        LuaString.s_metatable = null;
+        GlobalsPool pool = new GlobalsPool();
+        Globals g = pool.checkout();
+        String path = g.get("package").get("path").tojstring();
+        Assert.assertEquals(-1, g.load(TENANT, "tenant").call().toint());
+        pool.release(g);
+
+        Globals h = pool.checkout();
+        Assert.assertSame(g, h);
+        h.set("path", LuaValue.valueOf(path));
+        Varargs r = h.load(CHECK, "check").invoke();
+        Assert.assertEquals("nil", r.arg(1).tojstring());
+        Assert.assertEquals("nil", r.arg(2).tojstring());
+        Assert.assertEquals("function", r.arg(3).tojstring());
+        Assert.assertEquals("nil", r.arg(4).tojstring());
+        Assert.assertEquals(3, r.arg(5).toint());
+        Assert.assertEquals("nil", r.arg(6).tojstring());
+        Assert.assertFalse(r.arg(7).toboolean());
+        Assert.assertTrue(r.arg(8).toboolean());
+        pool.release(h);
+
+        Assert.assertEquals(1, pool.getCreatedCount());
+        Assert.assertEquals(2, pool.getCheckoutCount());
+        Assert.assertEquals(1, pool.getIdleCount());
+        Assert.assertEquals(0, pool.getCheckedOutCount());
+    }
+
+    @Test
+    public void testReleaseRestoresLimitsAndModes() {
+        GlobalsPool pool = new GlobalsPool();
+        Globals g = pool.checkout();
+        g.budget = new Globals.Budget(1000, 0);
+        g.errorstacktraces = false;
+        g.profiler = new Profiler(1000, true);
+        try {
+            g.load("while true do end", "tenant").call();
+            Assert.fail("expected the budget to be exceeded");
+        } catch (Globals.BudgetExceeded expected) {
+        }
+        pool.release(g);
+
+        Globals h = pool.checkout();
+        Assert.assertSame(g, h);
+        Assert.assertNull(h.budget);
+        Assert.assertTrue(h.errorstacktraces);
+        Assert.assertNull(h.profiler);
+        Assert.assertEquals(1, h.load("return 1", "tenant").call().toint());
+        pool.release(h);
+    }
+
+    @Test
+    public void testReleaseReseedsRandom() {
+        String draw = "local t = {} for i = 1, 8 do t[i] = math.random(1000000000) end return table.concat(t, ' ')\n";
+        GlobalsPool pool = new GlobalsPool();
+        Globals g = pool.checkout();
+        String seeded = g.load("math.randomseed(7) " + draw, "seed").call().tojstring();
+        Assert.assertEquals(seeded, g.load("math.randomseed(7) " + draw, "seed").call().tojstring());
+        g.load("math.randomseed(7)", "seed").call();
+        pool.release(g);
+
+        Globals h = pool.checkout();
+        Assert.assertSame(g, h);
+        Assert.assertNotEquals(seeded, h.load(draw, "draw").call().tojstring());
+        pool.release(h);
+    }
+
+    @Test
+    public void testReleaseLeavesTablesOfOtherGlobals() {
+        LuaString.s_metatable = null;
+        GlobalsPool pool = new GlobalsPool();
+        Globals a = pool.checkout();
+        Globals b = pool.checkout();
+        LuaValue mt = LuaString.s_metatable;
+        Assert.assertSame(a.get("string"), mt.get("__index"));
+        a.load("string.shout = function(s) return s:upper() .. '!' end", "tenant").call();
+        b.load("getmetatable('').__index.whisper = string.lower", "tenant").call();
+        pool.release(b);
+        Assert.assertSame(mt, LuaString.s_metatable);
+        Assert.assertEquals("HI!", a.load("return ('hi'):shout()", "tenant").call().tojstring());
+        pool.release(a);
+        Assert.assertTrue(a.get("string").get("shout").isnil());
+        Assert.assertTrue(a.get("string").get("whisper").isnil());
+        Assert.assertSame(a.get("string"), mt.get("__index"));
+    }
+
+    @Test
+    public void testPoolGrowsAndTrims() {
+        GlobalsPool pool = new GlobalsPool(new GlobalsPool.Factory() {
+            public Globals create() {
+                return io.github.taoguan.luaj.lib.jse.JsePlatform.standardGlobals();
+            }
+        }, 1);
+        Globals a = pool.checkout();
+        Globals b = pool.checkout();
+        Assert.assertNotSame(a, b);
+        Assert.assertEquals(2, pool.getCheckedOutCount());
+        pool.release(a);
+        pool.release(b);
+        Assert.assertEquals(1, pool.getIdleCount());
+        Assert.assertEquals(2, pool.getCreatedCount());
+        try {
+            pool.release(b);
+            Assert.fail("released globals not owned by the pool");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testDoubleReleaseIsRejected() {
+        GlobalsPool pool = new GlobalsPool();
+        Globals g = pool.checkout();
+        pool.release(g);
+        try {
+            pool.release(g);
+            Assert.fail("released globals twice");
+        } catch (IllegalStateException expected) {
+        }
+        Assert.assertEquals(0, pool.getCheckedOutCount());
+        Assert.assertEquals(1, pool.getIdleCount());
+        Globals a = pool.checkout();
+        Globals b = pool.checkout();
+        Assert.assertNotSame(a, b);
+        pool.release(a);
+        pool.release(b);
+    }
+}
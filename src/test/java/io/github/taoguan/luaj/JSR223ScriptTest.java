@@ -1,5 +1,8 @@
 package io.github.taoguan.luaj;
 
+import io.github.taoguan.luaj.script.LuaScriptEngine;
+import io.github.taoguan.luaj.script.PrototypeCache;
+import org.junit.Assert;
 import org.junit.Test;
 
 import javax.script.ScriptEngine;
@@ -16,4 +19,46 @@ public class JSR223ScriptTest {
         System.out.println( "y="+e.get("y") );
     }
 
+    @Test
+    public void testPrototypeCache() throws Exception {
+        LuaScriptEngine e = new LuaScriptEngine();
+        PrototypeCache cache = new PrototypeCache(2);
+        e.setPrototypeCache(cache);
+        for (int i = 1; i <= 3; i++) {
+            e.put("x", i);
+            Assert.assertEquals(i * 2, e.eval("return x * 2"));
+        }
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(2, cache.getHits());
+
+        e.eval("return 1");
+        e.eval("return 2");
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.getEvictions());
+        e.eval("return 1");
+        Assert.assertEquals(3, cache.getHits());
+
+        cache.setMaxEntries(0);
+        Assert.assertEquals(0, cache.size());
+        e.eval("return 1");
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLongsRoundTrip() throws Exception {
+        LuaScriptEngine e = new LuaScriptEngine();
+        e.put("id", 9007199254740993L);
+        Assert.assertEquals(9007199254740994L, e.eval("return id + 1"));
+        Assert.assertEquals(9007199254740993L, e.eval("return id"));
+        Assert.assertEquals(5, e.eval("return 5"));
+        Assert.assertEquals(2.5, e.eval("return 5 / 2"));
+    }
+
+    @Test
+    public void testPrototypeCacheDisabled() throws Exception {
+        LuaScriptEngine e = new LuaScriptEngine();
+        e.setPrototypeCache(null);
+        Assert.assertEquals(3, e.eval("return 1 + 2"));
+        Assert.assertEquals(3, e.eval("return 1 + 2"));
+    }
 }
@@ -0,0 +1,70 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.lib.jse.LuajavaLib;
+import io.github.taoguan.luaj.lib.jse.OverloadCache;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JavaInteropTest {
+
+    private static final String SCRIPT =
+            "local out = {}\n" +
+            "local function add(...) local t = {...} for i = 1, select('#', ...) do out[#out + 1] = tostring(t[i]) end end\n" +
+            "local M = luajava.bindClass('java.lang.Math')\n" +
+            "local S = luajava.bindClass('java.lang.String')\n" +
+            "local I = luajava.bindClass('java.lang.Integer')\n" +
+            "for pass = 1, 3 do\n" +
+            "  local sb = luajava.newInstance('java.lang.StringBuilder', 'x')\n" +
+            "  for _, v in ipairs({1, 300, 70000, 3000000000, 2.5, 1e300, 'a', '12', true}) do sb:append(v) end\n" +
+            "  add(sb:toString(), sb:length(), sb:charAt(0))\n" +
+            "  add(M:abs(-3), M:abs(-2.5), M:max(2, 7), M:max(2.5, 1), M:sqrt(16), M:round(2.6))\n" +
+            "  add(S:valueOf(3), S:valueOf(2.5), S:valueOf(true), S:valueOf('s'), I:parseInt('42'), I.MAX_VALUE)\n" +
+            "  local p = luajava.newInstance('java.awt.Point', 3, 4)\n" +
+            "  p.x = p.x + 7\n" +
+            "  add(p.x, p.y, p:getX(), luajava.newInstance('java.awt.Point', p).x)\n" +
+            "  local l = luajava.newInstance('java.util.ArrayList')\n" +
+            "  l:add('a'); l:add(nil); l:add(0, 'b')\n" +
+            "  add(l:size(), l:get(0), l:get(2), l:contains('a'), l:indexOf(nil))\n" +
+            "  add(pcall(function() I.MAX_VALUE = 3 end))\n" +
+            "end\n" +
+            "return table.concat(out, ',')\n";
+
+    @After
+    public void restore() {
+        LuajavaLib.method_handles = true;
+        OverloadCache.polymorphic_limit = 8;
+    }
+
+    @Test
+    public void testMethodHandlesMatchReflection() {
+        String expected = run(false, 0);
+        Assert.assertEquals(expected, run(true, 0));
+        Assert.assertTrue(expected.startsWith("x13007000030000000002.51.0E300a12true,"));
+    }
+
+    @Test
+    public void testOverloadCacheMatchesScoring() {
+        String expected = run(true, 0);
+        OverloadCache.resetStats();
+        Assert.assertEquals(expected, run(true, 8));
+        Assert.assertTrue(OverloadCache.hits() > 0);
+        Assert.assertTrue(OverloadCache.misses() > 0);
+    }
+
+    @Test
+    public void testOverloadCacheMissesWhenDisabled() {
+        OverloadCache.polymorphic_limit = 0;
+        OverloadCache.resetStats();
+        run(true, 0);
+        Assert.assertEquals(0, OverloadCache.hits());
+    }
+
+    private static String run(boolean methodHandles, int limit) {
+        LuajavaLib.method_handles = methodHandles;
+        OverloadCache.polymorphic_limit = limit;
+        Globals globals = JsePlatform.standardGlobals();
+        return globals.load(SCRIPT, "interop").call().tojstring();
+    }
+}
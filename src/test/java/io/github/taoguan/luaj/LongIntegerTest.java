@@ -0,0 +1,207 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.lib.jse.CoerceJavaToLua;
+import io.github.taoguan.luaj.lib.jse.CoerceLuaToJava;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.lib.jse.LuajavaLib;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LongIntegerTest {
+
+    private final ScriptRunner lua = new ScriptRunner("longs");
+
+    private static void assertLong(long expected, LuaValue actual) {
+        Assert.assertTrue(actual.typename() + " " + actual, actual.isinttype() || actual instanceof LuaLong);
+        Assert.assertEquals(expected, actual.tolong());
+    }
+
+    @Test
+    public void testIntegersBeyondIntRange() {
+        Varargs r = lua.run(
+                "local max = 2147483647\n" +
+                "return max + 1, 9007199254740993, 1700000000000 * 1000 + 123, -(9007199254740993 - 1),\n" +
+                "  9007199254740993 // 2, 9007199254740993 % 10, -9007199254740993 // 10,\n" +
+                "  math.maxinteger + 1 == math.mininteger, math.maxinteger\n");
+        assertLong(2147483648L, r.arg(1));
+        Assert.assertTrue(r.arg(1) instanceof LuaLong);
+        assertLong(9007199254740993L, r.arg(2));
+        assertLong(1700000000000123L, r.arg(3));
+        assertLong(-9007199254740992L, r.arg(4));
+        assertLong(4503599627370496L, r.arg(5));
+        assertLong(3, r.arg(6));
+        Assert.assertTrue(r.arg(6).isinttype());
+        assertLong(-900719925474100L, r.arg(7));
+        Assert.assertTrue(r.arg(8).toboolean());
+        assertLong(Long.MAX_VALUE, r.arg(9));
+    }
+
+    @Test
+    public void testMixedWithDoubles() {
+        Varargs r = lua.run(
+                "local big = 9007199254740993\n" +
+                "return big > 2^53, big - 1 == 2^53, big == 2^53, big <= 2^53,\n" +
+                "  5000000000 < 5000000000.5, 3 < 5000000000, 5000000000 + 0.5 == 5000000000.5, 5000000000 / 2\n");
+        Assert.assertTrue(r.arg(1).toboolean());
+        Assert.assertTrue(r.arg(2).toboolean());
+        Assert.assertFalse(r.arg(3).toboolean());
+        Assert.assertFalse(r.arg(4).toboolean());
+        Assert.assertTrue(r.arg(5).toboolean());
+        Assert.assertTrue(r.arg(6).toboolean());
+        Assert.assertTrue(r.arg(7).toboolean());
+        Assert.assertEquals(2.5e9, r.arg(8).todouble(), 0);
+    }
+
+    @Test
+    public void testIntegerAndFloatConstantsAreDistinct() {
+        String[] scripts = {
+                "local x, y = 4611686018427387904, 4611686018427387904.0\n" +
+                "return tostring(x * 4 == 0 and y * 4 > 1e19)\n",
+                "local y, x = 4611686018427387904.0, 4611686018427387904\n" +
+                "return tostring(x * 4 == 0 and y * 4 > 1e19)\n",
+        };
+        for (boolean luajc : new boolean[] { false, true }) {
+            Globals g = JsePlatform.standardGlobals();
+            if (luajc)
+                io.github.taoguan.luaj.luajc.LuaJC.install(g);
+            for (String script : scripts)
+                Assert.assertEquals(script, "true", g.load(script, "longs").call().tojstring());
+        }
+    }
+
+    @Test
+    public void testTableKeys() {
+        Varargs r = lua.run(
+                "local t = {}\n" +
+                "t[2^40] = 'a'\n" +
+                "t[9007199254740993] = 'b'\n" +
+                "t[9007199254740992] = 'c'\n" +
+                "local n = 0 for k in pairs(t) do n = n + 1 end\n" +
+                "return t[1099511627776], t[1 << 40], t[9007199254740992 + 1], t[2^53], n\n");
+        Assert.assertEquals("a", r.arg(1).tojstring());
+        Assert.assertEquals("a", r.arg(2).tojstring());
+        Assert.assertEquals("b", r.arg(3).tojstring());
+        Assert.assertEquals("c", r.arg(4).tojstring());
+        Assert.assertEquals(3, r.arg(5).toint());
+    }
+
+    @Test
+    public void testBitwise() {
+        Varargs r = lua.run(
+                "return 1 << 62, 0xFF00000000 & 0xF000000000, ~0, 1 << 64, 0xFFFFFFFFFFFFFFFF, -1 >> 60, bit32.bnot(0)\n");
+        assertLong(1L << 62, r.arg(1));
+        assertLong(0xF000000000L, r.arg(2));
+        assertLong(-1, r.arg(3));
+        assertLong(0, r.arg(4));
+        assertLong(-1, r.arg(5));
+        assertLong(15, r.arg(6));
+        assertLong(4294967295L, r.arg(7));
+    }
+
+    @Test
+    public void testConversions() {
+        String script =
+                "return tonumber('9007199254740993'), tostring(tonumber('9007199254740993') == 9007199254740993),\n" +
+                "  string.format('%d', 9007199254740993), tonumber('1e18'), math.floor(9007199254740993)\n";
+        Varargs v = lua.run(script);
+        Assert.assertEquals("9007199254740993", v.arg(1).tojstring());
+        Assert.assertEquals("true", v.arg(2).tojstring());
+        Assert.assertEquals("9007199254740993", v.arg(3).tojstring());
+        Assert.assertEquals(1e18, v.arg(4).todouble(), 0);
+        Assert.assertEquals(9007199254740993L, v.arg(5).tolong());
+        Assert.assertEquals(Long.valueOf(9007199254740993L),
+                CoerceLuaToJava.coerce(v.arg(5), Object.class));
+        Assert.assertSame(LuaValue.valueOf(100), LuaValue.valueOf(100L));
+    }
+
+    @Test
+    public void testArithmeticOnNumericStrings() {
+        Varargs r = lua.run(
+                "local s = '9007199254740993'\n" +
+                "return s + 0, 0 + s, s - 1, 2 * s, s // 10, s % 10, -s, 9007199254740992 + '1',\n" +
+                "  string.format('%d', s), '1.5' + 1, ' 0x10 ' * '2'\n");
+        assertLong(9007199254740993L, r.arg(1));
+        assertLong(9007199254740993L, r.arg(2));
+        assertLong(9007199254740992L, r.arg(3));
+        assertLong(18014398509481986L, r.arg(4));
+        assertLong(900719925474099L, r.arg(5));
+        assertLong(3, r.arg(6));
+        assertLong(-9007199254740993L, r.arg(7));
+        assertLong(9007199254740993L, r.arg(8));
+        Assert.assertEquals("9007199254740993", r.arg(9).tojstring());
+        Assert.assertEquals(2.5, r.arg(10).todouble(), 0);
+        assertLong(32, r.arg(11));
+    }
+
+    @Test
+    public void testIntegerDivisionByZero() {
+        Assert.assertTrue(lua.error("local x = 0 return 1 // x").contains("attempt to perform 'n//0'"));
+        Assert.assertTrue(lua.error("local x = 0 return 1 % x").contains("attempt to perform 'n%%0'"));
+        Assert.assertTrue(lua.error("return 5000000000 // 0").contains("attempt to perform 'n//0'"));
+        Assert.assertTrue(lua.error("return 5000000000 % 0").contains("attempt to perform 'n%%0'"));
+        Assert.assertTrue(lua.error("return '7' // '0'").contains("attempt to perform 'n//0'"));
+        Varargs r = lua.run("local x = 0 return 1 // 0.5, 1.5 // x, 1.5 % x, 1 / x, 7 // -2, 7 % -2\n");
+        Assert.assertEquals(2, r.arg(1).toint());
+        Assert.assertEquals(Double.POSITIVE_INFINITY, r.arg(2).todouble(), 0);
+        Assert.assertTrue(Double.isNaN(r.arg(3).todouble()));
+        Assert.assertEquals(Double.POSITIVE_INFINITY, r.arg(4).todouble(), 0);
+        assertLong(-4, r.arg(5));
+        assertLong(-1, r.arg(6));
+    }
+
+    @Test
+    public void testJavaLongsRoundTrip() {
+        long id = 9007199254740993L;
+        LuaValue v = CoerceJavaToLua.coerce(Long.valueOf(id));
+        Assert.assertTrue(v instanceof LuaLong);
+        Assert.assertEquals(Long.valueOf(id), CoerceLuaToJava.coerce(v, Object.class));
+        Assert.assertEquals(Long.valueOf(id), CoerceLuaToJava.coerce(v, Long.class));
+
+        String script =
+                "local L = luajava.bindClass('java.lang.Long')\n" +
+                "local id = L:parseLong('9007199254740993')\n" +
+                "return id, L.MAX_VALUE, L:valueOf(id), L:toString(id + 1)\n";
+        for (boolean methodHandles : new boolean[] { false, true }) {
+            LuajavaLib.method_handles = methodHandles;
+            try {
+                Varargs r = JsePlatform.standardGlobals().load(script, "longs").invoke();
+                Assert.assertTrue(r.arg(1) instanceof LuaLong);
+                Assert.assertEquals(LuaValue.valueOf(id), r.arg(1));
+                Assert.assertEquals(LuaValue.valueOf(Long.MAX_VALUE), r.arg(2));
+                Assert.assertEquals(LuaValue.valueOf(id), r.arg(3));
+                Assert.assertEquals("9007199254740994", r.arg(4).tojstring());
+            } finally {
+                LuajavaLib.method_handles = true;
+            }
+        }
+    }
+
+    @Test
+    public void testConversionsAtLongBoundaries() {
+        String script =
+                "return tonumber('9223372036854775807'), tonumber('9223372036854775808'),\n" +
+                "  tonumber('9223372036854775809'), tonumber('18446744073709551617'),\n" +
+                "  tonumber('-9223372036854775808'), tonumber('-9223372036854775809'),\n" +
+                "  tonumber('0xffffffffffffffff'), 0xffffffffffffffff,\n" +
+                "  tonumber('0x7fffffffffffffff'), tonumber('0x10000000000000001')\n";
+        Varargs v = lua.run(script);
+        Assert.assertEquals(LuaValue.valueOf(Long.MAX_VALUE), v.arg(1));
+        Assert.assertEquals(LuaValue.valueOf(0x1p63), v.arg(2));
+        Assert.assertEquals(LuaValue.valueOf(0x1p63), v.arg(3));
+        Assert.assertEquals(LuaValue.valueOf(0x1p64), v.arg(4));
+        Assert.assertEquals(LuaValue.valueOf(Long.MIN_VALUE), v.arg(5));
+        Assert.assertEquals(LuaValue.valueOf(-0x1p63), v.arg(6));
+        Assert.assertEquals(LuaValue.valueOf(-1), v.arg(7));
+        Assert.assertEquals(LuaValue.valueOf(-1), v.arg(8));
+        Assert.assertEquals(LuaValue.valueOf(Long.MAX_VALUE), v.arg(9));
+        Assert.assertEquals(LuaValue.valueOf(1), v.arg(10));
+    }
+
+    @Test
+    public void testDumpedConstants() {
+        Varargs r = lua.run("return load(string.dump(function() return 9007199254740993 + 1, 2^53 end))()\n");
+        assertLong(9007199254740994L, r.arg(1));
+        Assert.assertEquals(0x1p53, r.arg(2).todouble(), 0);
+        Assert.assertFalse(r.arg(2) instanceof LuaLong);
+    }
+}
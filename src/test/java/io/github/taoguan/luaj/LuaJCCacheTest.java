@@ -0,0 +1,70 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.luajc.ClassCache;
+import io.github.taoguan.luaj.luajc.LuaJC;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LuaJCCacheTest {
+
+    private static final String SCRIPT =
+            "local function fib(n) if n < 2 then return n end return fib(n - 1) + fib(n - 2) end\n" +
+            "local t = {}\n" +
+            "for i = 1, 10 do t[i] = function() return fib(i) end end\n" +
+            "return t[10]() + select('#', ...)\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testClassesAreDefinedFromCache() throws Exception {
+        ClassCache cache = new ClassCache(folder.newFolder("luajc"));
+        Assert.assertEquals(57, run(cache));
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(1, cache.getWrites());
+
+        ClassCache reopened = new ClassCache(cache.getDirectory());
+        Assert.assertEquals(57, run(reopened));
+        Assert.assertEquals(1, reopened.getHits());
+        Assert.assertEquals(0, reopened.getWrites());
+
+        Assert.assertEquals(1, reopened.invalidateAll());
+        Assert.assertEquals(57, run(reopened));
+        Assert.assertEquals(1, reopened.getMisses());
+        Assert.assertEquals(1, reopened.getWrites());
+    }
+
+    @Test
+    public void testChangedScriptMisses() throws Exception {
+        ClassCache cache = new ClassCache(folder.newFolder("luajc"));
+        Globals g = JsePlatform.standardGlobals();
+        LuaJC.install(g, cache);
+        Assert.assertEquals(1, g.load("return 1", "chunk").call().toint());
+        Assert.assertEquals(2, g.load("return 2", "chunk").call().toint());
+        Assert.assertEquals(1, g.load("return 1", "chunk").call().toint());
+        Assert.assertEquals(2, cache.getWrites());
+        Assert.assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testFailedWriteStillLoads() throws Exception {
+        // a file in place of the directory makes every write fail
+        ClassCache cache = new ClassCache(folder.newFile("luajc"));
+        Assert.assertEquals(57, run(cache));
+        Assert.assertEquals(57, run(cache));
+        Assert.assertEquals(2, cache.getMisses());
+        Assert.assertEquals(0, cache.getWrites());
+        Assert.assertEquals(2, cache.getWriteFailures());
+    }
+
+    private static int run(ClassCache cache) {
+        Globals g = JsePlatform.standardGlobals();
+        LuaJC.install(g, cache);
+        LuaValue chunk = g.load(SCRIPT, "cached");
+        Assert.assertFalse(chunk.isclosure());
+        return chunk.invoke(LuaValue.varargsOf(LuaValue.ONE, LuaValue.ONE)).toint(1);
+    }
+}
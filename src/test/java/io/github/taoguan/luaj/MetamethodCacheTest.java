@@ -0,0 +1,78 @@
+package io.github.taoguan.luaj;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetamethodCacheTest {
+
+    private final ScriptRunner lua = new ScriptRunner("metamethods");
+
+    private static final String SETUP =
+            "mt = {}\n" +
+            "a, b = setmetatable({}, mt), setmetatable({}, mt)\n" +
+            "-- look up every metamethod once while it is absent\n" +
+            "local _ = a.x, pcall(function() return a + b end), #a, tostring(a)\n" +
+            "a.y = 1\n";
+
+    @Test
+    public void testAbsentMetamethodsSeeLaterAssignments() {
+        lua.run(SETUP);
+        Varargs r = lua.run(
+                "mt.__index = function(t, k) return k .. '!' end\n" +
+                "mt.__add = function() return 'added' end\n" +
+                "mt.__newindex = function(t, k, v) rawset(t, k, v * 2) end\n" +
+                "mt.__tostring = function() return 'obj' end\n" +
+                "a.z = 5\n" +
+                "return a.x, a + b, a.z, tostring(a), a.y\n");
+        Assert.assertEquals("x!", r.arg(1).tojstring());
+        Assert.assertEquals("added", r.arg(2).tojstring());
+        Assert.assertEquals(10, r.arg(3).toint());
+        Assert.assertEquals("obj", r.arg(4).tojstring());
+        Assert.assertEquals(1, r.arg(5).toint());
+    }
+
+    @Test
+    public void testRemovedMetamethodsAreAbsentAgain() {
+        lua.run(SETUP +
+                "mt.__index = function() return 'found' end\n" +
+                "mt.__add = function() return 'added' end\n" +
+                "local _ = a.x, a + b\n");
+        Varargs r = lua.run(
+                "mt.__index, mt.__add = nil\n" +
+                "b.w = 3\n" +
+                "return a.x, b.w, pcall(function() return a + b end)\n");
+        Assert.assertTrue(r.arg(1).isnil());
+        Assert.assertEquals(3, r.arg(2).toint());
+        Assert.assertFalse(r.arg(3).toboolean());
+    }
+
+    @Test
+    public void testRawsetMetamethodChangesBorder() {
+        lua.run(SETUP + "for i = 1, 4 do a[i] = i end\n");
+        Assert.assertEquals(4, lua.eval("return #a").toint());
+        Assert.assertEquals(7, lua.eval("rawset(mt, '__len', function() return 7 end) return #a").toint());
+        Assert.assertEquals(4, lua.eval("rawset(mt, '__len', nil) return #a").toint());
+        Assert.assertEquals(4, lua.eval("return rawlen(a)").toint());
+    }
+
+    @Test
+    public void testReplacedMetatable() {
+        lua.run(SETUP);
+        Varargs r = lua.run(
+                "setmetatable(a, { __index = { x = 'other' } })\n" +
+                "return a.x, b.x\n");
+        Assert.assertEquals("other", r.arg(1).tojstring());
+        Assert.assertTrue(r.arg(2).isnil());
+    }
+
+    @Test
+    public void testMetamethodLookup() {
+        LuaTable mt = new LuaTable();
+        Assert.assertTrue(mt.metamethod(LuaValue.INDEX).isnil());
+        Assert.assertTrue(mt.metamethod(LuaValue.valueOf("__custom")).isnil());
+        mt.set(LuaValue.INDEX, mt);
+        mt.set("__custom", LuaValue.TRUE);
+        Assert.assertSame(mt, mt.metamethod(LuaValue.INDEX));
+        Assert.assertEquals(LuaValue.TRUE, mt.metamethod(LuaValue.valueOf("__custom")));
+    }
+}
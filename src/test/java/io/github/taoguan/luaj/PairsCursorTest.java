@@ -0,0 +1,158 @@
+package io.github.taoguan.luaj;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PairsCursorTest {
+
+    private static final String BUILD =
+            "local function build(n)\n" +
+            "  local t = {}\n" +
+            "  for i = 1, n do t[i] = i end\n" +
+            "  for i = 1, n do t['k' .. i] = i end\n" +
+            "  for i = 1, n do t[i * 7919 + 0.5] = i end\n" +
+            "  t[n // 2] = nil\n" +
+            "  return t, 3 * n - 1\n" +
+            "end\n";
+
+    private final ScriptRunner lua = new ScriptRunner("pairs");
+
+    @Test
+    public void testSameOrderAsNext() {
+        Varargs r = lua.run(BUILD +
+                "local t, count = build(500)\n" +
+                "local a, b = {}, {}\n" +
+                "for k in pairs(t) do a[#a + 1] = k end\n" +
+                "for k in next, t do b[#b + 1] = k end\n" +
+                "local same = 0\n" +
+                "for i = 1, count do if a[i] == b[i] then same = same + 1 end end\n" +
+                "return count, #a, #b, same\n");
+        int count = r.arg(1).toint();
+        Assert.assertEquals(1499, count);
+        Assert.assertEquals(count, r.arg(2).toint());
+        Assert.assertEquals(count, r.arg(3).toint());
+        Assert.assertEquals(count, r.arg(4).toint());
+    }
+
+    @Test
+    public void testResumeFromAnyKey() {
+        Varargs r = lua.run(BUILD +
+                "local t, count = build(500)\n" +
+                "local a = {}\n" +
+                "for k in pairs(t) do a[#a + 1] = k end\n" +
+                "local f, s = pairs(t)\n" +
+                "local same = 0\n" +
+                "for j = 1, count do\n" +
+                "  local k1, v1 = f(s, a[j])\n" +
+                "  local k2, v2 = next(t, a[j])\n" +
+                "  if k1 == k2 and v1 == v2 then same = same + 1 end\n" +
+                "end\n" +
+                "return count, same, f(s, nil) == a[1], f(s, a[count]), select('#', f({}, nil))\n");
+        Assert.assertEquals(r.arg(1).toint(), r.arg(2).toint());
+        Assert.assertTrue(r.arg(3).toboolean());
+        Assert.assertTrue(r.arg(4).isnil());
+        Assert.assertEquals(1, r.arg(5).toint());
+    }
+
+    @Test
+    public void testPairsReturnsNext() {
+        Varargs r = lua.run(BUILD +
+                "local t = build(10)\n" +
+                "local f, s, k = pairs(t)\n" +
+                "local other = { a = 1 }\n" +
+                "return f == next, s == t, k, f(other), f(other, 'a')\n");
+        Assert.assertTrue(r.arg(1).toboolean());
+        Assert.assertTrue(r.arg(2).toboolean());
+        Assert.assertTrue(r.arg(3).isnil());
+        Assert.assertEquals("a", r.arg(4).tojstring());
+        Assert.assertTrue(r.arg(5).isnil());
+    }
+
+    @Test
+    public void testNestedTraversals() {
+        Varargs r = lua.run(BUILD +
+                "local t, count = build(100)\n" +
+                "local other = { a = 1, b = 2 }\n" +
+                "local inner, same = 0, 0\n" +
+                "for k in pairs(t) do for k2 in pairs(other) do inner = inner + 1 end end\n" +
+                "for k in pairs(t) do for k2 in pairs(t) do same = same + 1 end end\n" +
+                "return count, inner, same\n");
+        int count = r.arg(1).toint();
+        Assert.assertEquals(2 * count, r.arg(2).toint());
+        Assert.assertEquals(count * count, r.arg(3).toint());
+    }
+
+    @Test
+    public void testAssignAndClearCurrentKey() {
+        Varargs r = lua.run(BUILD +
+                "local t, count = build(300)\n" +
+                "local seen, n, repeats = {}, 0, 0\n" +
+                "for k, v in pairs(t) do\n" +
+                "  if seen[k] then repeats = repeats + 1 end\n" +
+                "  seen[k] = true n = n + 1\n" +
+                "  if n % 2 == 0 then t[k] = nil else t[k] = v * 2 end\n" +
+                "end\n" +
+                "local left, odd = 0, 0\n" +
+                "for k, v in pairs(t) do left = left + 1 if v % 2 ~= 0 then odd = odd + 1 end end\n" +
+                "return count, n, repeats, left, odd\n");
+        int count = r.arg(1).toint();
+        Assert.assertEquals(count, r.arg(2).toint());
+        Assert.assertEquals(0, r.arg(3).toint());
+        Assert.assertEquals(count - count / 2, r.arg(4).toint());
+        Assert.assertEquals(0, r.arg(5).toint());
+    }
+
+    @Test
+    public void testClearOtherKeys() {
+        Varargs r = lua.run(BUILD +
+                "local t = build(300)\n" +
+                "local keys = {}\n" +
+                "for k in pairs(t) do keys[#keys + 1] = k end\n" +
+                "local cleared, done, visited, stale = {}, {}, 0, 0\n" +
+                "for k, v in pairs(t) do\n" +
+                "  if cleared[k] or t[k] ~= v then stale = stale + 1 end\n" +
+                "  visited = visited + 1 done[k] = true\n" +
+                "  local other = keys[(visited * 37) % #keys + 1]\n" +
+                "  if not done[other] and t[other] ~= nil then t[other] = nil cleared[other] = true end\n" +
+                "end\n" +
+                "local c = 0 for k in pairs(cleared) do c = c + 1 end\n" +
+                "return #keys, visited, c, stale\n");
+        Assert.assertEquals(r.arg(1).toint(), r.arg(2).toint() + r.arg(3).toint());
+        Assert.assertTrue(r.arg(3).toint() > 0);
+        Assert.assertEquals(0, r.arg(4).toint());
+    }
+
+    @Test
+    public void testPairsMetamethod() {
+        Varargs r = lua.run(
+                "local proxy = setmetatable({}, { __pairs = function(t)\n" +
+                "  return function(_, k) if not k then return 1, 'one' end end, t, nil end })\n" +
+                "local n, key, value = 0\n" +
+                "for k, v in pairs(proxy) do n, key, value = n + 1, k, v end\n" +
+                "local plain = setmetatable({ x = 1 }, { __index = { y = 2 } })\n" +
+                "local m, pkey = 0\n" +
+                "for k in pairs(plain) do m, pkey = m + 1, k end\n" +
+                "return n, key, value, m, pkey\n");
+        Assert.assertEquals(1, r.arg(1).toint());
+        Assert.assertEquals(1, r.arg(2).toint());
+        Assert.assertEquals("one", r.arg(3).tojstring());
+        Assert.assertEquals(1, r.arg(4).toint());
+        Assert.assertEquals("x", r.arg(5).tojstring());
+    }
+
+    @Test
+    public void testWeakValues() {
+        Varargs r = lua.run(
+                "local keep = {}\n" +
+                "local t = setmetatable({}, { __mode = 'v' })\n" +
+                "for i = 1, 50 do keep[i] = {} t[i] = keep[i] t['s' .. i] = keep[i] end\n" +
+                "local n, wrong = 0, 0\n" +
+                "for k, v in pairs(t) do\n" +
+                "  n = n + 1\n" +
+                "  if v ~= (type(k) == 'number' and keep[k] or keep[tonumber(k:sub(2))]) then wrong = wrong + 1 end\n" +
+                "end\n" +
+                "return n, wrong\n");
+        Assert.assertEquals(100, r.arg(1).toint());
+        Assert.assertEquals(0, r.arg(2).toint());
+    }
+}
@@ -0,0 +1,121 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.luajc.LuaJC;
+import io.github.taoguan.luaj.luajc.TieredLoader;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Map;
+
+public class ProfilerTest {
+
+    private static final String SCRIPT =
+            "local function hot(n) local s = 0 for i = 1, n do s = s + i % 7 end return s end\n" +
+            "local function outer() return hot(10000) + 0 end\n" +
+            "local start = os.clock()\n" +
+            "while os.clock() - start < 0.3 do outer() end\n";
+
+    private static Globals globals(String mode) {
+        Globals g = JsePlatform.standardGlobals();
+        if (mode.equals("luajc"))
+            LuaJC.install(g);
+        else if (mode.equals("tiered"))
+            TieredLoader.install(g, new TieredLoader(0, false));
+        return g;
+    }
+
+    private static Profiler profile(Globals g, boolean lines, String script) {
+        Profiler profiler = new Profiler(1000, lines);
+        g.profiler = profiler;
+        profiler.start();
+        try {
+            g.load(script, "profile").call();
+        } finally {
+            profiler.stop();
+            g.profiler = null;
+        }
+        return profiler;
+    }
+
+    @Test
+    public void testSameStacksInAllModes() throws Exception {
+        for (String mode : new String[] { "interpreted", "luajc", "tiered" }) {
+            Globals g = globals(mode);
+            Profiler profiler = profile(g, true, SCRIPT);
+            Map<String, Long> stacks = profiler.getStacks();
+            Assert.assertTrue(mode + " " + stacks, profiler.getSamples() > 10);
+            Long hot = stacks.get("profile:0:4;profile:2:2;profile:1:1");
+            Assert.assertNotNull(mode + " " + stacks, hot);
+            Assert.assertTrue(mode + " " + stacks, hot.longValue() * 2 > profiler.getSamples());
+            long total = 0;
+            for (Long n : stacks.values())
+                total += n.longValue();
+            Assert.assertEquals(profiler.getSamples(), total);
+            Assert.assertNull(mode, g.running.state.frames);
+            StringWriter w = new StringWriter();
+            profiler.writeFolded(w);
+            Assert.assertTrue(w.toString(), w.toString().contains("profile:0:4;profile:2:2;profile:1:1 " + hot + "\n"));
+        }
+    }
+
+    @Test
+    public void testTimeInJavaFunctionsIsWeighted() {
+        String script =
+                "local function busy() local start = os.clock() while os.clock() - start < 0.1 do end end\n" +
+                "sleep()\n" +
+                "busy()\n";
+        for (String mode : new String[] { "interpreted", "luajc" }) {
+            Globals g = globals(mode);
+            g.set("sleep", new io.github.taoguan.luaj.lib.ZeroArgFunction() {
+                public LuaValue call() {
+                    try {
+                        Thread.sleep(400);
+                    } catch (InterruptedException e) {
+                        throw new LuaError(e);
+                    }
+                    return NONE;
+                }
+            });
+            Map<String, Long> stacks = profile(g, true, script).getStacks();
+            Long sleeping = stacks.get("profile:0:2");
+            Long busy = stacks.get("profile:0:3;profile:1:1");
+            Assert.assertNotNull(mode + " " + stacks, sleeping);
+            Assert.assertNotNull(mode + " " + stacks, busy);
+            Assert.assertTrue(mode + " " + stacks, sleeping.longValue() > 2 * busy.longValue());
+            Assert.assertTrue(mode + " " + stacks, sleeping.longValue() > 100);
+        }
+    }
+
+    @Test
+    public void testWithoutLines() {
+        for (String mode : new String[] { "interpreted", "luajc" }) {
+            Profiler profiler = profile(globals(mode), false, SCRIPT);
+            for (String stack : profiler.getStacks().keySet())
+                Assert.assertTrue(mode + " " + stack, stack.equals("profile:0") || stack.startsWith("profile:0;profile:2"));
+            Assert.assertTrue(mode, profiler.getStacks().containsKey("profile:0;profile:2;profile:1"));
+        }
+    }
+
+    @Test
+    public void testFramesPoppedOnErrors() {
+        String script =
+                "local function f(n) if n == 0 then error('x') end return f(n - 1) + 1 end\n" +
+                "local start, caught = os.clock(), 0\n" +
+                "while os.clock() - start < 0.1 do if not pcall(f, 5) then caught = caught + 1 end end\n" +
+                "local co = coroutine.wrap(function() while true do coroutine.yield(f) end end)\n" +
+                "co() co()\n" +
+                "f(3)\n";
+        for (String mode : new String[] { "interpreted", "luajc" }) {
+            Globals g = globals(mode);
+            try {
+                profile(g, true, script);
+                Assert.fail("expected an error");
+            } catch (LuaError e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("x"));
+            }
+            Assert.assertNull(mode, g.running.state.frames);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RegisterStackTest {
+
+    private static final String SCRIPT =
+            "local out = {}\n" +
+            "local function emit(...) local t = {...} for i = 1, select('#', ...) do t[i] = tostring(t[i]) end out[#out + 1] = table.concat(t, ' ') end\n" +
+            "local function two(a, b) return b, a end\n" +
+            "local function many(a, b, c, d) return d, c, b, a end\n" +
+            "local function pass(...) return ... end\n" +
+            "local function depth(n) if n == 0 then return 0 end local x = depth(n - 1) return x + 1 end\n" +
+            "emit(two(1, 2)) emit(many(1, 2, 3, 4)) emit(pass(5, 6, 7, 8, 9))\n" +
+            "local keep = { many(1, 2, 3, 4) } emit(two(3, 4)) emit(table.unpack(keep))\n" +
+            "emit(depth(300))\n" +
+            "local fs = {}\n" +
+            "local function capture()\n" +
+            "  local a, b, c, d, e, f = 1, 2, 3, 4, 5, 6\n" +
+            "  fs[1] = function() a = a + 1 return a end fs[2] = function() return b + c end\n" +
+            "  fs[3] = function() return d end fs[4] = function() return e end fs[5] = function() f = f * 2 return f end\n" +
+            "  for i = 1, 3 do local j = i fs[5 + i] = function() return j end end\n" +
+            "  return fs[1](), a\n" +
+            "end\n" +
+            "emit(capture()) emit(two(0, 0)) for i = 1, #fs do emit(fs[i]()) end\n" +
+            "emit(pcall(function() local t = nil return t.x end)) emit(two(9, 8))\n" +
+            "local function locals(p, q) local r = p + q return debug.getlocal(1, 3), debug.getlocal(1, 4) end\n" +
+            "two(1, 2, 3) emit(locals(1, 2))\n" +
+            "return table.concat(out, '\\n')\n";
+
+    @After
+    public void restore() {
+        LuaClosure.reuse_registers = true;
+    }
+
+    @Test
+    public void testReusedRegistersMatchFreshOnes() {
+        LuaClosure.reuse_registers = false;
+        String expected = JsePlatform.debugGlobals().load(SCRIPT, "registers").call().tojstring();
+        LuaClosure.reuse_registers = true;
+        Globals g = JsePlatform.debugGlobals();
+        Assert.assertEquals(expected, g.load(SCRIPT, "registers").call().tojstring());
+        Assert.assertEquals(expected, g.load(SCRIPT, "registers").call().tojstring());
+        Assert.assertTrue(expected.startsWith("2 1\n4 3 2 1\n5 6 7 8 9\n4 3\n4 3 2 1\n300\n2 2\n"));
+    }
+
+    @Test
+    public void testMultipleValuesKeepRegisters() {
+        Globals g = JsePlatform.standardGlobals();
+        LuaValue f = g.load("local function rot(a, b, c, d) return d, a, b, c end\n" +
+                "return function(...) local a, b, c, d = rot(...) return a, b, c, d end\n", "registers").call();
+        f.invoke(LuaValue.varargsOf(new LuaValue[] { LuaValue.ONE, LuaValue.ONE, LuaValue.ONE, LuaValue.ONE }));
+        LuaClosure.Registers r = g.running.state.registers;
+        LuaValue[] outer = r.frames[0], inner = r.frames[1];
+        Assert.assertNotNull(outer);
+        Assert.assertNotNull(inner);
+        Varargs v = f.invoke(LuaValue.varargsOf(new LuaValue[] { LuaValue.valueOf(1), LuaValue.valueOf(2), LuaValue.valueOf(3), LuaValue.valueOf(4) }));
+        Assert.assertEquals("4 1 2 3", v.arg(1) + " " + v.arg(2) + " " + v.arg(3) + " " + v.arg(4));
+        Assert.assertSame(outer, r.frames[0]);
+        Assert.assertSame(inner, r.frames[1]);
+        Assert.assertEquals(0, r.depth);
+    }
+
+    @Test
+    public void testConcurrentCallsDoNotShareRegisters() throws InterruptedException {
+        Globals g = JsePlatform.standardGlobals();
+        final LuaValue f = g.load("local function add3(a, b, c) local x = a + b return x + c end\n" +
+                "return function(n) local s = 0 for i = 1, n do s = s + add3(i, i, i) end return s end\n", "registers").call();
+        final int n = 20000;
+        final java.util.concurrent.atomic.AtomicInteger wrong = new java.util.concurrent.atomic.AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 50; i++)
+                        if (f.call(LuaValue.valueOf(n)).tolong() != 3L * n * (n + 1) / 2)
+                            wrong.incrementAndGet();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        Assert.assertEquals(0, wrong.get());
+        Assert.assertEquals(0, g.running.state.registers.depth);
+    }
+}
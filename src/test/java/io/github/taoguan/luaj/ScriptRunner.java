@@ -0,0 +1,45 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import org.junit.Assert;
+
+/**
+ * Runs lua scripts for tests in one set of globals, returning what the scripts
+ * return so that tests can assert on the values themselves.
+ */
+public class ScriptRunner {
+
+    public final Globals globals;
+    private final String chunkname;
+
+    /** Run scripts in new standard globals. */
+    public ScriptRunner(String chunkname) {
+        this(JsePlatform.standardGlobals(), chunkname);
+    }
+
+    public ScriptRunner(Globals globals, String chunkname) {
+        this.globals = globals;
+        this.chunkname = chunkname;
+    }
+
+    /** Run a script and return all of its results. */
+    public Varargs run(String script) {
+        return globals.load(script, chunkname).invoke();
+    }
+
+    /** Run a script and return its first result. */
+    public LuaValue eval(String script) {
+        return run(script).arg1();
+    }
+
+    /** Run a script that must raise an error, and return the error message. */
+    public String error(String script) {
+        try {
+            run(script);
+        } catch (LuaError e) {
+            return e.getMessage();
+        }
+        Assert.fail("expected an error from " + script);
+        return null;
+    }
+}
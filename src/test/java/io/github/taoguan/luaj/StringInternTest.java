@@ -0,0 +1,82 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class StringInternTest {
+
+    @Test
+    public void testEqualShortStringsAreSame() {
+        LuaString a = LuaString.valueOf("interned-" + 42);
+        LuaString b = LuaString.valueOf(new StringBuilder("interned-").append(42).toString());
+        Assert.assertSame(a, b);
+        byte[] big = "xx interned-42 yy and a rather long tail to make the backing array large".getBytes();
+        LuaString c = LuaString.valueUsing(big, 3, 11);
+        Assert.assertSame(a, c);
+        Assert.assertSame(a, LuaString.valueOf(big).substring(3, 14));
+    }
+
+    @Test
+    public void testLongStringsAreNotInterned() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i <= LuaString.intern_max_length; i++)
+            sb.append((char) ('a' + i % 26));
+        LuaString a = LuaString.valueOf(sb.toString());
+        LuaString b = LuaString.valueOf(sb.toString());
+        Assert.assertNotSame(a, b);
+        Assert.assertTrue(a.raweq(b));
+        Assert.assertEquals(a.hashCode(), b.hashCode());
+    }
+
+    @Test
+    public void testScriptBuiltKeys() {
+        Globals globals = JsePlatform.standardGlobals();
+        String script =
+                "local t, n = {}, 0\n" +
+                "for i = 1, 1000 do t['k' .. (i % 10)] = i end\n" +
+                "for k in pairs(t) do n = n + 1 end\n" +
+                "return n, t.k3, ('k' .. 3) == 'k3'\n";
+        Varargs v = globals.load(script, "keys").invoke();
+        Assert.assertEquals(10, v.arg(1).toint());
+        Assert.assertEquals(993, v.arg(2).toint());
+        Assert.assertTrue(v.arg(3).toboolean());
+    }
+
+    @Test
+    public void testConcurrentInterning() throws Exception {
+        final int threads = 4, strings = 2000;
+        final AtomicReferenceArray[] seen = new AtomicReferenceArray[threads];
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final AtomicReferenceArray<LuaString> mine = new AtomicReferenceArray<LuaString>(strings);
+            seen[t] = mine;
+            workers.add(new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < strings; i++)
+                        mine.set(i, LuaString.valueOf("concurrent-" + i));
+                }
+            }));
+        }
+        for (Thread w : workers)
+            w.start();
+        for (Thread w : workers)
+            w.join();
+        for (int i = 0; i < strings; i++)
+            for (int t = 1; t < threads; t++)
+                Assert.assertSame(seen[0].get(i), seen[t].get(i));
+    }
+
+    @Test
+    public void testCounters() {
+        long hits = LuaString.getInternHits(), misses = LuaString.getInternMisses();
+        LuaString a = LuaString.valueOf("counted-" + System.nanoTime());
+        LuaString.valueOf(a.tojstring());
+        Assert.assertTrue(LuaString.getInternMisses() >= misses + 1);
+        Assert.assertTrue(LuaString.getInternHits() >= hits + 1);
+    }
+}
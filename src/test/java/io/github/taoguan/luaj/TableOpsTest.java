@@ -0,0 +1,218 @@
+package io.github.taoguan.luaj;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TableOpsTest {
+
+    private static final String BORDER =
+            "local function isborder(t, n)\n" +
+            "  return (n == 0 or rawget(t, n) ~= nil) and rawget(t, n + 1) == nil\n" +
+            "end\n";
+
+    private final ScriptRunner lua = new ScriptRunner("ops");
+
+    @Test
+    public void testInsertRemove() {
+        Varargs r = lua.run(
+                "local t = {}\n" +
+                "for i = 1, 100 do table.insert(t, 1, i) end\n" +
+                "local n1, first, last = #t, t[1], t[100]\n" +
+                "table.insert(t, 50, 'x')\n" +
+                "local n2, at, after = #t, t[50], t[51]\n" +
+                "local removed = table.remove(t, 50)\n" +
+                "return n1, first, last, n2, at, after, removed, #t, t[50]\n");
+        Assert.assertEquals(100, r.arg(1).toint());
+        Assert.assertEquals(100, r.arg(2).toint());
+        Assert.assertEquals(1, r.arg(3).toint());
+        Assert.assertEquals(101, r.arg(4).toint());
+        Assert.assertEquals("x", r.arg(5).tojstring());
+        Assert.assertEquals(51, r.arg(6).toint());
+        Assert.assertEquals("x", r.arg(7).tojstring());
+        Assert.assertEquals(100, r.arg(8).toint());
+        Assert.assertEquals(51, r.arg(9).toint());
+
+        r = lua.run(
+                "local t = {}\n" +
+                "for i = 1, 100 do t[i] = i end\n" +
+                "for i = 1, 100 do assert(table.remove(t, 1) == i) end\n" +
+                "return #t, table.remove(t), next(t)\n");
+        Assert.assertEquals(0, r.arg(1).toint());
+        Assert.assertTrue(r.arg(2).isnil());
+        Assert.assertTrue(r.arg(3).isnil());
+    }
+
+    @Test
+    public void testInsertAtEnds() {
+        Varargs r = lua.run(
+                "local q = { 'a', 'b', 'c' }\n" +
+                "table.insert(q, 'd')\n" +
+                "table.insert(q, 4, 'e')\n" +
+                "table.insert(q, #q + 1, 'f')\n" +
+                "local last = table.remove(q)\n" +
+                "return table.concat(q, ','), last, #q\n");
+        Assert.assertEquals("a,b,c,e,d", r.arg(1).tojstring());
+        Assert.assertEquals("f", r.arg(2).tojstring());
+        Assert.assertEquals(5, r.arg(3).toint());
+    }
+
+    @Test
+    public void testInsertPastEnd() {
+        Varargs r = lua.run(BORDER +
+                "local t = { 1, 2, 3 }\n" +
+                "table.insert(t, 6, 'x')\n" +
+                "local ok1 = isborder(t, #t)\n" +
+                "table.insert(t, 4, 'y')\n" +
+                "local ok2 = isborder(t, #t)\n" +
+                "return t[4], t[5], t[6], ok1, ok2, table.remove(t, #t + 1)\n");
+        Assert.assertEquals("y", r.arg(1).tojstring());
+        Assert.assertTrue(r.arg(2).isnil());
+        Assert.assertEquals("x", r.arg(3).tojstring());
+        Assert.assertTrue(r.arg(4).toboolean());
+        Assert.assertTrue(r.arg(5).toboolean());
+        Assert.assertTrue(r.arg(6).isnil());
+    }
+
+    @Test
+    public void testHoleInArrayPart() {
+        Varargs r = lua.run(
+                "local t = {}\n" +
+                "for i = 1, 8 do t[i] = i end\n" +
+                "t[3] = nil t[1] = nil t[1] = 1\n" +
+                "local n = #t\n" +
+                "table.insert(t, 2, 'v')\n" +
+                "local a = { t[1], t[2], t[3], t[4], t[5], t[9] }\n" +
+                "local removed = table.remove(t, 2)\n" +
+                "return n, a[1], a[2], a[3], a[4], a[5], a[6], removed, t[2], t[3], t[4], t[8], t[9]\n");
+        Assert.assertEquals(8, r.arg(1).toint());
+        Assert.assertEquals(1, r.arg(2).toint());
+        Assert.assertEquals("v", r.arg(3).tojstring());
+        Assert.assertEquals(2, r.arg(4).toint());
+        Assert.assertTrue(r.arg(5).isnil());
+        Assert.assertEquals(4, r.arg(6).toint());
+        Assert.assertEquals(8, r.arg(7).toint());
+        Assert.assertEquals("v", r.arg(8).tojstring());
+        Assert.assertEquals(2, r.arg(9).toint());
+        Assert.assertTrue(r.arg(10).isnil());
+        Assert.assertEquals(4, r.arg(11).toint());
+        Assert.assertEquals(8, r.arg(12).toint());
+        Assert.assertTrue(r.arg(13).isnil());
+    }
+
+    @Test
+    public void testHoleInHashPart() {
+        Varargs r = lua.run(
+                "local t = { 1, x = 1, y = 2 }\n" +
+                "table.remove(t, 1)\n" +
+                "t[3] = 3 t[1] = 'a'\n" +
+                "local n = #t\n" +
+                "table.insert(t, 2, 'v')\n" +
+                "local a = { t[1], t[2], t[3], t[4] }\n" +
+                "local removed = table.remove(t, 2)\n" +
+                "return n, a[1], a[2], a[3], a[4], removed, t[1], t[2], t[3], t[4]\n");
+        Assert.assertEquals(3, r.arg(1).toint());
+        Assert.assertEquals("a", r.arg(2).tojstring());
+        Assert.assertEquals("v", r.arg(3).tojstring());
+        Assert.assertTrue(r.arg(4).isnil());
+        Assert.assertEquals(3, r.arg(5).toint());
+        Assert.assertEquals("v", r.arg(6).tojstring());
+        Assert.assertEquals("a", r.arg(7).tojstring());
+        Assert.assertTrue(r.arg(8).isnil());
+        Assert.assertEquals(3, r.arg(9).toint());
+        Assert.assertTrue(r.arg(10).isnil());
+    }
+
+    @Test
+    public void testBorder() {
+        Varargs r = lua.run(
+                "local t = {}\n" +
+                "for i = 1, 10 do t[i] = i end\n" +
+                "local a = #t\n" +
+                "t[10] = nil\n" +
+                "local b = #t\n" +
+                "t[10], t[11], t[12] = 10, 11, 12\n" +
+                "local c = #t\n" +
+                "for i = 13, 40 do t[i] = i end\n" +
+                "local d = #t\n" +
+                "table.sort(t, function(a, b) return a > b end)\n" +
+                "for i = 40, 21, -1 do t[i] = nil end\n" +
+                "return a, b, c, d, #t, t[1], t[20]\n");
+        Assert.assertEquals(10, r.arg(1).toint());
+        Assert.assertEquals(9, r.arg(2).toint());
+        Assert.assertEquals(12, r.arg(3).toint());
+        Assert.assertEquals(40, r.arg(4).toint());
+        Assert.assertEquals(20, r.arg(5).toint());
+        Assert.assertEquals(40, r.arg(6).toint());
+        Assert.assertEquals(21, r.arg(7).toint());
+    }
+
+    @Test
+    public void testBorderAfterMetatableChange() {
+        Varargs r = lua.run(
+                "local t = { 1, 2, 3, 4 }\n" +
+                "local a = #t\n" +
+                "setmetatable(t, { __mode = 'v' })\n" +
+                "local b = #t\n" +
+                "t[5] = 5\n" +
+                "local c = #t\n" +
+                "setmetatable(t, { __index = function(_, k) return k end })\n" +
+                "local d = #t\n" +
+                "setmetatable(t, { __len = function() return 10 end })\n" +
+                "local e, raw = #t, rawlen(t)\n" +
+                "setmetatable(t, nil)\n" +
+                "table.insert(t, 1, 0)\n" +
+                "return a, b, c, d, e, raw, #t, t[1], t[6]\n");
+        Assert.assertEquals(4, r.arg(1).toint());
+        Assert.assertEquals(4, r.arg(2).toint());
+        Assert.assertEquals(5, r.arg(3).toint());
+        Assert.assertEquals(5, r.arg(4).toint());
+        Assert.assertEquals(10, r.arg(5).toint());
+        Assert.assertEquals(5, r.arg(6).toint());
+        Assert.assertEquals(6, r.arg(7).toint());
+        Assert.assertEquals(0, r.arg(8).toint());
+        Assert.assertEquals(5, r.arg(9).toint());
+    }
+
+    @Test
+    public void testInsertIntoWeakValues() {
+        Varargs r = lua.run(
+                "local u = setmetatable({}, { __mode = 'v' })\n" +
+                "local keep = {}\n" +
+                "for i = 1, 8 do keep[i] = {} table.insert(u, 1, keep[i]) end\n" +
+                "return #u, u[1] == keep[8], u[8] == keep[1]\n");
+        Assert.assertEquals(8, r.arg(1).toint());
+        Assert.assertTrue(r.arg(2).toboolean());
+        Assert.assertTrue(r.arg(3).toboolean());
+    }
+
+    @Test
+    public void testConcat() {
+        Varargs r = lua.run(
+                "local t = { 'a', 2, 'c', 4.5 }\n" +
+                "local p = setmetatable({ 'x' }, { __index = function(t, k) return 'i' .. k end })\n" +
+                "return table.concat(t, '-'), table.concat(t, '', 2, 3), table.concat(t, ',', 3, 2),\n" +
+                "  table.concat(p, '', 1, 3)\n");
+        Assert.assertEquals("a-2-c-4.5", r.arg(1).tojstring());
+        Assert.assertEquals("2c", r.arg(2).tojstring());
+        Assert.assertEquals("", r.arg(3).tojstring());
+        Assert.assertEquals("xi2i3", r.arg(4).tojstring());
+        Assert.assertTrue(lua.error("return table.concat({ 'a', {}, 'c' })").length() > 0);
+        Assert.assertTrue(lua.error("return table.concat({ 'a' }, '', 1, 3)").length() > 0);
+    }
+
+    @Test
+    public void testUnpack() {
+        Varargs r = lua.run("return table.unpack({ 1, nil, 3, 4, 5 }, 1, 6)");
+        Assert.assertEquals(6, r.narg());
+        Assert.assertEquals(1, r.arg(1).toint());
+        Assert.assertTrue(r.arg(2).isnil());
+        Assert.assertEquals(5, r.arg(5).toint());
+        Assert.assertTrue(r.arg(6).isnil());
+        Assert.assertEquals(3, lua.run("return table.unpack({ 1, nil, 3, 4, 5 }, 2, 4)").narg());
+        Assert.assertEquals(0, lua.run("return table.unpack({ 1, 2 }, 3, 2)").narg());
+        r = lua.run("return table.unpack(setmetatable({}, { __index = function(t, k) return k * 10 end }), 1, 3)");
+        Assert.assertEquals(3, r.narg());
+        Assert.assertEquals(10, r.arg(1).toint());
+        Assert.assertEquals(30, r.arg(3).toint());
+    }
+}
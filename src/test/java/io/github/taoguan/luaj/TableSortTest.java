@@ -0,0 +1,144 @@
+package io.github.taoguan.luaj;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TableSortTest {
+
+    private final ScriptRunner lua = new ScriptRunner("sort");
+
+    private static final String CHECK =
+            "local function check(t, n, before)\n" +
+            "  assert(#t == n, 'length ' .. #t)\n" +
+            "  for i = 2, n do assert(not before(t[i], t[i - 1]), 'order at ' .. i) end\n" +
+            "end\n";
+
+    private Varargs run(String script) {
+        return lua.run(CHECK + script);
+    }
+
+    @Test
+    public void testShapes() {
+        String script =
+                "local shapes = {\n" +
+                "  random = function(i) return math.random(1, 1000) end,\n" +
+                "  sorted = function(i) return i end,\n" +
+                "  reversed = function(i) return -i end,\n" +
+                "  sawtooth = function(i) return i % 37 end,\n" +
+                "  equal = function(i) return 7 end,\n" +
+                "}\n" +
+                "local cases = 0\n" +
+                "for _, n in ipairs { 0, 1, 2, 3, 15, 16, 17, 100, 1000, 3001 } do\n" +
+                "  for name, f in pairs(shapes) do\n" +
+                "    local t, u, sum, usum = {}, {}, 0, 0\n" +
+                "    for i = 1, n do t[i] = f(i) u[i] = t[i] sum = sum + t[i] end\n" +
+                "    table.sort(t)\n" +
+                "    check(t, n, function(a, b) return a < b end)\n" +
+                "    table.sort(u, function(a, b) return a > b end)\n" +
+                "    check(u, n, function(a, b) return a > b end)\n" +
+                "    for i = 1, n do usum = usum + t[i] - u[i] end\n" +
+                "    assert(usum == 0, name)\n" +
+                "    cases = cases + 1\n" +
+                "  end\n" +
+                "end\n" +
+                "return cases\n";
+        Assert.assertEquals(50, run(script).arg1().toint());
+    }
+
+    @Test
+    public void testPrimitiveKeys() {
+        String script =
+                "local t = { 3, 9007199254740993, -2.5, 1, 2^60, -9007199254740993, 0.5, 9007199254740992 }\n" +
+                "table.sort(t)\n" +
+                "check(t, 8, function(a, b) return a < b end)\n" +
+                "local s = { 'pear', 'apple', 'fig', 'apple', '', 'Zebra', 'figs' }\n" +
+                "table.sort(s)\n" +
+                "local l = { 5000000000, 3, -7000000000, 1 }\n" +
+                "table.sort(l)\n" +
+                "return table.concat(t, ' '), table.concat(s, ','), table.concat(l, ',')\n";
+        Varargs v = run(script);
+        Assert.assertEquals("-9007199254740993 -2.5 0.5 1 3 9007199254740992 9007199254740993 1152921504606846976",
+                v.arg(1).tojstring());
+        Assert.assertEquals(",Zebra,apple,apple,fig,figs,pear", v.arg(2).tojstring());
+        Assert.assertEquals("-7000000000,1,3,5000000000", v.arg(3).tojstring());
+    }
+
+    @Test
+    public void testFewComparisons() {
+        String script =
+                "local n, calls = 10000, 0\n" +
+                "local function lt(a, b) calls = calls + 1 return a < b end\n" +
+                "local t = {}\n" +
+                "for i = 1, n do t[i] = math.random(1, n) end\n" +
+                "table.sort(t, lt)\n" +
+                "local random = calls\n" +
+                "check(t, n, lt)\n" +
+                "calls = 0\n" +
+                "table.sort(t, lt)\n" +
+                "return random, calls\n";
+        Varargs v = run(script);
+        // n log2 n is about 133000, heapsort needed about 235000
+        Assert.assertTrue(v.arg(1).tojstring(), v.arg(1).toint() < 130000);
+        Assert.assertTrue(v.arg(2).tojstring(), v.arg(2).toint() < 10000);
+    }
+
+    @Test
+    public void testMetamethodsAndErrors() {
+        String script =
+                "local mt = { __lt = function(a, b) return a.v < b.v end }\n" +
+                "local t = {}\n" +
+                "for i = 1, 50 do t[i] = setmetatable({ v = (i * 17) % 50 }, mt) end\n" +
+                "table.sort(t)\n" +
+                "for i = 1, 50 do assert(t[i].v == i - 1) end\n" +
+                "local u = { 3, 1, 2 }\n" +
+                "local ok, err = pcall(table.sort, u, function(a, b) if a == 2 then error('boom') end return a < b end)\n" +
+                "return u[1], u[2], u[3], ok, err, pcall(table.sort, { 1, 'x', 2 })\n";
+        Varargs r = run(script);
+        Assert.assertEquals(3, r.arg(1).toint());
+        Assert.assertEquals(1, r.arg(2).toint());
+        Assert.assertEquals(2, r.arg(3).toint());
+        Assert.assertFalse(r.arg(4).toboolean());
+        Assert.assertTrue(r.arg(5).tojstring(), r.arg(5).tojstring().endsWith("boom"));
+        Assert.assertFalse(r.arg(6).toboolean());
+        Assert.assertTrue(r.arg(7).tojstring(), r.arg(7).tojstring().contains("compare"));
+    }
+
+    @Test
+    public void testWeakValues() {
+        String script =
+                "local t = setmetatable({}, { __mode = 'v' })\n" +
+                "local keep = {}\n" +
+                "for i = 1, 20 do keep[i] = { v = 21 - i } t[i] = keep[i] end\n" +
+                "table.sort(t, function(a, b) return a.v < b.v end)\n" +
+                "return t[1].v, t[20].v, #t\n";
+        Varargs r = run(script);
+        Assert.assertEquals(1, r.arg(1).toint());
+        Assert.assertEquals(20, r.arg(2).toint());
+        Assert.assertEquals(20, r.arg(3).toint());
+    }
+
+    @Test
+    public void testEdgeCases() {
+        String script =
+                "local empty, one, two = {}, { 'a' }, { 2, 1 }\n" +
+                "table.sort(empty) table.sort(one) table.sort(two)\n" +
+                "local mixed = { 3, 2.5, -1, 1000.5, 0, -0.5 }\n" +
+                "table.sort(mixed)\n" +
+                "local nan = { 3, 0/0, 1 }\n" +
+                "pcall(table.sort, nan)\n" +
+                "local bad = {}\n" +
+                "for i = 1, 100 do bad[i] = i % 10 end\n" +
+                "pcall(table.sort, bad, function(a, b) return true end)\n" +
+                "local n = 0 for i = 1, 100 do if bad[i] ~= nil then n = n + 1 end end\n" +
+                "return #empty, one[1], two[1], two[2], table.concat(mixed, ' '), #nan, n\n";
+        Varargs r = run(script);
+        Assert.assertEquals(0, r.arg(1).toint());
+        Assert.assertEquals("a", r.arg(2).tojstring());
+        Assert.assertEquals(1, r.arg(3).toint());
+        Assert.assertEquals(2, r.arg(4).toint());
+        Assert.assertEquals("-1 -0.5 0 2.5 3 1000.5", r.arg(5).tojstring());
+        Assert.assertEquals(3, r.arg(6).toint());
+        // an inconsistent comparator may give any order, but keeps every value
+        Assert.assertEquals(100, r.arg(7).toint());
+    }
+}
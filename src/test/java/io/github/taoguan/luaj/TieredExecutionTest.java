@@ -0,0 +1,111 @@
+package io.github.taoguan.luaj;
+
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.luajc.TieredLoader;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TieredExecutionTest {
+
+    private static final String SCRIPT =
+            "local out = {}\n" +
+            "local function emit(...) local t = {...} for i = 1, select('#', ...) do t[i] = tostring(t[i]) end out[#out + 1] = table.concat(t, ' ') end\n" +
+            "local function fib(n) if n < 2 then return n end return fib(n - 1) + fib(n - 2) end\n" +
+            "local count = 0\n" +
+            "local function counter() count = count + 1 return count end\n" +
+            "local function make(x)\n" +
+            "  local y = x * 2\n" +
+            "  return function(d) y = y + d return x + y end, function() return y end\n" +
+            "end\n" +
+            "local function sum(...) local s = 0 for _, v in ipairs({...}) do s = s + v end return s, select('#', ...) end\n" +
+            "local function tail(n, acc) if n == 0 then return acc end return tail(n - 1, acc + n) end\n" +
+            "local function loops(n)\n" +
+            "  local t, s = {}, 0\n" +
+            "  for i = 1, n do t[i] = i * i end\n" +
+            "  for k, v in pairs(t) do s = s + v end\n" +
+            "  local i = 0 while i < n do i = i + 1 if i % 7 == 0 then s = s - i end end\n" +
+            "  return s, #t\n" +
+            "end\n" +
+            "local function failing(n) if n > 3 then error('too big: ' .. n) end return n end\n" +
+            "for round = 1, 6 do\n" +
+            "  emit(fib(12), counter(), count)\n" +
+            "  local inc, get = make(round)\n" +
+            "  emit(inc(1), inc(2), get())\n" +
+            "  emit(sum(round, 2, 3), sum())\n" +
+            "  emit(tail(200, 0), loops(20 + round))\n" +
+            "  emit(pcall(failing, round))\n" +
+            "  local co = coroutine.wrap(function(a) local b = coroutine.yield(a + 1) return b * 2 end)\n" +
+            "  emit(co(round), co(round))\n" +
+            "  emit(string.format('%5.2f', round / 3), tostring(round // 2), round ~ 3)\n" +
+            "end\n" +
+            "return table.concat(out, '\\n')\n";
+
+    @Test
+    public void testCompileOnFirstCall() {
+        check(new TieredLoader(0, false));
+    }
+
+    @Test
+    public void testCompileWhenHot() {
+        check(new TieredLoader(20, false));
+    }
+
+    @Test
+    public void testCompileInBackground() throws InterruptedException {
+        TieredLoader tiers = check(new TieredLoader(5, true));
+        tiers.awaitCompiled();
+        Assert.assertTrue(tiers.getQueuedCount() > 0);
+        Assert.assertEquals(tiers.getQueuedCount(), tiers.getCompiledCount() + tiers.getFailedCount());
+    }
+
+    @Test
+    public void testCountersAndUpvalueSharing() {
+        Globals g = JsePlatform.standardGlobals();
+        TieredLoader tiers = TieredLoader.install(g, new TieredLoader(10, false));
+        Varargs r = g.load(
+                "local n = 0\n" +
+                "local function bump() n = n + 1 return n end\n" +
+                "for i = 1, 100 do bump() n = n + 1 end\n" +
+                "return n, bump\n", "counters").invoke();
+        Assert.assertEquals(200, r.arg1().toint());
+        LuaClosure bump = (LuaClosure) r.arg(2);
+        Assert.assertNotNull(bump.compiled);
+        Assert.assertTrue(bump.p.calls >= 10);
+        Assert.assertEquals(1, tiers.getCompiledCount());
+        Assert.assertEquals(0, tiers.getFailedCount());
+        Assert.assertEquals(201, bump.call().toint());
+    }
+
+    @Test
+    public void testPrototypeSharedBetweenLoaders() throws java.io.IOException {
+        Globals a = JsePlatform.standardGlobals();
+        Globals b = JsePlatform.standardGlobals();
+        TieredLoader first = TieredLoader.install(a, new TieredLoader(0, false));
+        TieredLoader second = TieredLoader.install(b, new TieredLoader(1000000, true));
+        Prototype p = a.compilePrototype(new java.io.StringReader("return function(x) return x + 1 end"), "shared");
+        LuaValue fa = first.load(p, "shared", a).call();
+        LuaValue fb = second.load(p, "shared", b).call();
+        Assert.assertEquals(2, fa.call(LuaValue.ONE).toint());
+        Assert.assertEquals(3, fb.call(LuaValue.valueOf(2)).toint());
+        Assert.assertNotNull(((LuaClosure) fb).compiled);
+        // the chunk and the function it returns were compiled by the first loader only
+        Assert.assertEquals(2, first.getCompiledCount());
+        Assert.assertEquals(2, first.getBoundCount());
+        Assert.assertEquals(0, second.getCompiledCount());
+        Assert.assertEquals(0, second.getQueuedCount());
+        Assert.assertEquals(2, second.getBoundCount());
+    }
+
+    private static TieredLoader check(TieredLoader tiers) {
+        String expected = JsePlatform.standardGlobals().load(SCRIPT, "tiered").call().tojstring();
+        Globals g = JsePlatform.standardGlobals();
+        TieredLoader.install(g, tiers);
+        Assert.assertEquals(expected, g.load(SCRIPT, "tiered").call().tojstring());
+        if (!tiers.isBackground()) {
+            Assert.assertTrue(tiers.getCompiledCount() > 0);
+            Assert.assertTrue(tiers.getBoundCount() > 0);
+            Assert.assertEquals(0, tiers.getFailedCount());
+        }
+        return tiers;
+    }
+}
@@ -0,0 +1,115 @@
+package io.github.taoguan.luaj;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WeakTableTest {
+
+    private static final String SETUP =
+            "function fill(t, n, self) for i = 1, n do local k = {} t[k] = self and { key = k } or i end end\n" +
+            "function count(t) local n = 0 for _ in pairs(t) do n = n + 1 end return n end\n";
+
+    private final ScriptRunner lua = new ScriptRunner("weak");
+
+    private static void collect() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+    }
+
+    @Test
+    public void testWeakValues() {
+        lua.run(SETUP +
+                "keep = {}\n" +
+                "t = setmetatable({}, { __mode = 'v' })\n" +
+                "t[1], t[2], t[3] = {}, keep, 'str'\n" +
+                "t.a, t.b, t.c = {}, keep, 42\n");
+        collect();
+        Varargs r = lua.run("return count(t), t[2] == keep, t.b == keep, t[3], t.c, t[1], t.a");
+        Assert.assertEquals(4, r.arg(1).toint());
+        Assert.assertTrue(r.arg(2).toboolean());
+        Assert.assertTrue(r.arg(3).toboolean());
+        Assert.assertEquals("str", r.arg(4).tojstring());
+        Assert.assertEquals(42, r.arg(5).toint());
+        Assert.assertTrue(r.arg(6).isnil());
+        Assert.assertTrue(r.arg(7).isnil());
+    }
+
+    @Test
+    public void testWeakKeysAreEphemerons() {
+        lua.run(SETUP +
+                "keep = {}\n" +
+                "t = setmetatable({}, { __mode = 'k' })\n" +
+                "fill(t, 1000, true) fill(t, 1000, false)\n" +
+                "t[keep] = { key = keep } t.name = {}\n");
+        collect();
+        Varargs r = lua.run("return count(t), t[keep].key == keep, type(t.name)");
+        Assert.assertEquals(2, r.arg(1).toint());
+        Assert.assertTrue(r.arg(2).toboolean());
+        Assert.assertEquals("table", r.arg(3).tojstring());
+    }
+
+    @Test
+    public void testWeakKeysAndValues() {
+        lua.run(SETUP +
+                "keep = {}\n" +
+                "t = setmetatable({}, { __mode = 'kv' })\n" +
+                "fill(t, 100, true) t[keep] = {} t.x = keep t.y = {}\n");
+        collect();
+        Varargs r = lua.run("return count(t), t.x == keep, t[keep], t.y");
+        Assert.assertEquals(1, r.arg(1).toint());
+        Assert.assertTrue(r.arg(2).toboolean());
+        Assert.assertTrue(r.arg(3).isnil());
+        Assert.assertTrue(r.arg(4).isnil());
+    }
+
+    @Test
+    public void testModeChangeKeepsEntries() {
+        Varargs r = lua.run(SETUP +
+                "t = { {}, {}, {} } t.a, t.b = {}, 1\n" +
+                "local n1 = count(t)\n" +
+                "setmetatable(t, { __mode = 'v' }) local n2, len = count(t), #t\n" +
+                "t[1], t[2], t[3], t.a, t.b = nil\n" +
+                "return n1, n2, len, count(t)");
+        Assert.assertEquals(5, r.arg(1).toint());
+        Assert.assertEquals(5, r.arg(2).toint());
+        Assert.assertEquals(3, r.arg(3).toint());
+        Assert.assertEquals(0, r.arg(4).toint());
+    }
+
+    @Test
+    public void testClearDuringTraversal() {
+        Assert.assertEquals(0, lua.eval(SETUP +
+                "local keys = {}\n" +
+                "t = setmetatable({}, { __mode = 'k' })\n" +
+                "for i = 1, 50 do keys[i] = {} t[keys[i]] = i end\n" +
+                "for k in pairs(t) do t[k] = nil end\n" +
+                "return count(t)").toint());
+    }
+
+    @Test
+    public void testCacheChurnStaysFlat() {
+        lua.run(SETUP + "cache = setmetatable({}, { __mode = 'k' })\n");
+        LuaValue churn = lua.eval("return function() fill(cache, 20000, true) end");
+        LuaTable cache = (LuaTable) lua.globals.get("cache");
+        Runtime rt = Runtime.getRuntime();
+        long firstHeap = 0;
+        int firstHash = 0;
+        for (int round = 0; round < 20; round++) {
+            churn.call();
+            collect();
+            if (round == 2) {
+                firstHeap = rt.totalMemory() - rt.freeMemory();
+                firstHash = cache.getHashLength();
+            }
+        }
+        collect();
+        long heap = rt.totalMemory() - rt.freeMemory();
+        Assert.assertTrue("hash part grew from " + firstHash + " to " + cache.getHashLength(),
+                cache.getHashLength() <= firstHash);
+        Assert.assertTrue("heap grew from " + firstHeap + " to " + heap,
+                heap - firstHeap < 16L << 20);
+        Assert.assertEquals(0, lua.eval("return count(cache)").toint());
+    }
+}
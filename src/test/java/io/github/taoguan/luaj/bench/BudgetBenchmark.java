@@ -0,0 +1,55 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.luajc.LuaJC;
+
+/**
+ * Measures the overhead of limiting scripts, interpreted and compiled with {@link LuaJC}:
+ * without limits, with an execution {@link Globals.Budget} without and with a limit on allocations,
+ * and with a {@code debug.sethook} count hook, on a workload of loops, calls, table accesses 
+ * and string concatenation.  Compiled functions do not call debug hooks,
+ * so the hook is only measured interpreted.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.BudgetBenchmark [n]}.
+ */
+public class BudgetBenchmark {
+
+    private static final String SCRIPT =
+            "local n, hook = ...\n" +
+            "if hook then debug.sethook(function() end, '', 1000000) end\n" +
+            "local function fib(k) if k < 2 then return k end return fib(k - 1) + fib(k - 2) end\n" +
+            "local start = os.clock()\n" +
+            "local t, s = {}, 0\n" +
+            "for i = 1, n do t[i % 1000 + 1] = i end\n" +
+            "for i = 1, n // 10 do local p = { i, 'x' .. i } s = s + #p[2] end\n" +
+            "for r = 1, n // 1000 do for i, v in ipairs(t) do s = s + v end end\n" +
+            "local i = 0 while i < n do i = i + 1 if i % 3 == 0 then s = s - 1 end end\n" +
+            "s = s + fib(24)\n" +
+            "if hook then debug.sethook() end\n" +
+            "return os.clock() - start, s\n";
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        for (int pass = 1; pass <= 5; pass++) {
+            StringBuilder sb = new StringBuilder("pass " + pass);
+            for (boolean luajc : new boolean[] { false, true }) {
+                sb.append(luajc ? " | luajc" : " | interpreted");
+                for (String limit : luajc ? new String[] { "none", "budget", "memory" } : new String[] { "none", "budget", "memory", "hook" }) {
+                    Globals g = limit.equals("hook") ? JsePlatform.debugGlobals() : JsePlatform.standardGlobals();
+                    if (luajc)
+                        LuaJC.install(g);
+                    if (limit.equals("budget"))
+                        g.budget = new Globals.Budget(Long.MAX_VALUE / 2, 3600000);
+                    else if (limit.equals("memory"))
+                        g.budget = new Globals.Budget(Long.MAX_VALUE / 2, 3600000, Long.MAX_VALUE / 2);
+                    double seconds = g.load(SCRIPT, "budget")
+                            .invoke(LuaValue.valueOf(n), LuaValue.valueOf(limit.equals("hook"))).arg1().todouble();
+                    sb.append(String.format(" %s %6.1fms", limit, seconds * 1e3));
+                }
+            }
+            System.out.println(sb);
+        }
+    }
+}
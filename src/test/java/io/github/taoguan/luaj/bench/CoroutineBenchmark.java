@@ -0,0 +1,43 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaThread;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+
+/**
+ * Reports {@code coroutine.resume}/{@code coroutine.yield} round trips per second for
+ * each {@link LuaThread#coroutine_mode}.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.CoroutineBenchmark [roundtrips]}.
+ */
+public class CoroutineBenchmark {
+
+    private static final String SCRIPT =
+            "local n = ...\n" +
+            "local co = coroutine.wrap(function() while true do coroutine.yield(1) end end)\n" +
+            "local s = 0\n" +
+            "for i = 1, n do s = s + co() end\n" +
+            "return s\n";
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        System.out.println("virtual threads available: " + LuaThread.isVirtualThreadSupported());
+        for (int pass = 1; pass <= 3; pass++) {
+            run("platform ", LuaThread.COROUTINE_PLATFORM, n);
+            run("virtual  ", LuaThread.COROUTINE_VIRTUAL, n);
+            run("stackless", LuaThread.COROUTINE_STACKLESS, n);
+        }
+    }
+
+    private static void run(String name, int mode, int n) {
+        LuaThread.coroutine_mode = mode;
+        Globals globals = JsePlatform.standardGlobals();
+        LuaValue chunk = globals.load(SCRIPT, "coroutine-bench");
+        long start = System.nanoTime();
+        chunk.call(LuaValue.valueOf(n));
+        long nanos = System.nanoTime() - start;
+        System.out.println(String.format("%s: %10.0f round trips/s, %6.2f us/round trip",
+                name, n * 1e9 / nanos, nanos / 1e3 / n));
+    }
+}
@@ -0,0 +1,46 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+
+/**
+ * Measures round trips of {@code pcall} and {@code error} raised a number of lua calls deep,
+ * with and without Java stack traces, as used by validation scripts that report failures with error.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.ErrorBenchmark [iterations]}.
+ */
+public class ErrorBenchmark {
+
+    private static final String SCRIPT =
+            "local n, depth = ...\n" +
+            "local function check(v, d)\n" +
+            "  if d > 0 then return check(v, d - 1) + 0 end\n" +
+            "  if v % 2 == 0 then error('invalid value ' .. v) end\n" +
+            "  assert(v < 0, 'must be negative')\n" +
+            "  return v\n" +
+            "end\n" +
+            "local failed = 0\n" +
+            "local start = os.clock()\n" +
+            "for i = 1, n do\n" +
+            "  if not pcall(check, i, depth) then failed = failed + 1 end\n" +
+            "end\n" +
+            "return n / (os.clock() - start), failed\n";
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        for (int pass = 1; pass <= 3; pass++) {
+            StringBuilder sb = new StringBuilder("pass " + pass);
+            for (int depth : new int[] { 0, 10, 50 }) {
+                sb.append(" | depth ").append(depth);
+                for (boolean stacktraces : new boolean[] { true, false }) {
+                    Globals g = JsePlatform.standardGlobals();
+                    g.errorstacktraces = stacktraces;
+                    double rate = g.load(SCRIPT, "errors").call(LuaValue.valueOf(n), LuaValue.valueOf(depth)).todouble();
+                    sb.append(String.format(" %s %8.0f/s", stacktraces ? "stack" : "stackless", rate));
+                }
+            }
+            System.out.println(sb);
+        }
+    }
+}
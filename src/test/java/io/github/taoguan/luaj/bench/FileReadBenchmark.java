@@ -0,0 +1,63 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.Varargs;
+import io.github.taoguan.luaj.lib.jse.JseIoLib;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Measures reading a log file line by line with {@code io.lines} and whole with {@code read('*a')},
+ * through RandomAccessFile one byte at a time, through a buffered channel, and memory mapped.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.FileReadBenchmark [megabytes]}.
+ */
+public class FileReadBenchmark {
+
+    private static final String SCRIPT =
+            "local path = ...\n" +
+            "local lines, bytes = 0, 0\n" +
+            "for line in io.lines(path) do lines = lines + 1 bytes = bytes + #line end\n" +
+            "return lines, bytes\n";
+
+    private static final String READ_ALL =
+            "local f = io.open(...) local s = f:read('*a') f:close() return #s\n";
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        File file = File.createTempFile("luaj-bench", ".log");
+        file.deleteOnExit();
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        for (int i = 0; file.length() + i * 90L < megabytes * (1L << 20); i++)
+            os.write(String.format("2024-05-%02d 12:%02d:%02d [INFO] worker-%d GET /api/v1/items/%d 200 %dms\n",
+                    i % 28 + 1, i % 60, i * 7 % 60, i % 16, i * 31, i % 500).getBytes("ISO-8859-1"));
+        os.close();
+        double mb = file.length() / (double) (1 << 20);
+
+        String[] names = { "RandomAccessFile", "channel", "mapped" };
+        for (int pass = 1; pass <= 3; pass++) {
+            StringBuilder sb = new StringBuilder("pass " + pass);
+            for (int mode = 0; mode < names.length; mode++) {
+                JseIoLib.read_buffer_size = mode == 0 ? 0 : 64 * 1024;
+                JseIoLib.map_threshold = mode == 2 ? 1 : 0;
+                Globals g = JsePlatform.standardGlobals();
+                LuaValue path = LuaValue.valueOf(file.getPath());
+                long start = System.nanoTime();
+                Varargs v = g.load(SCRIPT, "lines").invoke(path);
+                double lines = (System.nanoTime() - start) / 1e9;
+                start = System.nanoTime();
+                g.load(READ_ALL, "all").call(path);
+                double all = (System.nanoTime() - start) / 1e9;
+                sb.append(String.format(" | %s %8.0f lines/s %6.1f MB/s, read all %6.1f MB/s",
+                        names[mode], v.arg(1).todouble() / lines, mb / lines, mb / all));
+            }
+            System.out.println(sb);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.server.GlobalsPool;
+import io.github.taoguan.luaj.server.GlobalsSnapshot;
+
+/**
+ * Compares the cost of giving each request pristine globals by building them with
+ * {@link JsePlatform#standardGlobals()} against checking them out of, and releasing
+ * them to, a {@link GlobalsPool}.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.GlobalsPoolBenchmark [requests]}.
+ */
+public class GlobalsPoolBenchmark {
+
+    private static final String SCRIPT =
+            "local t = {} for i = 1, 10 do t[#t + 1] = tostring(i) end\n" +
+            "result = table.concat(t, ',')\n" +
+            "return #result\n";
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        long base = usedMemory();
+        Globals g = JsePlatform.standardGlobals();
+        long globalsBytes = usedMemory() - base;
+        GlobalsSnapshot snapshot = new GlobalsSnapshot(g);
+        System.out.println(String.format("standardGlobals: %d bytes retained, %d tables in snapshot",
+                globalsBytes, snapshot.getTableCount()));
+
+        GlobalsPool pool = new GlobalsPool();
+        pool.prestart(1);
+        for (int pass = 1; pass <= 3; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++)
+                JsePlatform.standardGlobals().load(SCRIPT, "request").call();
+            long fresh = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                Globals p = pool.checkout();
+                try {
+                    p.load(SCRIPT, "request").call();
+                } finally {
+                    pool.release(p);
+                }
+            }
+            long pooled = System.nanoTime() - start;
+            System.out.println(String.format("pass %d standardGlobals: %7.2f us/request, pooled: %7.2f us/request (x%.1f), avg checkout %.0f ns",
+                    pass, fresh / 1e3 / n, pooled / 1e3 / n, fresh / (double) pooled, pool.getAverageCheckoutNanos()));
+        }
+        System.out.println(pool);
+    }
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
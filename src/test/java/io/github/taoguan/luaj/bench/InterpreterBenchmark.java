@@ -0,0 +1,67 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+
+/**
+ * Reports the speed of the {@link io.github.taoguan.luaj.LuaClosure} interpreter in
+ * lua instructions per second on a few typical workloads.  The instructions of each
+ * script are counted once with a count hook, then the script is timed without hooks.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.InterpreterBenchmark [rounds]}.
+ */
+public class InterpreterBenchmark {
+
+    private static final String[][] SCRIPTS = {
+            { "fib", "local function fib(n) if n < 2 then return n end return fib(n - 1) + fib(n - 2) end\n" +
+                    "return fib(24)\n" },
+            { "loops", "local s = 0\n" +
+                    "for i = 1, 300000 do local x = i % 7 if x < 3 then s = s + x * 2 elseif x == 4 then s = s - 1 else s = s + 1 end end\n" +
+                    "local j = 0 while j < 100000 do j = j + 1 end\n" +
+                    "return s + j\n" },
+            { "tables", "local t = {}\n" +
+                    "for i = 1, 50000 do t[i] = { id = i, name = 'n', v = i * 2 } end\n" +
+                    "local s = 0 for i = 1, #t do local e = t[i] s = s + e.v + e.id end\n" +
+                    "local m = {} for i = 1, 50000 do m['k' .. (i % 1000)] = i end\n" +
+                    "for k, v in pairs(m) do s = s + v end\n" +
+                    "return s\n" },
+            { "strings", "local parts = {}\n" +
+                    "for i = 1, 20000 do parts[#parts + 1] = 'item' .. i .. ';' end\n" +
+                    "local s = table.concat(parts)\n" +
+                    "local n = 0 for w in string.gmatch(s, '%a+(%d+);') do n = n + #w end\n" +
+                    "local u = 0 for i = 1, 20000 do u = u + #string.format('%d:%s', i, 'x') + #(string.upper('ab') .. 'c') end\n" +
+                    "return n + u\n" },
+    };
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        long[] counts = new long[SCRIPTS.length];
+        for (int i = 0; i < SCRIPTS.length; i++)
+            counts[i] = countInstructions(SCRIPTS[i][1]);
+
+        Globals g = JsePlatform.standardGlobals();
+        for (int pass = 1; pass <= 3; pass++) {
+            StringBuilder sb = new StringBuilder("pass " + pass);
+            for (int i = 0; i < SCRIPTS.length; i++) {
+                LuaValue chunk = g.load(SCRIPTS[i][1], SCRIPTS[i][0]);
+                long start = System.nanoTime();
+                for (int r = 0; r < rounds; r++)
+                    chunk.call();
+                long nanos = System.nanoTime() - start;
+                sb.append(String.format(" | %s %6.1f Minstr/s", SCRIPTS[i][0], counts[i] * rounds * 1e3 / nanos));
+            }
+            System.out.println(sb);
+        }
+    }
+
+    private static long countInstructions(String script) {
+        Globals g = JsePlatform.debugGlobals();
+        g.set("chunk", g.load(script, "count"));
+        return g.load("local n = 0\n" +
+                "debug.sethook(function() n = n + 1 end, '', 1)\n" +
+                "chunk()\n" +
+                "debug.sethook()\n" +
+                "return n\n", "counter").call().tolong();
+    }
+}
@@ -0,0 +1,68 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.lib.jse.CoerceJavaToLua;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.lib.jse.LuajavaLib;
+
+/**
+ * Reports Java calls and field accesses per second from lua, through the
+ * {@link java.lang.invoke.MethodHandle} call path and through core reflection
+ * ({@link LuajavaLib#method_handles}).
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.JavaInteropBenchmark [calls]}.
+ */
+public class JavaInteropBenchmark {
+
+    public static class Service {
+        public int count;
+
+        public int add(int a, int b) {
+            return a + b;
+        }
+
+        public double scale(double d) {
+            return d * 0.5;
+        }
+
+        public String name(String prefix) {
+            return prefix;
+        }
+
+        public void touch() {
+            count++;
+        }
+    }
+
+    private static final String[][] CASES = {
+            {"add(int,int)  ", "local s, n = ... local x = 0 for i = 1, n do x = x + s:add(i, 1) end return x"},
+            {"scale(double) ", "local s, n = ... local x = 0 for i = 1, n do x = x + s:scale(i) end return x"},
+            {"name(String)  ", "local s, n = ... local x for i = 1, n do x = s:name('k') end return x"},
+            {"touch()       ", "local s, n = ... for i = 1, n do s:touch() end return s.count"},
+            {"field get/set ", "local s, n = ... for i = 1, n do s.count = s.count + 1 end return s.count"},
+    };
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        Globals globals = JsePlatform.standardGlobals();
+        LuaValue service = CoerceJavaToLua.coerce(new Service());
+        for (int pass = 1; pass <= 3; pass++) {
+            System.out.println("pass " + pass);
+            for (String[] c : CASES) {
+                LuaValue chunk = globals.load(c[1], "interop-bench");
+                double handles = run(chunk, service, n, true);
+                double reflection = run(chunk, service, n, false);
+                System.out.println(String.format("  %s method handles: %8.2f M/s, reflection: %8.2f M/s (x%.2f)",
+                        c[0], handles / 1e6, reflection / 1e6, handles / reflection));
+            }
+        }
+    }
+
+    private static double run(LuaValue chunk, LuaValue service, int n, boolean methodHandles) {
+        LuajavaLib.method_handles = methodHandles;
+        long start = System.nanoTime();
+        chunk.call(service, LuaValue.valueOf(n));
+        return n * 1e9 / (System.nanoTime() - start);
+    }
+}
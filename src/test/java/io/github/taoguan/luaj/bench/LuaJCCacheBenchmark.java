@@ -0,0 +1,64 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.luajc.ClassCache;
+import io.github.taoguan.luaj.luajc.LuaJC;
+
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ * Measures the time to load a few hundred chunks with {@link LuaJC}, without a
+ * {@link ClassCache}, with an empty cache, and with a cache filled by the previous pass,
+ * as happens at startup of a process that finds the classes of an earlier run.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.LuaJCCacheBenchmark [chunks]}.
+ */
+public class LuaJCCacheBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        String[] scripts = new String[n];
+        for (int i = 0; i < n; i++)
+            scripts[i] = script(i);
+
+        File dir = Files.createTempDirectory("luajc-cache").toFile();
+        try {
+            for (int pass = 1; pass <= 3; pass++) {
+                ClassCache cache = new ClassCache(dir);
+                cache.invalidateAll();
+                long none = load(scripts, null);
+                long cold = load(scripts, cache);
+                long warm = load(scripts, new ClassCache(dir));
+                System.out.println(String.format("pass %d %d chunks: no cache %6.1f ms, cold cache %6.1f ms, warm cache %6.1f ms (x%.1f)",
+                        pass, n, none / 1e6, cold / 1e6, warm / 1e6, none / (double) warm));
+            }
+        } finally {
+            new ClassCache(dir).invalidateAll();
+            dir.delete();
+        }
+    }
+
+    private static long load(String[] scripts, ClassCache cache) {
+        Globals g = JsePlatform.standardGlobals();
+        if (cache != null)
+            LuaJC.install(g, cache);
+        else
+            LuaJC.install(g);
+        long start = System.nanoTime();
+        for (int i = 0; i < scripts.length; i++)
+            g.load(scripts[i], "chunk" + i).call();
+        return System.nanoTime() - start;
+    }
+
+    private static String script(int i) {
+        return "local M = {}\n" +
+                "local base = " + i + "\n" +
+                "function M.sum(t) local s = base for k = 1, #t do s = s + t[k] end return s end\n" +
+                "function M.map(t, f) local r = {} for k, v in ipairs(t) do r[k] = f(v) end return r end\n" +
+                "function M.fmt(x) return string.format('%d:%s', base, tostring(x)) end\n" +
+                "local t = M.map({1, 2, 3}, function(v) return v * base end)\n" +
+                "return M.fmt(M.sum(t))\n";
+    }
+}
@@ -0,0 +1,55 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+
+/**
+ * Measures method calls and field updates on objects whose methods are found
+ * through chains of {@code __index} tables, the usual shape of class hierarchies in lua,
+ * where most metamethod lookups on the class tables find nothing.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.MetatableBenchmark [iterations]}.
+ */
+public class MetatableBenchmark {
+
+    private static final String CLASSES =
+            "local function class(parent)\n" +
+            "  local c = {} c.__index = c\n" +
+            "  if parent then setmetatable(c, parent) end\n" +
+            "  return c\n" +
+            "end\n" +
+            "local Base = class() function Base:area() return self.w * self.h end\n" +
+            "function Base:grow(d) self.w = self.w + d end\n" +
+            "local Mid = class(Base) function Mid:name() return 'mid' end\n" +
+            "local Leaf = class(Mid) function Leaf:perimeter() return 2 * (self.w + self.h) end\n" +
+            "local function new(c) return setmetatable({ w = 2, h = 3 }, c) end\n";
+
+    private static final String[][] CASES = {
+            { "own", CLASSES + "local o = new(Leaf)\n" +
+                    "return function(n) local s = 0 for i = 1, n do s = s + o:perimeter() end return s end\n" },
+            { "depth3", CLASSES + "local o = new(Leaf)\n" +
+                    "return function(n) local s = 0 for i = 1, n do s = s + o:area() end return s end\n" },
+            { "newkey", CLASSES +
+                    "return function(n) local s = 0 for i = 1, n do local o = new(Leaf) o.d = i o:grow(1) s = s + o.w end return s end\n" },
+            { "tostring", CLASSES + "local o = new(Leaf)\n" +
+                    "return function(n) local s = 0 for i = 1, n do if tostring(o) then s = s + 1 end end return s end\n" },
+    };
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        for (int pass = 1; pass <= 5; pass++) {
+            StringBuilder sb = new StringBuilder("pass " + pass);
+            for (int c = 0; c < CASES.length; c++) {
+                Globals g = JsePlatform.standardGlobals();
+                LuaValue f = g.load(CASES[c][1], CASES[c][0]).call();
+                f.call(LuaValue.valueOf(10000));
+                long start = System.nanoTime();
+                f.call(LuaValue.valueOf(n));
+                long nanos = System.nanoTime() - start;
+                sb.append(String.format(" | %-8s %6.1f ns/op", CASES[c][0], nanos / (double) n));
+            }
+            System.out.println(sb);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.lib.jse.OverloadCache;
+
+/**
+ * Reports calls per second to heavily overloaded Java methods with the
+ * {@link OverloadCache} enabled and disabled, and the cache hit rate.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.OverloadBenchmark [calls]}.
+ */
+public class OverloadBenchmark {
+
+    private static final String[][] CASES = {
+            {"StringBuilder.append", "local n = ... local sb = luajava.newInstance('java.lang.StringBuilder')\n" +
+                    "for i = 1, n do sb:append(i) sb:append('x') if i % 1000 == 0 then sb:setLength(0) end end return sb:length()"},
+            {"Math.max/abs        ", "local n = ... local M = luajava.bindClass('java.lang.Math') local x = 0\n" +
+                    "for i = 1, n do x = M:max(x, M:abs(i - 5)) end return x"},
+            {"ArrayList.add/remove", "local n = ... local l = luajava.newInstance('java.util.ArrayList')\n" +
+                    "for i = 1, n do l:add('v') l:remove('v') end return l:size()"},
+    };
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Globals globals = JsePlatform.standardGlobals();
+        for (int pass = 1; pass <= 3; pass++) {
+            System.out.println("pass " + pass);
+            for (String[] c : CASES) {
+                LuaValue chunk = globals.load(c[1], "overload-bench");
+                OverloadCache.resetStats();
+                double cached = run(chunk, n, 8);
+                long hits = OverloadCache.hits(), misses = OverloadCache.misses();
+                double scored = run(chunk, n, 0);
+                System.out.println(String.format("  %s cached: %6.2f M/s (hit rate %5.1f%%), scored: %6.2f M/s (x%.2f)",
+                        c[0], cached / 1e6, 100.0 * hits / (hits + misses), scored / 1e6, cached / scored));
+            }
+        }
+    }
+
+    private static double run(LuaValue chunk, int n, int limit) {
+        OverloadCache.polymorphic_limit = limit;
+        long start = System.nanoTime();
+        chunk.call(LuaValue.valueOf(n));
+        return n * 1e9 / (System.nanoTime() - start);
+    }
+}
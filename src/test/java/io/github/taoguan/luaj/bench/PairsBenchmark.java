@@ -0,0 +1,46 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.Varargs;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+
+/**
+ * Measures full traversals of tables with string keys, integer keys in the array part,
+ * and integer keys scattered over the hash part, with {@code pairs}, which the interpreter
+ * steps with a {@link io.github.taoguan.luaj.LuaTable.Cursor}, and with a function wrapping
+ * {@code next}, which finds each key again.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.PairsBenchmark [entries]}.
+ */
+public class PairsBenchmark {
+
+    private static final String SCRIPT =
+            "local n, shape = ...\n" +
+            "local t = {}\n" +
+            "if shape == 'strings' then for i = 1, n do t['key' .. i] = i end\n" +
+            "elseif shape == 'array' then for i = 1, n do t[i] = i end\n" +
+            "else for i = 1, n do t[i * 7919] = i end end\n" +
+            "local sum, start = 0, os.clock()\n" +
+            "for pass = 1, 5 do for k, v in pairs(t) do sum = sum + v end end\n" +
+            "local pairs_time = (os.clock() - start) / 5\n" +
+            "start = os.clock()\n" +
+            "local wrapped = function(t, k) return next(t, k) end\n" +
+            "for pass = 1, 5 do for k, v in wrapped, t do sum = sum + v end end\n" +
+            "return pairs_time, (os.clock() - start) / 5, sum\n";
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        Globals g = JsePlatform.standardGlobals();
+        LuaValue script = g.load(SCRIPT, "pairs");
+        for (int pass = 1; pass <= 3; pass++) {
+            StringBuilder sb = new StringBuilder("pass " + pass + " n=" + n);
+            for (String shape : new String[] { "strings", "array", "scattered" }) {
+                Varargs v = script.invoke(LuaValue.valueOf(n), LuaValue.valueOf(shape));
+                sb.append(String.format(" | %s pairs %5.1fms wrapped next %5.1fms", shape,
+                        v.arg(1).todouble() * 1e3, v.arg(2).todouble() * 1e3));
+            }
+            System.out.println(sb);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.lib.ReferencePatterns;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+
+/**
+ * Measures the throughput of a log parsing script applying the same patterns
+ * with string.find, match, gmatch and gsub to many lines, using the compiled and cached
+ * patterns and the interpreting reference matcher of {@link ReferencePatterns}.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.PatternBenchmark [lines]}.
+ */
+public class PatternBenchmark {
+
+    private static final String SCRIPT =
+            "local find, match, gmatch, gsub = ...\n" +
+            "local levels = { 'INFO', 'WARN', 'ERROR', 'DEBUG' }\n" +
+            "local lines = {}\n" +
+            "for i = 1, 1000 do\n" +
+            "  lines[i] = string.format('2024-05-%02d 12:%02d:%02d.%03d [%s] worker-%d GET /api/v1/items/%d?q=abc&page=%d 200 %dms user=u%d',\n" +
+            "    i % 28 + 1, i % 60, i * 7 % 60, i % 1000, levels[i % 4 + 1], i % 16, i * 31, i % 9, i % 500, i % 97)\n" +
+            "end\n" +
+            "return function(n)\n" +
+            "  local count, bytes = 0, 0\n" +
+            "  for k = 1, n do\n" +
+            "    local line = lines[k % #lines + 1]\n" +
+            "    local d, t, level = match(line, '^(%d+%-%d+%-%d+) ([%d:%.]+) %[(%u+)%]')\n" +
+            "    local method, path = match(line, '(%u+) (/[^%s?]*)')\n" +
+            "    local status, ms = match(line, ' (%d%d%d) (%d+)ms')\n" +
+            "    if find(line, 'ERROR', 1, true) or find(line, '%[WARN%]') then count = count + 1 end\n" +
+            "    for key, value in gmatch(line, '(%w+)=(%w+)') do bytes = bytes + #value end\n" +
+            "    local masked = gsub(line, 'user=%w+', 'user=***')\n" +
+            "    bytes = bytes + #masked + #d + #t + #level + #method + #path + #status + #ms\n" +
+            "  end\n" +
+            "  return count + bytes\n" +
+            "end\n";
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        Globals g = JsePlatform.standardGlobals();
+        LuaValue string = g.get("string");
+        ReferencePatterns.install(string);
+        LuaValue compiled = g.load(SCRIPT, "patterns").invoke(LuaValue.varargsOf(new LuaValue[] {
+                string.get("find"), string.get("match"), string.get("gmatch"), string.get("gsub") })).arg1();
+        LuaValue reference = g.load(SCRIPT, "patterns").invoke(LuaValue.varargsOf(new LuaValue[] {
+                string.get("ref_find"), string.get("ref_match"), string.get("ref_gmatch"), string.get("ref_gsub") })).arg1();
+        for (int pass = 1; pass <= 5; pass++) {
+            long r = time(reference, n), c = time(compiled, n);
+            System.out.printf("pass %d | reference %7.0f lines/s | compiled %7.0f lines/s | %.2fx%n",
+                    pass, n * 1e9 / r, n * 1e9 / c, r / (double) c);
+        }
+    }
+
+    private static long time(LuaValue f, int n) {
+        long start = System.nanoTime();
+        f.call(LuaValue.valueOf(n));
+        return System.nanoTime() - start;
+    }
+}
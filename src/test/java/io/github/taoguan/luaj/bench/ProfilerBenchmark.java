@@ -0,0 +1,55 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.Profiler;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.luajc.LuaJC;
+
+/**
+ * Measures the overhead of the sampling {@link Profiler}, interpreted and compiled with {@link LuaJC}:
+ * without a profiler, with a profiler that is set but not started, so that frames are pushed
+ * but no samples are taken, and sampling every millisecond, on a workload of loops and calls.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.ProfilerBenchmark [n]}.
+ */
+public class ProfilerBenchmark {
+
+    private static final String SCRIPT =
+            "local n = ...\n" +
+            "local function fib(k) if k < 2 then return k end return fib(k - 1) + fib(k - 2) end\n" +
+            "local function sum(t) local s = 0 for i, v in ipairs(t) do s = s + v end return s end\n" +
+            "local start = os.clock()\n" +
+            "local t, s = {}, 0\n" +
+            "for i = 1, 1000 do t[i] = i end\n" +
+            "for r = 1, n // 1000 do s = s + sum(t) end\n" +
+            "local i = 0 while i < n do i = i + 1 if i % 3 == 0 then s = s - 1 end end\n" +
+            "s = s + fib(24)\n" +
+            "return os.clock() - start, s\n";
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        for (int pass = 1; pass <= 5; pass++) {
+            StringBuilder sb = new StringBuilder("pass " + pass);
+            for (boolean luajc : new boolean[] { false, true }) {
+                sb.append(luajc ? " | luajc" : " | interpreted");
+                for (String mode : new String[] { "none", "idle", "sampling" }) {
+                    Globals g = JsePlatform.standardGlobals();
+                    if (luajc)
+                        LuaJC.install(g);
+                    Profiler profiler = new Profiler(1000, true);
+                    if (!mode.equals("none"))
+                        g.profiler = profiler;
+                    if (mode.equals("sampling"))
+                        profiler.start();
+                    double seconds = g.load(SCRIPT, "profiler").invoke(LuaValue.valueOf(n)).arg1().todouble();
+                    profiler.stop();
+                    sb.append(String.format(" %s %6.1fms", mode, seconds * 1e3));
+                    if (mode.equals("sampling"))
+                        sb.append(String.format(" (%d samples)", profiler.getSamples()));
+                }
+            }
+            System.out.println(sb);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaClosure;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the bytes allocated and the time per interpreted call of a few small
+ * functions, with {@link LuaClosure#reuse_registers} off (a new register array per call)
+ * and on (registers reused per call depth).
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.RegisterStackBenchmark [calls]}.
+ */
+public class RegisterStackBenchmark {
+
+    private static final String[][] CASES = {
+            { "add", "local function add(a, b) return a + b end\n" +
+                    "return function(n) local s = 0 for i = 1, n do s = add(s, i) end return s end\n" },
+            { "fib", "local function fib(n) if n < 2 then return n end return fib(n - 1) + fib(n - 2) end\n" +
+                    "return function(n) return fib(n) end\n" },
+            { "method", "local P = {} P.__index = P\n" +
+                    "function P:len2() return self.x * self.x + self.y * self.y end\n" +
+                    "local p = setmetatable({ x = 3, y = 4 }, P)\n" +
+                    "return function(n) local s = 0 for i = 1, n do s = s + p:len2() end return s end\n" },
+            { "multi", "local function rot(a, b, c, d) return d, a, b, c end\n" +
+                    "return function(n) local s = 0 for i = 1, n do local a, b, c, d = rot(i, 1, 2, 3) s = s + a + d end return s end\n" },
+            { "closure", "local function counter() local c = 0 return function() c = c + 1 return c end end\n" +
+                    "return function(n) local s = 0 for i = 1, n do s = s + counter()() end return s end\n" },
+    };
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        for (int pass = 1; pass <= 3; pass++) {
+            for (int c = 0; c < CASES.length; c++) {
+                StringBuilder sb = new StringBuilder(String.format("pass %d %-8s", pass, CASES[c][0]));
+                for (int reuse = 0; reuse <= 1; reuse++) {
+                    LuaClosure.reuse_registers = reuse == 1;
+                    Globals g = JsePlatform.standardGlobals();
+                    LuaValue f = g.load(CASES[c][1], CASES[c][0]).call();
+                    boolean fib = "fib".equals(CASES[c][0]);
+                    LuaValue arg = LuaValue.valueOf(fib ? 27 : n);
+                    long calls = fib ? 317811 * 2 - 1 : n;
+                    f.call(LuaValue.valueOf(fib ? 15 : 1000));
+                    long bytes = mx.getThreadAllocatedBytes(tid);
+                    long start = System.nanoTime();
+                    f.call(arg);
+                    long nanos = System.nanoTime() - start;
+                    bytes = mx.getThreadAllocatedBytes(tid) - bytes;
+                    sb.append(String.format(" | %s: %6.1f bytes/call %6.1f ns/call", reuse == 1 ? "reused" : "fresh ",
+                            bytes / (double) calls, nanos / (double) calls));
+                }
+                System.out.println(sb);
+            }
+        }
+        LuaClosure.reuse_registers = true;
+    }
+}
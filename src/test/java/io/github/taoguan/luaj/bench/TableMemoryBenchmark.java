@@ -0,0 +1,88 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.LuaString;
+import io.github.taoguan.luaj.LuaTable;
+import io.github.taoguan.luaj.LuaValue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures retained heap per hash entry of {@link LuaTable} and compares the cost of
+ * the former layout, which kept a shadow {@link HashMap} of every hash entry, with the
+ * single {@code Slot[]} store.
+ * <p>
+ * Run with {@code java -Xmx2g -cp ... io.github.taoguan.luaj.bench.TableMemoryBenchmark [tables] [keys]}.
+ */
+public class TableMemoryBenchmark {
+
+    public static void main(String[] args) {
+        int tables = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        LuaString[] names = new LuaString[keys];
+        for (int i = 0; i < keys; i++)
+            names[i] = LuaString.valueOf("field" + i);
+
+        long base = usedMemory();
+        LuaTable[] t = new LuaTable[tables];
+        for (int i = 0; i < tables; i++) {
+            t[i] = new LuaTable();
+            for (int k = 0; k < keys; k++)
+                t[i].rawset(names[k], LuaValue.valueOf(k));
+        }
+        long tableBytes = usedMemory() - base;
+
+        // what the removed hashHelperMap retained on top of the slots
+        base = usedMemory();
+        Object[] shadow = new Object[tables];
+        for (int i = 0; i < tables; i++) {
+            Map<LuaValue, LuaValue> m = new HashMap<>();
+            for (int k = 0; k < keys; k++)
+                m.put(names[k], LuaValue.valueOf(k));
+            shadow[i] = m;
+        }
+        long shadowBytes = usedMemory() - base;
+
+        long entries = (long) tables * keys;
+        System.out.println(String.format("%d tables x %d keys", tables, keys));
+        System.out.println(String.format("slot store         : %6.1f bytes/entry", tableBytes / (double) entries));
+        System.out.println(String.format("slot store + shadow: %6.1f bytes/entry (previous layout)",
+                (tableBytes + shadowBytes) / (double) entries));
+
+        long sum = 0;
+        for (int pass = 1; pass <= 3; pass++) {
+            int rounds = 20;
+            long start = System.nanoTime();
+            for (int r = 0; r < rounds; r++)
+                for (int i = 0; i < tables; i++)
+                    for (int k = 0; k < keys; k++)
+                        sum += t[i].rawget(names[k]).toint();
+            long slotNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int r = 0; r < rounds; r++)
+                for (int i = 0; i < tables; i++) {
+                    @SuppressWarnings("unchecked")
+                    Map<LuaValue, LuaValue> m = (Map<LuaValue, LuaValue>) shadow[i];
+                    for (int k = 0; k < keys; k++)
+                        sum += m.get(names[k]).toint();
+                }
+            long mapNanos = System.nanoTime() - start;
+            System.out.println(String.format("pass %d lookup slot store: %6.2f ns/get, HashMap: %6.2f ns/get",
+                    pass, slotNanos / (double) (entries * rounds), mapNanos / (double) (entries * rounds)));
+        }
+        System.out.println("checksum " + sum + " (" + t.length + "/" + shadow.length + " tables)");
+    }
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,51 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+
+/**
+ * Measures the table library list operations on a table of n elements:
+ * {@code table.insert} and {@code table.remove} at the front, appending with {@code table.insert},
+ * the length operator, {@code table.concat} and {@code table.unpack}.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.TableOpsBenchmark [elements]}.
+ */
+public class TableOpsBenchmark {
+
+    private static final String SCRIPT =
+            "local n, op = ...\n" +
+            "local t = {}\n" +
+            "for i = 1, n do t[i] = 'item' .. i end\n" +
+            "local insert, remove, concat, unpack = table.insert, table.remove, table.concat, table.unpack\n" +
+            "local start, count = os.clock(), 0\n" +
+            "if op == 'insert front' then\n" +
+            "  for i = 1, 1000 do insert(t, 1, i) end count = 1000\n" +
+            "elseif op == 'remove front' then\n" +
+            "  for i = 1, 1000 do remove(t, 1) end count = 1000\n" +
+            "elseif op == 'append' then\n" +
+            "  local u = {} for i = 1, n do insert(u, i) end count = n\n" +
+            "elseif op == 'length' then\n" +
+            "  local s = 0 for i = 1, 20 * n do s = s + #t end count = 20 * n\n" +
+            "elseif op == 'concat' then\n" +
+            "  for i = 1, 20 do concat(t, ',') end count = 20\n" +
+            "elseif op == 'unpack' then\n" +
+            "  for i = 1, 1000 do select('#', unpack(t, 1, 200)) end count = 1000\n" +
+            "end\n" +
+            "return (os.clock() - start) / count\n";
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        String[] ops = { "insert front", "remove front", "append", "length", "concat", "unpack" };
+        Globals g = JsePlatform.standardGlobals();
+        LuaValue script = g.load(SCRIPT, "ops");
+        for (int pass = 1; pass <= 2; pass++) {
+            StringBuilder sb = new StringBuilder("pass " + pass + " n=" + n);
+            for (String op : ops) {
+                double seconds = script.call(LuaValue.valueOf(n), LuaValue.valueOf(op)).todouble();
+                sb.append(String.format(" | %s %.2fus", op, seconds * 1e6));
+            }
+            System.out.println(sb);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.Varargs;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+
+/**
+ * Measures {@code table.sort} on tables of random, sorted and reversed integers and random strings,
+ * with and without a lua comparator, reporting the number of comparator calls and the time taken.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.TableSortBenchmark [elements]}.
+ */
+public class TableSortBenchmark {
+
+    private static final String SCRIPT =
+            "local n, shape, kind, compare = ...\n" +
+            "math.randomseed(42)\n" +
+            "local t = {}\n" +
+            "for i = 1, n do\n" +
+            "  local v = shape == 'sorted' and i or shape == 'reversed' and n - i or math.random(1, n)\n" +
+            "  t[i] = kind == 'string' and ('key' .. v) or v\n" +
+            "end\n" +
+            "local calls = 0\n" +
+            "local function lt(a, b) calls = calls + 1 return a < b end\n" +
+            "local start = os.clock()\n" +
+            "if compare then table.sort(t, lt) else table.sort(t) end\n" +
+            "return calls, os.clock() - start\n";
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        String[][] cases = {
+                { "random", "integer" }, { "sorted", "integer" }, { "reversed", "integer" }, { "random", "string" } };
+        Globals g = JsePlatform.standardGlobals();
+        LuaValue script = g.load(SCRIPT, "sort");
+        for (int pass = 1; pass <= 2; pass++) {
+            for (String[] c : cases) {
+                Varargs plain = script.invoke(LuaValue.varargsOf(new LuaValue[] {
+                        LuaValue.valueOf(n), LuaValue.valueOf(c[0]), LuaValue.valueOf(c[1]), LuaValue.FALSE }));
+                Varargs compared = script.invoke(LuaValue.varargsOf(new LuaValue[] {
+                        LuaValue.valueOf(n), LuaValue.valueOf(c[0]), LuaValue.valueOf(c[1]), LuaValue.TRUE }));
+                System.out.println(String.format(
+                        "pass %d %-8s %-7s n=%d | no comparator %6.3fs | comparator %6.3fs, %d comparisons (%.2f n log2 n)",
+                        pass, c[0], c[1], n, plain.arg(2).todouble(), compared.arg(2).todouble(),
+                        compared.arg(1).tolong(), compared.arg(1).todouble() / (n * Math.log(n) / Math.log(2))));
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package io.github.taoguan.luaj.bench;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import io.github.taoguan.luaj.luajc.LuaJC;
+import io.github.taoguan.luaj.luajc.TieredLoader;
+
+/**
+ * Compares interpreting everything, compiling everything with {@link LuaJC}, and
+ * tiered execution with {@link TieredLoader}: the time to load and run once a bundle
+ * of a few hundred chunks, most of whose functions are cold, and the time of a hot
+ * compute loop.
+ * <p>
+ * Run with {@code java -cp ... io.github.taoguan.luaj.bench.TieredBenchmark [chunks]}.
+ */
+public class TieredBenchmark {
+
+    private static final String HOT =
+            "local function fib(n) if n < 2 then return n end return fib(n - 1) + fib(n - 2) end\n" +
+            "local function sieve(n)\n" +
+            "  local p, c = {}, 0\n" +
+            "  for i = 2, n do if not p[i] then c = c + 1 for j = i * i, n, i do p[j] = true end end end\n" +
+            "  return c\n" +
+            "end\n" +
+            "local s = 0\n" +
+            "for i = 1, 20 do s = s + fib(20) + sieve(20000) end\n" +
+            "return s\n";
+
+    private static final String[] MODES = { "interpreted", "luajc", "tiered", "tiered-bg" };
+
+    public static void main(String[] args) throws Exception {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        String[] bundle = new String[n];
+        for (int i = 0; i < n; i++)
+            bundle[i] = chunk(i);
+
+        for (int pass = 1; pass <= 3; pass++) {
+            StringBuilder sb = new StringBuilder("pass " + pass);
+            for (int m = 0; m < MODES.length; m++) {
+                Globals g = globals(m);
+                long start = System.nanoTime();
+                for (int i = 0; i < n; i++)
+                    g.load(bundle[i], "chunk" + i).call();
+                long startup = System.nanoTime() - start;
+
+                g = globals(m);
+                start = System.nanoTime();
+                g.load(HOT, "hot").call();
+                long hot = System.nanoTime() - start;
+                sb.append(String.format(" | %s: bundle %6.1f ms, hot %6.1f ms", MODES[m], startup / 1e6, hot / 1e6));
+            }
+            System.out.println(sb);
+        }
+    }
+
+    private static Globals globals(int mode) {
+        Globals g = JsePlatform.standardGlobals();
+        switch (mode) {
+        case 1: LuaJC.install(g); break;
+        case 2: TieredLoader.install(g); break;
+        case 3: TieredLoader.install(g, new TieredLoader(TieredLoader.DEFAULT_THRESHOLD, true)); break;
+        }
+        return g;
+    }
+
+    private static String chunk(int i) {
+        StringBuilder sb = new StringBuilder("local M = {}\n");
+        for (int f = 0; f < 10; f++)
+            sb.append("function M.f").append(f).append("(t, k) local s = ").append(i)
+                    .append(" for j = 1, #t do s = s + t[j] * k end if s > ").append(f * 100)
+                    .append(" then return tostring(s) .. '").append(f).append("' end return s end\n");
+        sb.append("return M.f0({1, 2, 3}, ").append(i).append(")\n");
+        return sb.toString();
+    }
+}
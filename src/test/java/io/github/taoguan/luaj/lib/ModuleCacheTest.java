@@ -0,0 +1,194 @@
+package io.github.taoguan.luaj.lib;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaClosure;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.Prototype;
+import io.github.taoguan.luaj.lib.jse.JsePlatform;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.ForkJoinPool;
+
+public class ModuleCacheTest {
+
+    private final ModuleCache cache = new ModuleCache();
+    private File dir;
+
+    @Before
+    public void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("luaj-modules").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        delete(dir);
+    }
+
+    @Test
+    public void testPrototypeSharedAcrossGlobals() throws IOException {
+        write("shared.lua", "return { answer = 42 }");
+        Globals a = globals(), b = globals();
+        Assert.assertEquals(42, a.load("return require 'shared'.answer").call().toint());
+        Assert.assertEquals(42, b.load("return require 'shared'.answer").call().toint());
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(1, cache.getMisses());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertNotNull(cache.resolve(b, path(), "shared"));
+    }
+
+    @Test
+    public void testChangedFileIsRecompiled() throws IOException {
+        File f = write("changing.lua", "return 1");
+        Assert.assertEquals(1, globals().load("return require 'changing'").call().toint());
+        write("changing.lua", "return 22");
+        f.setLastModified(f.lastModified() + 2000);
+        Assert.assertEquals(22, globals().load("return require 'changing'").call().toint());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testRemovedFileIsSearchedAgain() throws IOException {
+        new File(dir, "b").mkdir();
+        File first = write("b/moved.lua", "return 'first'");
+        Globals g = globals();
+        g.get("package").set("path", path() + ";" + dir.getPath() + File.separator + "b" + File.separator + "?.lua");
+        Assert.assertEquals("first", g.load("return require 'moved'").call().tojstring());
+        first.delete();
+        write("moved.lua", "return 'second'");
+        g = globals();
+        g.get("package").set("path", path() + ";" + dir.getPath() + File.separator + "b" + File.separator + "?.lua");
+        Assert.assertEquals("second", g.load("return require 'moved'").call().tojstring());
+    }
+
+    @Test
+    public void testPreload() throws IOException {
+        new File(dir, "util").mkdir();
+        write("main.lua", "return require 'util.strings'.upper('x')");
+        write("util/strings.lua", "return { upper = string.upper }");
+        write("util/broken.lua", "return (");
+        write("util/notes.txt", "not a module");
+        Assert.assertEquals(2, cache.preload(globals(), dir, ForkJoinPool.commonPool()));
+        Assert.assertEquals(2, cache.size());
+
+        Globals g = globals();
+        Assert.assertEquals("X", g.load("return require 'main'").call().tojstring());
+        Assert.assertEquals(3, cache.getMisses());
+        Assert.assertEquals(2, cache.getHits());
+        try {
+            g.load("return require 'util.broken'").call();
+            Assert.fail("expected a compile error");
+        } catch (io.github.taoguan.luaj.LuaError e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("broken.lua"));
+        }
+
+        Prototype p = cache.load(g, dir.getPath() + File.separator + "." + File.separator + "main.lua");
+        Assert.assertSame(p, ((LuaClosure) g.get("package").get("searchers").get(2)
+                .invoke(LuaValue.valueOf("main")).arg1()).p);
+    }
+
+    @Test
+    public void testModulesAreReadThroughFinder() throws IOException {
+        write("shadowed.lua", "return 'disk'");
+        final String shadowed = new File(dir, "shadowed.lua").getPath();
+        final String virtual = new File(dir, "virtual.lua").getPath();
+        Globals g = globals();
+        g.finder = new ResourceFinder() {
+            public InputStream findResource(String filename) {
+                if (filename.equals(shadowed))
+                    return new ByteArrayInputStream("return 'memory'".getBytes());
+                if (filename.equals(virtual))
+                    return new ByteArrayInputStream("return 'virtual'".getBytes());
+                return null;
+            }
+        };
+        Assert.assertEquals("memory", g.load("return require 'shadowed'").call().tojstring());
+        Assert.assertEquals("virtual", g.load("return require 'virtual'").call().tojstring());
+        Assert.assertEquals("disk", globals().load("return require 'shadowed'").call().tojstring());
+        Assert.assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testResolutionsAreKeptPerFinder() throws IOException {
+        new File(dir, "a").mkdir();
+        new File(dir, "b").mkdir();
+        write("b/tenant.lua", "return 'disk'");
+        String path = dir.getPath() + File.separator + "a" + File.separator + "?.lua;"
+                + dir.getPath() + File.separator + "b" + File.separator + "?.lua";
+        Globals plain = globals();
+        plain.get("package").set("path", path);
+        Assert.assertEquals("disk", plain.load("return require 'tenant'").call().tojstring());
+
+        final String own = new File(new File(dir, "a"), "tenant.lua").getPath();
+        final ResourceFinder disk = globals().finder;
+        Globals tenant = globals();
+        tenant.get("package").set("path", path);
+        tenant.finder = new ResourceFinder() {
+            public InputStream findResource(String filename) {
+                if (filename.equals(own))
+                    return new ByteArrayInputStream("return 'own'".getBytes());
+                return disk.findResource(filename);
+            }
+        };
+        Assert.assertEquals("own", tenant.load("return require 'tenant'").call().tojstring());
+        Assert.assertEquals(own, cache.resolve(tenant, path, "tenant"));
+        Assert.assertFalse(own.equals(cache.resolve(plain, path, "tenant")));
+    }
+
+    @Test
+    public void testFileSystemHitsOnlyCheckModificationTime() throws IOException {
+        File f = write("stat.lua", "return 'a'");
+        long modified = f.lastModified();
+        Assert.assertEquals("a", globals().load("return require 'stat'").call().tojstring());
+        write("stat.lua", "return 'b'");
+        f.setLastModified(modified);
+        Assert.assertEquals("a", globals().load("return require 'stat'").call().tojstring());
+        f.setLastModified(modified + 2000);
+        Assert.assertEquals("b", globals().load("return require 'stat'").call().tojstring());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testDisabled() throws IOException {
+        write("plain.lua", "return 'plain'");
+        Globals g = globals();
+        g.package_.module_cache = null;
+        Assert.assertEquals("plain", g.load("return require 'plain'").call().tojstring());
+        Assert.assertEquals(0, cache.size());
+    }
+
+    private Globals globals() {
+        Globals g = JsePlatform.standardGlobals();
+        g.package_.module_cache = cache;
+        g.package_.setLuaPath(path());
+        return g;
+    }
+
+    private String path() {
+        return dir.getPath() + File.separator + "?.lua";
+    }
+
+    private File write(String name, String content) throws IOException {
+        File f = new File(dir, name);
+        FileOutputStream os = new FileOutputStream(f);
+        os.write(content.getBytes("UTF-8"));
+        os.close();
+        return f;
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null)
+            for (File c : files)
+                delete(c);
+        f.delete();
+    }
+}
@@ -0,0 +1,183 @@
+package io.github.taoguan.luaj.lib;
+
+import io.github.taoguan.luaj.LuaError;
+import io.github.taoguan.luaj.LuaString;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.ScriptRunner;
+import io.github.taoguan.luaj.Varargs;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Compares the compiled pattern matcher with {@link ReferencePatterns} on fixed and random
+ * patterns and subjects, including malformed patterns and the errors they raise.
+ */
+public class PatternDifferentialTest {
+
+    private static final String[] TOKENS = {
+            "a", "b", "c", "x", " ", "1", ".", "%.", "%%", "%a", "%d", "%s", "%w", "%p", "%x", "%u", "%l",
+            "%c", "%z", "%A", "%S", "%W", "[a-c]", "[^ab]", "[%d_]", "[]]", "[^]a]", "[a-]", "[%a-]", "[-a]",
+            "*", "+", "-", "?", "(", ")", "()", "%b()", "%bab", "%f[%w]", "%f[^%s]", "%1", "%2", "$", "^",
+            "%", "[a", "%b", "%bx", "%f", "%fa", "%g", "]", "(a)", "(%d+)",
+    };
+
+    private static final String SUBJECT_CHARS = "aabbc x1 23_.-%()()$^\u0000XYZ";
+
+    private static final String[] PATTERNS = {
+            "", "^", "$", "^$", "a", "^a", "a$", "^a*$", "(a*(.)%w(%s*))", "()a()", "%b()", "%f[%a]%a+",
+            "(%d+)-(%d+)", "(.-)%-", "^(%s*)(.-)(%s*)$", "[%]]", "[^%]]+", "(a)%1", "%1", "(()", "())", "a%",
+            "[a", "[^", "%b", "%bx", "%f", "%fx", "[]", "[^]]", "(((((((((((((((((((((((((((((((((a)))))))))))))))))))))))))))))))))",
+            "x*y*z*", ".-b", "a?a?a?aaa", "%z+", "[%z]", "%x+", "[a-%%]", "[%a-z]",
+    };
+
+    private static final String[] SUBJECTS = {
+            "", "a", "aaa", "abc", "hello world from lua", " 12-34 56-78 ", "(foo(bar))baz", "THE (quick) fox",
+            "x\u0000y", "aaaaaaaaaaaaaaaaaaab", "]]]", "key = value", "a%b%c",
+    };
+
+    private final ScriptRunner lua = new ScriptRunner("patterns");
+    private final LuaValue string = lua.globals.get("string");
+
+    public PatternDifferentialTest() {
+        ReferencePatterns.install(string);
+    }
+
+    @Test
+    public void testFixedCases() {
+        for (String p : PATTERNS)
+            for (String s : SUBJECTS)
+                compare(s, p, 1);
+        Assert.assertEquals("nil:nil,", call("find", LuaValue.valueOf("aa"), LuaValue.valueOf("()%1")));
+    }
+
+    @Test
+    public void testRandomCases() {
+        Random r = new Random(20240517);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder p = new StringBuilder();
+            for (int n = r.nextInt(6); n >= 0; n--)
+                p.append(TOKENS[r.nextInt(TOKENS.length)]);
+            StringBuilder s = new StringBuilder();
+            for (int n = r.nextInt(24); n > 0; n--)
+                s.append(SUBJECT_CHARS.charAt(r.nextInt(SUBJECT_CHARS.length())));
+            compare(s.toString(), p.toString(), r.nextInt(7) - 3);
+        }
+    }
+
+    @Test
+    public void testCacheDisabled() {
+        int size = LuaPattern.cache_size;
+        try {
+            LuaPattern.cache_size = 0;
+            LuaPattern.clearCache();
+            for (String p : PATTERNS)
+                compare("hello (world) 12-34", p, 1);
+        } finally {
+            LuaPattern.cache_size = size;
+        }
+    }
+
+    @Test
+    public void testCompiledOncePerPattern() {
+        int size = LuaPattern.cache_size;
+        try {
+            LuaPattern.clearCache();
+            LuaPattern p = LuaPattern.compile(LuaString.valueOf("(%d+)-(%d+)"));
+            Assert.assertSame(p, LuaPattern.compile(LuaString.valueOf("(%d+)-(%d+)")));
+
+            LuaPattern.cache_size = 2;
+            LuaPattern.clearCache();
+            LuaPattern a = LuaPattern.compile(LuaString.valueOf("a"));
+            LuaPattern b = LuaPattern.compile(LuaString.valueOf("b"));
+            Assert.assertSame(a, LuaPattern.compile(LuaString.valueOf("a")));
+            LuaPattern.compile(LuaString.valueOf("c"));
+            Assert.assertSame(a, LuaPattern.compile(LuaString.valueOf("a")));
+            Assert.assertNotSame(b, LuaPattern.compile(LuaString.valueOf("b")));
+
+            LuaPattern.cache_size = 0;
+            Assert.assertNotSame(LuaPattern.compile(LuaString.valueOf("a")), LuaPattern.compile(LuaString.valueOf("a")));
+        } finally {
+            LuaPattern.cache_size = size;
+        }
+    }
+
+    @Test
+    public void testAnchorOfCachedPattern() {
+        Varargs r = lua.run(
+                "local n = 0\n" +
+                "for m in ('^ab ab ^ab'):gmatch('^ab') do n = n + 1 end\n" +
+                "return n, (('ab ^ab'):find('^ab')), (('x ab'):find('^ab')), ('^ab'):gsub('^ab', 'X')\n");
+        Assert.assertEquals(2, r.arg(1).toint());
+        Assert.assertEquals(1, r.arg(2).toint());
+        Assert.assertTrue(r.arg(3).isnil());
+        Assert.assertEquals("^ab", r.arg(4).tojstring());
+        Assert.assertEquals(0, r.arg(5).toint());
+    }
+
+    private void compare(String s, String p, int init) {
+        LuaValue ls = LuaValue.valueOf(s), lp = LuaValue.valueOf(p), li = LuaValue.valueOf(init);
+        LuaValue[] repls = {
+                LuaValue.valueOf("<%0>"), LuaValue.valueOf("%1|"),
+                new OneArgFunction() {
+                    public LuaValue call(LuaValue arg) {
+                        return arg.isstring() && arg.length() % 2 == 0 ? NIL : LuaValue.valueOf("#");
+                    }
+                },
+        };
+        String where = " for subject '" + s + "' and pattern '" + p + "'";
+        // back references to position captures made the reference go on from a bad offset,
+        // they now never match as in C
+        boolean changed = p.matches("(?s).*\\(\\).*%[1-9].*");
+        same(changed, "find" + where, call("ref_find", ls, lp, li), call("find", ls, lp, li));
+        same(changed, "match" + where, call("ref_match", ls, lp, li), call("match", ls, lp, li));
+        same(changed, "gmatch" + where, gmatch("ref_gmatch", ls, lp), gmatch("gmatch", ls, lp));
+        for (LuaValue repl : repls) {
+            same(changed, "gsub" + where, call("ref_gsub", ls, lp, repl), call("gsub", ls, lp, repl));
+            same(changed, "gsub n" + where, call("ref_gsub", ls, lp, repl, LuaValue.valueOf(2)),
+                    call("gsub", ls, lp, repl, LuaValue.valueOf(2)));
+        }
+    }
+
+    private static void same(boolean changed, String message, String expected, String actual) {
+        if (!changed)
+            Assert.assertEquals(message, expected, actual);
+        Assert.assertFalse(message + ": " + actual, actual.contains("crash: "));
+    }
+
+    private String call(String name, LuaValue... args) {
+        try {
+            return show(string.get(name).invoke(LuaValue.varargsOf(args)));
+        } catch (LuaError e) {
+            return "error: " + e.getMessage();
+        } catch (RuntimeException e) {
+            return "crash: " + e;
+        }
+    }
+
+    private String gmatch(String name, LuaValue s, LuaValue p) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            LuaValue f = string.get(name).call(s, p);
+            for (int i = 0; i < 40; i++) {
+                Varargs v = f.invoke();
+                sb.append(show(v)).append(';');
+                if (v.arg1().isnil())
+                    break;
+            }
+        } catch (LuaError e) {
+            sb.append("error: ").append(e.getMessage());
+        } catch (RuntimeException e) {
+            sb.append("crash: ").append(e);
+        }
+        return sb.toString();
+    }
+
+    private static String show(Varargs v) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= v.narg(); i++)
+            sb.append(v.arg(i).typename()).append(':').append(v.arg(i).tojstring()).append(',');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,578 @@
+package io.github.taoguan.luaj.lib;
+
+import io.github.taoguan.luaj.*;
+
+import static io.github.taoguan.luaj.LuaValue.*;
+
+/**
+ * The pattern matching functions of {@link StringLib} as they were before patterns were compiled,
+ * interpreting the pattern text at every step, kept as the reference for {@link PatternDifferentialTest}
+ * and {@link io.github.taoguan.luaj.bench.PatternBenchmark}.
+ */
+public class ReferencePatterns {
+
+	/** Add the reference functions to the string table as ref_find, ref_match, ref_gmatch and ref_gsub. */
+	public static void install(LuaValue string) {
+		string.set("ref_find", new find());
+		string.set("ref_match", new match());
+		string.set("ref_gmatch", new gmatch());
+		string.set("ref_gsub", new gsub());
+	}
+
+	static final class find extends VarArgFunction {
+		public Varargs invoke(Varargs args) {
+			return str_find_aux( args, true );
+		}
+	}
+
+	static final class match extends VarArgFunction {
+		public Varargs invoke(Varargs args) {
+			return str_find_aux( args, false );
+		}
+	}
+
+	static final class gmatch extends VarArgFunction {
+		public Varargs invoke(Varargs args) {
+			LuaString src = args.checkstring( 1 );
+			LuaString pat = args.checkstring( 2 );
+			return new GMatchAux(args, src, pat);
+		}
+	}
+
+	static class GMatchAux extends VarArgFunction {
+		private final int srclen;
+		private final MatchState ms;
+		private int soffset;
+		public GMatchAux(Varargs args, LuaString src, LuaString pat) {
+			this.srclen = src.length();
+			this.ms = new MatchState(args, src, pat);
+			this.soffset = 0;
+		}
+		public Varargs invoke(Varargs args) {
+			for ( ; soffset<=srclen; soffset++ ) {
+				ms.reset();
+				int res = ms.match(soffset, 0);
+				if ( res >=0 ) {
+					int soff = soffset;
+					soffset = res;
+					if (soff == res) soffset++; /* empty match? go at least one position */
+					return ms.push_captures( true, soff, res );
+				}
+			}
+			return NIL;
+		}
+	}
+
+	
+	/**
+	 * string.gsub (s, pattern, repl [, n])
+	 * Returns a copy of s in which all (or the first n, if given) occurrences of the
+	 * pattern have been replaced by a replacement string specified by repl, which
+	 * may be a string, a table, or a function. gsub also returns, as its second value,
+	 * the total number of matches that occurred.
+	 * 
+	 * If repl is a string, then its value is used for replacement.
+	 * The character % works as an escape character: any sequence in repl of the form %n,
+	 * with n between 1 and 9, stands for the value of the n-th captured substring (see below).
+	 * The sequence %0 stands for the whole match. The sequence %% stands for a single %.
+	 * 
+	 * If repl is a table, then the table is queried for every match, using the first capture
+	 * as the key; if the pattern specifies no captures, then the whole match is used as the key.
+	 * 
+	 * If repl is a function, then this function is called every time a match occurs,
+	 * with all captured substrings passed as arguments, in order; if the pattern specifies
+	 * no captures, then the whole match is passed as a sole argument.
+	 * 
+	 * If the value returned by the table query or by the function call is a string or a number,
+	 * then it is used as the replacement string; otherwise, if it is false or nil,
+	 * then there is no replacement (that is, the original match is kept in the string).
+	 * 
+	 * Here are some examples:
+	 * 	     x = string.gsub("hello world", "(%w+)", "%1 %1")
+	 * 	     --> x="hello hello world world"
+	 * 
+	 *	     x = string.gsub("hello world", "%w+", "%0 %0", 1)
+	 *	     --> x="hello hello world"
+	 *
+	 *	     x = string.gsub("hello world from Lua", "(%w+)%s*(%w+)", "%2 %1")
+	 *	     --> x="world hello Lua from"
+	 *
+	 *	     x = string.gsub("home = $HOME, user = $USER", "%$(%w+)", os.getenv)
+	 *	     --> x="home = /home/roberto, user = roberto"
+	 *
+	 *	     x = string.gsub("4+5 = $return 4+5$", "%$(.-)%$", function (s)
+	 *	           return loadstring(s)()
+	 *       end)
+	 *	     --> x="4+5 = 9"
+	 *
+	 *	     local t = {name="lua", version="5.1"}
+	 *	     x = string.gsub("$name-$version.tar.gz", "%$(%w+)", t)
+	 *	     --> x="lua-5.1.tar.gz"
+	 */
+	static final class gsub extends VarArgFunction {
+		public Varargs invoke(Varargs args) {
+			LuaString src = args.checkstring( 1 );
+			final int srclen = src.length();
+			LuaString p = args.checkstring( 2 );
+			LuaValue repl = args.arg( 3 );
+			int max_s = args.optint( 4, srclen + 1 );
+			final boolean anchor = p.length() > 0 && p.charAt( 0 ) == '^';
+			
+			Buffer lbuf = new Buffer( srclen );
+			MatchState ms = new MatchState( args, src, p );
+			
+			int soffset = 0;
+			int n = 0;
+			while ( n < max_s ) {
+				ms.reset();
+				int res = ms.match( soffset, anchor ? 1 : 0 );
+				if ( res != -1 ) {
+					n++;
+					ms.add_value( lbuf, soffset, res, repl );
+				}
+				if ( res != -1 && res > soffset )
+					soffset = res;
+				else if ( soffset < srclen )
+					lbuf.append( (byte) src.luaByte( soffset++ ) );
+				else
+					break;
+				if ( anchor )
+					break;
+			}
+			lbuf.append( src.substring( soffset, srclen ) );
+			return varargsOf(lbuf.tostring(), valueOf(n));
+		}
+	}
+	
+	/**
+	 * This utility method implements both string.find and string.match.
+	 */
+	static Varargs str_find_aux( Varargs args, boolean find ) {
+		LuaString s = args.checkstring( 1 );
+		LuaString pat = args.checkstring( 2 );
+		int init = args.optint( 3, 1 );
+		
+		if ( init > 0 ) {
+			init = Math.min( init - 1, s.length() );
+		} else if ( init < 0 ) {
+			init = Math.max( 0, s.length() + init );
+		}
+		
+		boolean fastMatch = find && ( args.arg(4).toboolean() || pat.indexOfAny( SPECIALS ) == -1 );
+		
+		if ( fastMatch ) {
+			int result = s.indexOf( pat, init );
+			if ( result != -1 ) {
+				return varargsOf( valueOf(result+1), valueOf(result+pat.length()) );
+			}
+		} else {
+			MatchState ms = new MatchState( args, s, pat );
+			
+			boolean anchor = false;
+			int poff = 0;
+			if ( pat.length() > 0 && pat.luaByte( 0 ) == '^' ) {
+				anchor = true;
+				poff = 1;
+			}
+			
+			int soff = init;
+			do {
+				int res;
+				ms.reset();
+				if ( ( res = ms.match( soff, poff ) ) != -1 ) {
+					if ( find ) {
+						return varargsOf( valueOf(soff+1), valueOf(res), ms.push_captures( false, soff, res ));
+					} else {
+						return ms.push_captures( true, soff, res );
+					}
+				}
+			} while ( soff++ < s.length() && !anchor );
+		}
+		return NIL;
+	}
+	
+	// Pattern matching implementation
+	
+	private static final int L_ESC = '%';
+	private static final LuaString SPECIALS = valueOf("^$*+?.([%-");
+	private static final int MAX_CAPTURES = 32;
+	
+	private static final int CAP_UNFINISHED = -1;
+	private static final int CAP_POSITION = -2;
+	
+	private static final byte MASK_ALPHA		= 0x01;
+	private static final byte MASK_LOWERCASE	= 0x02;
+	private static final byte MASK_UPPERCASE	= 0x04;
+	private static final byte MASK_DIGIT		= 0x08;
+	private static final byte MASK_PUNCT		= 0x10;
+	private static final byte MASK_SPACE		= 0x20;
+	private static final byte MASK_CONTROL		= 0x40;
+	private static final byte MASK_HEXDIGIT		= (byte)0x80;
+	
+	static final byte[] CHAR_TABLE = StringLib.CHAR_TABLE;
+
+	static class MatchState {
+		final LuaString s;
+		final LuaString p;
+		final Varargs args;
+		int level;
+		int[] cinit;
+		int[] clen;
+		
+		MatchState(Varargs args, LuaString s, LuaString pattern ) {
+			this.s = s;
+			this.p = pattern;
+			this.args = args;
+			this.level = 0;
+			this.cinit = new int[ MAX_CAPTURES ];
+			this.clen = new int[ MAX_CAPTURES ];
+		}
+		
+		void reset() {
+			level = 0;
+		}
+		
+		private void add_s(Buffer lbuf, LuaString news, int soff, int e ) {
+			int l = news.length();
+			for ( int i = 0; i < l; ++i ) {
+				byte b = (byte) news.luaByte( i );
+				if ( b != L_ESC ) {
+					lbuf.append( (byte) b );
+				} else {
+					++i; // skip ESC
+					b = (byte)(i < l ? news.luaByte( i ) : 0);
+					if ( !Character.isDigit( (char) b ) ) {
+						if (b != L_ESC) error( "invalid use of '" + (char)L_ESC +
+							"' in replacement string: after '" + (char)L_ESC +
+							"' must be '0'-'9' or '" + (char)L_ESC +
+							"', but found " + (i < l ? "symbol '" + (char)b + "' with code " + b +
+							" at pos " + (i + 1) :
+							"end of string"));
+						lbuf.append( b );
+					} else if ( b == '0' ) {
+						lbuf.append( s.substring( soff, e ) );
+					} else {
+						lbuf.append( push_onecapture( b - '1', soff, e ).strvalue() );
+					}
+				}
+			}
+		}
+		
+		public void add_value(Buffer lbuf, int soffset, int end, LuaValue repl ) {
+			switch ( repl.type() ) {
+			case LuaValue.TSTRING:
+			case LuaValue.TNUMBER:
+				add_s( lbuf, repl.strvalue(), soffset, end );
+				return;
+				
+			case LuaValue.TFUNCTION:
+				repl = repl.invoke( push_captures( true, soffset, end ) ).arg1();
+				break;
+				
+			case LuaValue.TTABLE:
+				// Need to call push_onecapture here for the error checking
+				repl = repl.get( push_onecapture( 0, soffset, end ) );
+				break;
+				
+			default:
+				error( "bad argument: string/function/table expected" );
+				return;
+			}
+			
+			if ( !repl.toboolean() ) {
+				repl = s.substring( soffset, end );
+			} else if ( ! repl.isstring() ) {
+				error( "invalid replacement value (a "+repl.typename()+")" );
+			}
+			lbuf.append( repl.strvalue() );
+		}
+		
+		Varargs push_captures( boolean wholeMatch, int soff, int end ) {
+			int nlevels = ( this.level == 0 && wholeMatch ) ? 1 : this.level;
+			switch ( nlevels ) {
+			case 0: return NONE;
+			case 1: return push_onecapture( 0, soff, end );
+			}
+			LuaValue[] v = new LuaValue[nlevels];
+			for ( int i = 0; i < nlevels; ++i )
+				v[i] = push_onecapture( i, soff, end );
+			return varargsOf(v);
+		}
+		
+		private LuaValue push_onecapture(int i, int soff, int end ) {
+			if ( i >= this.level ) {
+				if ( i == 0 ) {
+					return s.substring( soff, end );
+				} else {
+					return error( "invalid capture index" );
+				}
+			} else {
+				int l = clen[i];
+				if ( l == CAP_UNFINISHED ) {
+					return error( "unfinished capture" );
+				}
+				if ( l == CAP_POSITION ) {
+					return valueOf( cinit[i] + 1 );
+				} else {
+					int begin = cinit[i];
+					return s.substring( begin, begin + l );
+				}
+			}
+		}
+		
+		private int check_capture( int l ) {
+			l -= '1';
+			if ( l < 0 || l >= level || this.clen[l] == CAP_UNFINISHED ) {
+				error("invalid capture index");
+			}
+			return l;
+		}
+		
+		private int capture_to_close() {
+			int level = this.level;
+			for ( level--; level >= 0; level-- )
+				if ( clen[level] == CAP_UNFINISHED )
+					return level;
+			error("invalid pattern capture");
+			return 0;
+		}
+		
+		int classend( int poffset ) {
+			switch ( p.luaByte( poffset++ ) ) {
+			case L_ESC:
+				if ( poffset == p.length() ) {
+					error( "malformed pattern (ends with '%')" );
+				}
+				return poffset + 1;
+				
+			case '[':
+				if ( poffset != p.length() && p.luaByte( poffset ) == '^' ) poffset++;
+				do {
+					if ( poffset == p.length() ) {
+						error( "malformed pattern (missing ']')" );
+					}
+					if ( p.luaByte( poffset++ ) == L_ESC && poffset < p.length() )
+						poffset++; /* skip escapes (e.g. '%]') */
+				} while ( poffset == p.length() || p.luaByte( poffset ) != ']' );
+				return poffset + 1;
+			default:
+				return poffset;
+			}
+		}
+		
+		static boolean match_class( int c, int cl ) {
+			final char lcl = Character.toLowerCase( (char) cl );
+			int cdata = CHAR_TABLE[c];
+			
+			boolean res;
+			switch ( lcl ) {
+			case 'a': res = ( cdata & MASK_ALPHA ) != 0; break;
+			case 'd': res = ( cdata & MASK_DIGIT ) != 0; break;
+			case 'l': res = ( cdata & MASK_LOWERCASE ) != 0; break;
+			case 'u': res = ( cdata & MASK_UPPERCASE ) != 0; break;
+			case 'c': res = ( cdata & MASK_CONTROL ) != 0; break;
+			case 'p': res = ( cdata & MASK_PUNCT ) != 0; break;
+			case 's': res = ( cdata & MASK_SPACE ) != 0; break;
+			case 'w': res = ( cdata & ( MASK_ALPHA | MASK_DIGIT ) ) != 0; break;
+			case 'x': res = ( cdata & MASK_HEXDIGIT ) != 0; break;
+			case 'z': res = ( c == 0 ); break;
+			default: return cl == c;
+			}
+			return ( lcl == cl ) ? res : !res;
+		}
+		
+		boolean matchbracketclass( int c, int poff, int ec ) {
+			boolean sig = true;
+			if ( p.luaByte( poff + 1 ) == '^' ) {
+				sig = false;
+				poff++;
+			}
+			while ( ++poff < ec ) {
+				if ( p.luaByte( poff ) == L_ESC ) {
+					poff++;
+					if ( match_class( c, p.luaByte( poff ) ) )
+						return sig;
+				}
+				else if ( ( p.luaByte( poff + 1 ) == '-' ) && ( poff + 2 < ec ) ) {
+					poff += 2;
+					if ( p.luaByte( poff - 2 ) <= c && c <= p.luaByte( poff ) )
+						return sig;
+				}
+				else if ( p.luaByte( poff ) == c ) return sig;
+			}
+			return !sig;
+		}
+		
+		boolean singlematch( int c, int poff, int ep ) {
+			switch ( p.luaByte( poff ) ) {
+			case '.': return true;
+			case L_ESC: return match_class( c, p.luaByte( poff + 1 ) );
+			case '[': return matchbracketclass( c, poff, ep - 1 );
+			default: return p.luaByte( poff ) == c;
+			}
+		}
+		
+		/**
+		 * Perform pattern matching. If there is a match, returns offset into s
+		 * where match ends, otherwise returns -1.
+		 */
+		int match( int soffset, int poffset ) {
+			while ( true ) {
+				// Check if we are at the end of the pattern -
+				// equivalent to the '\0' case in the C version, but our pattern
+				// string is not NUL-terminated.
+				if ( poffset == p.length() )
+					return soffset;
+				switch ( p.luaByte( poffset ) ) {
+				case '(':
+					if ( ++poffset < p.length() && p.luaByte( poffset ) == ')' )
+						return start_capture( soffset, poffset + 1, CAP_POSITION );
+					else
+						return start_capture( soffset, poffset, CAP_UNFINISHED );
+				case ')':
+					return end_capture( soffset, poffset + 1 );
+				case L_ESC:
+					if ( poffset + 1 == p.length() )
+						error("malformed pattern (ends with '%')");
+					switch ( p.luaByte( poffset + 1 ) ) {
+					case 'b':
+						soffset = matchbalance( soffset, poffset + 2 );
+						if ( soffset == -1 ) return -1;
+						poffset += 4;
+						continue;
+					case 'f': {
+						poffset += 2;
+						if ( poffset == p.length() || p.luaByte( poffset ) != '[' ) {
+							error("Missing '[' after '%f' in pattern");
+						}
+						int ep = classend( poffset );
+						int previous = ( soffset == 0 ) ? '\0' : s.luaByte( soffset - 1 );
+						int next = ( soffset == s.length() ) ? '\0' : s.luaByte( soffset );
+						if ( matchbracketclass( previous, poffset, ep - 1 ) ||
+							 !matchbracketclass( next, poffset, ep - 1 ) )
+							return -1;
+						poffset = ep;
+						continue;
+					}
+					default: {
+						int c = p.luaByte( poffset + 1 );
+						if ( Character.isDigit( (char) c ) ) {
+							soffset = match_capture( soffset, c );
+							if ( soffset == -1 )
+								return -1;
+							return match( soffset, poffset + 2 );
+						}
+					}
+					}
+				case '$':
+					if ( poffset + 1 == p.length() )
+						return ( soffset == s.length() ) ? soffset : -1;
+				}
+				int ep = classend( poffset );
+				boolean m = soffset < s.length() && singlematch( s.luaByte( soffset ), poffset, ep );
+				int pc = ( ep < p.length() ) ? p.luaByte( ep ) : '\0';
+				
+				switch ( pc ) {
+				case '?':
+					int res;
+					if ( m && ( ( res = match( soffset + 1, ep + 1 ) ) != -1 ) )
+						return res;
+					poffset = ep + 1;
+					continue;
+				case '*':
+					return max_expand( soffset, poffset, ep );
+				case '+':
+					return ( m ? max_expand( soffset + 1, poffset, ep ) : -1 );
+				case '-':
+					return min_expand( soffset, poffset, ep );
+				default:
+					if ( !m )
+						return -1;
+					soffset++;
+					poffset = ep;
+					continue;
+				}
+			}
+		}
+		
+		int max_expand( int soff, int poff, int ep ) {
+			int i = 0;
+			while ( soff + i < s.length() &&
+					singlematch( s.luaByte( soff + i ), poff, ep ) )
+				i++;
+			while ( i >= 0 ) {
+				int res = match( soff + i, ep + 1 );
+				if ( res != -1 )
+					return res;
+				i--;
+			}
+			return -1;
+		}
+		
+		int min_expand( int soff, int poff, int ep ) {
+			for ( ;; ) {
+				int res = match( soff, ep + 1 );
+				if ( res != -1 )
+					return res;
+				else if ( soff < s.length() && singlematch( s.luaByte( soff ), poff, ep ) )
+					soff++;
+				else return -1;
+			}
+		}
+		
+		int start_capture( int soff, int poff, int what ) {
+			int res;
+			int level = this.level;
+			if ( level >= MAX_CAPTURES ) {
+				error( "too many captures" );
+			}
+			cinit[ level ] = soff;
+			clen[ level ] = what;
+			this.level = level + 1;
+			if ( ( res = match( soff, poff ) ) == -1 )
+				this.level--;
+			return res;
+		}
+		
+		int end_capture( int soff, int poff ) {
+			int l = capture_to_close();
+			int res;
+			clen[l] = soff - cinit[l];
+			if ( ( res = match( soff, poff ) ) == -1 )
+				clen[l] = CAP_UNFINISHED;
+			return res;
+		}
+		
+		int match_capture( int soff, int l ) {
+			l = check_capture( l );
+			int len = clen[ l ];
+			if ( ( s.length() - soff ) >= len &&
+				 LuaString.equals( s, cinit[l], s, soff, len ) )
+				return soff + len;
+			else
+				return -1;
+		}
+		
+		int matchbalance( int soff, int poff ) {
+			final int plen = p.length();
+			if ( poff == plen || poff + 1 == plen ) {
+				error( "unbalanced pattern" );
+			}
+			final int slen = s.length();
+			if ( soff >= slen )
+				return -1;
+			final int b = p.luaByte( poff );
+			if ( s.luaByte( soff ) != b )
+				return -1;
+			final int e = p.luaByte( poff + 1 );
+			int cont = 1;
+			while ( ++soff < slen ) {
+				if ( s.luaByte( soff ) == e ) {
+					if ( --cont == 0 ) return soff + 1;
+				}
+				else if ( s.luaByte( soff ) == b ) cont++;
+			}
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package io.github.taoguan.luaj.lib.jse;
+
+import io.github.taoguan.luaj.Globals;
+import io.github.taoguan.luaj.LuaValue;
+import io.github.taoguan.luaj.Varargs;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Reads the same files through RandomAccessFile, small and default channel buffers,
+ * and memory mapped buffers, which must all give the same results.
+ */
+public class FileReadTest {
+
+    private static final String CONTENT;
+    static {
+        StringBuilder sb = new StringBuilder("first\n\nwindows\r\nend of\r line\n  42.5 -7 rest\n");
+        for (int i = 0; i < 300; i++)
+            sb.append((char) ('a' + i % 26));
+        sb.append("\nnul\u0000byte\nlast without newline");
+        CONTENT = sb.toString();
+    }
+
+    private static final String SCRIPT =
+            "local path = ...\n" +
+            "local out = {}\n" +
+            "for line in io.lines(path) do out[#out + 1] = '[' .. line .. ']' end\n" +
+            "local f = io.open(path, 'r')\n" +
+            "out[#out + 1] = f:read('*l') .. '|' .. f:read(3) .. '|' .. f:read('*l')\n" +
+            "f:seek('set', 0)\n" +
+            "out[#out + 1] = #f:read('*a') .. '|' .. tostring(f:read('*l')) .. '|' .. f:read('*a')\n" +
+            "f:seek('set', 30)\n" +
+            "out[#out + 1] = f:read('*l')\n" +
+            "out[#out + 1] = tostring(f:read('*n')) .. '|' .. tostring(f:read('*n')) .. '|' .. f:read('*l')\n" +
+            "out[#out + 1] = tostring(f:seek('cur', 0)) .. '|' .. tostring(f:seek('end', -4)) .. '|' .. f:read('*a')\n" +
+            "f:close()\n" +
+            "local w = io.open(path .. '.w', 'w')\n" +
+            "w:write('abc\\n', 'def')\n" +
+            "w:seek('set', 1)\n" +
+            "w:write('X')\n" +
+            "w:close()\n" +
+            "out[#out + 1] = io.open(path .. '.w', 'r'):read('*a')\n" +
+            "return table.concat(out, '\\n')\n";
+
+    private final int bufferSize = JseIoLib.read_buffer_size;
+    private final long mapThreshold = JseIoLib.map_threshold;
+    private File file;
+
+    @After
+    public void restore() {
+        JseIoLib.read_buffer_size = bufferSize;
+        JseIoLib.map_threshold = mapThreshold;
+        if (file != null) {
+            file.delete();
+            new File(file.getPath() + ".w").delete();
+        }
+    }
+
+    @Test
+    public void testImplementationsAgree() throws IOException {
+        file = File.createTempFile("luaj-read", ".txt");
+        FileOutputStream os = new FileOutputStream(file);
+        os.write(CONTENT.getBytes("ISO-8859-1"));
+        os.close();
+
+        JseIoLib.read_buffer_size = 0;
+        String expected = run();
+        Assert.assertTrue(expected, expected.startsWith("[first]\n[]\n[windows]\n[end of line]\n[  42.5 -7 rest]\n[abc"));
+        Assert.assertTrue(expected, expected.contains("\n[nul\u0000byte]\n[last without newline]\nfirst|\nwi|ndows\n"
+                + CONTENT.length() + "|nil|\n 42.5 -7 rest\n"));
+        Assert.assertTrue(expected, expected.endsWith("\n345|370|line\naXc\ndef"));
+
+        JseIoLib.read_buffer_size = 16;
+        Assert.assertEquals(expected, run());
+        JseIoLib.read_buffer_size = 64 * 1024;
+        Assert.assertEquals(expected, run());
+        JseIoLib.map_threshold = 1;
+        Assert.assertEquals(expected, run());
+    }
+
+    @Test(timeout = 10000)
+    public void testStandardOutputReadsEndOfFile() {
+        Globals globals = JsePlatform.standardGlobals();
+        Varargs r = globals.load(
+                "return io.stdout:read('*l'), io.stderr:read('*l'), io.stdout:read('*a')", "stdout").invoke();
+        Assert.assertTrue(r.arg(1).isnil());
+        Assert.assertTrue(r.arg(2).isnil());
+        Assert.assertEquals("", r.arg(3).tojstring());
+    }
+
+    private String run() {
+        Globals globals = JsePlatform.standardGlobals();
+        return globals.load(SCRIPT, "read").call(LuaValue.valueOf(file.getPath())).tojstring();
+    }
+}